@@ -330,6 +330,9 @@ run_silent "${CXX}" -o ${OUTPUT_DIR}/build-runfiles -std=c++0x src/main/tools/bu
 log "Compiling process-wrapper..."
 run_silent "${CC}" -o ${OUTPUT_DIR}/process-wrapper -std=c99 src/main/tools/process-wrapper.c src/main/tools/process-tools.c -lm ${LDFLAGS}
 
+log "Compiling spawn-helper..."
+run_silent "${CC}" -o ${OUTPUT_DIR}/spawn-helper -std=c99 src/main/tools/spawn-helper.c src/main/tools/process-tools.c -lm ${LDFLAGS}
+
 log "Compiling namespace-sandbox..."
 if [[ $PLATFORM == "linux" ]]; then
   run_silent "${CC}" -o ${OUTPUT_DIR}/namespace-sandbox -std=c99 src/main/tools/namespace-sandbox.c src/main/tools/network-tools.c src/main/tools/process-tools.c -lm ${LDFLAGS}
@@ -342,7 +345,7 @@ cp src/main/tools/jdk.* ${OUTPUT_DIR}
 
 log "Creating Bazel self-extracting archive..."
 ARCHIVE_DIR=${OUTPUT_DIR}/archive
-for i in libblaze.jar ${JNILIB} build-runfiles${EXE_EXT} process-wrapper${EXE_EXT} namespace-sandbox${EXE_EXT} build_interface_so ${MSYS_DLLS} jdk.BUILD; do
+for i in libblaze.jar ${JNILIB} build-runfiles${EXE_EXT} process-wrapper${EXE_EXT} spawn-helper${EXE_EXT} namespace-sandbox${EXE_EXT} build_interface_so ${MSYS_DLLS} jdk.BUILD; do
   mkdir -p $(dirname $ARCHIVE_DIR/$i);
   cp $OUTPUT_DIR/$i $ARCHIVE_DIR/$i;
 done
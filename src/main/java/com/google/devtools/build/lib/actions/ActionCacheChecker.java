@@ -16,21 +16,30 @@ package com.google.devtools.build.lib.actions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
 import com.google.devtools.build.lib.actions.Action.MiddlemanType;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.ActionCache.Entry;
 import com.google.devtools.build.lib.actions.cache.Digest;
+import com.google.devtools.build.lib.actions.cache.DiskActionOutputCache;
 import com.google.devtools.build.lib.actions.cache.Metadata;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Counter;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -50,18 +59,35 @@ import javax.annotation.Nullable;
  * otherwise lightweight, and should be constructed anew and discarded for each build request.
  */
 public class ActionCacheChecker {
+  private static final Counter cacheHits =
+      MetricsRegistry.instance().counter("action_cache.hits");
+  private static final Counter cacheMisses =
+      MetricsRegistry.instance().counter("action_cache.misses");
+
   private final ActionCache actionCache;
   private final Predicate<? super Action> executionFilter;
   private final ArtifactResolver artifactResolver;
   // True iff --verbose_explanations flag is set.
   private final boolean verboseExplanations;
+  @Nullable private final DiskActionOutputCache diskCache;
 
   public ActionCacheChecker(ActionCache actionCache, ArtifactResolver artifactResolver,
       Predicate<? super Action> executionFilter, boolean verboseExplanations) {
+    this(actionCache, artifactResolver, executionFilter, verboseExplanations, null);
+  }
+
+  /**
+   * @param diskCache the local disk cache that outputs of actions that need to be executed are
+   *     looked up in before execution, or null to always execute them
+   */
+  public ActionCacheChecker(ActionCache actionCache, ArtifactResolver artifactResolver,
+      Predicate<? super Action> executionFilter, boolean verboseExplanations,
+      @Nullable DiskActionOutputCache diskCache) {
     this.actionCache = actionCache;
     this.executionFilter = executionFilter;
     this.artifactResolver = artifactResolver;
     this.verboseExplanations = verboseExplanations;
+    this.diskCache = diskCache;
   }
 
   public boolean isActionExecutionProhibited(Action action) {
@@ -171,11 +197,13 @@ public class ActionCacheChecker {
     }
     ActionCache.Entry entry = getCacheEntry(action);
     if (mustExecute(action, entry, handler, metadataHandler, actionInputs)) {
+      cacheMisses.increment();
       if (entry != null) {
         removeCacheEntry(action);
       }
       return new Token(getKeyString(action));
     }
+    cacheHits.increment();
 
     if (!inputsKnown) {
       action.updateInputs(actionInputs);
@@ -240,6 +268,89 @@ public class ActionCacheChecker {
     actionCache.put(key, entry);
   }
 
+  /**
+   * Creates the outputs of {@code action}, which needs to be executed, from the local disk cache
+   * if it holds them. Must be called after the outputs were deleted.
+   *
+   * @return true if the outputs were created and the action need not be executed
+   * @throws IOException if the cache could not be read; no outputs were created then
+   */
+  public boolean fetchFromDiskCache(Action action, MetadataHandler metadataHandler, Path execRoot)
+      throws IOException {
+    String key = getDiskCacheKey(action, metadataHandler);
+    if (key == null) {
+      return false;
+    }
+    List<PathFragment> outputs = new ArrayList<>();
+    for (Artifact output : action.getOutputs()) {
+      outputs.add(output.getExecPath());
+    }
+    return diskCache.fetch(key, execRoot, outputs);
+  }
+
+  /**
+   * Adds the outputs of {@code action} to the local disk cache after it was executed, unless the
+   * action is not cacheable or has outputs that are not regular files.
+   */
+  public void storeInDiskCache(Action action, MetadataHandler metadataHandler, Path execRoot)
+      throws IOException {
+    String key = getDiskCacheKey(action, metadataHandler);
+    if (key == null) {
+      return;
+    }
+    Map<PathFragment, byte[]> outputs = new LinkedHashMap<>();
+    for (Artifact output : action.getOutputs()) {
+      if (metadataHandler.artifactOmitted(output)
+          || !output.getPath().isFile(Symlinks.NOFOLLOW)) {
+        return;
+      }
+      byte[] digest = metadataHandler.getMetadata(output).digest;
+      // Empty files are tracked by their modification time.
+      outputs.put(output.getExecPath(), digest != null ? digest : output.getPath().getMD5Digest());
+    }
+    diskCache.store(key, execRoot, outputs);
+  }
+
+  /**
+   * Returns the key of {@code action} in the local disk cache, or null if the action must not be
+   * cached there. The key covers the action key, the exec paths of all inputs and outputs and the
+   * contents of all inputs, but nothing that differs between workspaces.
+   */
+  @Nullable
+  private String getDiskCacheKey(Action action, MetadataHandler metadataHandler)
+      throws IOException {
+    if (diskCache == null
+        || action.isVolatile()
+        || action.discoversInputs()
+        || action.getActionType().isMiddleman()) {
+      return null;
+    }
+    Fingerprint fp = new Fingerprint();
+    fp.addString(action.getKey());
+    for (Artifact output : action.getOutputs()) {
+      fp.addPath(output.getExecPath());
+    }
+    for (Artifact input :
+        Ordering.from(Artifact.EXEC_PATH_COMPARATOR).sortedCopy(action.getInputs())) {
+      fp.addPath(input.getExecPath());
+      Metadata metadata = metadataHandler.getMetadataMaybe(input);
+      if (metadata == null) {
+        return null;
+      } else if (metadata.digest != null) {
+        fp.addBytes(metadata.digest);
+      } else {
+        // Only empty files and directories are tracked by their modification time, which is
+        // specific to a workspace. Directories cannot be keyed by their contents.
+        FileStatus stat = input.getPath().statIfFound(Symlinks.FOLLOW);
+        if (stat == null || !stat.isFile() || stat.getSize() != 0) {
+          return null;
+        }
+        fp.addInt(0);
+      }
+    }
+    return fp.hexDigestAndReset();
+  }
+
   @Nullable
   public Iterable<Artifact> getCachedInputs(Action action, PackageRootResolver resolver)
       throws PackageRootResolutionException {
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.actions;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.HasMnemonic;
 
 import javax.annotation.Nullable;
 
@@ -27,7 +28,7 @@ import javax.annotation.Nullable;
  * <p>The split between {@link Action} and {@link ActionMetadata} is somewhat arbitrary, other than
  * that all methods with side effects must belong to the former.
  */
-public interface ActionMetadata {
+public interface ActionMetadata extends HasMnemonic {
   /**
    * If this executable can supply verbose information, returns a string that can be used as a
    * progress message while this executable is running. A return value of {@code null} indicates no
@@ -52,6 +53,7 @@ public interface ActionMetadata {
    * of the action. Effectively a public method as the value is used by the
    * extra_action feature to match actions.
    */
+  @Override
   String getMnemonic();
 
   /**
@@ -20,7 +20,10 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Histogram;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 
@@ -94,6 +97,10 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
+  // Time spent in acquireResources(), including the calls that did not have to wait.
+  private static final Histogram waitTimes =
+      MetricsRegistry.instance().histogram("resource_manager.wait_us");
+
   // List of blocked threads. Associated CountDownLatch object will always
   // be initialized to 1 during creation in the acquire() method.
   private final List<Pair<ResourceSet, CountDownLatch>> requestList;
@@ -181,6 +188,7 @@ public class ResourceManager {
       throws InterruptedException {
     Preconditions.checkNotNull(resources);
     AutoProfiler p = profiled(owner, ProfilerTask.ACTION_LOCK);
+    long startTime = BlazeClock.nanoTime();
     CountDownLatch latch = null;
     try {
       waiting(owner);
@@ -192,6 +200,7 @@ public class ResourceManager {
       threadLocked.set(resources.getCpuUsage() != 0 || resources.getMemoryMb() != 0
           || resources.getIoUsage() != 0 || resources.getLocalTestCount() != 0);
       acquired(owner);
+      waitTimes.record((BlazeClock.nanoTime() - startTime) / 1000);
 
       // Profile acquisition only if it waited for resource to become available.
       if (latch != null) {
@@ -14,6 +14,8 @@
 package com.google.devtools.build.lib.actions.cache;
 
 import com.google.common.io.BaseEncoding;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Counter;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
@@ -34,6 +36,11 @@ public class DigestUtils {
   // Object to synchronize on when serializing large file reads.
   private static final Object MD5_LOCK = new Object();
 
+  private static final Counter digestedFiles =
+      MetricsRegistry.instance().counter("digest.files");
+  private static final Counter digestedBytes =
+      MetricsRegistry.instance().counter("digest.bytes");
+
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
@@ -113,7 +120,10 @@ public class DigestUtils {
     }
     if (md5bin != null) {
       return md5bin;
-    } else if (fileSize > 4096) {
+    }
+    digestedFiles.increment();
+    digestedBytes.add(fileSize);
+    if (fileSize > 4096) {
       // We'll have to read file content in order to calculate the digest. In that case
       // it would be beneficial to serialize those calculations since there is a high
       // probability that MD5 will be requested for multiple output files simultaneously.
@@ -0,0 +1,351 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * A content-addressed cache of action outputs on the local disk, shared by all workspaces and
+ * servers that point at the same directory.
+ *
+ * <p>The cache consists of two parts below its root: {@code cas/} holds the contents of output
+ * files, named by their MD5 digest, and {@code ac/} holds one small text file per cached action,
+ * named by the action's cache key, that maps the exec paths of the action's outputs to digests.
+ * Outputs are hard-linked into and out of the cache where possible, and copied otherwise.
+ *
+ * <p>Blobs are read-only and executable, which is the mode that outputs get once their action
+ * completes, so that a linked output is never made writable by the build. Outputs with a different
+ * mode are copied into the cache, and a blob whose mode was changed through a linked output
+ * anyway is copied out, and only if its content still matches its digest.
+ *
+ * <p>Servers never coordinate while storing or fetching: every file is written to {@code tmp/}
+ * first and then renamed into place, so readers never observe partial files, and two servers
+ * storing the same entry simply produce the same result twice. Only {@link #trim} takes a lock,
+ * and a fetch that races with it and finds one of its blobs gone is treated as a miss.
+ */
+@ThreadSafe
+public final class DiskActionOutputCache {
+
+  /** Temporary files older than this were left behind by a crashed server. */
+  private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000;
+
+  /** The mode of all blobs. */
+  private static final int BLOB_MODE = 0555;
+
+  private final Path casDirectory;
+  private final Path acDirectory;
+  private final Path tmpDirectory;
+  private final Path lockFile;
+  private final long maxSizeBytes;
+
+  /**
+   * @param root the directory of the cache; it must be on a local disk
+   * @param maxSizeBytes the total size of cached outputs that {@link #trim} reduces the cache to
+   */
+  public DiskActionOutputCache(Path root, long maxSizeBytes) throws IOException {
+    this.casDirectory = root.getChild("cas");
+    this.acDirectory = root.getChild("ac");
+    this.tmpDirectory = root.getChild("tmp");
+    this.lockFile = root.getChild("lock");
+    this.maxSizeBytes = maxSizeBytes;
+    FileSystemUtils.createDirectoryAndParents(casDirectory);
+    FileSystemUtils.createDirectoryAndParents(acDirectory);
+    FileSystemUtils.createDirectoryAndParents(tmpDirectory);
+  }
+
+  /**
+   * Creates the outputs of the action with the given key below {@code execRoot} from the cache.
+   * The parent directories of the outputs must exist and the outputs themselves must not.
+   *
+   * @return true if all outputs were created, false if the cache has no complete entry for the
+   *     given key and outputs, in which case no output is created
+   * @throws IOException if the cache could not be read or the outputs could not be written; any
+   *     outputs created so far are deleted
+   */
+  public boolean fetch(String key, Path execRoot, Collection<PathFragment> outputs)
+      throws IOException {
+    Path entryFile = getEntryFile(key);
+    Map<PathFragment, String> entry = readEntry(entryFile);
+    if (entry == null || !entry.keySet().equals(ImmutableSet.copyOf(outputs))) {
+      return false;
+    }
+    List<Path> created = new ArrayList<>();
+    try {
+      for (Map.Entry<PathFragment, String> output : entry.entrySet()) {
+        Path target = execRoot.getRelative(output.getKey());
+        fetchBlob(output.getValue(), target);
+        created.add(target);
+      }
+    } catch (FileNotFoundException e) {
+      // A blob was evicted; the entry is useless now.
+      deleteAll(created);
+      entryFile.delete();
+      return false;
+    } catch (IOException e) {
+      deleteAll(created);
+      throw e;
+    }
+    // The modification time of the entry is its last use; see trim().
+    entryFile.setLastModifiedTime(-1L);
+    return true;
+  }
+
+  /**
+   * Returns the exec paths of the outputs stored under the given key, or null if there is no entry
+   * for it. This is for actions whose set of outputs is not known in advance.
+   */
+  @Nullable
+  public ImmutableSet<PathFragment> getOutputs(String key) throws IOException {
+    Map<PathFragment, String> entry = readEntry(getEntryFile(key));
+    return entry == null ? null : ImmutableSet.copyOf(entry.keySet());
+  }
+
+  /**
+   * Adds the outputs of the action with the given key to the cache.
+   *
+   * @param outputs the digests of the action's outputs, keyed by exec path; all outputs must be
+   *     regular files that are not modified anymore, since read-only ones may share storage with
+   *     the cache
+   */
+  public void store(String key, Path execRoot, Map<PathFragment, byte[]> outputs)
+      throws IOException {
+    StringBuilder entry = new StringBuilder();
+    for (Map.Entry<PathFragment, byte[]> output : outputs.entrySet()) {
+      String digest = BaseEncoding.base16().lowerCase().encode(output.getValue());
+      Path blob = getBlob(digest);
+      if (!blob.exists()) {
+        Path source = execRoot.getRelative(output.getKey());
+        Path tmp = newTempFile();
+        if (hasBlobMode(source)) {
+          linkOrCopy(source, tmp);
+        } else {
+          FileSystemUtils.copyFile(source, tmp);
+          tmp.chmod(BLOB_MODE);
+        }
+        FileSystemUtils.createDirectoryAndParents(blob.getParentDirectory());
+        tmp.renameTo(blob);
+      }
+      entry.append(digest).append(' ').append(output.getKey().getPathString()).append('\n');
+    }
+    Path tmp = newTempFile();
+    FileSystemUtils.writeContent(tmp, UTF_8, entry.toString());
+    Path entryFile = getEntryFile(key);
+    FileSystemUtils.createDirectoryAndParents(entryFile.getParentDirectory());
+    tmp.renameTo(entryFile);
+  }
+
+  /**
+   * Evicts the least recently used entries until the blobs referenced by the remaining ones fit
+   * into the maximum size, then deletes all unreferenced blobs. Does nothing if another server is
+   * trimming the same cache right now.
+   *
+   * <p>This walks the whole cache and is meant to be called once per build.
+   */
+  public void trim() throws IOException {
+    try (RandomAccessFile lock = new RandomAccessFile(lockFile.getPathFile(), "rw");
+        FileLock fileLock = lock.getChannel().tryLock()) {
+      if (fileLock == null) {
+        return;
+      }
+      trimLocked();
+    }
+  }
+
+  private void trimLocked() throws IOException {
+    Map<String, Long> blobSizes = new HashMap<>();
+    long totalSize = 0;
+    for (Path blob : listTwoLevels(casDirectory)) {
+      FileStatus stat = blob.statIfFound(Symlinks.NOFOLLOW);
+      if (stat != null) {
+        blobSizes.put(blob.getBaseName(), stat.getSize());
+        totalSize += stat.getSize();
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    for (Path tmp : tmpDirectory.getDirectoryEntries()) {
+      FileStatus stat = tmp.statIfFound(Symlinks.NOFOLLOW);
+      if (stat != null && now - stat.getLastModifiedTime() > STALE_TEMP_FILE_MILLIS) {
+        tmp.delete();
+      }
+    }
+
+    if (totalSize <= maxSizeBytes) {
+      return;
+    }
+
+    final Map<Path, Long> lastUse = new HashMap<>();
+    for (Path entryFile : listTwoLevels(acDirectory)) {
+      FileStatus stat = entryFile.statIfFound(Symlinks.NOFOLLOW);
+      if (stat != null) {
+        lastUse.put(entryFile, stat.getLastModifiedTime());
+      }
+    }
+    List<Path> entries = new ArrayList<>(lastUse.keySet());
+    Collections.sort(entries, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return Long.compare(lastUse.get(b), lastUse.get(a));
+      }
+    });
+
+    // Keep the most recently used entries for as long as their blobs fit.
+    Set<String> keptBlobs = new HashSet<>();
+    long keptSize = 0;
+    for (Path entryFile : entries) {
+      Map<PathFragment, String> entry = readEntry(entryFile);
+      long entrySize = 0;
+      boolean complete = entry != null;
+      if (complete) {
+        for (String digest : ImmutableSet.copyOf(entry.values())) {
+          Long size = blobSizes.get(digest);
+          if (size == null) {
+            complete = false;
+            break;
+          }
+          if (!keptBlobs.contains(digest)) {
+            entrySize += size;
+          }
+        }
+      }
+      if (!complete || keptSize + entrySize > maxSizeBytes) {
+        entryFile.delete();
+        continue;
+      }
+      keptBlobs.addAll(entry.values());
+      keptSize += entrySize;
+    }
+
+    for (String digest : blobSizes.keySet()) {
+      if (!keptBlobs.contains(digest)) {
+        getBlob(digest).delete();
+      }
+    }
+  }
+
+  private Path getBlob(String digest) {
+    return casDirectory.getChild(digest.substring(0, 2)).getChild(digest);
+  }
+
+  private Path getEntryFile(String key) {
+    return acDirectory.getChild(key.substring(0, 2)).getChild(key);
+  }
+
+  private Path newTempFile() {
+    return tmpDirectory.getChild(UUID.randomUUID().toString());
+  }
+
+  /** Returns the outputs recorded in an entry file, or null if there is no such file. */
+  @Nullable
+  private static Map<PathFragment, String> readEntry(Path entryFile) throws IOException {
+    String content;
+    try {
+      content = FileSystemUtils.readContent(entryFile, UTF_8);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    Map<PathFragment, String> entry = new LinkedHashMap<>();
+    for (String line : content.split("\n")) {
+      int space = line.indexOf(' ');
+      if (space < 0) {
+        continue;
+      }
+      entry.put(new PathFragment(line.substring(space + 1)), line.substring(0, space));
+    }
+    return entry;
+  }
+
+  /**
+   * Creates {@code target} with the content of the blob with the given digest.
+   *
+   * @throws FileNotFoundException if the blob does not exist or was modified; it is deleted then
+   */
+  private void fetchBlob(String digest, Path target) throws IOException {
+    Path blob = getBlob(digest);
+    if (hasBlobMode(blob)) {
+      linkOrCopy(blob, target);
+      return;
+    }
+    FileSystemUtils.copyFile(blob, target);
+    if (!BaseEncoding.base16().lowerCase().encode(target.getMD5Digest()).equals(digest)) {
+      target.delete();
+      blob.delete();
+      throw new FileNotFoundException(blob + " (modified)");
+    }
+  }
+
+  private static boolean hasBlobMode(Path path) throws IOException {
+    return !path.isWritable() && path.isExecutable();
+  }
+
+  private static void linkOrCopy(Path source, Path target) throws IOException {
+    try {
+      target.createHardLink(source);
+      return;
+    } catch (FileNotFoundException e) {
+      throw e;
+    } catch (IOException | UnsupportedOperationException e) {
+      // Different devices, or no hard link support; fall back to copying.
+    }
+    FileSystemUtils.copyFile(source, target);
+  }
+
+  private static List<Path> listTwoLevels(Path dir) throws IOException {
+    List<Path> result = new ArrayList<>();
+    for (Dirent shard : dir.readdir(Symlinks.NOFOLLOW)) {
+      if (shard.getType() == Dirent.Type.DIRECTORY) {
+        result.addAll(dir.getChild(shard.getName()).getDirectoryEntries());
+      }
+    }
+    return result;
+  }
+
+  private static void deleteAll(List<Path> paths) {
+    for (Path path : paths) {
+      try {
+        path.delete();
+      } catch (IOException e) {
+        // Best effort; the action is executed next, which deletes its outputs first.
+      }
+    }
+  }
+}
@@ -46,6 +46,7 @@ public final class BazelMain {
           com.google.devtools.build.lib.bazel.dash.DashModule.class,
           com.google.devtools.build.lib.bazel.rules.BazelRulesModule.class,
           com.google.devtools.build.lib.worker.WorkerModule.class,
+          com.google.devtools.build.lib.remote.RemoteModule.class,
           com.google.devtools.build.lib.standalone.StandaloneModule.class,
           com.google.devtools.build.lib.sandbox.SandboxModule.class,
           com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class);
@@ -46,6 +46,7 @@ import com.google.devtools.build.lib.actions.SimpleActionContextProvider;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.DiskActionOutputCache;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.BuildView.AnalysisResult;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -105,6 +106,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * This class manages the execution phase. The entry point is {@link #executeBuild}.
  *
@@ -367,9 +370,10 @@ public class ExecutionTool {
     }
 
     ActionCache actionCache = getActionCache();
+    DiskActionOutputCache diskCache = getDiskCache(request);
     SkyframeExecutor skyframeExecutor = env.getSkyframeExecutor();
-    Builder builder =
-            createBuilder(request, executor, actionCache, skyframeExecutor, modifiedOutputFiles);
+    Builder builder = createBuilder(
+        request, executor, actionCache, diskCache, skyframeExecutor, modifiedOutputFiles);
 
     //
     // Execution proper.  All statements below are logically nested in
@@ -465,6 +469,9 @@ public class ExecutionTool {
 
       if (buildCompleted) {
         saveCaches(actionCache);
+        if (diskCache != null) {
+          trimDiskCache(diskCache);
+        }
       }
 
       try (AutoProfiler p = AutoProfiler.profiled("Show results", ProfilerTask.INFO)) {
@@ -663,9 +670,42 @@ public class ExecutionTool {
     }
   }
 
+  /**
+   * Returns the local disk cache requested by --experimental_local_disk_cache, or null if there is
+   * none or it cannot be created.
+   */
+  @Nullable
+  private DiskActionOutputCache getDiskCache(BuildRequest request) {
+    ExecutionOptions options = request.getOptions(ExecutionOptions.class);
+    if (options.localDiskCache == null) {
+      return null;
+    }
+    Path root = getWorkspace().getRelative(options.localDiskCache);
+    try {
+      return new DiskActionOutputCache(root, options.localDiskCacheMaxSizeMb * 1024L * 1024L);
+    } catch (IOException e) {
+      getReporter().handle(Event.warn(
+          "Cannot use local disk cache '" + root + "': " + e.getMessage()));
+      return null;
+    }
+  }
+
+  private void trimDiskCache(DiskActionOutputCache diskCache) {
+    AutoProfiler p =
+        AutoProfiler.profiledAndLogged("Trimming local disk cache", ProfilerTask.INFO, LOG);
+    try {
+      diskCache.trim();
+    } catch (IOException e) {
+      getReporter().handle(Event.warn("Failed to trim local disk cache: " + e.getMessage()));
+    } finally {
+      p.close();
+    }
+  }
+
   private Builder createBuilder(BuildRequest request,
       Executor executor,
       ActionCache actionCache,
+      @Nullable DiskActionOutputCache diskCache,
       SkyframeExecutor skyframeExecutor,
       ModifiedFileSet modifiedOutputFiles) {
     BuildRequest.BuildRequestOptions options = request.getBuildOptions();
@@ -686,7 +726,7 @@ public class ExecutionTool {
     skyframeExecutor.setActionOutputRoot(actionOutputRoot);
     return new SkyframeBuilder(skyframeExecutor,
         new ActionCacheChecker(actionCache, env.getView().getArtifactFactory(), executionFilter,
-            verboseExplanations),
+            verboseExplanations, diskCache),
         keepGoing, actualJobs,
         options.checkOutputFiles ? modifiedOutputFiles : ModifiedFileSet.NOTHING_MODIFIED,
         options.finalizeActions, fileCache, request.getBuildOptions().progressReportInterval);
@@ -187,6 +187,31 @@ public class ExecutionOptions extends OptionsBase {
       )
   public ResourceSet availableResources;
 
+  @Option(name = "experimental_spawn_helper",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, local and sandboxed actions are started by a small native helper process "
+          + "instead of by forking the Blaze server. This is faster if the server has a large "
+          + "heap and many actions run in parallel.")
+  public boolean useSpawnHelper;
+
+  @Option(name = "experimental_local_disk_cache",
+      defaultValue = "null",
+      category = "strategy",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "If set, outputs of executed actions are stored in a content-addressed cache in this "
+          + "directory and reused by later builds, also in other workspaces that use the same "
+          + "directory. Results of passed tests are cached there as well, keyed by the contents "
+          + "of all test inputs. Relative paths are interpreted relative to the workspace.")
+  public PathFragment localDiskCache;
+
+  @Option(name = "experimental_local_disk_cache_max_size",
+      defaultValue = "10240",
+      category = "strategy",
+      help = "The size in MB that the --experimental_local_disk_cache directory is trimmed to "
+          + "after each build, evicting the least recently used outputs first.")
+  public int localDiskCacheMaxSizeMb;
+
   @Option(name = "local_test_jobs",
       defaultValue = "0",
       category = "testing",
@@ -0,0 +1,725 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.graph;
+
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable directed graph whose nodes are numbered densely from 0 and whose adjacency lists are
+ * stored in "compressed sparse row" form: the successors of all nodes in a single {@code int[]},
+ * and the offset at which the successors of each node start in another one; the same for the
+ * predecessors.
+ *
+ * <p>Compared to {@link Digraph}, which has a {@link Node} object and two adjacency sets per node,
+ * this uses a few ints per node and two per edge, and its traversals only allocate a few arrays.
+ * The algorithms are iterative, so deep graphs do not overflow the stack. Like {@link Digraph},
+ * the graph has no multiple edges but may have self-edges.
+ *
+ * <p>Nodes are referred to by their numbers; {@link #getNode} and {@link #getLabel} convert
+ * between numbers and labels.
+ */
+public final class CompactDigraph<T> {
+
+  private final Object[] labels;
+  // Open addressing hash table from labels to node numbers plus one; 0 marks an empty slot.
+  private final int[] index;
+  private final int[] succStart;
+  private final int[] succ;
+  private final int[] predStart;
+  private final int[] pred;
+
+  private CompactDigraph(Object[] labels, int[] succStart, int[] succ) {
+    this.labels = labels;
+    this.succStart = succStart;
+    this.succ = succ;
+    int n = labels.length;
+    this.index = new int[Math.max(2, Integer.highestOneBit(Math.max(1, n)) << 2)];
+    for (int i = 0; i < n; i++) {
+      int slot = slot(labels[i]);
+      while (index[slot] != 0) {
+        Preconditions.checkArgument(!labels[index[slot] - 1].equals(labels[i]),
+            "duplicate label %s", labels[i]);
+        slot = (slot + 1) & (index.length - 1);
+      }
+      index[slot] = i + 1;
+    }
+
+    // Transpose the successor lists. Predecessors end up sorted by number.
+    this.predStart = new int[n + 1];
+    for (int v : succ) {
+      predStart[v + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      predStart[i + 1] += predStart[i];
+    }
+    this.pred = new int[succ.length];
+    int[] next = Arrays.copyOf(predStart, n);
+    for (int u = 0; u < n; u++) {
+      for (int i = succStart[u]; i < succStart[u + 1]; i++) {
+        pred[next[succ[i]]++] = u;
+      }
+    }
+  }
+
+  private int slot(Object label) {
+    int h = label.hashCode() * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (index.length - 1);
+  }
+
+  /**
+   * Builds a {@link CompactDigraph}. Nodes are numbered in the order in which they are added;
+   * duplicate edges are ignored.
+   */
+  public static final class Builder<T> {
+    private final Map<T, Integer> nodes = new HashMap<>();
+    private final List<T> labels = new ArrayList<>();
+    private int[] from = new int[16];
+    private int[] to = new int[16];
+    private int edges;
+
+    /** Returns the number of the node with the given label, adding the node if needed. */
+    public int addNode(T label) {
+      Integer node = nodes.get(Preconditions.checkNotNull(label));
+      if (node == null) {
+        node = labels.size();
+        nodes.put(label, node);
+        labels.add(label);
+      }
+      return node;
+    }
+
+    /** Adds an edge between two nodes, given by their numbers. */
+    public Builder<T> addEdge(int fromNode, int toNode) {
+      Preconditions.checkArgument(fromNode >= 0 && fromNode < labels.size(), fromNode);
+      Preconditions.checkArgument(toNode >= 0 && toNode < labels.size(), toNode);
+      if (edges == from.length) {
+        from = Arrays.copyOf(from, edges * 2);
+        to = Arrays.copyOf(to, edges * 2);
+      }
+      from[edges] = fromNode;
+      to[edges] = toNode;
+      edges++;
+      return this;
+    }
+
+    /** Adds an edge between the nodes with the given labels, adding the nodes if needed. */
+    public Builder<T> addEdge(T fromLabel, T toLabel) {
+      return addEdge(addNode(fromLabel), addNode(toLabel));
+    }
+
+    public CompactDigraph<T> build() {
+      int n = labels.size();
+      int[] start = new int[n + 1];
+      for (int i = 0; i < edges; i++) {
+        start[from[i] + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        start[i + 1] += start[i];
+      }
+      int[] targets = new int[edges];
+      int[] next = Arrays.copyOf(start, n);
+      for (int i = 0; i < edges; i++) {
+        targets[next[from[i]]++] = to[i];
+      }
+      // Sort each list and drop duplicates, compacting the array in place.
+      int size = 0;
+      for (int u = 0; u < n; u++) {
+        int begin = start[u];
+        int end = start[u + 1];
+        Arrays.sort(targets, begin, end);
+        start[u] = size;
+        for (int i = begin; i < end; i++) {
+          if (i == begin || targets[i] != targets[i - 1]) {
+            targets[size++] = targets[i];
+          }
+        }
+      }
+      start[n] = size;
+      return new CompactDigraph<>(labels.toArray(), start, Arrays.copyOf(targets, size));
+    }
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  /** Returns a copy of the given graph. */
+  public static <T> CompactDigraph<T> copyOf(Digraph<T> graph) {
+    Builder<T> builder = builder();
+    for (Node<T> node : graph.getNodes()) {
+      builder.addNode(node.getLabel());
+    }
+    for (Node<T> node : graph.getNodes()) {
+      int from = builder.addNode(node.getLabel());
+      for (Node<T> successor : node.getSuccessors()) {
+        builder.addEdge(from, builder.addNode(successor.getLabel()));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the subgraph of the given graph that has only the nodes with the given labels, like
+   * {@link Digraph#extractSubgraph}. Only the nodes reachable from the subset are copied, since
+   * no other node can be on a path between two nodes of the subset. Nodes are numbered in the
+   * iteration order of the subset; labels that are not in the graph are ignored.
+   */
+  public static <T> CompactDigraph<T> subgraphOf(Digraph<T> graph, Set<T> subset) {
+    Builder<T> builder = builder();
+    List<Node<T>> queue = new ArrayList<>();
+    for (T label : subset) {
+      Node<T> node = graph.getNodeMaybe(label);
+      if (node != null) {
+        builder.addNode(label);
+        queue.add(node);
+      }
+    }
+    int kept = queue.size();
+    // The builder numbers nodes in the order of the queue, so the first nodes are the subset.
+    for (int i = 0; i < queue.size(); i++) {
+      Node<T> node = queue.get(i);
+      for (Node<T> successor : node.getSuccessors()) {
+        int count = builder.labels.size();
+        int to = builder.addNode(successor.getLabel());
+        if (to == count) {
+          queue.add(successor);
+        }
+        builder.addEdge(i, to);
+      }
+    }
+    CompactDigraph<T> reachable = builder.build();
+    if (reachable.getNodeCount() == kept) {
+      return reachable;
+    }
+    BitSet keep = new BitSet(reachable.getNodeCount());
+    keep.set(0, kept);
+    return reachable.extractSubgraph(keep);
+  }
+
+  /** Returns the number of nodes. */
+  public int getNodeCount() {
+    return labels.length;
+  }
+
+  /** Returns the number of edges. */
+  public int getEdgeCount() {
+    return succ.length;
+  }
+
+  /** Returns the label of the given node. */
+  @SuppressWarnings("unchecked")
+  public T getLabel(int node) {
+    return (T) labels[node];
+  }
+
+  /** Returns the number of the node with the given label, or -1 if there is none. */
+  public int getNode(Object label) {
+    for (int slot = slot(label); index[slot] != 0; slot = (slot + 1) & (index.length - 1)) {
+      if (labels[index[slot] - 1].equals(label)) {
+        return index[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the labels of all nodes, in the order of their numbers. */
+  @SuppressWarnings("unchecked")
+  public List<T> getLabels() {
+    return (List<T>) Collections.unmodifiableList(Arrays.asList(labels));
+  }
+
+  /** Returns the labels of the given nodes, in the same order, as a view. */
+  public List<T> getLabels(final int[] nodes) {
+    return new AbstractList<T>() {
+      @Override
+      public T get(int i) {
+        return getLabel(nodes[i]);
+      }
+
+      @Override
+      public int size() {
+        return nodes.length;
+      }
+    };
+  }
+
+  /** Returns the labels of the nodes in the given set, as a view. */
+  public Set<T> getLabels(final BitSet nodes) {
+    return new AbstractSet<T>() {
+      private final int size = nodes.cardinality();
+
+      @Override
+      public boolean contains(Object label) {
+        int node = getNode(label);
+        return node >= 0 && nodes.get(node);
+      }
+
+      @Override
+      public Iterator<T> iterator() {
+        return new UnmodifiableIterator<T>() {
+          private int next = nodes.nextSetBit(0);
+
+          @Override
+          public boolean hasNext() {
+            return next >= 0;
+          }
+
+          @Override
+          public T next() {
+            if (next < 0) {
+              throw new NoSuchElementException();
+            }
+            T label = getLabel(next);
+            next = nodes.nextSetBit(next + 1);
+            return label;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  public int getSuccessorCount(int node) {
+    return succStart[node + 1] - succStart[node];
+  }
+
+  /** Returns the {@code i}th successor of the given node; successors are sorted by number. */
+  public int getSuccessor(int node, int i) {
+    return succ[succStart[node] + i];
+  }
+
+  public int getPredecessorCount(int node) {
+    return predStart[node + 1] - predStart[node];
+  }
+
+  /** Returns the {@code i}th predecessor of the given node; predecessors are sorted by number. */
+  public int getPredecessor(int node, int i) {
+    return pred[predStart[node] + i];
+  }
+
+  /**
+   * Returns the set of nodes reachable from the given ones, including themselves.
+   */
+  public BitSet getFwdReachable(BitSet startNodes) {
+    return getReachable(startNodes, succStart, succ);
+  }
+
+  /**
+   * Returns the set of nodes that reach the given ones, including themselves.
+   */
+  public BitSet getBackReachable(BitSet startNodes) {
+    return getReachable(startNodes, predStart, pred);
+  }
+
+  private BitSet getReachable(BitSet startNodes, int[] start, int[] edges) {
+    BitSet marked = (BitSet) startNodes.clone();
+    int[] stack = new int[startNodes.cardinality()];
+    int size = 0;
+    for (int node = startNodes.nextSetBit(0); node >= 0; node = startNodes.nextSetBit(node + 1)) {
+      stack[size++] = node;
+    }
+    while (size > 0) {
+      int node = stack[--size];
+      for (int i = start[node]; i < start[node + 1]; i++) {
+        int next = edges[i];
+        if (!marked.get(next)) {
+          marked.set(next);
+          if (size == stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(16, size * 2));
+          }
+          stack[size++] = next;
+        }
+      }
+    }
+    return marked;
+  }
+
+  /**
+   * Finds a shortest directed path between two nodes with a breadth-first search. Returns the
+   * nodes on the path including both ends, or null if there is none.
+   */
+  @Nullable
+  public int[] getShortestPath(int fromNode, int toNode) {
+    if (fromNode == toNode) {
+      return new int[] {fromNode};
+    }
+    int n = labels.length;
+    // The node from which each node was reached, plus one; 0 if it was not reached yet.
+    int[] parent = new int[n];
+    int[] queue = new int[n];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = fromNode;
+    parent[fromNode] = fromNode + 1;
+    while (head < tail) {
+      int node = queue[head++];
+      for (int i = succStart[node]; i < succStart[node + 1]; i++) {
+        int next = succ[i];
+        if (parent[next] == 0) {
+          parent[next] = node + 1;
+          if (next == toNode) {
+            int length = 1;
+            for (int v = next; v != fromNode; v = parent[v] - 1) {
+              length++;
+            }
+            int[] path = new int[length];
+            for (int v = next; length > 0; v = parent[v] - 1) {
+              path[--length] = v;
+            }
+            return path;
+          }
+          queue[tail++] = next;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the nodes of an acyclic graph in a topological order ("roots before leaves"), the
+   * reverse post-order of a depth-first search.
+   *
+   * <p>If an ordering is given, the search starts from the nodes and visits the successors of each
+   * node in that order, which gives the same order as {@link Digraph#getTopologicalOrder(
+   * Comparator)}; otherwise they are visited in the order of their numbers.
+   */
+  public int[] getTopologicalOrder(@Nullable Comparator<? super T> ordering) {
+    int n = labels.length;
+    int[] roots = new int[n];
+    int[] edges = succ;
+    if (ordering == null) {
+      for (int i = 0; i < n; i++) {
+        roots[i] = i;
+      }
+    } else {
+      roots = sortNodes(ordering);
+      int[] rank = new int[n];
+      for (int i = 0; i < n; i++) {
+        rank[roots[i]] = i;
+      }
+      edges = sortEdges(rank);
+    }
+
+    int[] order = new int[n];
+    int size = n;
+    boolean[] marked = new boolean[n];
+    int[] stack = new int[n];
+    int[] cursor = new int[n];
+    for (int root : roots) {
+      if (marked[root]) {
+        continue;
+      }
+      marked[root] = true;
+      int depth = 0;
+      stack[0] = root;
+      cursor[0] = succStart[root];
+      while (depth >= 0) {
+        int node = stack[depth];
+        if (cursor[depth] < succStart[node + 1]) {
+          int next = edges[cursor[depth]++];
+          if (!marked[next]) {
+            marked[next] = true;
+            depth++;
+            stack[depth] = next;
+            cursor[depth] = succStart[next];
+          }
+        } else {
+          // Post-order position, filled from the end to reverse it.
+          order[--size] = node;
+          depth--;
+        }
+      }
+    }
+    return order;
+  }
+
+  /** Returns all nodes sorted by their labels. */
+  private int[] sortNodes(final Comparator<? super T> ordering) {
+    Integer[] nodes = new Integer[labels.length];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = i;
+    }
+    Arrays.sort(nodes, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return ordering.compare(getLabel(a), getLabel(b));
+      }
+    });
+    int[] result = new int[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      result[i] = nodes[i];
+    }
+    return result;
+  }
+
+  /** Returns a copy of the successor lists where each one is sorted by the given rank. */
+  private int[] sortEdges(int[] rank) {
+    long[] keys = new long[succ.length];
+    for (int i = 0; i < succ.length; i++) {
+      keys[i] = ((long) rank[succ[i]] << 32) | succ[i];
+    }
+    int[] result = new int[succ.length];
+    for (int u = 0; u < labels.length; u++) {
+      Arrays.sort(keys, succStart[u], succStart[u + 1]);
+    }
+    for (int i = 0; i < succ.length; i++) {
+      result[i] = (int) keys[i];
+    }
+    return result;
+  }
+
+  /**
+   * Returns the strongly connected component of each node, using Tarjan's algorithm. Components
+   * are numbered from 0 so that each edge between two components goes from the higher numbered
+   * one to the lower numbered one; in other words, the components are numbered in a reverse
+   * topological order of the strong component graph.
+   */
+  public int[] getStrongComponents() {
+    int n = labels.length;
+    int[] component = new int[n];
+    Arrays.fill(component, -1);
+    int[] preorder = new int[n];
+    Arrays.fill(preorder, -1);
+    int[] low = new int[n];
+    // Nodes visited whose component is not known yet.
+    int[] open = new int[n];
+    int openSize = 0;
+    int[] stack = new int[n];
+    int[] cursor = new int[n];
+    int counter = 0;
+    int components = 0;
+    for (int root = 0; root < n; root++) {
+      if (preorder[root] >= 0) {
+        continue;
+      }
+      int depth = 0;
+      stack[0] = root;
+      cursor[0] = succStart[root];
+      preorder[root] = low[root] = counter++;
+      open[openSize++] = root;
+      while (depth >= 0) {
+        int node = stack[depth];
+        if (cursor[depth] < succStart[node + 1]) {
+          int next = succ[cursor[depth]++];
+          if (preorder[next] < 0) {
+            preorder[next] = low[next] = counter++;
+            open[openSize++] = next;
+            depth++;
+            stack[depth] = next;
+            cursor[depth] = succStart[next];
+          } else if (component[next] < 0) {
+            low[node] = Math.min(low[node], preorder[next]);
+          }
+        } else {
+          if (low[node] == preorder[node]) {
+            int member;
+            do {
+              member = open[--openSize];
+              component[member] = components;
+            } while (member != node);
+            components++;
+          }
+          depth--;
+          if (depth >= 0) {
+            int parent = stack[depth];
+            low[parent] = Math.min(low[parent], low[node]);
+          }
+        }
+      }
+    }
+    return component;
+  }
+
+  /**
+   * Returns the minimum rank of each node: the length of the shortest path in the strong component
+   * graph from a root to the component of the node. All nodes in a cycle have the same rank.
+   */
+  public int[] getMinRanks() {
+    return getRanks(false);
+  }
+
+  /**
+   * Returns the maximum rank of each node: the length of the longest path in the strong component
+   * graph from a root to the component of the node. All nodes in a cycle have the same rank.
+   */
+  public int[] getMaxRanks() {
+    return getRanks(true);
+  }
+
+  private int[] getRanks(boolean max) {
+    int n = labels.length;
+    int[] component = getStrongComponents();
+    int components = 0;
+    for (int c : component) {
+      components = Math.max(components, c + 1);
+    }
+    // The nodes grouped by component.
+    int[] start = new int[components + 1];
+    for (int c : component) {
+      start[c + 1]++;
+    }
+    for (int c = 0; c < components; c++) {
+      start[c + 1] += start[c];
+    }
+    int[] members = new int[n];
+    int[] next = Arrays.copyOf(start, components);
+    for (int node = 0; node < n; node++) {
+      members[next[component[node]]++] = node;
+    }
+
+    // Edges go from higher to lower numbered components, so the ranks of all the predecessors of
+    // a component are final when it is reached.
+    int[] rank = new int[components];
+    Arrays.fill(rank, -1);
+    for (int c = components - 1; c >= 0; c--) {
+      if (rank[c] < 0) {
+        rank[c] = 0;
+      }
+      for (int i = start[c]; i < start[c + 1]; i++) {
+        int node = members[i];
+        for (int j = succStart[node]; j < succStart[node + 1]; j++) {
+          int d = component[succ[j]];
+          if (d != c) {
+            rank[d] = rank[d] < 0
+                ? rank[c] + 1
+                : max ? Math.max(rank[d], rank[c] + 1) : Math.min(rank[d], rank[c] + 1);
+          }
+        }
+      }
+    }
+    int[] result = new int[n];
+    for (int node = 0; node < n; node++) {
+      result[node] = rank[component[node]];
+    }
+    return result;
+  }
+
+  /**
+   * Returns the subgraph that has only the given nodes, numbered in the same relative order. Like
+   * {@link Digraph#subgraph}, it preserves reachability: there is an edge between two remaining
+   * nodes if there is a path between them whose intermediate nodes are all removed.
+   */
+  public CompactDigraph<T> extractSubgraph(BitSet keep) {
+    int n = labels.length;
+    int[] newNumber = new int[n];
+    Object[] newLabels = new Object[keep.cardinality()];
+    int count = 0;
+    for (int node = 0; node < n; node++) {
+      if (keep.get(node)) {
+        newLabels[count] = labels[node];
+        newNumber[node] = count++;
+      } else {
+        newNumber[node] = -1;
+      }
+    }
+    int[] newStart = new int[count + 1];
+    int[] newSucc = new int[Math.min(succ.length, 16)];
+    int size = 0;
+    // The last kept node whose search reached each node, plus one.
+    int[] reachedFrom = new int[n];
+    int[] stack = new int[16];
+    int[] found = new int[16];
+    for (int node = keep.nextSetBit(0); node >= 0; node = keep.nextSetBit(node + 1)) {
+      int mark = node + 1;
+      int foundSize = 0;
+      int stackSize = 0;
+      stack[stackSize++] = node;
+      while (stackSize > 0) {
+        int u = stack[--stackSize];
+        for (int i = succStart[u]; i < succStart[u + 1]; i++) {
+          int v = succ[i];
+          if (reachedFrom[v] == mark) {
+            continue;
+          }
+          reachedFrom[v] = mark;
+          if (keep.get(v)) {
+            if (foundSize == found.length) {
+              found = Arrays.copyOf(found, foundSize * 2);
+            }
+            found[foundSize++] = newNumber[v];
+          } else {
+            if (stackSize == stack.length) {
+              stack = Arrays.copyOf(stack, stackSize * 2);
+            }
+            stack[stackSize++] = v;
+          }
+        }
+      }
+      Arrays.sort(found, 0, foundSize);
+      if (size + foundSize > newSucc.length) {
+        newSucc = Arrays.copyOf(newSucc, Math.max(newSucc.length * 2, size + foundSize));
+      }
+      System.arraycopy(found, 0, newSucc, size, foundSize);
+      size += foundSize;
+      newStart[newNumber[node] + 1] = size;
+    }
+    return new CompactDigraph<>(newLabels, newStart, Arrays.copyOf(newSucc, size));
+  }
+
+  /**
+   * Returns the image of this graph under a partition of its nodes, which is given as the number
+   * of the part of each node, from 0 to {@code partLabels.size() - 1}. The parts are the nodes of
+   * the new graph, and there is an edge between two parts if there is an edge between two of their
+   * nodes; this may create self-edges.
+   */
+  public <I> CompactDigraph<I> createImageUnderPartition(int[] partOf, List<I> partLabels) {
+    Builder<I> builder = builder();
+    for (I label : partLabels) {
+      builder.addNode(label);
+    }
+    for (int node = 0; node < labels.length; node++) {
+      for (int i = succStart[node]; i < succStart[node + 1]; i++) {
+        builder.addEdge(partOf[node], partOf[succ[i]]);
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("{");
+    for (int node = 0; node < labels.length; node++) {
+      if (node > 0) {
+        result.append(", ");
+      }
+      result.append(labels[node]).append(" -> [");
+      for (int i = succStart[node]; i < succStart[node + 1]; i++) {
+        result.append(i > succStart[node] ? ", " : "").append(labels[succ[i]]);
+      }
+      result.append("]");
+    }
+    return result.append("}").toString();
+  }
+}
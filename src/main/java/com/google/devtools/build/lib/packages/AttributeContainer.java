@@ -13,9 +13,15 @@
 // limitations under the License.
 package com.google.devtools.build.lib.packages;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.util.Preconditions;
 
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * Provides attribute setting and retrieval for a Rule. Encapsulating attribute access
@@ -29,32 +35,52 @@ import java.util.BitSet;
  * <p>This class provides the lowest-level access to attribute information. It is *not*
  * intended to be a robust public interface, but rather just an input to {@link AttributeMap}
  * instances. Use those instances for all domain-level attribute access.
+ *
+ * <p>Loaded packages keep all their rules, and thus their containers, in memory, so the
+ * representation is compact: only the attributes that were set explicitly, or whose value differs
+ * from the default of the rule class, are stored, together with their locations, in small parallel
+ * arrays sorted by attribute index. All other attributes, including the ones that were never set,
+ * have their default value. Lists of labels are interned, so that rules with the same deps or
+ * visibility share a single list.
+ *
+ * <p>The arrays are kept at their exact size, so storing a new attribute copies them. This only
+ * happens while the rule is created, and a rule stores few attributes, so it is cheaper than
+ * keeping spare capacity in every rule of every loaded package.
  */
 public class AttributeContainer {
 
+  // The bits of a key: the attribute index, and whether the value was set explicitly in the
+  // BUILD file.
+  private static final int INDEX_MASK = 0x7fff;
+  private static final int EXPLICIT = 0x8000;
+
+  private static final char[] NO_KEYS = new char[0];
+  private static final Object[] NO_VALUES = new Object[0];
+
+  // Stands for the default value of an attribute that only has a location.
+  private static final Object DEFAULT = new Object();
+
+  private static final Interner<ImmutableList<?>> LABEL_LIST_INTERNER =
+      Interners.newWeakInterner();
+
   private final RuleClass ruleClass;
 
-  // Attribute values, keyed by attribute index:
-  private final Object[] attributeValues;
+  // The stored attributes in ascending order of index, encoded as above.
+  private char[] keys = NO_KEYS;
 
-  // Whether an attribute value has been set explicitly in the BUILD file, keyed by attribute index.
-  private final BitSet attributeValueExplicitlySpecified;
+  // For every key: the value of the attribute, or DEFAULT.
+  private Object[] values = NO_VALUES;
 
-  // Attribute locations, keyed by attribute index:
-  private final Location[] attributeLocations;
+  // For every key: the location of the attribute, or null. Null if no attribute has a location.
+  private Location[] locations = null;
 
   /**
    * Create a container for a rule of the given rule class.
    */
   AttributeContainer(RuleClass ruleClass) {
-   this(ruleClass, new Location[ruleClass.getAttributeCount()]);
-  }
-  
-  AttributeContainer(RuleClass ruleClass, Location[] locations) {
+    Preconditions.checkArgument(ruleClass.getAttributeCount() <= INDEX_MASK + 1,
+        "too many attributes in rule class %s", ruleClass.getName());
     this.ruleClass = ruleClass;
-    this.attributeValues = new Object[ruleClass.getAttributeCount()];
-    this.attributeValueExplicitlySpecified = new BitSet(ruleClass.getAttributeCount());
-    this.attributeLocations = locations;
   }
 
   /**
@@ -69,7 +95,7 @@ public class AttributeContainer {
    */
   public Object getAttr(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeValues[idx] : null;
+    return idx != null ? getAttributeValue(idx) : null;
   }
 
   /**
@@ -82,7 +108,11 @@ public class AttributeContainer {
 
   public boolean isAttributeValueExplicitlySpecified(String attributeName) {
     Integer idx = ruleClass.getAttributeIndex(attributeName);
-    return idx != null && attributeValueExplicitlySpecified.get(idx);
+    if (idx == null) {
+      return false;
+    }
+    int entry = find(idx);
+    return entry >= 0 && (keys[entry] & EXPLICIT) != 0;
   }
 
   /**
@@ -90,31 +120,114 @@ public class AttributeContainer {
    */
   public Location getAttributeLocation(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeLocations[idx] : null;
+    if (idx == null) {
+      return null;
+    }
+    int entry = find(idx);
+    return entry >= 0 && locations != null ? locations[entry] : null;
   }
 
   Object getAttributeValue(int index) {
-    return attributeValues[index];
+    int entry = find(index);
+    Object value = entry >= 0 ? values[entry] : DEFAULT;
+    return value == DEFAULT ? defaultValue(ruleClass.getAttribute(index)) : value;
   }
 
   void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
     Integer index = ruleClass.getAttributeIndex(attribute.getName());
-    attributeValues[index] = value;
-    attributeValueExplicitlySpecified.set(index, explicit);
+    int entry = find(index);
+    if (!explicit && !attribute.hasComputedDefault()
+        && Objects.equals(value, defaultValue(attribute))) {
+      // Not stored, unless the attribute also has a location.
+      if (entry >= 0) {
+        keys[entry] &= ~EXPLICIT;
+        values[entry] = DEFAULT;
+      }
+      return;
+    }
+    if (entry < 0) {
+      entry = insert(-entry - 1, index);
+    }
+    keys[entry] = (char) (explicit ? keys[entry] | EXPLICIT : keys[entry] & ~EXPLICIT);
+    values[entry] = intern(value);
   }
 
   void setAttributeValueByName(String attrName, Object value) {
-    Integer index = ruleClass.getAttributeIndex(attrName);
-    attributeValues[index] = value;
-    attributeValueExplicitlySpecified.set(index);
+    setAttributeValue(ruleClass.getAttributeByName(attrName), value, /*explicit=*/true);
   }
 
   void setAttributeLocation(int attrIndex, Location location) {
-    attributeLocations[attrIndex] = location;
+    int entry = find(attrIndex);
+    if (entry < 0) {
+      entry = insert(-entry - 1, attrIndex);
+    }
+    if (locations == null) {
+      locations = new Location[keys.length];
+    }
+    locations[entry] = location;
   }
 
   void setAttributeLocation(Attribute attribute, Location location) {
-    Integer index = ruleClass.getAttributeIndex(attribute.getName());
-    attributeLocations[index] = location;
+    setAttributeLocation(ruleClass.getAttributeIndex(attribute.getName()), location);
+  }
+
+  private static Object defaultValue(Attribute attribute) {
+    return attribute.hasComputedDefault() ? null : attribute.getDefaultValue(null);
+  }
+
+  /**
+   * Returns the position of the key of the given attribute, or {@code -(insertion point) - 1} if
+   * it is not stored.
+   */
+  private int find(int index) {
+    int low = 0;
+    int high = keys.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midIndex = keys[mid] & INDEX_MASK;
+      if (midIndex < index) {
+        low = mid + 1;
+      } else if (midIndex > index) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /** Adds a key for the given attribute at the given position, with the default value. */
+  private int insert(int entry, int index) {
+    char[] newKeys = new char[keys.length + 1];
+    System.arraycopy(keys, 0, newKeys, 0, entry);
+    System.arraycopy(keys, entry, newKeys, entry + 1, keys.length - entry);
+    newKeys[entry] = (char) index;
+    keys = newKeys;
+    values = insertSlot(values, entry);
+    values[entry] = DEFAULT;
+    if (locations != null) {
+      locations = insertSlot(locations, entry);
+    }
+    return entry;
+  }
+
+  private static <T> T[] insertSlot(T[] array, int position) {
+    T[] result = Arrays.copyOf(array, array.length + 1);
+    System.arraycopy(array, position, result, position + 1, array.length - position);
+    result[position] = null;
+    return result;
+  }
+
+  /** Returns the canonical instance of the value if it is a list of labels. */
+  private static Object intern(Object value) {
+    if (!(value instanceof ImmutableList) || ((ImmutableList<?>) value).isEmpty()) {
+      return value;
+    }
+    for (Object element : (ImmutableList<?>) value) {
+      if (!(element instanceof Label)) {
+        return value;
+      }
+    }
+    return LABEL_LIST_INTERNER.intern((ImmutableList<?>) value);
   }
 }
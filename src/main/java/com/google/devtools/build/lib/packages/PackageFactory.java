@@ -51,6 +51,7 @@ import com.google.devtools.build.lib.syntax.GlobList;
 import com.google.devtools.build.lib.syntax.Identifier;
 import com.google.devtools.build.lib.syntax.Mutability;
 import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.PersistentAstCache;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.SkylarkList.MutableList;
@@ -58,6 +59,7 @@ import com.google.devtools.build.lib.syntax.SkylarkSignatureProcessor;
 import com.google.devtools.build.lib.syntax.Statement;
 import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.syntax.Type.ConversionException;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction.CompilerMode;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -68,7 +70,6 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -347,6 +348,8 @@ public final class PackageFactory {
 
   private final ThreadPoolExecutor threadPool;
   private Map<String, String> platformSetRegexps;
+  private volatile CompilerMode skylarkCompilerMode = CompilerMode.OFF;
+  private volatile int skylarkCompileThreshold;
 
   private final ImmutableList<EnvironmentExtension> environmentExtensions;
   private final ImmutableMap<String, PackageArgument<?>> packageArguments;
@@ -381,8 +384,10 @@ public final class PackageFactory {
     this.platformSetRegexps = platformSetRegexps;
     this.ruleFactory = new RuleFactory(ruleClassProvider);
     this.ruleClassProvider = ruleClassProvider;
+    // Shared by the globs of all packages; the work queue keeps large globs from delaying the
+    // small ones.
     threadPool = new ThreadPoolExecutor(100, 100, 15L, TimeUnit.SECONDS,
-        new LinkedBlockingQueue<Runnable>(),
+        UnixGlob.newGlobWorkQueue(),
         new ThreadFactoryBuilder().setNameFormat("Legacy globber %d").build());
     // Do not consume threads when not in use.
     threadPool.allowCoreThreadTimeOut(true);
@@ -414,6 +419,23 @@ public final class PackageFactory {
     threadPool.setMaximumPoolSize(globbingThreads);
   }
 
+  /**
+   * Sets when Skylark functions called while evaluating BUILD and .bzl files are compiled to
+   * byte code.
+   */
+  public void setSkylarkCompilerMode(CompilerMode mode, int threshold) {
+    this.skylarkCompilerMode = Preconditions.checkNotNull(mode);
+    this.skylarkCompileThreshold = threshold;
+  }
+
+  /**
+   * Applies the compiler mode set with {@link #setSkylarkCompilerMode} to an Environment that
+   * evaluates a BUILD or .bzl file.
+   */
+  public Environment withSkylarkCompilerMode(Environment env) {
+    return env.setCompilerMode(skylarkCompilerMode, skylarkCompileThreshold);
+  }
+
 
   /**
    * Returns the immutable, unordered set of names of all the known rule
@@ -1021,10 +1043,19 @@ public final class PackageFactory {
 
   public static BuildFileAST parseBuildFile(PackageIdentifier packageId, ParserInputSource in,
       List<Statement> preludeStatements, EventHandler eventHandler) {
+    return parseBuildFile(packageId, in, preludeStatements, eventHandler, null);
+  }
+
+  /**
+   * Parses a BUILD file through the given cache of parsed files, if not null.
+   */
+  public static BuildFileAST parseBuildFile(PackageIdentifier packageId, ParserInputSource in,
+      List<Statement> preludeStatements, EventHandler eventHandler,
+      @Nullable PersistentAstCache persistentAstCache) {
     // Logged messages are used as a testability hook tracing the parsing progress
     LOG.fine("Starting to parse " + packageId);
     BuildFileAST buildFileAST = BuildFileAST.parseBuildFile(
-        in, preludeStatements, eventHandler, false);
+        in, preludeStatements, eventHandler, false, persistentAstCache);
     LOG.fine("Finished parsing of " + packageId);
     return buildFileAST;
   }
@@ -1319,7 +1350,8 @@ public final class PackageFactory {
           .setEventHandler(eventHandler)
           .setImportedExtensions(imports)
           .setLoadingPhase()
-          .build();
+          .build()
+          .setCompilerMode(skylarkCompilerMode, skylarkCompileThreshold);
 
       pkgBuilder.setGlobber(globber)
           .setFilename(buildFilePath)
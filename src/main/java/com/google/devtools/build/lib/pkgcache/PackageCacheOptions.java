@@ -22,8 +22,10 @@ import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
 import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction.CompilerMode;
 import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParsingException;
@@ -156,6 +158,39 @@ public class PackageCacheOptions extends OptionsBase {
       help = "Allows the command to fetch external dependencies")
   public boolean fetch;
 
+  /**
+   * Converter for the {@code --experimental_skylark_compiler} option.
+   */
+  public static class CompilerModeConverter extends EnumConverter<CompilerMode> {
+    public CompilerModeConverter() {
+      super(CompilerMode.class, "Skylark compiler mode");
+    }
+  }
+
+  @Option(name = "experimental_skylark_compiler",
+      defaultValue = "off",
+      category = "undocumented",
+      converter = CompilerModeConverter.class,
+      help = "Whether to compile Skylark functions to JVM byte code: 'off' interprets all "
+          + "functions, 'eager' compiles every function when it is first called and 'tiered' "
+          + "compiles functions once they were called --experimental_skylark_compile_threshold "
+          + "times. Functions that cannot be compiled are always interpreted.")
+  public CompilerMode skylarkCompilerMode;
+
+  @Option(name = "experimental_skylark_compile_threshold",
+      defaultValue = "100",
+      category = "undocumented",
+      help = "The number of interpreted calls after which a Skylark function is compiled with "
+          + "--experimental_skylark_compiler=tiered.")
+  public int skylarkCompileThreshold;
+
+  @Option(name = "experimental_persistent_ast_cache_size",
+      defaultValue = "0",
+      category = "undocumented",
+      help = "The maximum size in megabytes of the cache of parsed BUILD and .bzl files kept in "
+          + "the output base across server restarts. 0 disables the cache.")
+  public int persistentAstCacheSize;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
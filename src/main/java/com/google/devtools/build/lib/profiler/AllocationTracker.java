@@ -0,0 +1,195 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Attributes the bytes allocated on the heap to units of work, such as SkyFunction evaluations,
+ * per build phase.
+ *
+ * <p>The caller samples the bytes allocated by the current thread with {@link #start} before the
+ * work and passes the sample to {@link #finish} after it; the difference is added to the given
+ * key. While the work runs, it may name a more specific key with {@link #setDetail}, for example
+ * the kind of the target being analyzed, which gets the same bytes. Work that nests on one
+ * thread is counted in both the inner and the outer key.
+ *
+ * <p>Sampling costs a call into the JVM, so it is only done when enabled, which Blaze does while
+ * a command is profiled. The bytes are allocated, not retained, bytes; they show where the
+ * garbage collector has to work, and what may be retained, but not what is.
+ */
+@ThreadSafe
+public final class AllocationTracker {
+
+  private static final AllocationTracker instance = new AllocationTracker();
+
+  private static final Ordering<Map.Entry<String, Long>> BY_BYTES =
+      Ordering.from(new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+          return Long.compare(b.getValue(), a.getValue());
+        }
+      });
+
+  public static AllocationTracker instance() {
+    return instance;
+  }
+
+  /** The allocations of one phase. */
+  private static final class PhaseData {
+    final ConcurrentMap<Object, LongAdder> bytesByKey = new ConcurrentHashMap<>();
+    final ConcurrentMap<String, LongAdder> bytesByDetail = new ConcurrentHashMap<>();
+  }
+
+  private final ThreadLocal<String> detail = new ThreadLocal<>();
+  private volatile com.sun.management.ThreadMXBean threadBean;
+  private volatile PhaseData phaseData = new PhaseData();
+
+  private AllocationTracker() {}
+
+  /**
+   * Enables or disables the tracking. Tracking stays disabled if the JVM cannot measure the
+   * allocations of a thread.
+   */
+  public synchronized void setEnabled(boolean enabled) {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (enabled && bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+      if (sunBean.isThreadAllocatedMemorySupported()) {
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        threadBean = sunBean;
+        return;
+      }
+    }
+    threadBean = null;
+  }
+
+  public boolean isEnabled() {
+    return threadBean != null;
+  }
+
+  /**
+   * Returns the number of bytes allocated by the current thread so far, or -1 if tracking is
+   * disabled.
+   */
+  public long start() {
+    com.sun.management.ThreadMXBean bean = threadBean;
+    if (bean == null) {
+      return -1;
+    }
+    detail.remove();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Names a more specific key for the allocations of the work on the current thread between
+   * {@link #start} and {@link #finish}.
+   */
+  public void setDetail(String key) {
+    if (threadBean != null) {
+      detail.set(key);
+    }
+  }
+
+  /**
+   * Adds the bytes allocated by the current thread since {@code startBytes} to the given key, and
+   * to the detail key if one was set.
+   *
+   * @param startBytes the result of {@link #start}
+   */
+  public void finish(Object key, long startBytes) {
+    com.sun.management.ThreadMXBean bean = threadBean;
+    if (bean == null || startBytes < 0) {
+      return;
+    }
+    long bytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+    PhaseData data = phaseData;
+    add(data.bytesByKey, key, bytes);
+    String detailKey = detail.get();
+    if (detailKey != null) {
+      add(data.bytesByDetail, detailKey, bytes);
+      detail.remove();
+    }
+  }
+
+  private static <K> void add(ConcurrentMap<K, LongAdder> bytesByKey, K key, long bytes) {
+    LongAdder total = bytesByKey.get(key);
+    if (total == null) {
+      bytesByKey.putIfAbsent(key, new LongAdder());
+      total = bytesByKey.get(key);
+    }
+    total.add(bytes);
+  }
+
+  /**
+   * Returns the allocations since the previous call, and starts collecting them anew. Called at
+   * the end of each phase.
+   */
+  public Summary finishPhase() {
+    PhaseData data = phaseData;
+    phaseData = new PhaseData();
+    return new Summary(sortByBytes(data.bytesByKey), sortByBytes(data.bytesByDetail));
+  }
+
+  private static ImmutableMap<String, Long> sortByBytes(Map<?, LongAdder> bytesByKey) {
+    List<Map.Entry<String, Long>> entries = new ArrayList<>();
+    for (Map.Entry<?, LongAdder> entry : bytesByKey.entrySet()) {
+      entries.add(Maps.immutableEntry(entry.getKey().toString(), entry.getValue().sum()));
+    }
+    ImmutableMap.Builder<String, Long> result = ImmutableMap.builder();
+    for (Map.Entry<String, Long> entry : BY_BYTES.sortedCopy(entries)) {
+      result.put(entry);
+    }
+    return result.build();
+  }
+
+  /** The bytes allocated per key and per detail key in a phase, largest first. */
+  @Immutable
+  public static final class Summary {
+    private final ImmutableMap<String, Long> bytesByKey;
+    private final ImmutableMap<String, Long> bytesByDetail;
+
+    private Summary(ImmutableMap<String, Long> bytesByKey,
+        ImmutableMap<String, Long> bytesByDetail) {
+      this.bytesByKey = bytesByKey;
+      this.bytesByDetail = bytesByDetail;
+    }
+
+    public ImmutableMap<String, Long> getBytesByKey() {
+      return bytesByKey;
+    }
+
+    public ImmutableMap<String, Long> getBytesByDetail() {
+      return bytesByDetail;
+    }
+
+    public boolean isEmpty() {
+      return bytesByKey.isEmpty() && bytesByDetail.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,620 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.profiler.ProfileInfo.CompactStatistics;
+import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.AbstractFileSystemWithCustomStat;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A profile in the columnar format written by {@link ColumnarProfileWriter}.
+ *
+ * <p>Files on the local disk are memory-mapped block by block, and the phase, aggregate and
+ * critical path queries below scan the columns they need without creating a {@link
+ * ProfileInfo.Task} for every task, so the heap they need does not grow with the size of the
+ * profile. {@link #toProfileInfo} materializes the tasks for the analyses that need all of them.
+ *
+ * <p>Like {@link ProfileInfo}, tasks are attributed to the phase during which their root task
+ * started. Here that is approximated by the id of the task itself, since task ids grow with time;
+ * the two only differ for the subtasks of a root task that was still running when the next phase
+ * started.
+ */
+public final class ColumnarProfile {
+
+  /** The aggregated statistics of the tasks of one phase. */
+  public static final class PhaseTotals {
+    private final int[] counts = new int[ProfilerTask.TASK_COUNT];
+    private final long[] times = new long[ProfilerTask.TASK_COUNT];
+    private final Map<String, Long> skyFunctionRestarts = new TreeMap<>();
+    private long totalDuration;
+
+    /**
+     * Returns the number of tasks of the given type, including those only aggregated in their
+     * parent tasks.
+     */
+    public int getCount(ProfilerTask type) {
+      return counts[type.ordinal()];
+    }
+
+    /** Returns the time spent in tasks of the given type, excluding their recorded subtasks. */
+    public long getTotalTime(ProfilerTask type) {
+      return times[type.ordinal()];
+    }
+
+    /**
+     * Returns the duration of the phase plus the durations of the root tasks it started on other
+     * threads than the phase marker.
+     */
+    public long getTotalDuration() {
+      return totalDuration;
+    }
+
+    /** Returns how often the functions of each SkyFunction name were restarted, sorted by name. */
+    public Map<String, Long> getSkyFunctionRestarts() {
+      return Collections.unmodifiableMap(skyFunctionRestarts);
+    }
+  }
+
+  /** One block of task records; see {@link ColumnarProfileWriter}. */
+  private static final class Block {
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int descriptionCount;
+    private final int startTimes;
+    private final int durations;
+    private final int ids;
+    private final int parentIds;
+    private final int descIndices;
+    private final int statEnds;
+    private final int descriptionEnds;
+    private final int types;
+    private final int descriptions;
+    private final int stats;
+
+    Block(ByteBuffer buffer) {
+      this.buffer = buffer;
+      size = buffer.getInt(0);
+      descriptionCount = buffer.getInt(4);
+      int descriptionBytes = buffer.getInt(8);
+      startTimes = ColumnarProfileWriter.BLOCK_HEADER_SIZE + 8 * size;
+      durations = startTimes + 8 * size;
+      ids = durations + 8 * size;
+      parentIds = ids + 4 * size;
+      descIndices = parentIds + 4 * size;
+      statEnds = descIndices + 4 * size;
+      descriptionEnds = statEnds + 4 * size;
+      types = descriptionEnds + 4 * descriptionCount;
+      descriptions = types + size;
+      stats = descriptions + descriptionBytes;
+    }
+
+    /** Returns the size of the block of the given header. */
+    static long getSize(ByteBuffer header) {
+      return ColumnarProfileWriter.BLOCK_HEADER_SIZE
+          + (long) header.getInt(0) * ColumnarProfileWriter.RECORD_SIZE
+          + 4L * header.getInt(4) + header.getInt(8) + header.getInt(12);
+    }
+
+    long threadId(int i) {
+      return buffer.getLong(ColumnarProfileWriter.BLOCK_HEADER_SIZE + 8 * i);
+    }
+
+    long startTime(int i) {
+      return buffer.getLong(startTimes + 8 * i);
+    }
+
+    long duration(int i) {
+      return buffer.getLong(durations + 8 * i);
+    }
+
+    int id(int i) {
+      return buffer.getInt(ids + 4 * i);
+    }
+
+    int parentId(int i) {
+      return buffer.getInt(parentIds + 4 * i);
+    }
+
+    int descIndex(int i) {
+      return buffer.getInt(descIndices + 4 * i);
+    }
+
+    int type(int i) {
+      return buffer.get(types + i) & 0xff;
+    }
+
+    int statStart(int i) {
+      return stats + (i == 0 ? 0 : buffer.getInt(statEnds + 4 * (i - 1)));
+    }
+
+    int statEnd(int i) {
+      return stats + buffer.getInt(statEnds + 4 * i);
+    }
+
+    String description(int index) throws IOException {
+      int start = index == 0 ? 0 : buffer.getInt(descriptionEnds + 4 * (index - 1));
+      byte[] bytes = new byte[buffer.getInt(descriptionEnds + 4 * index) - start];
+      ByteBuffer source = buffer.duplicate();
+      source.position(descriptions + start);
+      source.get(bytes);
+      return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+  }
+
+  /** Selects the tasks to materialize in {@link #toProfileInfo}. */
+  private interface TaskFilter {
+    boolean accept(Block block, int i);
+  }
+
+  private final String comment;
+  private final List<ProfilerTask> typeList;
+  private final List<Block> blocks;
+  private final int[] blockFirstDescriptions;
+  private final int descriptionCount;
+  private final boolean corruptedOrIncomplete;
+  private long taskCount;
+
+  // The PHASE root tasks in id order, and the end of the last root task.
+  private final List<Integer> phaseIds = new ArrayList<>();
+  private final List<Long> phaseStartTimes = new ArrayList<>();
+  private final List<Long> phaseThreadIds = new ArrayList<>();
+  private final List<String> phaseDescriptions = new ArrayList<>();
+  private long endTime;
+  private int criticalPathId;
+
+  private EnumMap<ProfilePhase, PhaseTotals> phaseTotals;
+
+  private ColumnarProfile(String comment, List<ProfilerTask> typeList, List<Block> blocks,
+      boolean corruptedOrIncomplete) throws IOException {
+    this.comment = comment;
+    this.typeList = typeList;
+    this.blocks = blocks;
+    this.corruptedOrIncomplete = corruptedOrIncomplete;
+    blockFirstDescriptions = new int[blocks.size()];
+    int descriptions = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      blockFirstDescriptions[i] = descriptions;
+      descriptions += blocks.get(i).descriptionCount;
+    }
+    descriptionCount = descriptions;
+    scanRootTasks();
+  }
+
+  /** Finds the phase markers, the critical path and the end of the last root task. */
+  private void scanRootTasks() throws IOException {
+    int lastRootId = -1;
+    criticalPathId = -1;
+    // The positions of the phase markers by id, since the blocks are not in id order.
+    TreeMap<Integer, int[]> phases = new TreeMap<>();
+    for (int b = 0; b < blocks.size(); b++) {
+      Block block = blocks.get(b);
+      taskCount += block.size;
+      for (int i = 0; i < block.size; i++) {
+        if (block.parentId(i) != 0) {
+          continue;
+        }
+        int id = block.id(i);
+        if (id > lastRootId) {
+          lastRootId = id;
+          endTime = block.startTime(i) + block.duration(i);
+        }
+        ProfilerTask type = typeList.get(block.type(i));
+        if (type == ProfilerTask.PHASE) {
+          phases.put(id, new int[] {b, i});
+        } else if (type == ProfilerTask.CRITICAL_PATH
+            && (criticalPathId < 0 || id < criticalPathId)) {
+          criticalPathId = id;
+        }
+      }
+    }
+    for (Map.Entry<Integer, int[]> phase : phases.entrySet()) {
+      Block block = blocks.get(phase.getValue()[0]);
+      int i = phase.getValue()[1];
+      phaseIds.add(phase.getKey());
+      phaseStartTimes.add(block.startTime(i));
+      phaseThreadIds.add(block.threadId(i));
+      phaseDescriptions.add(getDescription(block.descIndex(i)));
+    }
+  }
+
+  /**
+   * Returns true if the file starts with the magic token of the columnar format.
+   */
+  public static boolean isColumnarProfile(Path profileFile) throws IOException {
+    try (InputStream in = profileFile.getInputStream()) {
+      byte[] magic = new byte[4];
+      return ByteStreams.read(in, magic, 0, 4) == 4
+          && ByteBuffer.wrap(magic).getInt() == ColumnarProfileWriter.MAGIC;
+    }
+  }
+
+  /**
+   * Loads a profile in the columnar format. Files on the local disk are memory-mapped, others are
+   * read into memory.
+   *
+   * @throws UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static ColumnarProfile load(Path profileFile) throws IOException {
+    if (profileFile.getFileSystem() instanceof AbstractFileSystemWithCustomStat) {
+      try (FileChannel channel =
+          FileChannel.open(profileFile.getPathFile().toPath(), StandardOpenOption.READ)) {
+        return load(channel, null);
+      }
+    }
+    try (InputStream in = profileFile.getInputStream()) {
+      return load(null, ByteBuffer.wrap(ByteStreams.toByteArray(in)));
+    }
+  }
+
+  /** Reads the profile either from the channel or from the buffer, whichever is not null. */
+  private static ColumnarProfile load(@Nullable FileChannel channel, @Nullable ByteBuffer content)
+      throws IOException {
+    long fileSize = channel != null ? channel.size() : content.limit();
+    ByteBuffer header = slice(channel, content, 0, Math.min(fileSize, 1 << 20));
+    if (header.remaining() < 8 || header.getInt() != ColumnarProfileWriter.MAGIC) {
+      throw new UnsupportedEncodingException("Invalid profile datafile format");
+    }
+    if (header.getInt() != ColumnarProfileWriter.VERSION) {
+      throw new UnsupportedEncodingException("Incompatible profile datafile version");
+    }
+    String comment = readUTF(header);
+    int typeCount = header.getInt();
+    List<ProfilerTask> typeList = new ArrayList<>(typeCount);
+    for (int i = 0; i < typeCount; i++) {
+      String name = readUTF(header);
+      ProfilerTask type = ProfilerTask.UNKNOWN;
+      for (ProfilerTask task : ProfilerTask.values()) {
+        if (task.toString().equals(name)) {
+          type = task;
+          break;
+        }
+      }
+      typeList.add(type);
+    }
+
+    List<Long> blockOffsets = readFooter(channel, content, fileSize);
+    boolean corruptedOrIncomplete = blockOffsets == null;
+    if (corruptedOrIncomplete) {
+      // There is no footer, so follow the blocks from the header as far as they are complete.
+      blockOffsets = new ArrayList<>();
+      long offset = header.position();
+      while (offset + ColumnarProfileWriter.BLOCK_HEADER_SIZE <= fileSize) {
+        ByteBuffer blockHeader =
+            slice(channel, content, offset, ColumnarProfileWriter.BLOCK_HEADER_SIZE);
+        if (blockHeader.getInt(0) <= 0 || offset + Block.getSize(blockHeader) > fileSize) {
+          break;
+        }
+        blockOffsets.add(offset);
+        offset += Block.getSize(blockHeader);
+      }
+    }
+
+    List<Block> blocks = new ArrayList<>(blockOffsets.size());
+    for (long offset : blockOffsets) {
+      long size =
+          Block.getSize(slice(channel, content, offset, ColumnarProfileWriter.BLOCK_HEADER_SIZE));
+      blocks.add(new Block(slice(channel, content, offset, size)));
+    }
+    return new ColumnarProfile(comment, typeList, blocks, corruptedOrIncomplete);
+  }
+
+  /** Returns the block offsets from the footer, or null if the file does not have one. */
+  @Nullable
+  private static List<Long> readFooter(
+      @Nullable FileChannel channel, @Nullable ByteBuffer content, long fileSize)
+      throws IOException {
+    if (fileSize < 16) {
+      return null;
+    }
+    ByteBuffer trailer = slice(channel, content, fileSize - 12, 12);
+    long footerOffset = trailer.getLong(0);
+    if (trailer.getInt(8) != ColumnarProfileWriter.MAGIC
+        || footerOffset < 0 || footerOffset > fileSize - 20) {
+      return null;
+    }
+    ByteBuffer footer = slice(channel, content, footerOffset, fileSize - 12 - footerOffset);
+    if (footer.getInt() != Profiler.EOF_MARKER) {
+      return null;
+    }
+    int blockCount = footer.getInt();
+    if (footer.remaining() != 8L * blockCount) {
+      return null;
+    }
+    List<Long> blockOffsets = new ArrayList<>(blockCount);
+    for (int i = 0; i < blockCount; i++) {
+      blockOffsets.add(footer.getLong());
+    }
+    return blockOffsets;
+  }
+
+  private static ByteBuffer slice(@Nullable FileChannel channel, @Nullable ByteBuffer content,
+      long offset, long size) throws IOException {
+    Preconditions.checkArgument(size <= Integer.MAX_VALUE, "profile block too large: %s", size);
+    if (channel != null) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+    ByteBuffer slice = content.duplicate();
+    slice.position((int) offset);
+    slice.limit((int) (offset + size));
+    return slice.slice();
+  }
+
+  private static String readUTF(ByteBuffer buffer) throws IOException {
+    int length = buffer.getShort(buffer.position()) & 0xffff;
+    byte[] bytes = new byte[2 + length];
+    buffer.get(bytes);
+    return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  /** Returns the number of task records in the profile. */
+  public long getTaskCount() {
+    return taskCount;
+  }
+
+  /**
+   * Returns true if the profile has no footer, usually because Blaze did not finish writing it.
+   * All complete blocks are still read.
+   */
+  public boolean isCorruptedOrIncomplete() {
+    return corruptedOrIncomplete;
+  }
+
+  /** Returns the description string with the given index. */
+  public String getDescription(int index) throws IOException {
+    Preconditions.checkArgument(
+        index >= 0 && index < descriptionCount, "No description with index %s", index);
+    int block = Arrays.binarySearch(blockFirstDescriptions, index);
+    if (block < 0) {
+      block = -block - 2;
+    }
+    // Skip the blocks that do not add descriptions, which share the first index with the next.
+    while (block + 1 < blockFirstDescriptions.length
+        && blockFirstDescriptions[block + 1] == blockFirstDescriptions[block]) {
+      block++;
+    }
+    return blocks.get(block).description(index - blockFirstDescriptions[block]);
+  }
+
+  /** Returns the index of the phase marker of the given phase, or -1 if it did not run. */
+  private int getPhaseIndex(ProfilePhase phase) {
+    return phaseDescriptions.indexOf(phase.description);
+  }
+
+  /** Returns true if the given phase ran in the profiled command. */
+  public boolean hasPhase(ProfilePhase phase) {
+    return getPhaseIndex(phase) >= 0;
+  }
+
+  /**
+   * Returns the duration of the given phase in ns, which ends when the next phase starts or, for
+   * the last phase, when the last root task ends.
+   *
+   * @throws IllegalArgumentException if the phase did not run
+   */
+  public long getPhaseDuration(ProfilePhase phase) {
+    int index = getPhaseIndex(phase);
+    Preconditions.checkArgument(index >= 0, "Phase %s did not run", phase);
+    long end = index + 1 < phaseStartTimes.size() ? phaseStartTimes.get(index + 1) : endTime;
+    long duration = end - phaseStartTimes.get(index);
+    Preconditions.checkState(duration >= 0);
+    return duration;
+  }
+
+  /**
+   * Returns the aggregated statistics of the tasks of the given phase. The statistics of all
+   * phases are computed together, in one pass over the profile, on the first call.
+   *
+   * @throws IllegalArgumentException if the phase did not run
+   */
+  public synchronized PhaseTotals getPhaseTotals(ProfilePhase phase) throws IOException {
+    Preconditions.checkArgument(hasPhase(phase), "Phase %s did not run", phase);
+    if (phaseTotals == null) {
+      phaseTotals = computePhaseTotals();
+    }
+    return phaseTotals.get(phase);
+  }
+
+  private EnumMap<ProfilePhase, PhaseTotals> computePhaseTotals() throws IOException {
+    // The totals of the phase markers with the same description as an earlier one are ignored,
+    // since only the first one is reported.
+    PhaseTotals[] totals = new PhaseTotals[phaseIds.size()];
+    EnumMap<ProfilePhase, PhaseTotals> result = new EnumMap<>(ProfilePhase.class);
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      int index = getPhaseIndex(phase);
+      if (index >= 0) {
+        totals[index] = new PhaseTotals();
+        totals[index].totalDuration = getPhaseDuration(phase);
+        result.put(phase, totals[index]);
+      }
+    }
+    int[] ids = new int[phaseIds.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = phaseIds.get(i);
+    }
+
+    for (Block block : blocks) {
+      for (int i = 0; i < block.size; i++) {
+        int index = Arrays.binarySearch(ids, block.id(i));
+        if (index < 0) {
+          index = -index - 2;
+        }
+        if (index < 0 || totals[index] == null) {
+          continue;
+        }
+        PhaseTotals phase = totals[index];
+        int type = typeList.get(block.type(i)).ordinal();
+        // Same as the sum of ProfileInfo.getStatsForType over the root tasks of the phase: every
+        // task adds its aggregated stats, and the own time of a task is its duration minus the
+        // time of its aggregated subtasks, which a subtask already adds to its parent's stats.
+        long inheritedDuration = 0;
+        ByteBuffer stats = block.buffer.duplicate();
+        stats.limit(block.statEnd(i));
+        stats.position(block.statStart(i));
+        while (stats.hasRemaining()) {
+          int statType = typeList.get(stats.get() & 0xff).ordinal();
+          int count = VarInt.getVarInt(stats);
+          long time = VarInt.getVarLong(stats);
+          phase.counts[statType] += count;
+          phase.times[statType] += time;
+          inheritedDuration += time;
+        }
+        if (block.parentId(i) == 0) {
+          phase.counts[type]++;
+          phase.times[type] += block.duration(i) - inheritedDuration;
+          if (block.threadId(i) != phaseThreadIds.get(index)) {
+            phase.totalDuration += block.duration(i);
+          }
+        } else {
+          phase.times[type] -= inheritedDuration;
+        }
+        if (type == ProfilerTask.SKYFUNCTION_RESTART.ordinal()) {
+          String description = getDescription(block.descIndex(i));
+          Long restarts = phase.skyFunctionRestarts.get(description);
+          phase.skyFunctionRestarts.put(description, restarts == null ? 1 : restarts + 1);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the critical path recorded by the {@link ProfilerTask#CRITICAL_PATH} task, or null if
+   * there is none. Only the tasks of the critical path are materialized.
+   */
+  @Nullable
+  public CriticalPathEntry getCriticalPath() throws IOException {
+    if (criticalPathId < 0) {
+      return null;
+    }
+    ProfileInfo info = materialize(new TaskFilter() {
+      @Override
+      public boolean accept(Block block, int i) {
+        return block.id(i) == criticalPathId || block.parentId(i) == criticalPathId;
+      }
+    });
+    info.calculateStats();
+    return info.getCriticalPathNewVersion();
+  }
+
+  /**
+   * Materializes all tasks, for the analyses that need the whole task tree.
+   *
+   * @return ProfileInfo object with some fields populated (call calculateStats() and
+   *         analyzeRelationships() to populate the remaining fields)
+   */
+  public ProfileInfo toProfileInfo() throws IOException {
+    return materialize(null);
+  }
+
+  /**
+   * Materializes the tasks of the given types only. The tasks do not form a tree, so only the
+   * analyses that do not need one, like the Skylark function statistics, work on the result.
+   */
+  public ProfileInfo toProfileInfo(Set<ProfilerTask> types) throws IOException {
+    final EnumSet<ProfilerTask> typeSet = EnumSet.copyOf(types);
+    return materialize(new TaskFilter() {
+      @Override
+      public boolean accept(Block block, int i) {
+        return typeSet.contains(typeList.get(block.type(i)));
+      }
+    });
+  }
+
+  /**
+   * Creates a ProfileInfo with the tasks that the filter accepts, or all tasks if it is null. Only
+   * the descriptions of those tasks are copied.
+   */
+  private ProfileInfo materialize(@Nullable TaskFilter filter) throws IOException {
+    ProfileInfo info = new ProfileInfo(comment);
+    if (corruptedOrIncomplete) {
+      info.setCorruptedOrIncomplete();
+    }
+    Map<Integer, Integer> descIndices = null;
+    if (filter == null) {
+      for (int i = 0; i < descriptionCount; i++) {
+        info.addDescription(getDescription(i));
+      }
+    } else {
+      descIndices = new HashMap<>();
+    }
+    for (Block block : blocks) {
+      for (int i = 0; i < block.size; i++) {
+        if (filter != null && !filter.accept(block, i)) {
+          continue;
+        }
+        int descIndex = block.descIndex(i);
+        if (descIndices != null) {
+          Integer index = descIndices.get(descIndex);
+          if (index == null) {
+            index = info.addDescription(getDescription(descIndex));
+            descIndices.put(descIndex, index);
+          }
+          descIndex = index;
+        }
+        byte[] stats = null;
+        int statStart = block.statStart(i);
+        int statEnd = block.statEnd(i);
+        if (statEnd > statStart) {
+          ByteBuffer source = block.buffer.duplicate();
+          source.limit(statEnd);
+          source.position(statStart);
+          stats = new byte[statEnd - statStart];
+          source.get(stats);
+          // Replace the type ids of the file by the ordinals of this binary.
+          source.position(statStart);
+          while (source.hasRemaining()) {
+            int position = source.position() - statStart;
+            stats[position] = (byte) typeList.get(source.get() & 0xff).ordinal();
+            VarInt.getVarInt(source);
+            VarInt.getVarLong(source);
+          }
+        }
+        info.addTask(info.new Task(block.threadId(i), block.id(i), block.parentId(i),
+            block.startTime(i), block.duration(i), typeList.get(block.type(i)), descIndex,
+            new CompactStatistics(stats)));
+      }
+    }
+    return info;
+  }
+}
@@ -0,0 +1,206 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes profile data in the columnar format selected by {@link Profiler.Format#COLUMNAR}.
+ *
+ * <p>Unlike the deflated format, the file is not compressed and the task records are grouped in
+ * blocks, each holding one column per task attribute, so that {@link ColumnarProfile} can map the
+ * file and read single attributes of all tasks without decoding whole records. Task records are
+ * collected in memory and written as one block when the block is full or when {@link #flush} is
+ * called. All numbers are big-endian.
+ *
+ * <pre>
+ * Profile file consists of:
+ *   HEADER
+ *   BLOCK...
+ *   FOOTER
+ *
+ * HEADER:
+ *   int32: magic token (ColumnarProfileWriter.MAGIC)
+ *   int32: version format (ColumnarProfileWriter.VERSION)
+ *   string: file comment
+ *   int32: number of type names below
+ *   string... : type names, with ids assigned by position as in the deflated format
+ *
+ * BLOCK:
+ *   int32: number n of task records in the block, at most BLOCK_SIZE
+ *   int32: number s of description strings first used in the block
+ *   int32: size of the description strings in bytes
+ *   int32: size of the aggregated stats in bytes
+ *   int64[n]: thread ids
+ *   int64[n]: start times in ns, relative to the Profiler.start() invocation
+ *   int64[n]: durations in ns
+ *   int32[n]: task ids
+ *   int32[n]: parent task ids, or 0 for root tasks
+ *   int32[n]: description string indices
+ *   int32[n]: end offsets of the aggregated stats of each task
+ *   int32[s]: end offsets of the description strings
+ *   byte[n]: task type ids
+ *   string[s]: description strings, which get the next sequential indices
+ *   byte[]: AGGREGATED_STAT... of all tasks, encoded as in the deflated format
+ *
+ * FOOTER:
+ *   int32: EOF_MARKER, in place of the number of task records
+ *   int32: number of blocks
+ *   int64[number of blocks]: file offsets of the blocks
+ *   int64: file offset of the EOF_MARKER above
+ *   int32: magic token
+ * </pre>
+ *
+ * <p>A profile without a footer, for example from a crashed server, can still be read by
+ * following the block sizes from the header.
+ */
+//@ThreadCompatible - commented out to avoid cyclic dependency with lib.util.
+final class ColumnarProfileWriter {
+  static final int MAGIC = 0x11223355;
+
+  static final int VERSION = 0x01;
+
+  /** The maximum number of task records in one block. */
+  static final int BLOCK_SIZE = 65536;
+
+  /** The size of the four int32 fields that start each block. */
+  static final int BLOCK_HEADER_SIZE = 16;
+
+  /** The size of one task record in the fixed-width columns of a block. */
+  static final int RECORD_SIZE = 3 * 8 + 4 * 4 + 1;
+
+  private final DataOutputStream out;
+  private long offset;
+  private long[] blockOffsets = new long[16];
+  private int blockCount;
+
+  private final long[] threadIds = new long[BLOCK_SIZE];
+  private final long[] startTimes = new long[BLOCK_SIZE];
+  private final long[] durations = new long[BLOCK_SIZE];
+  private final int[] ids = new int[BLOCK_SIZE];
+  private final int[] parentIds = new int[BLOCK_SIZE];
+  private final int[] descIndices = new int[BLOCK_SIZE];
+  private final int[] statEnds = new int[BLOCK_SIZE];
+  private final byte[] types = new byte[BLOCK_SIZE];
+  private int size;
+
+  // At most one description is first used by each task record.
+  private final int[] descriptionEnds = new int[BLOCK_SIZE];
+  private int descriptionCount;
+  private final ByteArrayOutputStream descriptions = new ByteArrayOutputStream();
+  private final DataOutputStream descriptionsOut = new DataOutputStream(descriptions);
+  private final ByteArrayOutputStream stats = new ByteArrayOutputStream();
+
+  /** Writes the header of the profile file. */
+  ColumnarProfileWriter(DataOutputStream out, String comment) throws IOException {
+    this.out = out;
+    int start = out.size();
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(comment);
+    out.writeInt(ProfilerTask.TASK_COUNT);
+    for (ProfilerTask type : ProfilerTask.values()) {
+      out.writeUTF(type.toString());
+    }
+    offset = out.size() - start;
+  }
+
+  /**
+   * Adds a task record, and writes the current block if it is full.
+   *
+   * @param description the description string if this is its first use, or null
+   * @param statBytes the buffer holding the aggregated stats of the task
+   */
+  void add(long threadId, int id, int parentId, long startTime, long duration, ProfilerTask type,
+      int descIndex, String description, byte[] statBytes, int statOffset, int statLength)
+      throws IOException {
+    threadIds[size] = threadId;
+    ids[size] = id;
+    parentIds[size] = parentId;
+    startTimes[size] = startTime;
+    this.durations[size] = duration;
+    types[size] = (byte) type.ordinal();
+    descIndices[size] = descIndex;
+    stats.write(statBytes, statOffset, statLength);
+    statEnds[size] = stats.size();
+    if (description != null) {
+      descriptionsOut.writeUTF(description);
+      descriptionEnds[descriptionCount++] = descriptions.size();
+    }
+    if (++size == BLOCK_SIZE) {
+      flush();
+    }
+  }
+
+  /** Writes the task records added since the last block as a block, if there are any. */
+  void flush() throws IOException {
+    if (size == 0) {
+      return;
+    }
+    if (blockCount == blockOffsets.length) {
+      blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+    }
+    blockOffsets[blockCount++] = offset;
+    out.writeInt(size);
+    out.writeInt(descriptionCount);
+    out.writeInt(descriptions.size());
+    out.writeInt(stats.size());
+    for (int i = 0; i < size; i++) {
+      out.writeLong(threadIds[i]);
+    }
+    for (int i = 0; i < size; i++) {
+      out.writeLong(startTimes[i]);
+    }
+    for (int i = 0; i < size; i++) {
+      out.writeLong(durations[i]);
+    }
+    writeInts(ids, size);
+    writeInts(parentIds, size);
+    writeInts(descIndices, size);
+    writeInts(statEnds, size);
+    writeInts(descriptionEnds, descriptionCount);
+    out.write(types, 0, size);
+    descriptions.writeTo(out);
+    stats.writeTo(out);
+    offset += BLOCK_HEADER_SIZE + (long) size * RECORD_SIZE + 4L * descriptionCount
+        + descriptions.size() + stats.size();
+
+    size = 0;
+    descriptionCount = 0;
+    descriptions.reset();
+    stats.reset();
+  }
+
+  private void writeInts(int[] values, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  /** Writes the pending task records and the footer. Does not close the stream. */
+  void finish() throws IOException {
+    flush();
+    out.writeInt(Profiler.EOF_MARKER);
+    out.writeInt(blockCount);
+    for (int i = 0; i < blockCount; i++) {
+      out.writeLong(blockOffsets[i]);
+    }
+    out.writeLong(offset);
+    out.writeInt(MAGIC);
+    out.flush();
+  }
+}
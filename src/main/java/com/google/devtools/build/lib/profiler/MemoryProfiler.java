@@ -18,6 +18,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
+import java.util.Map;
 
 /**
  * Blaze memory profiler.
@@ -34,6 +35,9 @@ import java.lang.management.MemoryUsage;
  * an application and the JVM implementation allocate memory from the
  * <em>native heap</em>.
  *
+ * <p>If {@link AllocationTracker} is enabled, the bytes allocated per SkyFunction and per target
+ * kind during each phase follow the memory usage, largest first.
+ *
  * <p>The script in /devtools/blaze/scripts/blaze-memchart.sh can be used for post processing.
  */
 public final class MemoryProfiler {
@@ -59,7 +63,12 @@ public final class MemoryProfiler {
     }
   }
 
-  public synchronized void markPhase(ProfilePhase nextPhase) {
+  /**
+   * Writes the memory usage at the end of the current phase, and the bytes that {@link
+   * AllocationTracker} attributed to SkyFunctions and target kinds during it.
+   */
+  public synchronized void markPhase(ProfilePhase nextPhase,
+      AllocationTracker.Summary allocations) {
     if (memoryProfile != null) {
       String name = currentPhase.description;
       ManagementFactory.getMemoryMXBean().gc();
@@ -74,6 +83,15 @@ public final class MemoryProfiler {
       memoryProfile.println(name + ":non-heap:used:" + memoryUsage.getUsed());
       memoryProfile.println(name + ":non-heap:commited:" + memoryUsage.getCommitted());
       memoryProfile.println(name + ":non-heap:max:" + memoryUsage.getMax());
+
+      for (Map.Entry<String, Long> entry : allocations.getBytesByKey().entrySet()) {
+        memoryProfile.println(name + ":allocated:skyfunction:" + entry.getKey() + ":"
+            + entry.getValue());
+      }
+      for (Map.Entry<String, Long> entry : allocations.getBytesByDetail().entrySet()) {
+        memoryProfile.println(name + ":allocated:target-kind:" + entry.getKey() + ":"
+            + entry.getValue());
+      }
       currentPhase = nextPhase;
     }
   }
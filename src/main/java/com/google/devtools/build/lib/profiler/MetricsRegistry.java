@@ -0,0 +1,338 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms that are always collected, unlike the {@link Profiler} data, so that
+ * slow builds can be diagnosed after the fact.
+ *
+ * <p>Recording a value never takes a lock: counters are striped {@link LongAdder}s and histograms
+ * have log-linear buckets (as in HdrHistogram) updated with atomic increments. Callers on hot
+ * paths should look up their metrics once and keep them in static fields. The values accumulate
+ * over the lifetime of the server; {@link Snapshot#minus} gives the values of a single command.
+ *
+ * <p>Names are dot-separated, starting with the component; histograms of durations end in their
+ * unit, for example {@code "worker.borrow_us"}.
+ */
+@ThreadSafe
+public final class MetricsRegistry {
+
+  private static final MetricsRegistry instance = new MetricsRegistry();
+
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, KeyedCounter> keyedCounters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  public static MetricsRegistry instance() {
+    return instance;
+  }
+
+  /** Returns the counter with the given name, creating it if needed. */
+  public Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new Counter());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+
+  /** Returns the family of counters with the given name, creating it if needed. */
+  public KeyedCounter keyedCounter(String name) {
+    KeyedCounter counter = keyedCounters.get(name);
+    if (counter == null) {
+      keyedCounters.putIfAbsent(name, new KeyedCounter());
+      counter = keyedCounters.get(name);
+    }
+    return counter;
+  }
+
+  /** Returns the histogram with the given name, creating it if needed. */
+  public Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histograms.putIfAbsent(name, new Histogram());
+      histogram = histograms.get(name);
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the current values of all metrics. Values recorded concurrently may or may not be
+   * included.
+   */
+  public Snapshot snapshot() {
+    ImmutableSortedMap.Builder<String, Long> counterValues = ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      counterValues.put(entry.getKey(), entry.getValue().get());
+    }
+    for (Map.Entry<String, KeyedCounter> family : keyedCounters.entrySet()) {
+      for (Map.Entry<Object, Counter> entry : family.getValue().counters.entrySet()) {
+        counterValues.put(family.getKey() + "[" + entry.getKey() + "]", entry.getValue().get());
+      }
+    }
+    ImmutableSortedMap.Builder<String, HistogramSnapshot> histogramValues =
+        ImmutableSortedMap.naturalOrder();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return new Snapshot(counterValues.build(), histogramValues.build());
+  }
+
+  /** A counter that many threads can increment without contending on a single memory word. */
+  @ThreadSafe
+  public static final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    private Counter() {}
+
+    public void increment() {
+      value.increment();
+    }
+
+    public void add(long delta) {
+      value.add(delta);
+    }
+
+    public long get() {
+      return value.sum();
+    }
+  }
+
+  /**
+   * A family of counters, one per key, for example per {@code SkyFunctionName}. Keys must have
+   * stable {@code equals}, {@code hashCode} and {@code toString} methods.
+   */
+  @ThreadSafe
+  public static final class KeyedCounter {
+    private final ConcurrentMap<Object, Counter> counters = new ConcurrentHashMap<>();
+
+    private KeyedCounter() {}
+
+    /** Returns the counter for the given key, creating it if needed. */
+    public Counter get(Object key) {
+      Counter counter = counters.get(key);
+      if (counter == null) {
+        counters.putIfAbsent(key, new Counter());
+        counter = counters.get(key);
+      }
+      return counter;
+    }
+  }
+
+  /**
+   * A histogram of non-negative values with a relative error of at most 1/16.
+   *
+   * <p>Values below 32 have their own bucket; above that, each power of two is split into 16
+   * buckets of equal width.
+   */
+  @ThreadSafe
+  public static final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private Histogram() {}
+
+    /** Records a value; negative values are recorded as 0. */
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      buckets.incrementAndGet(bucket(value));
+      sum.add(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+
+    static int bucket(long value) {
+      if (value < 2 * SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /** Returns the smallest value in the given bucket. */
+    static long lowestValue(int bucket) {
+      if (bucket < 2 * SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      return ((long) (bucket % SUB_BUCKETS + SUB_BUCKETS)) << shift;
+    }
+
+    /** Returns the largest value in the given bucket. */
+    static long highestValue(int bucket) {
+      return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    HistogramSnapshot snapshot() {
+      long[] counts = new long[BUCKETS];
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = buckets.get(i);
+        count += counts[i];
+      }
+      return new HistogramSnapshot(counts, count, sum.sum(), max.get());
+    }
+  }
+
+  /** The values of a histogram at some point. */
+  @Immutable
+  public static final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private HistogramSnapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /** The largest value recorded since the server started. */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the values, at most 1/16 above the exact
+     * value, or 0 if there are no values.
+     */
+    public long getPercentile(double percentile) {
+      Preconditions.checkArgument(percentile > 0 && percentile <= 100, percentile);
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min(Histogram.highestValue(i), max);
+        }
+      }
+      return 0;
+    }
+
+    /** Returns the values recorded after {@code earlier}, with the maximum of this snapshot. */
+    public HistogramSnapshot minus(HistogramSnapshot earlier) {
+      long[] difference = Arrays.copyOf(counts, counts.length);
+      for (int i = 0; i < difference.length; i++) {
+        difference[i] -= earlier.counts[i];
+      }
+      return new HistogramSnapshot(difference, count - earlier.count, sum - earlier.sum, max);
+    }
+
+    @Override
+    public String toString() {
+      if (count == 0) {
+        return "count=0";
+      }
+      return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", count, getMean(),
+          getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+  }
+
+  /** The values of all metrics at some point. */
+  @Immutable
+  public static final class Snapshot {
+    private final ImmutableSortedMap<String, Long> counters;
+    private final ImmutableSortedMap<String, HistogramSnapshot> histograms;
+
+    private Snapshot(ImmutableSortedMap<String, Long> counters,
+        ImmutableSortedMap<String, HistogramSnapshot> histograms) {
+      this.counters = counters;
+      this.histograms = histograms;
+    }
+
+    /** The values of all counters, including those of keyed counters as "name[key]". */
+    public ImmutableSortedMap<String, Long> getCounters() {
+      return counters;
+    }
+
+    public ImmutableSortedMap<String, HistogramSnapshot> getHistograms() {
+      return histograms;
+    }
+
+    /**
+     * Returns the values recorded after {@code earlier}, leaving out metrics that did not change.
+     */
+    public Snapshot minus(Snapshot earlier) {
+      ImmutableSortedMap.Builder<String, Long> counterValues = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<String, Long> entry : counters.entrySet()) {
+        Long before = earlier.counters.get(entry.getKey());
+        long difference = entry.getValue() - (before == null ? 0 : before);
+        if (difference != 0) {
+          counterValues.put(entry.getKey(), difference);
+        }
+      }
+      ImmutableSortedMap.Builder<String, HistogramSnapshot> histogramValues =
+          ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+        HistogramSnapshot before = earlier.histograms.get(entry.getKey());
+        HistogramSnapshot difference =
+            before == null ? entry.getValue() : entry.getValue().minus(before);
+        if (difference.getCount() != 0) {
+          histogramValues.put(entry.getKey(), difference);
+        }
+      }
+      return new Snapshot(counterValues.build(), histogramValues.build());
+    }
+
+    /** Returns one line per metric, sorted by name. */
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder();
+      for (Map.Entry<String, Long> entry : counters.entrySet()) {
+        result.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+      }
+      for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+        result.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+      }
+      return result.toString();
+    }
+  }
+}
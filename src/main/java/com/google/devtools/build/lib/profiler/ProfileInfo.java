@@ -47,6 +47,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.zip.Inflater;
@@ -402,6 +404,39 @@ public class ProfileInfo {
     }
   }
 
+  /**
+   * Calculates the aggregated statistics of a range of root tasks. The trees of the root tasks do
+   * not share any task, so large ranges are split and calculated in parallel.
+   */
+  private static final class RootStatsAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private static final int THRESHOLD = 1024;
+
+    private final List<Task> rootTasks;
+    private final int start;
+    private final int end;
+
+    RootStatsAction(List<Task> rootTasks, int start, int end) {
+      this.rootTasks = rootTasks;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= THRESHOLD) {
+        for (int i = start; i < end; i++) {
+          rootTasks.get(i).calculateRootStats();
+        }
+      } else {
+        int middle = (start + end) >>> 1;
+        invokeAll(new RootStatsAction(rootTasks, start, middle),
+            new RootStatsAction(rootTasks, middle, end));
+      }
+    }
+  }
+
   /**
    * Helper class to create space-efficient task multimap, used to associate
    * array of tasks with specific key.
@@ -419,7 +454,7 @@ public class ProfileInfo {
         return taskMap;
       }
       Task[] taskArray = taskList.toArray(new Task[taskList.size()]);
-      Arrays.sort(taskArray, this);
+      Arrays.parallelSort(taskArray, this);
       K key = getKey(taskArray[0]);
       int start = 0;
       for (int i = 0; i < taskArray.length; i++) {
@@ -469,7 +504,7 @@ public class ProfileInfo {
   // create fake ACTION tasks and assign them negative ids.
   private int fakeActionId = 0;
 
-  private ProfileInfo(String comment) {
+  ProfileInfo(String comment) {
     this.comment = comment;
 
     descriptionList = Lists.newArrayListWithExpectedSize(10000);
@@ -480,10 +515,20 @@ public class ProfileInfo {
     actionDependencyMap = Maps.newHashMapWithExpectedSize(10000);
   }
 
-  private void addTask(Task task) {
+  void addTask(Task task) {
     allTasksById.add(task);
   }
 
+  /** Adds a description string and returns its index. */
+  int addDescription(String description) {
+    descriptionList.add(description);
+    return descriptionList.size() - 1;
+  }
+
+  void setCorruptedOrIncomplete() {
+    corruptedOrIncomplete = true;
+  }
+
   /**
    * Returns true if profile datafile was corrupted or incomplete
    * and false otherwise.
@@ -503,13 +548,20 @@ public class ProfileInfo {
   /**
    * Initializes minimum internal data structures necessary to obtain individual
    * task statistic. This method is sufficient to initialize data for dumping.
+   *
+   * <p>Sorting and aggregation are split into fork-join tasks, which run in the
+   * pool of the calling thread, or the common pool.
    */
   public void calculateStats() {
     if (allTasksById.isEmpty()) {
       return;
     }
 
-    Collections.sort(allTasksById);
+    Task[] sortedTasks = allTasksById.toArray(new Task[allTasksById.size()]);
+    Arrays.parallelSort(sortedTasks);
+    for (int i = 0; i < sortedTasks.length; i++) {
+      allTasksById.set(i, sortedTasks[i]);
+    }
 
     Map<Integer, Task[]> subtaskMap = new TaskMapCreator<Integer>() {
       @Override
@@ -527,8 +579,8 @@ public class ProfileInfo {
     }
     rootTasksById = Arrays.asList(subtaskMap.get(0));
 
+    new RootStatsAction(rootTasksById, 0, rootTasksById.size()).invoke();
     for (Task task : rootTasksById) {
-      task.calculateRootStats();
       if (task.type == ProfilerTask.PHASE) {
         if (!phaseTasks.isEmpty()) {
           phaseTasks.get(phaseTasks.size() - 1).relatedTask = task;
@@ -883,13 +935,25 @@ public class ProfileInfo {
     if (path == null || path.isComponent()) {
       return;
     }
+    // Each entry needs a walk of the whole action graph, which only reads this object, so the
+    // walks run in parallel.
+    final Set<ProfilerTask> types = ignoredTypes;
+    final long cumulativeDuration = path.cumulativeDuration;
+    List<RecursiveAction> walks = new ArrayList<>();
     for (CriticalPathEntry entry = path; entry != null; entry = entry.next) {
-      Map <Task, CriticalPathEntry> cache = Maps.newHashMapWithExpectedSize(1000);
-      entry.setCriticalTime(path.cumulativeDuration -
-          computeCriticalPathForAction(ignoredTypes, Sets.newHashSet(entry.task),
-          getPhaseTask(ProfilePhase.EXECUTE), cache,  new ArrayDeque<Task>())
-          .cumulativeDuration);
+      final CriticalPathEntry ignoredEntry = entry;
+      walks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          Map <Task, CriticalPathEntry> cache = Maps.newHashMapWithExpectedSize(1000);
+          ignoredEntry.setCriticalTime(cumulativeDuration -
+              computeCriticalPathForAction(types, Sets.newHashSet(ignoredEntry.task),
+              getPhaseTask(ProfilePhase.EXECUTE), cache,  new ArrayDeque<Task>())
+              .cumulativeDuration);
+        }
+      });
     }
+    ForkJoinTask.invokeAll(walks);
   }
 
   /**
@@ -974,7 +1038,7 @@ public class ProfileInfo {
   }
 
   /**
-   * Loads and parses Blaze profile file.
+   * Loads and parses Blaze profile file, in either the deflated or the columnar format.
    *
    * @param profileFile profile file path
    *
@@ -985,6 +1049,9 @@ public class ProfileInfo {
    */
   public static ProfileInfo loadProfile(Path profileFile)
       throws IOException {
+    if (ColumnarProfile.isColumnarProfile(profileFile)) {
+      return ColumnarProfile.load(profileFile).toProfileInfo();
+    }
     // It is extremely important to wrap InflaterInputStream using
     // BufferedInputStream because majority of reads would be done using
     // readInt()/readLong() methods and InflaterInputStream is very inefficient
@@ -31,6 +31,7 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -41,6 +42,7 @@ import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -52,7 +54,8 @@ import java.util.zip.DeflaterOutputStream;
  * obtain reference.
  * <p>
  * Internally, profiler uses two data structures - ThreadLocal task stack to track
- * nested tasks and single ConcurrentLinkedQueue to gather all completed tasks.
+ * nested tasks and ThreadLocal ring buffers to gather all completed tasks, which the
+ * save thread drains without making the threads that log tasks wait for a lock.
  * <p>
  * Also, due to the nature of the provided functionality (instrumentation of all
  * Blaze components), build.lib.profiler package will be used by almost every
@@ -67,6 +70,10 @@ import java.util.zip.DeflaterOutputStream;
  * change at any time. For scripting, using blaze analyze-profile --dump=raw
  * would be more robust and stable solution.
  * <p>
+ * <p>
+ * The format below is the default {@link Format#DEFLATED} one; see
+ * {@link ColumnarProfileWriter} for the {@link Format#COLUMNAR} one and
+ * {@link TraceEventWriter} for the {@link Format#TRACE_EVENTS} one.
  * <pre>
  * Profiler file consists of the deflated stream with following overall structure:
  *   HEADER
@@ -138,6 +145,32 @@ public final class Profiler {
 
   private static final int HISTOGRAM_BUCKETS = 20;
 
+  // Number of SkyFunctions and target kinds whose allocations are logged at the end of a phase.
+  private static final int ALLOCATIONS_PER_PHASE = 20;
+
+  // Number of completed tasks each thread can hold until the next save. Must be a power of 2.
+  private static final int TASK_BUFFER_SIZE = 4096;
+
+  /**
+   * The format of the profile file.
+   */
+  public enum Format {
+    /** The compact, deflated format described above, which is read sequentially. */
+    DEFLATED,
+
+    /**
+     * The uncompressed, columnar format written by {@link ColumnarProfileWriter}, which {@link
+     * ColumnarProfile} can memory-map and analyze without loading all tasks in the heap.
+     */
+    COLUMNAR,
+
+    /**
+     * The JSON trace event format written by {@link TraceEventWriter}, which trace viewers can
+     * load even while the build is running. Blaze cannot analyze it.
+     */
+    TRACE_EVENTS
+  }
+
   /**
    *
    * A task that was very slow.
@@ -284,6 +317,47 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Holds the completed tasks of one thread until the next save.
+   *
+   * <p>This is a single-producer, single-consumer ring: only the owning thread adds tasks and
+   * advances {@code tail}, and only save() removes them and advances {@code head}, so neither
+   * needs a lock. Tasks that do not fit go to the shared overflow queue.
+   */
+  //@ThreadSafe - commented out to avoid cyclic dependency with lib.util.
+  private static final class TaskBuffer {
+    private final TaskData[] tasks = new TaskData[TASK_BUFFER_SIZE];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Thread owner = Thread.currentThread();
+    // Whether save() has written the name of the owner thread; only accessed by save().
+    private boolean named;
+
+    /** Adds a task; returns false if the buffer is full. Called by the owning thread only. */
+    boolean offer(TaskData data) {
+      long t = tail.get();
+      if (t - head.get() == TASK_BUFFER_SIZE) {
+        return false;
+      }
+      tasks[(int) t & (TASK_BUFFER_SIZE - 1)] = data;
+      tail.lazySet(t + 1);
+      return true;
+    }
+
+    /** Removes the oldest task, or returns null if there is none. Called by save() only. */
+    TaskData poll() {
+      long h = head.get();
+      if (h == tail.get()) {
+        return null;
+      }
+      int index = (int) h & (TASK_BUFFER_SIZE - 1);
+      TaskData data = tasks[index];
+      tasks[index] = null;
+      head.lazySet(h + 1);
+      return data;
+    }
+  }
+
   private static String toDescription(Object object) {
     return (object instanceof Describable)
         ? ((Describable) object).describe()
@@ -452,8 +526,12 @@ public final class Profiler {
   private AtomicInteger taskId = new AtomicInteger();
 
   private TaskStack taskStack;
-  private Queue<TaskData> taskQueue;
+  private ThreadLocal<TaskBuffer> taskBuffer;
+  private Queue<TaskBuffer> taskBuffers;
+  private Queue<TaskData> overflowQueue;
   private DataOutputStream out;
+  private ColumnarProfileWriter columnarWriter;
+  private TraceEventWriter traceWriter;
   private Timer timer;
   private IOException saveException;
   private ObjectDescriber describer;
@@ -527,9 +605,31 @@ public final class Profiler {
   public synchronized void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
       String comment, boolean recordAllDurations, Clock clock, long execStartTimeNanos)
       throws IOException {
+    start(profiledTaskKinds, stream, Format.DEFLATED, comment, recordAllDurations, clock,
+        execStartTimeNanos);
+  }
+
+  /**
+   * Enable profiling, writing the profile data in the given format.
+   *
+   * @see #start(ProfiledTaskKinds, OutputStream, String, boolean, Clock, long)
+   */
+  public synchronized void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
+      Format format, String comment, boolean recordAllDurations, Clock clock,
+      long execStartTimeNanos) throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     taskStack = new TaskStack();
-    taskQueue = new ConcurrentLinkedQueue<>();
+    final Queue<TaskBuffer> buffers = new ConcurrentLinkedQueue<>();
+    taskBuffers = buffers;
+    taskBuffer = new ThreadLocal<TaskBuffer>() {
+      @Override
+      protected TaskBuffer initialValue() {
+        TaskBuffer buffer = new TaskBuffer();
+        buffers.add(buffer);
+        return buffer;
+      }
+    };
+    overflowQueue = new ConcurrentLinkedQueue<>();
     describer = new ObjectDescriber();
 
     this.profiledTaskKinds = profiledTaskKinds;
@@ -550,17 +650,27 @@ public final class Profiler {
       // the save() method. Values for buffer sizes were chosen by running small amount of tests
       // and identifying point of diminishing returns - but I have not really tried to optimize
       // them.
-      this.out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
-          stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
-
-      this.out.writeInt(MAGIC); // magic
-      this.out.writeInt(VERSION); // protocol_version
-      this.out.writeUTF(comment);
-      // ProfileTask.values() method sorts enums using their ordinal() value, so
-      // there there is no need to store ordinal() value for each entry.
-      this.out.writeInt(TASK_COUNT);
-      for (ProfilerTask type : ProfilerTask.values()) {
-        this.out.writeUTF(type.toString());
+      this.columnarWriter = null;
+      this.traceWriter = null;
+      if (format == Format.COLUMNAR) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 262144));
+        this.columnarWriter = new ColumnarProfileWriter(out, comment);
+      } else if (format == Format.TRACE_EVENTS) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 262144));
+        this.traceWriter = new TraceEventWriter(out, comment);
+      } else {
+        this.out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+            stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
+
+        this.out.writeInt(MAGIC); // magic
+        this.out.writeInt(VERSION); // protocol_version
+        this.out.writeUTF(comment);
+        // ProfileTask.values() method sorts enums using their ordinal() value, so
+        // there there is no need to store ordinal() value for each entry.
+        this.out.writeInt(TASK_COUNT);
+        for (ProfilerTask type : ProfilerTask.values()) {
+          this.out.writeUTF(type.toString());
+        }
       }
 
       // Start save thread
@@ -614,7 +724,15 @@ public final class Profiler {
       throw saveException;
     }
     if (out != null) {
-      out.writeInt(EOF_MARKER);
+      if (columnarWriter != null) {
+        columnarWriter.finish();
+        columnarWriter = null;
+      } else if (traceWriter != null) {
+        traceWriter.finish();
+        traceWriter = null;
+      } else {
+        out.writeInt(EOF_MARKER);
+      }
       out.close();
       out = null;
     }
@@ -632,7 +750,7 @@ public final class Profiler {
   }
 
   /**
-   * Saves all gathered information from taskQueue queue to the file.
+   * Saves all gathered information from the task buffers to the file.
    * Method is invoked internally by the Timer-based thread and at the end of
    * profiling session.
    */
@@ -643,41 +761,27 @@ public final class Profiler {
     try {
       // Allocate the sink once to avoid GC
       ByteBuffer sink = ByteBuffer.allocate(1024);
-      while (!taskQueue.isEmpty()) {
-        sink.clear();
-        TaskData data = taskQueue.poll();
-
-        VarInt.putVarLong(data.threadId, sink);
-        VarInt.putVarInt(data.id, sink);
-        VarInt.putVarInt(data.parentId, sink);
-        VarInt.putVarLong(data.startTime - profileStartTime, sink);
-        VarInt.putVarLong(data.duration, sink);
-
-        // To save space (and improve performance), convert all description
-        // strings to the canonical object and use IdentityHashMap to assign
-        // unique numbers for each string.
-        int descIndex = describer.getDescriptionIndex(data.object);
-        VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
-
-        // Save types using their ordinal() value
-        sink.put((byte) data.type.ordinal());
-
-        // Save aggregated data stats.
-        if (data.counts != null) {
-          for (int i = 0; i < TASK_COUNT; i++) {
-            if (data.counts[i] > 0) {
-              sink.put((byte) i); // aggregated type ordinal value
-              VarInt.putVarInt(data.counts[i], sink);
-              VarInt.putVarLong(data.durations[i], sink);
-            }
-          }
+      for (Iterator<TaskBuffer> buffers = taskBuffers.iterator(); buffers.hasNext(); ) {
+        TaskBuffer buffer = buffers.next();
+        // A dead thread adds no more tasks, so its buffer can go once it is drained.
+        boolean alive = buffer.owner.isAlive();
+        if (traceWriter != null && !buffer.named) {
+          traceWriter.threadName(buffer.owner.getId(), buffer.owner.getName());
+          buffer.named = true;
         }
-
-        this.out.writeInt(sink.position());
-        this.out.write(sink.array(), 0, sink.position());
-        if (describer.isUnassigned(descIndex)) {
-          this.out.writeUTF(describer.getDescription(data.object));
+        TaskData data;
+        while ((data = buffer.poll()) != null) {
+          save(data, sink);
         }
+        if (!alive) {
+          buffers.remove();
+        }
+      }
+      while (!overflowQueue.isEmpty()) {
+        save(overflowQueue.poll(), sink);
+      }
+      if (columnarWriter != null) {
+        columnarWriter.flush();
       }
       this.out.flush();
     } catch (IOException e) {
@@ -691,6 +795,68 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Writes a single task record.
+   */
+  private void save(TaskData data, ByteBuffer sink) throws IOException {
+    if (traceWriter != null) {
+      // Descriptions are written inline, so the describer does not need to remember them.
+      String mnemonic =
+          (data.object instanceof HasMnemonic) ? ((HasMnemonic) data.object).getMnemonic() : null;
+      traceWriter.add(data.threadId, data.startTime - profileStartTime, data.duration, data.type,
+          toDescription(data.object), mnemonic, data.counts, data.durations);
+      return;
+    }
+    sink.clear();
+    if (columnarWriter == null) {
+      VarInt.putVarLong(data.threadId, sink);
+      VarInt.putVarInt(data.id, sink);
+      VarInt.putVarInt(data.parentId, sink);
+      VarInt.putVarLong(data.startTime - profileStartTime, sink);
+      VarInt.putVarLong(data.duration, sink);
+    }
+
+    // To save space (and improve performance), convert all description
+    // strings to the canonical object and use IdentityHashMap to assign
+    // unique numbers for each string.
+    int descIndex = describer.getDescriptionIndex(data.object);
+    if (columnarWriter == null) {
+      VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
+
+      // Save types using their ordinal() value
+      sink.put((byte) data.type.ordinal());
+    }
+
+    // Save aggregated data stats.
+    int statsStart = sink.position();
+    if (data.counts != null) {
+      for (int i = 0; i < TASK_COUNT; i++) {
+        if (data.counts[i] > 0) {
+          sink.put((byte) i); // aggregated type ordinal value
+          VarInt.putVarInt(data.counts[i], sink);
+          VarInt.putVarLong(data.durations[i], sink);
+        }
+      }
+    }
+
+    if (columnarWriter != null) {
+      String description = null;
+      if (describer.isUnassigned(descIndex)) {
+        description = describer.getDescription(data.object);
+        descIndex = describer.getDescriptionIndex(data.object);
+      }
+      columnarWriter.add(data.threadId, data.id, data.parentId,
+          data.startTime - profileStartTime, data.duration, data.type, descIndex, description,
+          sink.array(), statsStart, sink.position() - statsStart);
+      return;
+    }
+    this.out.writeInt(sink.position());
+    this.out.write(sink.array(), 0, sink.position());
+    if (describer.isUnassigned(descIndex)) {
+      this.out.writeUTF(describer.getDescription(data.object));
+    }
+  }
+
   private synchronized void clear() {
     initHistograms();
     profileStartTime = 0L;
@@ -699,7 +865,9 @@ public final class Profiler {
       timer = null;
     }
     taskStack = null;
-    taskQueue = null;
+    taskBuffer = null;
+    taskBuffers = null;
+    overflowQueue = null;
     describer = null;
 
     // Note that slowest task aggregator are not cleared here because clearing happens
@@ -714,6 +882,15 @@ public final class Profiler {
     return (recordAllDurations || duration >= type.minDuration);
   }
 
+  /**
+   * Queues a completed task for the next save.
+   */
+  private void queue(TaskData data) {
+    if (!taskBuffer.get().offer(data)) {
+      overflowQueue.add(data);
+    }
+  }
+
   /**
    * Adds task directly to the main queue bypassing task stack. Used for simple
    * tasks that are known to not have any subtasks.
@@ -741,7 +918,7 @@ public final class Profiler {
       TaskData data = taskStack.create(startTime, type, object);
       data.duration = duration;
       if (out != null) {
-        taskQueue.add(data);
+        queue(data);
       }
 
       SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
@@ -865,7 +1042,7 @@ public final class Profiler {
       }
       boolean shouldRecordTask = wasTaskSlowEnoughToRecord(type, data.duration);
       if (out != null && (shouldRecordTask || data.counts != null)) {
-        taskQueue.add(data);
+        queue(data);
       }
 
       if (shouldRecordTask) {
@@ -882,13 +1059,27 @@ public final class Profiler {
    * Convenience method to log phase marker tasks.
    */
   public void markPhase(ProfilePhase phase) {
-    MemoryProfiler.instance().markPhase(phase);
+    AllocationTracker.Summary allocations = AllocationTracker.instance().finishPhase();
+    MemoryProfiler.instance().markPhase(phase, allocations);
     if (isActive() && isProfiling(ProfilerTask.PHASE)) {
       Preconditions.checkState(taskStack.isEmpty(), "Phase tasks must not be nested");
+      logAllocations("SkyFunction", allocations.getBytesByKey());
+      logAllocations("target kind", allocations.getBytesByDetail());
       logEvent(ProfilerTask.PHASE, phase.description);
     }
   }
 
+  /**
+   * Logs the largest allocations of the phase that ends as INFO events, before its end marker.
+   */
+  private void logAllocations(String kind, Map<String, Long> bytesByKey) {
+    for (Map.Entry<String, Long> entry :
+        Iterables.limit(bytesByKey.entrySet(), ALLOCATIONS_PER_PHASE)) {
+      logEvent(ProfilerTask.INFO,
+          "Allocated by " + kind + " " + entry.getKey() + ": " + entry.getValue() + " bytes");
+    }
+  }
+
   /**
    * Convenience method to log spawn tasks.
    *
@@ -90,6 +90,12 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  SANDBOX_SETUP("sandbox setup", -1, 0x996699, 0),
+  SANDBOX_EXECUTION("sandboxed process execution", -1, 0xCCCCCC, 0),
+  SANDBOX_TEARDOWN("sandbox teardown", -1, 0x669966, 0),
+  SKYFUNCTION_RESTART("skyfunction restart", -1, 0xCC9966, 0),
+  PACKAGE_RESTART_REUSE("package work reused on restart", -1, 0x99CC66, 0),
+  GC_PAUSE("garbage collection", -1, 0x996666, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
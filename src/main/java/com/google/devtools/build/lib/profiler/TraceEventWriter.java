@@ -0,0 +1,171 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes profile data in the JSON trace event format selected by {@link
+ * Profiler.Format#TRACE_EVENTS}, which trace viewers such as chrome://tracing can load.
+ *
+ * <p>The file is a JSON array with one object per event. Each task becomes a complete event
+ * ({@code "ph":"X"}) on the thread that ran it, so viewers nest the tasks of a thread by their
+ * times; tasks without duration become instant events, and phase markers are global instant
+ * events. Times are in microseconds since the start of the profile.
+ *
+ * <p>Events are written as the profiler saves them, and the writer keeps no state per task, so
+ * its memory does not grow with the length of the build. Viewers accept an array without the
+ * closing bracket, so the file can be opened while the build is still running.
+ */
+//@ThreadCompatible - commented out to avoid cyclic dependency with lib.util.
+final class TraceEventWriter {
+  // Trace viewers group threads by process; all of them belong to this one.
+  private static final int PID = 1;
+
+  private final OutputStream out;
+  private final StringBuilder event = new StringBuilder(512);
+  private boolean first = true;
+
+  /** Writes the start of the array and names the process after the comment. */
+  TraceEventWriter(OutputStream out, String comment) throws IOException {
+    this.out = out;
+    out.write('[');
+    writeMetadata("process_name", 0, comment);
+  }
+
+  /** Names the thread with the given id in the viewer. */
+  void threadName(long threadId, String name) throws IOException {
+    writeMetadata("thread_name", threadId, name);
+  }
+
+  private void writeMetadata(String type, long threadId, String name) throws IOException {
+    startEvent();
+    event.append("\"name\":");
+    appendString(type);
+    event.append(",\"ph\":\"M\",\"pid\":").append(PID).append(",\"tid\":").append(threadId)
+        .append(",\"args\":{\"name\":");
+    appendString(name);
+    event.append("}}");
+    writeEvent();
+  }
+
+  /**
+   * Writes one task.
+   *
+   * @param startTime start time in ns, relative to the Profiler.start() invocation
+   * @param mnemonic the kind of the task object, or null; used as the event name if present
+   * @param counts the number of aggregated subtasks per ProfilerTask type, or null
+   * @param durations the duration of aggregated subtasks per ProfilerTask type, or null
+   */
+  void add(long threadId, long startTime, long duration, ProfilerTask type, String description,
+      String mnemonic, int[] counts, long[] durations) throws IOException {
+    startEvent();
+    event.append("\"name\":");
+    appendString(mnemonic != null ? mnemonic : description);
+    event.append(",\"cat\":");
+    appendString(type.description);
+    if (duration > 0) {
+      event.append(",\"ph\":\"X\",\"ts\":");
+      appendMicros(startTime);
+      event.append(",\"dur\":");
+      appendMicros(duration);
+    } else {
+      event.append(",\"ph\":\"i\",\"s\":\"").append(type == ProfilerTask.PHASE ? 'g' : 't')
+          .append("\",\"ts\":");
+      appendMicros(startTime);
+    }
+    event.append(",\"pid\":").append(PID).append(",\"tid\":").append(threadId);
+    event.append(",\"args\":{\"type\":\"").append(type).append('"');
+    if (mnemonic != null) {
+      event.append(",\"description\":");
+      appendString(description);
+    }
+    if (counts != null) {
+      for (ProfilerTask child : ProfilerTask.values()) {
+        int index = child.ordinal();
+        if (counts[index] > 0) {
+          event.append(",\"").append(child).append("\":{\"count\":").append(counts[index])
+              .append(",\"dur\":");
+          appendMicros(durations[index]);
+          event.append('}');
+        }
+      }
+    }
+    event.append("}}");
+    writeEvent();
+  }
+
+  private void startEvent() {
+    event.setLength(0);
+    event.append(first ? "\n{" : ",\n{");
+    first = false;
+  }
+
+  private void writeEvent() throws IOException {
+    out.write(event.toString().getBytes(UTF_8));
+  }
+
+  private void appendMicros(long nanos) {
+    if (nanos < 0) {
+      event.append('-');
+      nanos = -nanos;
+    }
+    long fraction = nanos % 1000;
+    event.append(nanos / 1000).append('.');
+    if (fraction < 100) {
+      event.append(fraction < 10 ? "00" : "0");
+    }
+    event.append(fraction);
+  }
+
+  private void appendString(String value) {
+    event.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          event.append("\\\"");
+          break;
+        case '\\':
+          event.append("\\\\");
+          break;
+        case '\n':
+          event.append("\\n");
+          break;
+        case '\r':
+          event.append("\\r");
+          break;
+        case '\t':
+          event.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            event.append(String.format("\\u%04x", (int) c));
+          } else {
+            event.append(c);
+          }
+      }
+    }
+    event.append('"');
+  }
+
+  /** Writes the end of the array. Does not close the stream. */
+  void finish() throws IOException {
+    out.write("\n]\n".getBytes(UTF_8));
+    out.flush();
+  }
+}
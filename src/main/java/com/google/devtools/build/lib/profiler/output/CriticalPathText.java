@@ -97,6 +97,9 @@ public final class CriticalPathText extends TextPrinter {
    */
   public void printCriticalPaths() {
     CriticalPathEntry totalPath = criticalPathStats.getTotalPath();
+    if (totalPath == null) {
+      return;
+    }
     printCriticalPath("Critical path", totalPath);
     // In critical path components we do not record scheduling delay data so it does not make
     // sense to differentiate it.
@@ -224,7 +224,7 @@ public final class PhaseHtml extends HtmlPrinter {
    * print the total duration.
    */
   private void printVfsStatistics(PhaseVfsStatistics stats) {
-    if (vfsStatsLimit == 0 || stats.isEmpty()) {
+    if (vfsStatsLimit == 0 || stats == null || stats.isEmpty()) {
       return;
     }
 
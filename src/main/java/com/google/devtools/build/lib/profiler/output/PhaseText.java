@@ -26,6 +26,9 @@ import com.google.devtools.build.lib.util.TimeUtilities;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Output {@link PhaseSummaryStatistics}, {@link PhaseStatistics} and {@link PhaseVfsStatistics}
@@ -33,6 +36,17 @@ import java.util.EnumMap;
  */
 public final class PhaseText extends TextPrinter {
 
+  /** The parts of the output, which can be printed on their own. */
+  public enum Section {
+    /** The duration of each phase. */
+    SUMMARY,
+    /** The task statistics of each phase, including the execution phase. */
+    PHASES,
+    /** The timing breakdown and the critical paths of the execution phase. */
+    CRITICAL_PATH,
+  }
+
+  private final Set<Section> sections;
   private final PhaseSummaryStatistics phaseSummaryStats;
   private final EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics;
   private final Optional<CriticalPathStatistics> criticalPathStatistics;
@@ -49,25 +63,56 @@ public final class PhaseText extends TextPrinter {
       Optional<CriticalPathStatistics> critPathStats,
       int missingActionsCount,
       int vfsStatsLimit) {
+    this(
+        out,
+        EnumSet.allOf(Section.class),
+        phaseSummaryStats,
+        phaseStatistics,
+        critPathStats,
+        missingActionsCount,
+        vfsStatsLimit);
+  }
+
+  /**
+   * @param sections the sections to print; the statistics of the others may be empty
+   * @param vfsStatsLimit maximum number of VFS statistics to print, or -1 for no limit.
+   */
+  public PhaseText(
+      PrintStream out,
+      Set<Section> sections,
+      PhaseSummaryStatistics phaseSummaryStats,
+      EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics,
+      Optional<CriticalPathStatistics> critPathStats,
+      int missingActionsCount,
+      int vfsStatsLimit) {
     super(out);
+    this.sections = sections;
     this.phaseSummaryStats = phaseSummaryStats;
     this.phaseStatistics = phaseStatistics;
-    this.criticalPathStatistics = critPathStats;
+    this.criticalPathStatistics = sections.contains(Section.CRITICAL_PATH)
+        ? critPathStats
+        : Optional.<CriticalPathStatistics>absent();
     this.missingActionsCount = missingActionsCount;
     this.vfsStatsLimit = vfsStatsLimit;
   }
 
   public void print() {
-    printPhaseSummaryStatistics();
+    if (sections.contains(Section.SUMMARY)) {
+      printPhaseSummaryStatistics();
+    }
 
-    for (ProfilePhase phase :
-        Arrays.asList(ProfilePhase.INIT, ProfilePhase.LOAD, ProfilePhase.ANALYZE)) {
-      PhaseStatistics statistics = phaseStatistics.get(phase);
-      if (statistics.wasExecuted()) {
-        printPhaseStatistics(statistics);
+    if (sections.contains(Section.PHASES)) {
+      for (ProfilePhase phase :
+          Arrays.asList(ProfilePhase.INIT, ProfilePhase.LOAD, ProfilePhase.ANALYZE)) {
+        PhaseStatistics statistics = phaseStatistics.get(phase);
+        if (statistics.wasExecuted()) {
+          printPhaseStatistics(statistics);
+        }
       }
+      printExecutionPhaseStatistics();
+    } else {
+      printCriticalPathStatistics();
     }
-    printExecutionPhaseStatistics();
   }
 
   /**
@@ -107,6 +152,10 @@ public final class PhaseText extends TextPrinter {
     if (!stats.isEmpty()) {
       printTimingDistribution(stats);
       printLn();
+      if (!stats.getSkyFunctionRestarts().isEmpty()) {
+        printSkyFunctionRestarts(stats);
+        printLn();
+      }
       if (vfsStatsLimit != 0) {
         printVfsStatistics(stats.getVfsStatistics());
         printLn();
@@ -124,7 +173,7 @@ public final class PhaseText extends TextPrinter {
     lnPrint("=== EXECUTION PHASE INFORMATION ===\n");
 
     long graphTime = execPhase.getTotalDurationNanos(ProfilerTask.ACTION_GRAPH);
-    long execTime = execPhase.getPhaseDurationNanos() - graphTime;
+    long execTime = getExecutionTime(execPhase);
 
     if (prepPhase.wasExecuted()) {
       lnPrintf(
@@ -177,6 +226,30 @@ public final class PhaseText extends TextPrinter {
     }
   }
 
+  /**
+   * Prints the critical path part of the execution phase information, for when the phase
+   * statistics are not printed.
+   */
+  private void printCriticalPathStatistics() {
+    PhaseStatistics execPhase = phaseStatistics.get(ProfilePhase.EXECUTE);
+    if (!execPhase.wasExecuted() || !criticalPathStatistics.isPresent()) {
+      return;
+    }
+    lnPrint("=== CRITICAL PATH INFORMATION ===\n");
+    CriticalPathText criticalPaths =
+        new CriticalPathText(out, criticalPathStatistics.get(), getExecutionTime(execPhase));
+    criticalPaths.printTimingBreakdown();
+    printLn();
+    criticalPaths.printCriticalPaths();
+    printLn();
+  }
+
+  /** Returns the duration of the execution phase without the action graph creation. */
+  private static long getExecutionTime(PhaseStatistics execPhase) {
+    return execPhase.getPhaseDurationNanos()
+        - execPhase.getTotalDurationNanos(ProfilerTask.ACTION_GRAPH);
+  }
+
   /**
    * Prints a table of task types and their relative total and average execution time as well as
    * how many tasks of each type there were
@@ -194,12 +267,27 @@ public final class PhaseText extends TextPrinter {
     }
   }
 
+  /**
+   * Prints how often the SkyFunctions of each type were restarted because of missing dependencies.
+   */
+  private void printSkyFunctionRestarts(PhaseStatistics stats) {
+    lnPrint("Skyframe restarts by function:");
+    lnPrintf("%30s %8s", "Function", "Restarts");
+    for (Map.Entry<String, Long> restarts : stats.getSkyFunctionRestarts().entrySet()) {
+      lnPrintf("%30s %8d", restarts.getKey(), restarts.getValue());
+    }
+  }
+
   /**
    * Print the time spent on VFS operations on each path. Output is grouped by operation and
    * sorted by descending duration. If multiple of the same VFS operation were logged for the same
    * path, print the total duration.
    */
   private void printVfsStatistics(PhaseVfsStatistics stats) {
+    if (stats == null) {
+      // Not available, for example from a columnar profile.
+      return;
+    }
     lnPrint("VFS path statistics:");
     lnPrintf("%15s %10s %10s %s", "Type", "Frequency", "Duration", "Path");
 
@@ -15,12 +15,14 @@ package com.google.devtools.build.lib.profiler.statistics;
 
 import com.google.common.base.Predicate;
 import com.google.devtools.build.lib.actions.MiddlemanAction;
+import com.google.devtools.build.lib.profiler.ColumnarProfile;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -120,6 +122,18 @@ public final class CriticalPathStatistics implements Iterable<Pair<String, Doubl
     criticalPathDurations = getCriticalPathDurations(info);
   }
 
+  /**
+   * Uses the critical path recorded in a {@link ColumnarProfile}. Since that path is already
+   * analyzed, there are no scheduling delays or filtered paths.
+   */
+  public CriticalPathStatistics(ColumnarProfile profile) throws IOException {
+    totalPath = profile.getCriticalPath();
+    optimalPath = totalPath;
+    workerWaitTime = 0;
+    mainThreadWaitTime = 0;
+    criticalPathDurations = Collections.emptyList();
+  }
+
   /**
    * @return the critical path obtained by not filtering out any {@link ProfilerTask}
    */
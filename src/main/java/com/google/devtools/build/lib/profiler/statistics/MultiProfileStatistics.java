@@ -13,20 +13,32 @@
 // limitations under the License.
 package com.google.devtools.build.lib.profiler.statistics;
 
+import com.google.devtools.build.lib.profiler.ColumnarProfile;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
 
 /**
  * Builds and aggregates statistics for multiple profile files.
+ *
+ * <p>The files are loaded and analyzed in parallel, each in its own fork-join task, and their
+ * statistics are added to the aggregated ones as each file is done. A file's tasks are only kept
+ * until then. Files in the deflated format are fully loaded, so a semaphore bounds how many of
+ * them are in memory at once.
  */
 public final class MultiProfileStatistics implements Iterable<Path> {
   private final PhaseSummaryStatistics summaryStatistics;
@@ -38,19 +50,33 @@ public final class MultiProfileStatistics implements Iterable<Path> {
   private boolean generateVfsStatistics;
 
   public MultiProfileStatistics(
-      Path workingDirectory,
-      String workSpaceName,
+      final Path workingDirectory,
+      final String workSpaceName,
       List<String> files,
-      InfoListener listener,
-      boolean generateVfsStatistics) {
+      final InfoListener listener,
+      boolean generateVfsStatistics,
+      ForkJoinPool pool,
+      final Semaphore fullLoads) {
     summaryStatistics = new PhaseSummaryStatistics();
     summaryPhaseStatistics = new EnumMap<>(ProfilePhase.class);
     filePhaseStatistics = new HashMap<>();
     skylarkStatistics = new SkylarkStatistics();
     this.generateVfsStatistics = generateVfsStatistics;
-    for (String file : files) {
-      loadProfileFile(workingDirectory, workSpaceName, file, listener);
+    final List<RecursiveAction> loads = new ArrayList<>();
+    for (final String file : files) {
+      loads.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          loadProfileFile(workingDirectory, workSpaceName, file, listener, fullLoads);
+        }
+      });
     }
+    pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(loads);
+      }
+    });
   }
 
   public PhaseSummaryStatistics getSummaryStatistics() {
@@ -83,12 +109,36 @@ public final class MultiProfileStatistics implements Iterable<Path> {
   }
 
   /**
-   * Loads a single profile file and adds the statistics to the previously collected ones.
+   * Loads a single profile file and adds the statistics to the previously collected ones. Called
+   * concurrently for different files.
    */
   private void loadProfileFile(
-      Path workingDirectory, String workSpaceName, String file, InfoListener listener) {
-    ProfileInfo info;
+      Path workingDirectory,
+      String workSpaceName,
+      String file,
+      InfoListener listener,
+      Semaphore fullLoads) {
     Path profileFile = workingDirectory.getRelative(file);
+    try {
+      if (ColumnarProfile.isColumnarProfile(profileFile)) {
+        loadColumnarProfileFile(profileFile, listener);
+        return;
+      }
+    } catch (IOException e) {
+      listener.warn("Ignoring file " + file + " - cannot load: " + e.getMessage());
+      return;
+    }
+    fullLoads.acquireUninterruptibly();
+    try {
+      loadDeflatedProfileFile(workSpaceName, file, profileFile, listener);
+    } finally {
+      fullLoads.release();
+    }
+  }
+
+  private void loadDeflatedProfileFile(
+      String workSpaceName, String file, Path profileFile, InfoListener listener) {
+    ProfileInfo info;
     try {
       info = ProfileInfo.loadProfileVerbosely(profileFile, listener);
       ProfileInfo.aggregateProfile(info, listener);
@@ -97,28 +147,64 @@ public final class MultiProfileStatistics implements Iterable<Path> {
       return;
     }
 
-    summaryStatistics.addProfileInfo(info);
+    ProfileStatistics statistics = ProfileStatistics.create(info, workSpaceName,
+        generateVfsStatistics, EnumSet.allOf(ProfilePhase.class), false);
+    // Collects the Skylark function tasks before taking the lock.
+    info.getSkylarkUserFunctionTasks();
 
-    EnumMap<ProfilePhase, PhaseStatistics> fileStatistics = new EnumMap<>(ProfilePhase.class);
-    filePhaseStatistics.put(profileFile, fileStatistics);
+    synchronized (this) {
+      summaryStatistics.addProfileInfo(info);
+      addFileStatistics(profileFile, statistics);
+      skylarkStatistics.addProfileInfo(info);
+      missingActionsCount += statistics.getMissingActionsCount();
+    }
+  }
 
-    for (ProfilePhase phase : ProfilePhase.values()) {
-      PhaseStatistics filePhaseStat =
-          new PhaseStatistics(phase, info, workSpaceName, generateVfsStatistics);
-      fileStatistics.put(phase, filePhaseStat);
-
-      PhaseStatistics summaryPhaseStats;
-      if (summaryPhaseStatistics.containsKey(phase)) {
-        summaryPhaseStats = summaryPhaseStatistics.get(phase);
-      } else {
-        summaryPhaseStats = new PhaseStatistics(phase, generateVfsStatistics);
-        summaryPhaseStatistics.put(phase, summaryPhaseStats);
-      }
-      summaryPhaseStats.add(filePhaseStat);
+  /**
+   * Adds the statistics of a profile in the columnar format, which only materializes the Skylark
+   * function tasks. There are no VFS statistics or missing actions for these profiles.
+   */
+  private void loadColumnarProfileFile(Path profileFile, InfoListener listener)
+      throws IOException {
+    listener.info("Loading " + profileFile.getPathString());
+    ColumnarProfile profile = ColumnarProfile.load(profileFile);
+    if (profile.isCorruptedOrIncomplete()) {
+      listener.warn("Profile file is incomplete or corrupted - not all records were parsed");
+    }
+    listener.info(profile.getComment() + ", " + profile.getTaskCount() + " record(s)");
+
+    ProfileStatistics statistics =
+        ProfileStatistics.create(profile, EnumSet.allOf(ProfilePhase.class), false);
+    ProfileInfo skylarkInfo = profile.toProfileInfo(EnumSet.of(
+        ProfilerTask.SKYLARK_USER_FN,
+        ProfilerTask.SKYLARK_USER_COMPILED_FN,
+        ProfilerTask.SKYLARK_BUILTIN_FN));
+    skylarkInfo.getSkylarkUserFunctionTasks();
+
+    synchronized (this) {
+      summaryStatistics.addProfile(profile);
+      addFileStatistics(profileFile, statistics);
+      skylarkStatistics.addProfileInfo(skylarkInfo);
     }
+  }
 
-    skylarkStatistics.addProfileInfo(info);
+  private void addFileStatistics(Path profileFile, ProfileStatistics statistics) {
+    EnumMap<ProfilePhase, PhaseStatistics> fileStatistics = statistics.getPhaseStatistics();
+    filePhaseStatistics.put(profileFile, fileStatistics);
+    for (PhaseStatistics filePhaseStat : fileStatistics.values()) {
+      addPhaseStatistics(filePhaseStat);
+    }
+  }
 
-    missingActionsCount += info.getMissingActionsCount();
+  private void addPhaseStatistics(PhaseStatistics filePhaseStat) {
+    ProfilePhase phase = filePhaseStat.getProfilePhase();
+    PhaseStatistics summaryPhaseStats;
+    if (summaryPhaseStatistics.containsKey(phase)) {
+      summaryPhaseStats = summaryPhaseStatistics.get(phase);
+    } else {
+      summaryPhaseStats = new PhaseStatistics(phase, generateVfsStatistics);
+      summaryPhaseStatistics.put(phase, summaryPhaseStats);
+    }
+    summaryPhaseStats.add(filePhaseStat);
   }
 }
@@ -15,6 +15,8 @@ package com.google.devtools.build.lib.profiler.statistics;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterators;
+import com.google.devtools.build.lib.profiler.ColumnarProfile;
+import com.google.devtools.build.lib.profiler.ColumnarProfile.PhaseTotals;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.AggregateAttr;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
@@ -22,9 +24,13 @@ import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Extracts and keeps statistics for one {@link ProfilePhase} for formatting to various outputs.
@@ -37,6 +43,8 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
   private final EnumMap<ProfilerTask, Long> taskDurations;
   private final EnumMap<ProfilerTask, Long> taskCounts;
   private final PhaseVfsStatistics vfsStatistics;
+  // The number of Skyframe restarts by SkyFunction name.
+  private final Map<String, Long> skyFunctionRestarts = new TreeMap<>();
   private boolean wasExecuted;
   private int count;
 
@@ -84,10 +92,48 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
         add(taskCounts, type, count);
         add(taskDurations, type, totalTime);
       }
+      for (Task task : taskList) {
+        addSkyFunctionRestarts(task);
+      }
       count++;
     }
   }
 
+  public PhaseStatistics(ProfilePhase phase, ColumnarProfile profile) throws IOException {
+    this(phase, false);
+    addProfile(profile);
+  }
+
+  /**
+   * Add statistics from a {@link ColumnarProfile} to the ones already accumulated for this phase.
+   * VFS statistics are not available from columnar profiles.
+   */
+  public void addProfile(ColumnarProfile profile) throws IOException {
+    if (profile.hasPhase(phase)) {
+      wasExecuted = true;
+      phaseDurationNanos += profile.getPhaseDuration(phase);
+      PhaseTotals totals = profile.getPhaseTotals(phase);
+      totalDurationNanos += totals.getTotalDuration();
+      for (ProfilerTask type : ProfilerTask.values()) {
+        add(taskCounts, type, totals.getCount(type));
+        add(taskDurations, type, totals.getTotalTime(type));
+      }
+      for (Map.Entry<String, Long> restarts : totals.getSkyFunctionRestarts().entrySet()) {
+        add(skyFunctionRestarts, restarts.getKey(), restarts.getValue());
+      }
+      count++;
+    }
+  }
+
+  private void addSkyFunctionRestarts(Task task) {
+    if (task.type == ProfilerTask.SKYFUNCTION_RESTART) {
+      add(skyFunctionRestarts, task.getDescription(), 1);
+    }
+    for (Task subtask : task.subtasks) {
+      addSkyFunctionRestarts(subtask);
+    }
+  }
+
   /**
    * Add statistics accumulated in another PhaseStatistics object to this one.
    */
@@ -107,6 +153,9 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
         add(taskCounts, type, otherCount);
         add(taskDurations, type, otherDuration);
       }
+      for (Map.Entry<String, Long> restarts : other.skyFunctionRestarts.entrySet()) {
+        add(skyFunctionRestarts, restarts.getKey(), restarts.getValue());
+      }
       count++;
     }
   }
@@ -126,6 +175,14 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
     return vfsStatistics;
   }
 
+  /**
+   * @return how often the functions of each SkyFunction name were restarted in this phase because
+   *    of missing dependencies, sorted by name
+   */
+  public Map<String, Long> getSkyFunctionRestarts() {
+    return Collections.unmodifiableMap(skyFunctionRestarts);
+  }
+
   /**
    * @return true if no {@link ProfilerTask}s have been executed in this phase, false otherwise
    */
@@ -227,9 +284,9 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
   }
 
   /**
-   * Helper method to sum up long values within an {@link EnumMap}.
+   * Helper method to sum up long values within a {@link Map}.
    */
-  private static <T extends Enum<T>> void add(EnumMap<T, Long> map, T key, long value) {
+  private static <K> void add(Map<K, Long> map, K key, long value) {
     long previous;
     if (map.containsKey(key)) {
       previous = map.get(key);
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.profiler.statistics;
 
+import com.google.devtools.build.lib.profiler.ColumnarProfile;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
 
@@ -53,6 +54,19 @@ public final class PhaseSummaryStatistics implements Iterable<ProfilePhase> {
     }
   }
 
+  /**
+   * Add a summary of the {@link ProfilePhase}s durations from a {@link ColumnarProfile}.
+   */
+  public void addProfile(ColumnarProfile profile) {
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      if (profile.hasPhase(phase)) {
+        long phaseDuration = profile.getPhaseDuration(phase);
+        totalDurationNanos += phaseDuration;
+        durations.put(phase, phaseDuration);
+      }
+    }
+  }
+
   /**
    * @return whether the given {@link ProfilePhase} was executed
    */
@@ -0,0 +1,157 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.statistics;
+
+import com.google.common.base.Optional;
+import com.google.devtools.build.lib.profiler.ColumnarProfile;
+import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.ProfilePhase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Keeps the statistics of a single profile file: the {@link PhaseSummaryStatistics}, the
+ * {@link PhaseStatistics} of each phase and optionally the {@link CriticalPathStatistics}.
+ *
+ * <p>The statistics of a {@link ProfileInfo} are computed with fork-join tasks, in the pool of the
+ * calling thread or in the common pool: each phase and the critical path only read the aggregated
+ * profile, so they are independent of each other. Phases that are not requested get empty
+ * statistics.
+ */
+public final class ProfileStatistics {
+
+  private final PhaseSummaryStatistics summaryStatistics;
+  private final EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics;
+  private final Optional<CriticalPathStatistics> criticalPathStatistics;
+  private final int missingActionsCount;
+
+  private ProfileStatistics(
+      PhaseSummaryStatistics summaryStatistics,
+      EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics,
+      Optional<CriticalPathStatistics> criticalPathStatistics,
+      int missingActionsCount) {
+    this.summaryStatistics = summaryStatistics;
+    this.phaseStatistics = phaseStatistics;
+    this.criticalPathStatistics = criticalPathStatistics;
+    this.missingActionsCount = missingActionsCount;
+  }
+
+  /**
+   * Computes the statistics of an aggregated profile.
+   *
+   * @param phases the phases to compute the statistics of
+   * @param criticalPath whether to compute the critical path statistics
+   */
+  public static ProfileStatistics create(
+      final ProfileInfo info,
+      final String workSpaceName,
+      final boolean generateVfsStatistics,
+      Set<ProfilePhase> phases,
+      boolean criticalPath) {
+    RecursiveTask<CriticalPathStatistics> criticalPathTask = null;
+    if (criticalPath) {
+      criticalPathTask = new RecursiveTask<CriticalPathStatistics>() {
+        @Override
+        protected CriticalPathStatistics compute() {
+          return new CriticalPathStatistics(info);
+        }
+      };
+      criticalPathTask.fork();
+    }
+    List<RecursiveTask<PhaseStatistics>> phaseTasks = new ArrayList<>();
+    for (final ProfilePhase phase : phases) {
+      phaseTasks.add(new RecursiveTask<PhaseStatistics>() {
+        @Override
+        protected PhaseStatistics compute() {
+          return new PhaseStatistics(phase, info, workSpaceName, generateVfsStatistics);
+        }
+      });
+    }
+    ForkJoinTask.invokeAll(phaseTasks);
+
+    EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics =
+        emptyPhaseStatistics(generateVfsStatistics);
+    for (RecursiveTask<PhaseStatistics> phaseTask : phaseTasks) {
+      PhaseStatistics statistics = phaseTask.join();
+      phaseStatistics.put(statistics.getProfilePhase(), statistics);
+    }
+    return new ProfileStatistics(
+        new PhaseSummaryStatistics(info),
+        phaseStatistics,
+        criticalPathTask == null
+            ? Optional.<CriticalPathStatistics>absent()
+            : Optional.of(criticalPathTask.join()),
+        info.getMissingActionsCount());
+  }
+
+  /**
+   * Computes the statistics of a profile in the columnar format. Each phase only needs a scan of
+   * a few columns, so they are computed one after the other. There are no VFS statistics or
+   * missing actions for these profiles.
+   *
+   * @param phases the phases to compute the statistics of
+   * @param criticalPath whether to compute the critical path statistics
+   */
+  public static ProfileStatistics create(
+      ColumnarProfile profile, Set<ProfilePhase> phases, boolean criticalPath)
+      throws IOException {
+    PhaseSummaryStatistics summaryStatistics = new PhaseSummaryStatistics();
+    summaryStatistics.addProfile(profile);
+    EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics = emptyPhaseStatistics(false);
+    for (ProfilePhase phase : phases) {
+      phaseStatistics.put(phase, new PhaseStatistics(phase, profile));
+    }
+    return new ProfileStatistics(
+        summaryStatistics,
+        phaseStatistics,
+        criticalPath
+            ? Optional.of(new CriticalPathStatistics(profile))
+            : Optional.<CriticalPathStatistics>absent(),
+        0);
+  }
+
+  private static EnumMap<ProfilePhase, PhaseStatistics> emptyPhaseStatistics(
+      boolean generateVfsStatistics) {
+    EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics = new EnumMap<>(ProfilePhase.class);
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      phaseStatistics.put(phase, new PhaseStatistics(phase, generateVfsStatistics));
+    }
+    return phaseStatistics;
+  }
+
+  public PhaseSummaryStatistics getSummaryStatistics() {
+    return summaryStatistics;
+  }
+
+  public EnumMap<ProfilePhase, PhaseStatistics> getPhaseStatistics() {
+    return phaseStatistics;
+  }
+
+  public Optional<CriticalPathStatistics> getCriticalPathStatistics() {
+    return criticalPathStatistics;
+  }
+
+  /**
+   * Returns the number of actions in the action graph without instrumentation data.
+   */
+  public int getMissingActionsCount() {
+    return missingActionsCount;
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.query2.engine.Uniquifier;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Callback} that removes the elements it has already seen and passes the rest to the
+ * wrapped callback in batches of about {@code batchThreshold} elements, so that the results of a
+ * query are streamed instead of being kept in memory until the whole expression is evaluated.
+ */
+class BatchStreamedCallback<T> implements Callback<T> {
+
+  /** The default batch size used when evaluating query expressions. */
+  static final int DEFAULT_BATCH_THRESHOLD = 10000;
+
+  private final Callback<T> callback;
+  private final Uniquifier<T> uniquifier;
+  private List<T> pending = new ArrayList<>();
+  private final int batchThreshold;
+
+  BatchStreamedCallback(Callback<T> callback, int batchThreshold, Uniquifier<T> uniquifier) {
+    this.callback = callback;
+    this.batchThreshold = batchThreshold;
+    this.uniquifier = uniquifier;
+  }
+
+  @Override
+  public void process(Iterable<T> partialResult) throws QueryException, InterruptedException {
+    Preconditions.checkNotNull(pending, "Reuse of the callback is not allowed");
+    pending.addAll(uniquifier.unique(partialResult));
+    if (pending.size() >= batchThreshold) {
+      callback.process(pending);
+      pending = new ArrayList<>();
+    }
+  }
+
+  /** Passes the elements of the last, incomplete batch to the wrapped callback. */
+  void processLastPending() throws QueryException, InterruptedException {
+    if (!pending.isEmpty()) {
+      callback.process(pending);
+    }
+    pending = null;
+  }
+}
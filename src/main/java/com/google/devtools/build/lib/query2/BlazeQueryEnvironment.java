@@ -42,7 +42,6 @@ import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AbstractUniquifier;
-import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllCallback;
 import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -279,9 +278,10 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @Override
   public void eval(QueryExpression expr, Callback<Target> callback)
       throws QueryException, InterruptedException {
-    AggregateAllCallback<Target> aggregator = new AggregateAllCallback<>();
+    BatchStreamedCallback<Target> aggregator = new BatchStreamedCallback<>(callback,
+        BatchStreamedCallback.DEFAULT_BATCH_THRESHOLD, createUniquifier());
     expr.eval(this, aggregator);
-    callback.process(aggregator.getResult());
+    aggregator.processLastPending();
   }
 
   @Override
@@ -0,0 +1,145 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.graph.CompactDigraph;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cache of the results of whole queries, kept by the server across commands.
+ *
+ * <p>Entries are keyed by the text of the parsed query expression and the options it was
+ * evaluated with, and are only valid for one version of the package graph; when the version
+ * changes, all entries are dropped. Only successful results are stored, so there are no errors to
+ * report again. The total number of targets in the entries is bounded, and the least
+ * recently used entries are evicted first.
+ */
+@ThreadSafe
+public final class QueryResultCache {
+
+  /** The default maximum total number of targets in the entries. */
+  public static final int DEFAULT_MAX_TARGETS = 1000000;
+
+  /** A cached query result. */
+  public static final class Result {
+    private final List<Target> targets;
+    @Nullable private final CompactDigraph<Target> graph;
+
+    private Result(List<Target> targets, @Nullable CompactDigraph<Target> graph) {
+      this.targets = targets;
+      this.graph = graph;
+    }
+
+    /** A result of a query whose output is ordered, with the graph the order comes from. */
+    public static Result ordered(CompactDigraph<Target> graph) {
+      return new Result(graph.getLabels(), graph);
+    }
+
+    /** A result of a query whose output was streamed. */
+    public static Result unordered(Iterable<Target> targets) {
+      return new Result(ImmutableList.copyOf(targets), null);
+    }
+
+    public List<Target> getTargets() {
+      return targets;
+    }
+
+    /** Returns the graph of an ordered result, or null if it was streamed. */
+    @Nullable
+    public CompactDigraph<Target> getGraph() {
+      return graph;
+    }
+  }
+
+  private final int maxTargets;
+  private final LinkedHashMap<String, Result> entries =
+      new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/true);
+  private long version = -1;
+  private int size;
+  private long hits;
+  private long misses;
+
+  public QueryResultCache(int maxTargets) {
+    Preconditions.checkArgument(maxTargets >= 0);
+    this.maxTargets = maxTargets;
+  }
+
+  /**
+   * Returns the result stored for the given key at the given version of the package graph, or
+   * null if there is none.
+   */
+  @Nullable
+  public synchronized Result get(String key, long version) {
+    setVersion(version);
+    Result result = entries.get(key);
+    if (result == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return result;
+  }
+
+  /**
+   * Stores the result of the query with the given key, computed at the given version of the
+   * package graph. Results larger than the cache are not stored.
+   */
+  public synchronized void put(String key, long version, Result result) {
+    setVersion(version);
+    int resultSize = result.getTargets().size();
+    if (resultSize > maxTargets) {
+      return;
+    }
+    Result previous = entries.put(key, result);
+    size += resultSize - (previous == null ? 0 : previous.getTargets().size());
+    Iterator<Map.Entry<String, Result>> it = entries.entrySet().iterator();
+    while (size > maxTargets) {
+      size -= it.next().getValue().getTargets().size();
+      it.remove();
+    }
+  }
+
+  private void setVersion(long version) {
+    if (version != this.version) {
+      entries.clear();
+      size = 0;
+      this.version = version;
+    }
+  }
+
+  /** Returns the number of lookups that found a result. */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Returns the number of lookups that did not find a result. */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** Returns the number of stored results. */
+  public synchronized int size() {
+    return entries.size();
+  }
+}
@@ -13,10 +13,12 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
@@ -24,9 +26,15 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -84,6 +92,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -96,12 +109,27 @@ import javax.annotation.Nullable;
  */
 public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
 
+  /** The default number of keys that a thread reads from the graph and processes at a time. */
+  private static final int DEFAULT_SHARD_SIZE = 1000;
+
+  /** How long an idle thread of {@link #executor} is kept before it exits. */
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+
+  /** A computation over a shard of graph keys, run by {@link #runInShards}. */
+  private interface ShardProcessor {
+    void process(List<SkyKey> shard) throws QueryException, InterruptedException;
+  }
+
   private WalkableGraph graph;
+  // Runs parallel graph traversals. Shared by all queries evaluated by this environment; its
+  // threads exit when idle, so it is never shut down.
+  private final ListeningExecutorService executor;
 
   private ImmutableList<TargetPatternKey> universeTargetPatternKeys;
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
   private final int loadingPhaseThreads;
+  private int shardSize = DEFAULT_SHARD_SIZE;
   private final WalkableGraphFactory graphFactory;
   private final List<String> universeScope;
   private final String parserPrefix;
@@ -136,6 +164,11 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     this.parserPrefix = parserPrefix;
     Preconditions.checkState(!universeScope.isEmpty(),
         "No queries can be performed with an empty universe");
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(loadingPhaseThreads, loadingPhaseThreads,
+        IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("Sky query %d").setDaemon(true).build());
+    pool.allowCoreThreadTimeOut(true);
+    this.executor = MoreExecutors.listeningDecorator(pool);
   }
 
   private void init() throws InterruptedException {
@@ -201,10 +234,6 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     return makeTargetsMap(graph.getDirectDeps(makeTransitiveTraversalKeys(targets)));
   }
 
-  private Map<Target, Collection<Target>> getRawReverseDeps(Iterable<Target> targets) {
-    return makeTargetsMap(graph.getReverseDeps(makeTransitiveTraversalKeys(targets)));
-  }
-
   private Set<Label> getAllowedDeps(Rule rule) {
     Set<Label> allowedLabels = new HashSet<>(rule.getTransitions(dependencyFilter).values());
     allowedLabels.addAll(rule.getVisibility().getDependencyLabels());
@@ -236,33 +265,100 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     return result;
   }
 
+  /**
+   * Returns the reverse dependencies of the given targets.
+   *
+   * <p>This is called once per level of a reverse dependency search, so the targets are a whole
+   * frontier of the search, which may be large. The graph is read for a shard of the frontier at a
+   * time, and the parents are deduplicated before their dependencies are filtered, which is the
+   * expensive part; both steps run in parallel if the frontier has more than one shard.
+   */
   @Override
-  public Collection<Target> getReverseDeps(Iterable<Target> targets) {
-    Set<Target> result = CompactHashSet.create();
-    Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(targets);
-
-    CompactHashSet<Target> visited = CompactHashSet.create();
-
-    Set<Label> keys = CompactHashSet.create(Collections2.transform(rawReverseDeps.keySet(),
-        TARGET_LABEL_FUNCTION));
-    for (Collection<Target> parentCollection : rawReverseDeps.values()) {
-      for (Target parent : parentCollection) {
-        if (visited.add(parent)) {
-          if (parent instanceof Rule && dependencyFilter != Rule.ALL_DEPS) {
-            for (Label label : getAllowedDeps((Rule) parent)) {
-              if (keys.contains(label)) {
-                result.add(parent);
-              }
-            }
-          } else {
+  public Collection<Target> getReverseDeps(Iterable<Target> targets)
+      throws QueryException, InterruptedException {
+    targets = ImmutableList.copyOf(targets);
+    final Set<Label> keys = CompactHashSet.create();
+    Iterables.addAll(keys, Iterables.transform(targets, TARGET_LABEL_FUNCTION));
+    final Set<SkyKey> parentKeys = Sets.newConcurrentHashSet();
+    runInShards(makeTransitiveTraversalKeys(targets), new ShardProcessor() {
+      @Override
+      public void process(List<SkyKey> shard) {
+        for (Iterable<SkyKey> parents : graph.getReverseDeps(shard).values()) {
+          Iterables.addAll(parentKeys, parents);
+        }
+      }
+    });
+    final Set<Target> result = Sets.newConcurrentHashSet();
+    runInShards(parentKeys, new ShardProcessor() {
+      @Override
+      public void process(List<SkyKey> shard) {
+        for (Target parent : makeTargetsWithAssociations(shard).values()) {
+          if (isReverseDep(parent, keys)) {
             result.add(parent);
           }
         }
       }
-    }
+    });
     return result;
   }
 
+  /** Returns whether the edges of {@code parent} to the given labels survive the filter. */
+  private boolean isReverseDep(Target parent, Set<Label> labels) {
+    if (!(parent instanceof Rule) || dependencyFilter == Rule.ALL_DEPS) {
+      return true;
+    }
+    for (Label label : getAllowedDeps((Rule) parent)) {
+      if (labels.contains(label)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Applies {@code processor} to consecutive shards of {@code keys}, in parallel if there is more
+   * than one shard; the processor must be thread-safe. A {@link QueryException} or
+   * {@link InterruptedException} of a shard is rethrown as it is.
+   */
+  private void runInShards(Iterable<SkyKey> keys, final ShardProcessor processor)
+      throws QueryException, InterruptedException {
+    List<List<SkyKey>> shards = Lists.newArrayList(Iterables.partition(keys, shardSize));
+    if (shards.size() <= 1) {
+      for (List<SkyKey> shard : shards) {
+        processor.process(shard);
+      }
+      return;
+    }
+    List<ListenableFuture<Void>> futures = new ArrayList<>(shards.size());
+    for (final List<SkyKey> shard : shards) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws QueryException, InterruptedException {
+          processor.process(shard);
+          return null;
+        }
+      }));
+    }
+    try {
+      Futures.allAsList(futures).get();
+    } catch (InterruptedException e) {
+      for (ListenableFuture<Void> future : futures) {
+        future.cancel(/*mayInterruptIfRunning=*/true);
+      }
+      throw e;
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(
+          e.getCause(), QueryException.class, InterruptedException.class);
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  @VisibleForTesting
+  void setShardSize(int shardSize) {
+    Preconditions.checkArgument(shardSize > 0, shardSize);
+    this.shardSize = shardSize;
+  }
+
   @Override
   public Set<Target> getTransitiveClosure(Set<Target> targets) {
     Set<Target> visited = new HashSet<>();
@@ -306,8 +402,8 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
   public void eval(QueryExpression expr, Callback<Target> callback)
       throws QueryException, InterruptedException {
     // 10k is likely a good balance between using batch efficiently and not blowing up memory.
-    BatchStreamedCallback aggregator = new BatchStreamedCallback(callback, 10000,
-        createUniquifier());
+    BatchStreamedCallback<Target> aggregator = new BatchStreamedCallback<>(callback,
+        BatchStreamedCallback.DEFAULT_BATCH_THRESHOLD, createUniquifier());
     expr.eval(this, aggregator);
     aggregator.processLastPending();
   }
@@ -713,37 +809,4 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
         .add(new RBuildFilesFunction())
         .build();
   }
-
-  private static class BatchStreamedCallback implements Callback<Target> {
-
-    private final Callback<Target> callback;
-    private final Uniquifier<Target> uniquifier;
-    private List<Target> pending = new ArrayList<>();
-    private int batchThreshold;
-
-    private BatchStreamedCallback(Callback<Target> callback, int batchThreshold,
-        Uniquifier<Target> uniquifier) {
-      this.callback = callback;
-      this.batchThreshold = batchThreshold;
-      this.uniquifier = uniquifier;
-    }
-
-    @Override
-    public void process(Iterable<Target> partialResult)
-        throws QueryException, InterruptedException {
-      Preconditions.checkNotNull(pending, "Reuse of the callback is not allowed");
-      pending.addAll(uniquifier.unique(partialResult));
-      if (pending.size() >= batchThreshold) {
-        callback.process(pending);
-        pending = new ArrayList<>();
-      }
-    }
-
-    private void processLastPending() throws QueryException, InterruptedException {
-      if (!pending.isEmpty()) {
-        callback.process(pending);
-        pending = null;
-      }
-    }
-  }
 }
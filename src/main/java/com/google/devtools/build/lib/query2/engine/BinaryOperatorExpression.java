@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.query2.engine;
 
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.CompactHashSet;
 import com.google.devtools.build.lib.query2.engine.Lexer.TokenKind;
 import com.google.devtools.build.lib.util.Preconditions;
 
@@ -55,18 +56,38 @@ class BinaryOperatorExpression extends QueryExpression {
       }
       return;
     }
-    // We cannot do differences with partial results. So we fully evaluate the operands
-    Set<T> lhsValue = QueryUtil.evalAll(env, operands.get(0));
+    // We cannot do differences with partial results, so the left-hand operand is fully evaluated.
+    // The operands are still evaluated from left to right, so that with --keep_going errors are
+    // reported in the order of the operands. The right-hand operands are streamed into the
+    // left-hand set, so they are never kept in memory as a whole.
+    final Set<T> lhsValue = QueryUtil.evalAll(env, operands.get(0));
     for (int i = 1; i < operands.size(); i++) {
-      Set<T> rhsValue = QueryUtil.evalAll(env, operands.get(i));
       switch (operator) {
         case INTERSECT:
         case CARET:
-          lhsValue.retainAll(rhsValue);
+          final Set<T> intersection = CompactHashSet.create();
+          env.eval(operands.get(i), new Callback<T>() {
+            @Override
+            public void process(Iterable<T> partialResult) {
+              for (T element : partialResult) {
+                if (lhsValue.contains(element)) {
+                  intersection.add(element);
+                }
+              }
+            }
+          });
+          lhsValue.retainAll(intersection);
           break;
         case EXCEPT:
         case MINUS:
-          lhsValue.removeAll(rhsValue);
+          env.eval(operands.get(i), new Callback<T>() {
+            @Override
+            public void process(Iterable<T> partialResult) {
+              for (T element : partialResult) {
+                lhsValue.remove(element);
+              }
+            }
+          });
           break;
         case UNION:
         case PLUS:
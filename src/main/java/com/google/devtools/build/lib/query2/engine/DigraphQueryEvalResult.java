@@ -14,9 +14,12 @@
 
 package com.google.devtools.build.lib.query2.engine;
 
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.util.Set;
+
 /** {@link QueryEvalResult} along with a digraph giving the structure of the results. */
 public class DigraphQueryEvalResult<T> extends QueryEvalResult {
 
@@ -31,4 +34,12 @@ public class DigraphQueryEvalResult<T> extends QueryEvalResult {
   public Digraph<T> getGraph() {
     return graph;
   }
+
+  /**
+   * Returns the subgraph of the recorded graph induced by the given nodes, with an edge wherever
+   * the recorded graph has a path between them, in the compact form the output formatters use.
+   */
+  public CompactDigraph<T> extractSubgraph(Set<T> nodes) {
+    return CompactDigraph.subgraphOf(graph, nodes);
+  }
 }
@@ -62,9 +62,9 @@ class LetExpression extends QueryExpression {
     Set<T> varValue = QueryUtil.evalAll(env, varExpr);
     Set<T> prevValue = env.setVariable(varName, varValue);
     try {
-      // Same as varExpr. We cannot pass partial results to the parent without having
-      // a stack of variable contexts.
-      callback.process(QueryUtil.evalAll(env, bodyExpr));
+      // The body is streamed: the callbacks of the enclosing expressions only filter or collect
+      // the results and never evaluate expressions themselves, so they cannot observe the binding.
+      env.eval(bodyExpr, callback);
     } finally {
       env.setVariable(varName, prevValue); // restore
     }
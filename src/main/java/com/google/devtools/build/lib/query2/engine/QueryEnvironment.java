@@ -150,7 +150,7 @@ public interface QueryEnvironment<T> {
   Collection<T> getFwdDeps(Iterable<T> targets);
 
   /** Returns the direct reverse dependencies of the specified targets. */
-  Collection<T> getReverseDeps(Iterable<T> targets);
+  Collection<T> getReverseDeps(Iterable<T> targets) throws QueryException, InterruptedException;
 
   /**
    * Returns the forward transitive closure of all of the targets in
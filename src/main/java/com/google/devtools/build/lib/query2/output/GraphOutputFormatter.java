@@ -13,26 +13,23 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
-import com.google.common.collect.ImmutableSet;
+import com.google.common.base.Function;
 import com.google.common.collect.Ordering;
-import com.google.devtools.build.lib.collect.CollectionUtils;
-import com.google.devtools.build.lib.collect.EquivalenceRelation;
-import com.google.devtools.build.lib.graph.Digraph;
-import com.google.devtools.build.lib.graph.DotOutputVisitor;
-import com.google.devtools.build.lib.graph.LabelSerializer;
-import com.google.devtools.build.lib.graph.Node;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+
+import javax.annotation.Nullable;
 
 /**
  * An output formatter that prints the result as factored graph in AT&amp;T
@@ -48,7 +45,7 @@ class GraphOutputFormatter extends OutputFormatter {
   }
 
   @Override
-  public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+  public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
       AspectResolver aspectProvider) {
     this.graphNodeStringLimit = options.graphNodeStringLimit;
 
@@ -60,71 +57,121 @@ class GraphOutputFormatter extends OutputFormatter {
     }
   }
 
-  private void outputUnfactored(Digraph<Target> result, PrintWriter out, boolean sortLabels) {
-    result.visitNodesBeforeEdges(
-        new DotOutputVisitor<Target>(out, LABEL_STRINGIFIER) {
+  private void outputUnfactored(
+      CompactDigraph<Target> result, PrintWriter out, boolean sortLabels) {
+    outputGraph(result, out, sortLabels ? new TargetOrdering() : null,
+        new Function<Target, String>() {
           @Override
-          public void beginVisit() {
-            super.beginVisit();
-            // TODO(bazel-team): (2009) make this the default in Digraph.
-            out.println("  node [shape=box];");
+          public String apply(Target target) {
+            return target.getLabel().toString();
           }
-        },
-        sortLabels ? new TargetOrdering() : null);
+        });
   }
 
-  private static final Ordering<Node<Target>> NODE_COMPARATOR =
-      Ordering.from(new TargetOrdering()).onResultOf(EXTRACT_NODE_LABEL);
+  private static final Ordering<Target> TARGET_ORDERING = Ordering.from(new TargetOrdering());
 
-  private static final Comparator<Iterable<Node<Target>>> ITERABLE_COMPARATOR =
-      NODE_COMPARATOR.lexicographical();
+  private static final Comparator<Iterable<Target>> ITERABLE_COMPARATOR =
+      TARGET_ORDERING.lexicographical();
 
   /**
-   * Given {@code collectionOfUnorderedSets}, a collection of sets of nodes, returns a collection
-   * of sets with the same elements as {@code collectionOfUnorderedSets} but with a stable
-   * iteration order within each set given by the target ordering, and the collection ordered by the
-   * same induced order.
+   * Returns the classes of nodes that have the same predecessors and the same successors, as the
+   * number of the class of each node. If {@code sortLabels} is true, the labels of each class are
+   * sorted and the classes are numbered in the induced lexicographical order.
    */
-  private static Collection<Set<Node<Target>>> orderPartition(
-      Collection<Set<Node<Target>>> collectionOfUnorderedSets) {
-    List<Set<Node<Target>>> result = new ArrayList<>();
-    for (Set<Node<Target>> part : collectionOfUnorderedSets) {
-      List<Node<Target>> toSort = new ArrayList<>(part);
-      Collections.sort(toSort, NODE_COMPARATOR);
-      result.add(ImmutableSet.copyOf(toSort));
+  private static int[] partition(
+      CompactDigraph<Target> result, List<List<Target>> classes, boolean sortLabels) {
+    Map<Topology, Integer> classNumbers = new HashMap<>();
+    int[] classOf = new int[result.getNodeCount()];
+    for (int node = 0; node < result.getNodeCount(); node++) {
+      Topology topology = new Topology(result, node);
+      Integer number = classNumbers.get(topology);
+      if (number == null) {
+        number = classes.size();
+        classNumbers.put(topology, number);
+        classes.add(new ArrayList<Target>());
+      }
+      classOf[node] = number;
+      classes.get(number).add(result.getLabel(node));
+    }
+    if (!sortLabels) {
+      return classOf;
     }
-    Collections.sort(result, ITERABLE_COMPARATOR);
-    return result;
+    Integer[] order = new Integer[classes.size()];
+    for (int i = 0; i < order.length; i++) {
+      Collections.sort(classes.get(i), TARGET_ORDERING);
+      order[i] = i;
+    }
+    final List<List<Target>> unsorted = new ArrayList<>(classes);
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return ITERABLE_COMPARATOR.compare(unsorted.get(a), unsorted.get(b));
+      }
+    });
+    int[] newNumber = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      newNumber[order[i]] = i;
+      classes.set(i, unsorted.get(order[i]));
+    }
+    for (int node = 0; node < classOf.length; node++) {
+      classOf[node] = newNumber[classOf[node]];
+    }
+    return classOf;
   }
 
-  private void outputFactored(Digraph<Target> result, PrintWriter out, final boolean sortLabels) {
-    EquivalenceRelation<Node<Target>> equivalenceRelation = createEquivalenceRelation();
+  /** The predecessors and successors of a node, which are sorted by number. */
+  private static final class Topology {
+    private final int[] predecessors;
+    private final int[] successors;
+
+    Topology(CompactDigraph<?> graph, int node) {
+      predecessors = new int[graph.getPredecessorCount(node)];
+      for (int i = 0; i < predecessors.length; i++) {
+        predecessors[i] = graph.getPredecessor(node, i);
+      }
+      successors = new int[graph.getSuccessorCount(node)];
+      for (int i = 0; i < successors.length; i++) {
+        successors[i] = graph.getSuccessor(node, i);
+      }
+    }
 
-    Collection<Set<Node<Target>>> partition =
-        CollectionUtils.partition(result.getNodes(), equivalenceRelation);
-    if (sortLabels) {
-      partition = orderPartition(partition);
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Topology
+          && Arrays.equals(predecessors, ((Topology) o).predecessors)
+          && Arrays.equals(successors, ((Topology) o).successors);
     }
 
-    Digraph<Set<Node<Target>>> factoredGraph = result.createImageUnderPartition(partition);
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(predecessors) + Arrays.hashCode(successors);
+    }
+  }
+
+  private void outputFactored(CompactDigraph<Target> result, PrintWriter out,
+      final boolean sortLabels) {
+    List<List<Target>> classes = new ArrayList<>();
+    int[] classOf = partition(result, classes, sortLabels);
+    CompactDigraph<List<Target>> factoredGraph =
+        result.createImageUnderPartition(classOf, classes);
 
     // Concatenate the labels of all topologically-equivalent nodes.
-    LabelSerializer<Set<Node<Target>>> labelSerializer = new LabelSerializer<Set<Node<Target>>>() {
+    Function<List<Target>, String> labelSerializer = new Function<List<Target>, String>() {
       @Override
-      public String serialize(Node<Set<Node<Target>>> node) {
+      public String apply(List<Target> equivalentTargets) {
         int actualLimit = graphNodeStringLimit - RESERVED_LABEL_CHARS;
         boolean firstItem = true;
         StringBuilder buf = new StringBuilder();
         int count = 0;
-        for (Node<Target> eqNode : node.getLabel()) {
-          String labelString = eqNode.getLabel().getLabel().toString();
+        for (Target target : equivalentTargets) {
+          String labelString = target.getLabel().toString();
           if (!firstItem) {
             buf.append("\\n");
 
             // Use -1 to denote no limit, as it is easier than trying to pass MAX_INT on the cmdline
             if (graphNodeStringLimit != -1 && (buf.length() + labelString.length() > actualLimit)) {
               buf.append("...and ");
-              buf.append(node.getLabel().size() - count);
+              buf.append(equivalentTargets.size() - count);
               buf.append(" more items");
               break;
             }
@@ -138,61 +185,41 @@ class GraphOutputFormatter extends OutputFormatter {
       }
     };
 
-    factoredGraph.visitNodesBeforeEdges(
-        new DotOutputVisitor<Set<Node<Target>>>(out, labelSerializer) {
-          @Override
-          public void beginVisit() {
-            super.beginVisit();
-            // TODO(bazel-team): (2009) make this the default in Digraph.
-            out.println("  node [shape=box];");
-          }
-        },
-        sortLabels ? ITERABLE_COMPARATOR : null);
+    outputGraph(factoredGraph, out, sortLabels ? ITERABLE_COMPARATOR : null, labelSerializer);
   }
 
   /**
-   * Returns an equivalence relation for nodes in the specified graph.
-   *
-   * <p>Two nodes are considered equal iff they have equal topology (predecessors and successors).
-   *
-   * TODO(bazel-team): Make this a method of Digraph.
+   * Prints the graph in dot format, visiting the nodes in topological order, each one before the
+   * edges coming out of it. Ties among nodes are broken using the {@code comparator} if not null,
+   * and edges are printed in the order it specifies.
    */
-  private static <LABEL> EquivalenceRelation<Node<LABEL>> createEquivalenceRelation() {
-    return new EquivalenceRelation<Node<LABEL>>() {
-      @Override
-      public int compare(Node<LABEL> x, Node<LABEL> y) {
-        if (x == y) {
-          return 0;
-        }
-
-        if (x.numPredecessors() != y.numPredecessors()
-            || x.numSuccessors() != y.numSuccessors()) {
-          return -1;
-        }
-
-        Set<Node<LABEL>> xpred = new HashSet<>(x.getPredecessors());
-        Set<Node<LABEL>> ypred = new HashSet<>(y.getPredecessors());
-        if (!xpred.equals(ypred)) {
-          return -1;
-        }
-
-        Set<Node<LABEL>> xsucc = new HashSet<>(x.getSuccessors());
-        Set<Node<LABEL>> ysucc = new HashSet<>(y.getSuccessors());
-        if (!xsucc.equals(ysucc)) {
-          return -1;
-        }
-
-        return 0;
+  private static <T> void outputGraph(CompactDigraph<T> graph, PrintWriter out,
+      @Nullable Comparator<? super T> comparator, Function<T, String> labelSerializer) {
+    out.println("digraph mygraph {");
+    // TODO(bazel-team): (2009) make this the default in Digraph.
+    out.println("  node [shape=box];");
+    String[] names = new String[graph.getNodeCount()];
+    for (int node = 0; node < names.length; node++) {
+      names[node] = labelSerializer.apply(graph.getLabel(node));
+    }
+    List<T> successors = new ArrayList<>();
+    for (int node : graph.getTopologicalOrder(comparator)) {
+      out.println("\"" + names[node] + "\"");
+      successors.clear();
+      for (int i = 0; i < graph.getSuccessorCount(node); i++) {
+        successors.add(graph.getLabel(graph.getSuccessor(node, i)));
       }
-    };
+      if (comparator != null) {
+        Collections.sort(successors, comparator);
+      }
+      for (T successor : successors) {
+        out.println("\"" + names[node] + "\" -> \""
+            + names[graph.getNode(successor)] + "\"");
+      }
+    }
+    out.println("}");
+    out.flush();
   }
 
   private static final int RESERVED_LABEL_CHARS = "\\n...and 9999999 more items".length();
-
-  private static final LabelSerializer<Target> LABEL_STRINGIFIER = new LabelSerializer<Target>() {
-    @Override
-    public String serialize(Node<Target> node) {
-      return node.getLabel().getLabel().toString();
-    }
-  };
 }
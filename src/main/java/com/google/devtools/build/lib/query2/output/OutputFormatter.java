@@ -22,8 +22,7 @@ import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 import com.google.devtools.build.lib.events.Location;
-import com.google.devtools.build.lib.graph.Digraph;
-import com.google.devtools.build.lib.graph.Node;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.Rule;
@@ -42,15 +41,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
-import javax.annotation.Nullable;
-
 /**
  * Interface for classes which order, format and print the result of a Blaze
  * graph query.
@@ -83,14 +76,6 @@ public abstract class OutputFormatter implements Serializable {
     DEFAULT   // Rule class default
   }
 
-  public static final Function<Node<Target>, Target> EXTRACT_NODE_LABEL =
-      new Function<Node<Target>, Target>() {
-        @Override
-        public Target apply(Node<Target> input) {
-          return input.getLabel();
-        }
-      };
-
   /**
    * Converter from strings to OutputFormatter.Type.
    */
@@ -151,7 +136,7 @@ public abstract class OutputFormatter implements Serializable {
    * Format the result (a set of target nodes implicitly ordered according to
    * the graph maintained by the QueryEnvironment), and print it to "out".
    */
-  public abstract void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+  public abstract void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
       AspectResolver aspectProvider) throws IOException, InterruptedException;
 
   /**
@@ -179,16 +164,13 @@ public abstract class OutputFormatter implements Serializable {
   abstract static class AbstractUnorderedFormatter extends OutputFormatter
       implements StreamedFormatter {
     protected Iterable<Target> getOrderedTargets(
-        Digraph<Target> result, QueryOptions options) {
-      Iterable<Node<Target>> orderedResult =
-          options.orderOutput == OrderOutput.DEPS
-              ? result.getTopologicalOrder()
-              : result.getTopologicalOrder(new TargetOrdering());
-      return Iterables.transform(orderedResult, EXTRACT_NODE_LABEL);
+        CompactDigraph<Target> result, QueryOptions options) {
+      return result.getLabels(result.getTopologicalOrder(
+          options.orderOutput == OrderOutput.DEPS ? null : new TargetOrdering()));
     }
 
     @Override
-    public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
+    public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) throws IOException, InterruptedException {
       OutputFormatterCallback.processAllTargets(
           createStreamCallback(options, out, aspectResolver),
@@ -399,6 +381,43 @@ public abstract class OutputFormatter implements Serializable {
     }
   }
 
+  /**
+   * An output formatter that prints the labels of the nodes preceded by their rank number, in rank
+   * order. All nodes in a cycle are considered of equal rank; graphs may contain cycles because
+   * there are errors in BUILD files.
+   */
+  private abstract static class RankOutputFormatter extends OutputFormatter {
+
+    /** Returns the rank of each node of the graph. */
+    protected abstract int[] getRanks(CompactDigraph<Target> result);
+
+    @Override
+    public void output(QueryOptions options, CompactDigraph<Target> result, PrintStream out,
+        AspectResolver aspectResolver) {
+      int[] ranks = getRanks(result);
+      List<RankAndLabel> output = new ArrayList<>(ranks.length);
+      for (int node = 0; node < ranks.length; node++) {
+        output.add(new RankAndLabel(ranks[node], result.getLabel(node).getLabel()));
+      }
+      if (options.orderOutput == OrderOutput.FULL) {
+        // Use the natural order for RankAndLabels, which breaks ties alphabetically.
+        Collections.sort(output);
+      } else {
+        Collections.sort(
+            output,
+            new Comparator<RankAndLabel>() {
+              @Override
+              public int compare(RankAndLabel o1, RankAndLabel o2) {
+                return o1.rank - o2.rank;
+              }
+            });
+      }
+      for (RankAndLabel item : output) {
+        out.println(item);
+      }
+    }
+  }
+
   /**
    * An output formatter that prints the labels in minimum rank order, preceded by
    * their rank number.  "Roots" have rank 0, their direct prerequisites have
@@ -409,60 +428,15 @@ public abstract class OutputFormatter implements Serializable {
    * <p>If the result came from a <code>deps(x)</code> query, then the MINRANKs
    * correspond to the shortest path from x to each of its prerequisites.
    */
-  private static class MinrankOutputFormatter extends OutputFormatter {
+  private static class MinrankOutputFormatter extends RankOutputFormatter {
     @Override
     public String getName() {
       return "minrank";
     }
 
-    private static void outputToStreamOrSave(
-        int rank, Label label, PrintStream out, @Nullable List<RankAndLabel> toSave) {
-      if (toSave != null) {
-        toSave.add(new RankAndLabel(rank, label));
-      } else {
-        out.println(rank + " " + label);
-      }
-    }
-
     @Override
-    public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
-        AspectResolver aspectResolver) {
-      // getRoots() isn't defined for cyclic graphs, so in order to handle
-      // cycles correctly, we need work on the strong component graph, as
-      // cycles should be treated a "clump" of nodes all on the same rank.
-      // Graphs may contain cycles because there are errors in BUILD files.
-
-      List<RankAndLabel> outputToOrder =
-          options.orderOutput == OrderOutput.FULL ? new ArrayList<RankAndLabel>() : null;
-      Digraph<Set<Node<Target>>> scGraph = result.getStrongComponentGraph();
-      Set<Node<Set<Node<Target>>>> rankNodes = scGraph.getRoots();
-      Set<Node<Set<Node<Target>>>> seen = new HashSet<>();
-      seen.addAll(rankNodes);
-      for (int rank = 0; !rankNodes.isEmpty(); rank++) {
-        // Print out this rank:
-        for (Node<Set<Node<Target>>> xScc : rankNodes) {
-          for (Node<Target> x : xScc.getLabel()) {
-            outputToStreamOrSave(rank, x.getLabel().getLabel(), out, outputToOrder);
-          }
-        }
-
-        // Find the next rank:
-        Set<Node<Set<Node<Target>>>> nextRankNodes = new LinkedHashSet<>();
-        for (Node<Set<Node<Target>>> x : rankNodes) {
-          for (Node<Set<Node<Target>>> y : x.getSuccessors()) {
-            if (seen.add(y)) {
-              nextRankNodes.add(y);
-            }
-          }
-        }
-        rankNodes = nextRankNodes;
-      }
-      if (outputToOrder != null) {
-        Collections.sort(outputToOrder);
-        for (RankAndLabel item : outputToOrder) {
-          out.println(item);
-        }
-      }
+    protected int[] getRanks(CompactDigraph<Target> result) {
+      return result.getMinRanks();
     }
   }
 
@@ -477,64 +451,15 @@ public abstract class OutputFormatter implements Serializable {
    * <p>If the result came from a <code>deps(x)</code> query, then the MAXRANKs
    * correspond to the longest path from x to each of its prerequisites.
    */
-  private static class MaxrankOutputFormatter extends OutputFormatter {
+  private static class MaxrankOutputFormatter extends RankOutputFormatter {
     @Override
     public String getName() {
       return "maxrank";
     }
 
     @Override
-    public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
-        AspectResolver aspectResolver) {
-      // In order to handle cycles correctly, we need work on the strong
-      // component graph, as cycles should be treated a "clump" of nodes all on
-      // the same rank. Graphs may contain cycles because there are errors in BUILD files.
-
-      // Dynamic programming algorithm:
-      // rank(x) = max(rank(p)) + 1 foreach p in preds(x)
-      // TODO(bazel-team): Move to Digraph.
-      class DP {
-        final Map<Node<Set<Node<Target>>>, Integer> ranks = new HashMap<>();
-
-        int rank(Node<Set<Node<Target>>> node) {
-          Integer rank = ranks.get(node);
-          if (rank == null) {
-            int maxPredRank = -1;
-            for (Node<Set<Node<Target>>> p : node.getPredecessors()) {
-              maxPredRank = Math.max(maxPredRank, rank(p));
-            }
-            rank = maxPredRank + 1;
-            ranks.put(node, rank);
-          }
-          return rank;
-        }
-      }
-      DP dp = new DP();
-
-      // Now sort by rank...
-      List<RankAndLabel> output = new ArrayList<>();
-      for (Node<Set<Node<Target>>> x : result.getStrongComponentGraph().getNodes()) {
-        int rank = dp.rank(x);
-        for (Node<Target> y : x.getLabel()) {
-          output.add(new RankAndLabel(rank, y.getLabel().getLabel()));
-        }
-      }
-      if (options.orderOutput == OrderOutput.FULL) {
-        // Use the natural order for RankAndLabels, which breaks ties alphabetically.
-        Collections.sort(output);
-      } else {
-        Collections.sort(
-            output,
-            new Comparator<RankAndLabel>() {
-              @Override
-              public int compare(RankAndLabel o1, RankAndLabel o2) {
-                return o1.rank - o2.rank;
-              }
-            });
-      }
-      for (RankAndLabel item : output) {
-        out.println(item);
-      }
+    protected int[] getRanks(CompactDigraph<Target> result) {
+      return result.getMaxRanks();
     }
   }
 
@@ -23,7 +23,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.cmdline.Label;
-import com.google.devtools.build.lib.graph.Digraph;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.AttributeSerializer;
@@ -41,9 +41,9 @@ import com.google.devtools.build.lib.query2.output.AspectResolver.BuildFileDepen
 import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build;
-import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult.Builder;
 import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.util.BinaryPredicate;
+import com.google.protobuf.CodedOutputStream;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -57,6 +57,9 @@ import java.util.Set;
  * of a query result and outputs the proto bytes to the output print stream.
  * By taking the bytes and calling {@code mergeFrom()} on a
  * {@code Build.QueryResult} object the full result can be reconstructed.
+ * The targets are written one by one as they are computed, each one a
+ * length-delimited {@code target} field, so they can also be read as they
+ * come with a {@code CodedInputStream}.
  */
 public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
 
@@ -90,36 +93,42 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
 
     return new OutputFormatterCallback<Target>() {
 
-      private Builder queryResult;
+      private CodedOutputStream codedOut;
 
       @Override
       public void start() {
-        queryResult = Build.QueryResult.newBuilder();
+        codedOut = CodedOutputStream.newInstance(out);
       }
 
+      /**
+       * Writes each target as soon as it arrives, the same way {@code Build.QueryResult} writes
+       * its repeated target field, so that the output is a serialized {@code QueryResult} without
+       * the whole message ever being built.
+       */
       @Override
       protected void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
-
         for (Target target : partialResult) {
-          queryResult.addTarget(toTargetProtoBuffer(target));
+          codedOut.writeMessage(Build.QueryResult.TARGET_FIELD_NUMBER,
+              toTargetProtoBuffer(target));
         }
+        codedOut.flush();
       }
 
       @Override
       public void close() throws IOException {
-        queryResult.build().writeTo(out);
+        codedOut.flush();
       }
     };
   }
 
-  private static Iterable<Target> getSortedLabels(Digraph<Target> result) {
-    return Iterables.transform(
-        result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
+  private static Iterable<Target> getSortedLabels(CompactDigraph<Target> result) {
+    return result.getLabels(result.getTopologicalOrder(new TargetOrdering()));
   }
 
   @Override
-  protected Iterable<Target> getOrderedTargets(Digraph<Target> result, QueryOptions options) {
+  protected Iterable<Target> getOrderedTargets(
+      CompactDigraph<Target> result, QueryOptions options) {
     return options.orderOutput == OrderOutput.FULL ? getSortedLabels(result) : result.getLabels();
   }
 
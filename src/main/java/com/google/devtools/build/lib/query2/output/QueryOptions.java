@@ -225,6 +225,14 @@ public class QueryOptions extends OptionsBase {
   )
   public String queryFile;
 
+  @Option(name = "cache_query_results",
+      defaultValue = "false",
+      category = "query",
+      help = "If true, the server keeps the results of successful queries and reuses them for "
+          + "later identical queries with the same options, until any file or value that the "
+          + "server has loaded changes.")
+  public boolean cacheQueryResults;
+
   /**
    * Return the current options as a set of QueryEnvironment settings.
    */
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
@@ -34,6 +35,18 @@ public class QueryOutputUtils {
         && formatter instanceof StreamedFormatter;
   }
 
+  /**
+   * Returns the part of the graph of a query result that has only the given targets, for output
+   * in order.
+   */
+  // Ordered output is only computed from the results of BlazeQueryEnvironment, whose graph has
+  // targets as its nodes.
+  @SuppressWarnings("unchecked")
+  public static CompactDigraph<Target> extractSubgraph(
+      QueryEvalResult result, Set<Target> targets) {
+    return ((DigraphQueryEvalResult<Target>) result).extractSubgraph(targets);
+  }
+
   public static void output(QueryOptions queryOptions, QueryEvalResult result,
       Set<Target> targetsResult, OutputFormatter formatter, PrintStream outputStream,
       AspectResolver aspectResolver)
@@ -45,9 +58,8 @@ public class QueryOutputUtils {
      */
     boolean orderedResults = !shouldStreamResults(queryOptions, formatter);
     if (orderedResults) {
-      formatter.output(queryOptions,
-          ((DigraphQueryEvalResult<Target>) result).getGraph().extractSubgraph(targetsResult),
-          outputStream, aspectResolver);
+      formatter.output(queryOptions, extractSubgraph(result, targetsResult), outputStream,
+          aspectResolver);
     } else {
       OutputFormatterCallback.processAllTargets(((StreamedFormatter) formatter)
           .createStreamCallback(queryOptions, outputStream, aspectResolver), targetsResult);
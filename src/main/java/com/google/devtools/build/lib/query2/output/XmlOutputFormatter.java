@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.cmdline.Label;
@@ -36,6 +37,11 @@ import com.google.devtools.build.lib.util.Pair;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -51,7 +57,8 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
 /**
@@ -76,47 +83,89 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
     this.dependencyFilter = OutputFormatter.getDependencyFilter(options);
     return new OutputFormatterCallback<Target>() {
 
+      // Only used to create the elements of one target at a time.
       private Document doc;
-      private Element queryElem;
-
+      private TransformerHandler handler;
 
       @Override
-      public void start() {
+      public void start() throws IOException {
         try {
           DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
           doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
+          handler = ((SAXTransformerFactory) TransformerFactory.newInstance())
+              .newTransformerHandler();
+        } catch (ParserConfigurationException | TransformerFactoryConfigurationError
+            | TransformerException e) {
           // This shouldn't be possible: all the configuration is hard-coded.
           throw new IllegalStateException("XML output failed", e);
         }
-        doc.setXmlVersion("1.1");
-        queryElem = doc.createElement("query");
-        queryElem.setAttribute("version", "2");
-        doc.appendChild(queryElem);
+        Transformer transformer = handler.getTransformer();
+        transformer.setOutputProperty(OutputKeys.VERSION, "1.1");
+        transformer.setOutputProperty(OutputKeys.STANDALONE, "no");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        handler.setResult(new StreamResult(out));
+        try {
+          handler.startDocument();
+          AttributesImpl attributes = new AttributesImpl();
+          attributes.addAttribute("", "", "version", "CDATA", "2");
+          handler.startElement("", "", "query", attributes);
+        } catch (SAXException e) {
+          throw toIOException(e);
+        }
       }
 
       @Override
       protected void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
-        for (Target target : partialResult) {
-          queryElem.appendChild(createTargetElement(doc, target));
+        try {
+          for (Target target : partialResult) {
+            writeElement(handler, createTargetElement(doc, target));
+          }
+        } catch (SAXException e) {
+          throw toIOException(e);
         }
       }
 
       @Override
       public void close() throws IOException {
+        if (handler == null) {
+          return;
+        }
         try {
-          Transformer transformer = TransformerFactory.newInstance().newTransformer();
-          transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-          transformer.transform(new DOMSource(doc), new StreamResult(out));
-        } catch (TransformerFactoryConfigurationError | TransformerException e) {
-          // This shouldn't be possible: all the configuration is hard-coded.
-          throw new IllegalStateException("XML output failed", e);
+          handler.endElement("", "", "query");
+          handler.endDocument();
+        } catch (SAXException e) {
+          throw toIOException(e);
         }
       }
     };
   }
 
+  /**
+   * Writes an element and its children, which only have attributes, as SAX events, so that the
+   * output of each target is written as soon as it is created instead of at the end.
+   */
+  private static void writeElement(ContentHandler handler, Element elem) throws SAXException {
+    AttributesImpl attributes = new AttributesImpl();
+    NamedNodeMap attrs = elem.getAttributes();
+    for (int i = 0; i < attrs.getLength(); i++) {
+      Node attr = attrs.item(i);
+      attributes.addAttribute("", "", attr.getNodeName(), "CDATA", attr.getNodeValue());
+    }
+    handler.startElement("", "", elem.getTagName(), attributes);
+    for (Node child = elem.getFirstChild(); child != null; child = child.getNextSibling()) {
+      writeElement(handler, (Element) child);
+    }
+    handler.endElement("", "", elem.getTagName());
+  }
+
+  private static IOException toIOException(SAXException e) {
+    if (e.getException() instanceof IOException) {
+      return (IOException) e.getException();
+    }
+    return new IOException("XML output failed", e);
+  }
+
   /**
    * Creates and returns a new DOM tree for the specified build target.
    *
@@ -129,7 +178,8 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
    * - rule attributes are represented in the DOM structure.
    * @throws InterruptedException 
    */
-  private Element createTargetElement(Document doc, Target target)
+  @VisibleForTesting
+  Element createTargetElement(Document doc, Target target)
       throws InterruptedException {
     Element elem;
     if (target instanceof Rule) {
@@ -0,0 +1,73 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.remote.RemoteProtocol.BlobChunk;
+import com.google.protobuf.ByteString;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams the contents of files as {@link BlobChunk} messages, so that neither side of a transfer
+ * has to hold a whole file in memory.
+ */
+final class BlobChunks {
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private BlobChunks() {}
+
+  /** Writes everything that can be read from {@code in} as a sequence of chunks to {@code out}. */
+  static void write(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[CHUNK_SIZE];
+    while (true) {
+      int length = read(in, buffer);
+      BlobChunk.newBuilder()
+          .setData(ByteString.copyFrom(buffer, 0, length))
+          .setLast(length < buffer.length)
+          .build()
+          .writeDelimitedTo(out);
+      if (length < buffer.length) {
+        return;
+      }
+    }
+  }
+
+  /** Reads a sequence of chunks from {@code in} and writes their data to {@code out}. */
+  static void read(InputStream in, OutputStream out) throws IOException {
+    BlobChunk chunk;
+    do {
+      chunk = BlobChunk.parseDelimitedFrom(in);
+      if (chunk == null) {
+        throw new EOFException("connection closed in the middle of a blob");
+      }
+      chunk.getData().writeTo(out);
+    } while (!chunk.getLast());
+  }
+
+  /** Fills {@code buffer} unless the end of the stream is reached first. */
+  private static int read(InputStream in, byte[] buffer) throws IOException {
+    int length = 0;
+    while (length < buffer.length) {
+      int n = in.read(buffer, length, buffer.length - length);
+      if (n < 0) {
+        break;
+      }
+      length += n;
+    }
+    return length;
+  }
+}
@@ -0,0 +1,296 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.io.BaseEncoding;
+import com.google.devtools.build.lib.remote.RemoteProtocol.EnvironmentVariable;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FindMissingBlobsResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.Request;
+import com.google.devtools.build.lib.remote.RemoteProtocol.Response;
+import com.google.devtools.build.lib.shell.AbnormalTerminationException;
+import com.google.devtools.build.lib.shell.Command;
+import com.google.devtools.build.lib.shell.CommandException;
+import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A remote execution server that runs commands on the local machine.
+ *
+ * <p>It stores uploaded blobs in a directory and runs every command in a fresh execution root that
+ * is populated with copies of its inputs and deleted afterwards, so a command can only see what
+ * Blaze declared as its inputs. This makes it a stand-in for a real execution farm in tests, and a
+ * way to try out remote execution without one:
+ *
+ * <pre>
+ *   java ... LocalRemoteExecutionServer &lt;port&gt; &lt;work directory&gt;
+ *   blaze build --remote_executor=localhost:&lt;port&gt; --spawn_strategy=remote ...
+ * </pre>
+ */
+public final class LocalRemoteExecutionServer implements Closeable {
+
+  private final ServerSocket serverSocket;
+  private final Path blobDirectory;
+  private final Path execDirectory;
+  private final Path tmpDirectory;
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  private LocalRemoteExecutionServer(ServerSocket serverSocket, Path workDirectory) {
+    this.serverSocket = serverSocket;
+    this.blobDirectory = workDirectory.getChild("blobs");
+    this.execDirectory = workDirectory.getChild("exec");
+    this.tmpDirectory = workDirectory.getChild("tmp");
+  }
+
+  /**
+   * Starts a server that listens on the loopback interface.
+   *
+   * @param workDirectory where to keep blobs and execution roots
+   * @param port the port to listen on, or 0 to pick a free one
+   */
+  public static LocalRemoteExecutionServer start(Path workDirectory, int port)
+      throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    final LocalRemoteExecutionServer server =
+        new LocalRemoteExecutionServer(serverSocket, workDirectory);
+    FileSystemUtils.createDirectoryAndParents(server.blobDirectory);
+    FileSystemUtils.createDirectoryAndParents(server.execDirectory);
+    FileSystemUtils.createDirectoryAndParents(server.tmpDirectory);
+    server.threads.execute(new Runnable() {
+      @Override
+      public void run() {
+        server.acceptConnections();
+      }
+    });
+    return server;
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Stops accepting connections and closes the open ones. */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    threads.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return; // The server was closed.
+      }
+      threads.execute(new Runnable() {
+        @Override
+        public void run() {
+          try (Socket s = socket) {
+            serve(new BufferedInputStream(s.getInputStream()),
+                new BufferedOutputStream(s.getOutputStream()));
+          } catch (IOException e) {
+            // The client went away; it will retry on another connection if it still cares.
+          }
+        }
+      });
+    }
+  }
+
+  /** Answers the calls on one connection until the client closes it. */
+  private void serve(InputStream in, OutputStream out) throws IOException {
+    Request request;
+    while ((request = Request.parseDelimitedFrom(in)) != null) {
+      Response.Builder response = Response.newBuilder();
+      switch (request.getCallCase()) {
+        case FIND_MISSING_BLOBS:
+          FindMissingBlobsResponse.Builder missing = response.getFindMissingBlobsBuilder();
+          for (ByteString digest : request.getFindMissingBlobs().getDigestsList()) {
+            if (!getBlob(digest).exists()) {
+              missing.addMissingDigests(digest);
+            }
+          }
+          break;
+        case UPLOAD_BLOB:
+          uploadBlob(request.getUploadBlob().getDigest(), in, response);
+          break;
+        case EXECUTE:
+          try {
+            response.setExecute(execute(request.getExecute()));
+          } catch (IOException e) {
+            response.setError("execution failed on the server: " + e.getMessage());
+          }
+          break;
+        case DOWNLOAD_BLOB:
+          // The contents follow the response.
+          downloadBlob(request.getDownloadBlob().getDigest(), out);
+          out.flush();
+          continue;
+        default:
+          throw new SocketException("unknown call " + request.getCallCase());
+      }
+      response.build().writeDelimitedTo(out);
+      out.flush();
+    }
+  }
+
+  private void uploadBlob(ByteString digest, InputStream in, Response.Builder response)
+      throws IOException {
+    Path tmp = tmpDirectory.getChild(Integer.toString(nextId.getAndIncrement()));
+    try (OutputStream out = tmp.getOutputStream()) {
+      BlobChunks.read(in, out);
+    }
+    if (!ByteString.copyFrom(tmp.getMD5Digest()).equals(digest)) {
+      tmp.delete();
+      response.setError("contents do not match digest " + hex(digest));
+      return;
+    }
+    tmp.renameTo(getBlob(digest));
+  }
+
+  private void downloadBlob(ByteString digest, OutputStream out) throws IOException {
+    InputStream contents;
+    try {
+      contents = getBlob(digest).getInputStream();
+    } catch (IOException e) {
+      Response.newBuilder()
+          .setError("blob not found: " + hex(digest))
+          .build()
+          .writeDelimitedTo(out);
+      return;
+    }
+    try (InputStream in = contents) {
+      Response.getDefaultInstance().writeDelimitedTo(out);
+      BlobChunks.write(in, out);
+    }
+  }
+
+  private ExecuteResponse execute(ExecuteRequest request) throws IOException {
+    Path execRoot = execDirectory.getChild(Integer.toString(nextId.getAndIncrement()));
+    try {
+      FileSystemUtils.createDirectoryAndParents(execRoot);
+      for (FileEntry input : request.getInputsList()) {
+        Path target = resolve(execRoot, input.getPath());
+        FileSystemUtils.createDirectoryAndParents(target.getParentDirectory());
+        FileSystemUtils.copyFile(getBlob(input.getDigest()), target);
+        target.setExecutable(input.getExecutable());
+      }
+      for (String output : request.getOutputPathsList()) {
+        FileSystemUtils.createDirectoryAndParents(resolve(execRoot, output).getParentDirectory());
+      }
+
+      Map<String, String> environment = new HashMap<>();
+      for (EnvironmentVariable variable : request.getEnvironmentList()) {
+        environment.put(variable.getName(), variable.getValue());
+      }
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      Command command = new Command(
+          request.getArgumentsList().toArray(new String[0]), environment, execRoot.getPathFile());
+      TerminationStatus status;
+      try {
+        status = command.execute(Command.NO_INPUT, Command.NO_OBSERVER, stdout, stderr, true)
+            .getTerminationStatus();
+      } catch (AbnormalTerminationException e) {
+        status = e.getResult().getTerminationStatus();
+      } catch (CommandException e) {
+        throw new IOException(e.getMessage(), e);
+      }
+
+      ExecuteResponse.Builder response = ExecuteResponse.newBuilder()
+          .setExitCode(status.exited() ? status.getExitCode() : 128 + status.getTerminatingSignal())
+          .setStdout(ByteString.copyFrom(stdout.toByteArray()))
+          .setStderr(ByteString.copyFrom(stderr.toByteArray()));
+      for (String output : request.getOutputPathsList()) {
+        Path path = resolve(execRoot, output);
+        if (!path.isFile(Symlinks.NOFOLLOW)) {
+          continue;
+        }
+        ByteString digest = ByteString.copyFrom(path.getMD5Digest());
+        boolean executable = path.isExecutable();
+        Path blob = getBlob(digest);
+        if (!blob.exists()) {
+          path.renameTo(blob);
+        }
+        response.addOutputs(FileEntry.newBuilder()
+            .setPath(output)
+            .setDigest(digest)
+            .setExecutable(executable));
+      }
+      return response.build();
+    } finally {
+      if (execRoot.exists()) {
+        FileSystemUtils.deleteTree(execRoot);
+      }
+    }
+  }
+
+  /**
+   * Resolves a path sent by the client against the execution root of a request. Fails unless the
+   * path is relative and stays below the execution root.
+   */
+  private static Path resolve(Path execRoot, String path) throws IOException {
+    PathFragment fragment = new PathFragment(path).normalize();
+    if (fragment.isAbsolute() || fragment.segmentCount() == 0
+        || fragment.containsUplevelReferences()) {
+      throw new IOException("path '" + path + "' is not below the execution root");
+    }
+    return execRoot.getRelative(fragment);
+  }
+
+  private Path getBlob(ByteString digest) {
+    return blobDirectory.getChild(hex(digest));
+  }
+
+  private static String hex(ByteString digest) {
+    return BaseEncoding.base16().lowerCase().encode(digest.toByteArray());
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: LocalRemoteExecutionServer <port> <work directory>");
+      System.exit(2);
+    }
+    Path workDirectory = new JavaIoFileSystem().getPath(new File(args[1]).getAbsolutePath());
+    LocalRemoteExecutionServer server = start(workDirectory, Integer.parseInt(args[0]));
+    System.err.println("Listening on port " + server.getPort());
+  }
+}
@@ -0,0 +1,335 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.remote.RemoteProtocol.DownloadBlobRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FindMissingBlobsRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.Request;
+import com.google.devtools.build.lib.remote.RemoteProtocol.Response;
+import com.google.devtools.build.lib.remote.RemoteProtocol.UploadBlobRequest;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A client for a remote execution server that speaks the protocol in {@code remote_protocol.proto}.
+ *
+ * <p>Every call runs on a connection of its own, taken from a pool that grows to the number of
+ * concurrent calls, so the throughput of remote execution scales with the number of jobs rather
+ * than with the latency of a single connection. A connection on which a call failed is discarded.
+ *
+ * <p>Connecting and waiting for a reply are bounded by timeouts. The I/O of a call runs on a thread
+ * of the client, so that the calling thread can be interrupted: its connection is then closed,
+ * which aborts the I/O, and the call throws {@link InterruptedException}.
+ */
+@ThreadSafe
+public final class RemoteExecutionClient implements Closeable {
+
+  private static final class Connection implements Closeable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /** How many blobs {@link #uploadBlobs} uploads at the same time. */
+  private static final int MAX_CONCURRENT_UPLOADS = 16;
+
+  private final String host;
+  private final int port;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final Deque<Connection> idleConnections = new ArrayDeque<>();
+  private final ExecutorService ioExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setNameFormat("remote-execution-client-%d")
+          .setDaemon(true)
+          .build());
+  private boolean closed = false;
+
+  /**
+   * @param connectTimeoutMillis how long to wait for a connection to the server to be established
+   * @param readTimeoutMillis how long to wait for the server to send data, including the time it
+   *     takes to execute a command; 0 means forever
+   */
+  public RemoteExecutionClient(
+      String host, int port, int connectTimeoutMillis, int readTimeoutMillis) {
+    this.host = host;
+    this.port = port;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /** Returns the digests among {@code digests} whose blobs the server does not have. */
+  public ImmutableSet<ByteString> findMissingBlobs(Iterable<ByteString> digests)
+      throws IOException, InterruptedException {
+    Request request = Request.newBuilder()
+        .setFindMissingBlobs(FindMissingBlobsRequest.newBuilder().addAllDigests(digests))
+        .build();
+    return ImmutableSet.copyOf(
+        call(request, null, null).getFindMissingBlobs().getMissingDigestsList());
+  }
+
+  /** Uploads the contents of {@code file}, which must have the given digest. */
+  public void uploadBlob(ByteString digest, Path file) throws IOException, InterruptedException {
+    try (InputStream in = file.getInputStream()) {
+      call(uploadRequest(digest), in, null);
+    }
+  }
+
+  /**
+   * Uploads the given files, each of which must have the digest it is mapped to. Up to {@link
+   * #MAX_CONCURRENT_UPLOADS} files are uploaded at the same time, each on a connection of its own.
+   * If an upload fails, the ones still in progress are aborted.
+   */
+  public void uploadBlobs(Map<ByteString, Path> files) throws IOException, InterruptedException {
+    Deque<PendingCall> pending = new ArrayDeque<>();
+    Deque<InputStream> streams = new ArrayDeque<>();
+    boolean success = false;
+    try {
+      for (Map.Entry<ByteString, Path> file : files.entrySet()) {
+        if (pending.size() == MAX_CONCURRENT_UPLOADS) {
+          pending.removeFirst().get();
+          streams.removeFirst().close();
+        }
+        InputStream in = file.getValue().getInputStream();
+        streams.addLast(in);
+        pending.addLast(start(uploadRequest(file.getKey()), in, null));
+      }
+      while (!pending.isEmpty()) {
+        pending.removeFirst().get();
+        streams.removeFirst().close();
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        for (PendingCall call : pending) {
+          call.abort();
+        }
+      }
+      for (InputStream in : streams) {
+        in.close();
+      }
+    }
+  }
+
+  private static Request uploadRequest(ByteString digest) {
+    return Request.newBuilder()
+        .setUploadBlob(UploadBlobRequest.newBuilder().setDigest(digest))
+        .build();
+  }
+
+  /** Runs a command on the server, whose inputs must have been uploaded. */
+  public ExecuteResponse execute(ExecuteRequest executeRequest)
+      throws IOException, InterruptedException {
+    Request request = Request.newBuilder().setExecute(executeRequest).build();
+    return call(request, null, null).getExecute();
+  }
+
+  /**
+   * Downloads the blob with the given digest into {@code file}, which is replaced if it exists.
+   * The file is deleted again if the download fails.
+   */
+  public void downloadBlob(ByteString digest, Path file)
+      throws IOException, InterruptedException {
+    Request request = Request.newBuilder()
+        .setDownloadBlob(DownloadBlobRequest.newBuilder().setDigest(digest))
+        .build();
+    if (file.exists()) {
+      file.delete();
+    }
+    boolean success = false;
+    try (OutputStream out = file.getOutputStream()) {
+      call(request, null, out);
+      success = true;
+    } finally {
+      if (!success) {
+        file.delete();
+      }
+    }
+  }
+
+  /** Closes all idle connections; connections in use are closed when their call finishes. */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+    }
+    ioExecutor.shutdown();
+    Connection connection;
+    while ((connection = poll()) != null) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Makes a call on a pooled connection, or on a new one if none is idle.
+   *
+   * @param upload if not null, its contents are streamed to the server after the request
+   * @param download if not null, the contents streamed by the server after the response are
+   *     written to it
+   */
+  private Response call(Request request, @Nullable InputStream upload,
+      @Nullable OutputStream download) throws IOException, InterruptedException {
+    return start(request, upload, download).get();
+  }
+
+  /** A call whose I/O runs on a thread of the client. */
+  private final class PendingCall {
+    private final Socket socket;
+    private final Future<Response> future;
+
+    PendingCall(Socket socket, Future<Response> future) {
+      this.socket = socket;
+      this.future = future;
+    }
+
+    /**
+     * Waits for the call to finish and returns its response. If the current thread is interrupted,
+     * the call is aborted.
+     */
+    Response get() throws IOException, InterruptedException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        abort();
+        throw e;
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    /** Closes the connection of the call, which makes its I/O fail. */
+    void abort() throws IOException {
+      future.cancel(true);
+      socket.close();
+    }
+  }
+
+  /** Starts a call; see {@link #call}. */
+  private PendingCall start(final Request request, @Nullable final InputStream upload,
+      @Nullable final OutputStream download) throws IOException {
+    final Connection pooled = poll();
+    // Created here, so that it can be closed while the I/O thread is still connecting.
+    final Socket socket = pooled != null ? pooled.socket : new Socket();
+    try {
+      return new PendingCall(socket, ioExecutor.submit(new Callable<Response>() {
+        @Override
+        public Response call() throws IOException {
+          return exchange(pooled != null ? pooled : connect(socket), request, upload, download);
+        }
+      }));
+    } catch (RejectedExecutionException e) {
+      socket.close();
+      throw new IOException("the client of remote execution server " + host + ":" + port
+          + " was closed", e);
+    }
+  }
+
+  private Connection connect(Socket socket) throws IOException {
+    try {
+      socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+      socket.setSoTimeout(readTimeoutMillis);
+      return new Connection(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  private Response exchange(Connection connection, Request request,
+      @Nullable InputStream upload, @Nullable OutputStream download) throws IOException {
+    boolean reusable = false;
+    try {
+      request.writeDelimitedTo(connection.out);
+      if (upload != null) {
+        BlobChunks.write(upload, connection.out);
+      }
+      connection.out.flush();
+      Response response = Response.parseDelimitedFrom(connection.in);
+      if (response == null) {
+        throw new EOFException("remote execution server " + host + ":" + port
+            + " closed the connection");
+      }
+      if (!response.getError().isEmpty()) {
+        reusable = true;
+        throw new IOException(response.getError());
+      }
+      if (download != null) {
+        BlobChunks.read(connection.in, download);
+      }
+      reusable = true;
+      return response;
+    } finally {
+      if (!reusable || !offer(connection)) {
+        connection.close();
+      }
+    }
+  }
+
+  /** Returns an idle connection, skipping those that were closed by an interrupted call. */
+  @Nullable
+  private synchronized Connection poll() {
+    Connection connection;
+    do {
+      connection = idleConnections.pollFirst();
+    } while (connection != null && connection.socket.isClosed());
+    return connection;
+  }
+
+  private synchronized boolean offer(Connection connection) {
+    if (closed) {
+      return false;
+    }
+    idleConnections.addFirst(connection);
+    return true;
+  }
+}
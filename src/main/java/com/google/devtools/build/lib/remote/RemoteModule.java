@@ -0,0 +1,115 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.net.HostAndPort;
+import com.google.devtools.build.lib.actions.ActionContextProvider;
+import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.common.options.OptionsBase;
+
+import java.io.IOException;
+
+/**
+ * A module that adds the RemoteActionContextProvider to the available action context providers.
+ *
+ * <p>The client, and with it its pool of connections, is kept across builds as long as
+ * --remote_executor and the timeouts do not change.
+ */
+public class RemoteModule extends BlazeModule {
+  private HostAndPort remoteExecutor;
+  private int connectTimeout;
+  private int timeout;
+  private RemoteExecutionClient client;
+
+  private CommandEnvironment env;
+  private BuildRequest buildRequest;
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds()
+        ? ImmutableList.<Class<? extends OptionsBase>>of(RemoteOptions.class)
+        : ImmutableList.<Class<? extends OptionsBase>>of();
+  }
+
+  @Override
+  public void beforeCommand(Command command, CommandEnvironment env) {
+    this.env = env;
+    env.getEventBus().register(this);
+  }
+
+  @Subscribe
+  public void buildStarting(BuildStartingEvent event) {
+    this.buildRequest = event.getRequest();
+
+    RemoteOptions options = buildRequest.getOptions(RemoteOptions.class);
+    if (!Objects.equal(remoteExecutor, options.remoteExecutor)
+        || connectTimeout != options.remoteConnectTimeout
+        || timeout != options.remoteTimeout) {
+      closeClient();
+      remoteExecutor = options.remoteExecutor;
+      connectTimeout = options.remoteConnectTimeout;
+      timeout = options.remoteTimeout;
+      if (remoteExecutor != null) {
+        client = new RemoteExecutionClient(remoteExecutor.getHostText(), remoteExecutor.getPort(),
+            connectTimeout * 1000, timeout * 1000);
+      }
+    }
+  }
+
+  @Override
+  public Iterable<ActionContextProvider> getActionContextProviders() {
+    Preconditions.checkNotNull(env);
+    Preconditions.checkNotNull(buildRequest);
+
+    return ImmutableList.<ActionContextProvider>of(
+        new RemoteActionContextProvider(env.getRuntime(), buildRequest, client));
+  }
+
+  @Override
+  public void blazeShutdown() {
+    closeClient();
+    remoteExecutor = null;
+  }
+
+  @Override
+  public void afterCommand() {
+    this.env = null;
+    this.buildRequest = null;
+  }
+
+  private void closeClient() {
+    if (client == null) {
+      return;
+    }
+    try {
+      client.close();
+    } catch (IOException e) {
+      if (env != null) {
+        env.getReporter().handle(
+            Event.warn("Could not close the connections to the remote executor: "
+                + e.getMessage()));
+      }
+    }
+    client = null;
+  }
+}
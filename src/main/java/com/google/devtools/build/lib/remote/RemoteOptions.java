@@ -0,0 +1,76 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.net.HostAndPort;
+import com.google.devtools.common.options.Converter;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParsingException;
+
+/**
+ * Options related to remote execution.
+ */
+public class RemoteOptions extends OptionsBase {
+
+  @Option(
+    name = "remote_executor",
+    defaultValue = "null",
+    category = "strategy",
+    converter = HostAndPortConverter.class,
+    help =
+        "The HOST:PORT of a remote execution server. Spawns that use the 'remote' strategy, e.g. "
+            + "with --spawn_strategy=remote, are executed there."
+  )
+  public HostAndPort remoteExecutor;
+
+  @Option(
+    name = "remote_connect_timeout",
+    defaultValue = "10",
+    category = "strategy",
+    help = "The number of seconds to wait for a connection to the remote execution server."
+  )
+  public int remoteConnectTimeout;
+
+  @Option(
+    name = "remote_timeout",
+    defaultValue = "3600",
+    category = "strategy",
+    help =
+        "The number of seconds to wait for a reply from the remote execution server, including "
+            + "the time it takes to execute a spawn. 0 means no timeout."
+  )
+  public int remoteTimeout;
+
+  /** Converts HOST:PORT strings; the port is mandatory. */
+  public static class HostAndPortConverter implements Converter<HostAndPort> {
+    @Override
+    public HostAndPort convert(String input) throws OptionsParsingException {
+      try {
+        HostAndPort result = HostAndPort.fromString(input);
+        if (result.hasPort()) {
+          return result;
+        }
+      } catch (IllegalArgumentException e) {
+        // Reported below.
+      }
+      throw new OptionsParsingException("'" + input + "' is not of the form HOST:PORT");
+    }
+
+    @Override
+    public String getTypeDescription() {
+      return "a HOST:PORT pair";
+    }
+  }
+}
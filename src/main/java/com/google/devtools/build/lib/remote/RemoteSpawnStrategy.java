@@ -0,0 +1,228 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
+import com.google.devtools.build.lib.util.CommandFailureUtils;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Strategy that executes spawns on a remote execution server.
+ *
+ * <p>For every spawn, the server is asked in a single call which inputs it lacks; only those are
+ * uploaded, several at a time. Outputs are streamed into the execution root in chunks as soon as
+ * the spawn finished. Spawns that are not remotable or depend on a Fileset or a runfiles manifest
+ * are executed locally.
+ */
+@ExecutionStrategy(name = { "remote" }, contextType = SpawnActionContext.class)
+final class RemoteSpawnStrategy implements SpawnActionContext {
+  private final Path execRoot;
+  @Nullable private final RemoteExecutionClient client;
+  private final StandaloneSpawnStrategy standaloneStrategy;
+  private final boolean verboseFailures;
+
+  /**
+   * @param client the client to use, or null if no server was configured; spawns then fail unless
+   *     they are executed locally
+   */
+  RemoteSpawnStrategy(
+      Path execRoot, @Nullable RemoteExecutionClient client, boolean verboseFailures) {
+    this.execRoot = execRoot;
+    this.client = client;
+    this.standaloneStrategy = new StandaloneSpawnStrategy(execRoot, verboseFailures);
+    this.verboseFailures = verboseFailures;
+  }
+
+  @Override
+  public void exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+      throws ExecException, InterruptedException {
+    if (!spawn.isRemotable()
+        || !spawn.getRunfilesManifests().isEmpty()
+        || !spawn.getFilesetManifests().isEmpty()) {
+      standaloneStrategy.exec(spawn, actionExecutionContext);
+      return;
+    }
+    if (client == null) {
+      throw new UserExecException("the 'remote' strategy requires --remote_executor");
+    }
+
+    Executor executor = actionExecutionContext.getExecutor();
+    if (executor.reportsSubcommands()) {
+      executor.reportSubcommand(
+          Label.print(spawn.getOwner().getLabel()) + " [" + spawn.getResourceOwner().prettyPrint()
+              + "]", spawn.asShellCommand(executor.getExecRoot()));
+    }
+
+    ExecuteRequest.Builder request = ExecuteRequest.newBuilder()
+        .addAllArguments(spawn.getArguments());
+    for (Map.Entry<String, String> variable : spawn.getEnvironment().entrySet()) {
+      request.addEnvironmentBuilder().setName(variable.getKey()).setValue(variable.getValue());
+    }
+    Set<String> outputPaths = new HashSet<>();
+    for (ActionInput output : spawn.getOutputFiles()) {
+      request.addOutputPaths(output.getExecPathString());
+      outputPaths.add(output.getExecPathString());
+    }
+
+    ExecuteResponse response;
+    try {
+      // The file to upload for every input digest.
+      Map<ByteString, Path> blobs = new LinkedHashMap<>();
+      if (!addInputs(spawn, actionExecutionContext, request, blobs)) {
+        standaloneStrategy.exec(spawn, actionExecutionContext);
+        return;
+      }
+      Map<ByteString, Path> missingBlobs = new LinkedHashMap<>();
+      for (ByteString digest : client.findMissingBlobs(blobs.keySet())) {
+        missingBlobs.put(digest, blobs.get(digest));
+      }
+      client.uploadBlobs(missingBlobs);
+      response = client.execute(request.build());
+
+      FileOutErr outErr = actionExecutionContext.getFileOutErr();
+      response.getStdout().writeTo(outErr.getOutputStream());
+      response.getStderr().writeTo(outErr.getErrorStream());
+      for (FileEntry output : response.getOutputsList()) {
+        Path path = getOutputPath(output.getPath(), outputPaths);
+        client.downloadBlob(output.getDigest(), path);
+        path.setExecutable(output.getExecutable());
+      }
+    } catch (IOException e) {
+      throw new EnvironmentalExecException("remote execution failed: " + e.getMessage(), e);
+    }
+
+    if (response.getExitCode() != 0) {
+      String message = CommandFailureUtils.describeCommandFailure(
+          verboseFailures, spawn.getArguments(), spawn.getEnvironment(), execRoot.getPathString());
+      throw new UserExecException(
+          String.format("%s: Process exited with status %d.", message, response.getExitCode()));
+    }
+  }
+
+  /**
+   * Returns where to write an output that the server sent back. Fails unless the output was
+   * declared by the spawn and lies below the execution root, so that the server cannot make us
+   * write other files.
+   */
+  private Path getOutputPath(String output, Set<String> outputPaths)
+      throws EnvironmentalExecException {
+    PathFragment fragment = new PathFragment(output);
+    if (outputPaths.contains(output) && !fragment.isAbsolute() && fragment.isNormalized()
+        && fragment.segmentCount() > 0) {
+      Path path = execRoot.getRelative(fragment);
+      if (path.startsWith(execRoot) && !path.equals(execRoot)) {
+        return path;
+      }
+    }
+    throw new EnvironmentalExecException(
+        "remote execution failed: the server returned the undeclared output '" + output + "'");
+  }
+
+  /**
+   * Adds the inputs and runfiles of {@code spawn} to {@code request} and records which file has
+   * which digest in {@code blobs}.
+   *
+   * @return false if the spawn has inputs that cannot be sent to the server, such as directories
+   *     or runfiles outside of the execution root
+   */
+  private boolean addInputs(Spawn spawn, ActionExecutionContext actionExecutionContext,
+      ExecuteRequest.Builder request, Map<ByteString, Path> blobs) throws IOException {
+    ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
+    List<ActionInput> inputs = ActionInputHelper.expandMiddlemen(
+        spawn.getInputFiles(), actionExecutionContext.getMiddlemanExpander());
+    for (ActionInput input : inputs) {
+      if (!addInput(new PathFragment(input.getExecPathString()), input, inputFileCache, request,
+          blobs)) {
+        return false;
+      }
+    }
+    for (Map.Entry<PathFragment, Map<PathFragment, Artifact>> runfilesDir :
+        spawn.getRunfilesSupplier().getMappings().entrySet()) {
+      Path root = execRoot.getRelative(runfilesDir.getKey());
+      if (!root.startsWith(execRoot)) {
+        return false;
+      }
+      for (Map.Entry<PathFragment, Artifact> mapping : runfilesDir.getValue().entrySet()) {
+        // Empty files, e.g. the __init__.py files created for Python, have no artifact.
+        if (mapping.getValue() == null) {
+          return false;
+        }
+        PathFragment path = root.getRelative(mapping.getKey()).relativeTo(execRoot);
+        if (!addInput(path, mapping.getValue(), inputFileCache, request, blobs)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean addInput(PathFragment execPath, ActionInput input,
+      ActionInputFileCache inputFileCache, ExecuteRequest.Builder request,
+      Map<ByteString, Path> blobs) throws IOException {
+    Path path = execRoot.getRelative(input.getExecPathString());
+    if (path.isDirectory()) {
+      return false;
+    }
+    ByteString digest = inputFileCache.getDigest(input);
+    if (digest == null) {
+      digest = ByteString.copyFrom(path.getMD5Digest());
+    }
+    request.addInputsBuilder()
+        .setPath(execPath.getPathString())
+        .setDigest(digest)
+        .setExecutable(path.isExecutable());
+    if (!blobs.containsKey(digest)) {
+      blobs.put(digest, path);
+    }
+    return true;
+  }
+
+  @Override
+  public String strategyLocality(String mnemonic, boolean remotable) {
+    return remotable ? "remote" : "standalone";
+  }
+
+  @Override
+  public boolean isRemotable(String mnemonic, boolean remotable) {
+    return remotable;
+  }
+}
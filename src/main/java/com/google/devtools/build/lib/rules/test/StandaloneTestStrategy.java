@@ -14,7 +14,11 @@
 
 package com.google.devtools.build.lib.rules.test;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.BaseSpawn;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
@@ -25,47 +29,86 @@ import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.TestExecException;
+import com.google.devtools.build.lib.actions.cache.DiskActionOutputCache;
 import com.google.devtools.build.lib.analysis.RunfilesSupplierImpl;
 import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.lib.view.test.TestStatus.BlazeTestStatus;
 import com.google.devtools.build.lib.view.test.TestStatus.TestCase;
 import com.google.devtools.build.lib.view.test.TestStatus.TestResultData;
 import com.google.devtools.common.options.OptionsClassProvider;
+import com.google.protobuf.ByteString;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
 
 /**
  * Runs TestRunnerAction actions.
  */
 @ExecutionStrategy(contextType = TestActionContext.class, name = { "standalone" })
 public class StandaloneTestStrategy extends TestStrategy {
-  // TODO(bazel-team) - add tests for this strategy.
+  // Change this to invalidate all entries of the test result cache.
+  private static final String TEST_RESULT_CACHE_GUID = "a4d6b9a4-7b0e-4c5d-9d6e-3f6f1b3b2c41";
 
   private final Path workspace;
+  @Nullable private final DiskActionOutputCache testResultCache;
 
   public StandaloneTestStrategy(
       OptionsClassProvider requestOptions,
       BinTools binTools,
       Map<String, String> clientEnv,
       Path workspace) {
+    this(requestOptions, binTools, clientEnv, workspace, null);
+  }
+
+  /**
+   * @param testResultCache if not null, results of passed tests are stored there and replayed
+   *     instead of running tests with the same inputs again, also in other workspaces
+   */
+  public StandaloneTestStrategy(
+      OptionsClassProvider requestOptions,
+      BinTools binTools,
+      Map<String, String> clientEnv,
+      Path workspace,
+      @Nullable DiskActionOutputCache testResultCache) {
     super(requestOptions, binTools, clientEnv);
     this.workspace = workspace;
+    this.testResultCache = testResultCache;
   }
 
   @Override
   public void exec(TestRunnerAction action, ActionExecutionContext actionExecutionContext)
       throws ExecException, InterruptedException {
+    Executor executor = actionExecutionContext.getExecutor();
+    String cacheKey = null;
+    try {
+      cacheKey = getTestResultCacheKey(action, actionExecutionContext);
+      if (cacheKey != null && replayCachedTestResult(cacheKey, action, actionExecutionContext)) {
+        return;
+      }
+    } catch (IOException e) {
+      executor.getEventHandler().handle(Event.warn(
+          "Failed to read cached result of " + action.prettyPrint() + ": " + e.getMessage()));
+    }
+
     Path runfilesDir = null;
     try {
       runfilesDir = TestStrategy.getLocalRunfilesDirectory(
@@ -104,8 +147,6 @@ public class StandaloneTestStrategy extends TestStrategy {
                 .getTestProperties()
                 .getLocalResourceUsage(executionOptions.usingLocalTestJobs()));
 
-    Executor executor = actionExecutionContext.getExecutor();
-
     try {
       if (testTmpDir.exists(Symlinks.NOFOLLOW)) {
         FileSystemUtils.deleteTree(testTmpDir);
@@ -117,19 +158,20 @@ public class StandaloneTestStrategy extends TestStrategy {
     }
 
     ResourceSet resources = null;
-    FileOutErr fileOutErr = null;
     try {
       FileSystemUtils.createDirectoryAndParents(workingDirectory);
-      fileOutErr = new FileOutErr(action.getTestLog().getPath(),
-          action.resolve(actionExecutionContext.getExecutor().getExecRoot()).getTestStderr());
+      // An XML file left behind by an earlier run must not be mistaken for output of this one. It
+      // may also share storage with the test result cache, so it is never overwritten.
+      resolvedPaths.getXmlOutputPath().delete();
 
       resources = action.getTestProperties()
           .getLocalResourceUsage(executionOptions.usingLocalTestJobs());
       ResourceManager.instance().acquireResources(action, resources);
-      TestResultData data = execute(
-          actionExecutionContext.withFileOutErr(fileOutErr), spawn, action);
-      appendStderr(fileOutErr.getOutputFile(), fileOutErr.getErrorFile());
+      TestResultData data = executeTest(actionExecutionContext, spawn, action);
       finalizeTest(actionExecutionContext, action, data);
+      if (cacheKey != null && data.getTestPassed() && data.getCachable()) {
+        storeTestResult(cacheKey, action, actionExecutionContext);
+      }
     } catch (IOException e) {
       executor.getEventHandler().handle(Event.error("Caught I/O exception: " + e));
       throw new EnvironmentalExecException("unexpected I/O exception", e);
@@ -137,16 +179,137 @@ public class StandaloneTestStrategy extends TestStrategy {
       if (resources != null) {
         ResourceManager.instance().releaseResources(action, resources);
       }
+    }
+  }
+
+  /**
+   * Runs the test once. The test log is closed when this returns, so that it can be stored in the
+   * test result cache.
+   */
+  private TestResultData executeTest(ActionExecutionContext actionExecutionContext,
+      Spawn spawn, TestRunnerAction action)
+      throws IOException, ExecException, InterruptedException {
+    FileOutErr fileOutErr = new FileOutErr(action.getTestLog().getPath(),
+        action.resolve(actionExecutionContext.getExecutor().getExecRoot()).getTestStderr());
+    try {
+      TestResultData data = execute(
+          actionExecutionContext.withFileOutErr(fileOutErr), spawn, action);
+      appendStderr(fileOutErr.getOutputFile(), fileOutErr.getErrorFile());
+      return data;
+    } finally {
       try {
-        if (fileOutErr != null) {
-          fileOutErr.close();
-        }
+        fileOutErr.close();
       } catch (IOException e) {
         // If the close fails, there is little we can do.
       }
     }
   }
 
+  /**
+   * Returns the key of the test's result in the test result cache, or null if the result must not
+   * be cached. The key covers everything that determines the outcome of the test: the action key,
+   * the test environment and the contents of all inputs including runfiles. It does not depend on
+   * the location of the workspace, so results are shared between clones of a repository.
+   */
+  @Nullable
+  private String getTestResultCacheKey(
+      TestRunnerAction action, ActionExecutionContext actionExecutionContext) throws IOException {
+    if (testResultCache == null || !action.shouldCacheResult() || isCoverageMode(action)) {
+      return null;
+    }
+    Fingerprint fp = new Fingerprint();
+    fp.addString(TEST_RESULT_CACHE_GUID);
+    fp.addString(action.getKey());
+    fp.addStringMap(action.getConfiguration().getDefaultShellEnvironment());
+    fp.addInt(getTimeout(action));
+
+    ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
+    Map<String, ByteString> digests = new TreeMap<>();
+    for (ActionInput input : ActionInputHelper.expandMiddlemen(
+        action.getInputs(), actionExecutionContext.getMiddlemanExpander())) {
+      ByteString digest = inputFileCache.getDigest(input);
+      if (digest == null) {
+        // A directory; its contents are unknown.
+        return null;
+      }
+      digests.put(input.getExecPathString(), digest);
+    }
+    for (Map.Entry<String, ByteString> digest : digests.entrySet()) {
+      fp.addString(digest.getKey());
+      fp.addBytes(digest.getValue().toByteArray());
+    }
+    return fp.hexDigestAndReset();
+  }
+
+  /**
+   * Restores the outputs of a test from the test result cache and reports its result.
+   *
+   * @return false if the cache has no result for the given key
+   */
+  private boolean replayCachedTestResult(String cacheKey, TestRunnerAction action,
+      ActionExecutionContext actionExecutionContext) throws IOException, ExecException {
+    Executor executor = actionExecutionContext.getExecutor();
+    Path execRoot = executor.getExecRoot();
+    ImmutableSet<PathFragment> outputs = testResultCache.getOutputs(cacheKey);
+    if (outputs == null) {
+      return false;
+    }
+    for (PathFragment output : outputs) {
+      Path path = execRoot.getRelative(output);
+      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+      path.delete();
+    }
+    if (!testResultCache.fetch(cacheKey, execRoot, outputs)) {
+      return false;
+    }
+
+    Path cacheStatus = action.getCacheStatusArtifact().getPath();
+    TestResultData cached;
+    try (InputStream in = cacheStatus.getInputStream()) {
+      cached = TestResultData.parseFrom(in);
+    }
+    // The file may be a hard link into the cache; postTestResult must not write through it.
+    cacheStatus.delete();
+
+    // The log is recorded with the absolute path of the workspace that ran the test.
+    TestResultData data = cached.toBuilder()
+        .setRemotelyCached(true)
+        .setPassedLog(action.getTestLog().getPath().getPathString())
+        .build();
+
+    TestResult result = new TestResult(action, data, /*cached*/ false);
+    postTestResult(executor, result);
+    processTestOutput(executor, actionExecutionContext.getFileOutErr(), result);
+    return true;
+  }
+
+  /** Stores the status, log and XML output of a passed test. */
+  private void storeTestResult(String cacheKey, TestRunnerAction action,
+      ActionExecutionContext actionExecutionContext) {
+    Executor executor = actionExecutionContext.getExecutor();
+    Path execRoot = executor.getExecRoot();
+    List<Path> files = new ArrayList<>();
+    files.add(action.getCacheStatusArtifact().getPath());
+    files.add(action.getTestLog().getPath());
+    Path xml = action.resolve(execRoot).getXmlOutputPath();
+    if (xml.isFile(Symlinks.NOFOLLOW)) {
+      files.add(xml);
+    }
+    try {
+      Map<PathFragment, byte[]> outputs = new LinkedHashMap<>();
+      for (Path file : files) {
+        if (!file.startsWith(execRoot)) {
+          return;
+        }
+        outputs.put(file.relativeTo(execRoot), file.getMD5Digest());
+      }
+      testResultCache.store(cacheKey, execRoot, outputs);
+    } catch (IOException e) {
+      executor.getEventHandler().handle(Event.warn(
+          "Failed to cache result of " + action.prettyPrint() + ": " + e.getMessage()));
+    }
+  }
+
   private Map<String, String> getEnv(
       TestRunnerAction action,
       Path runfilesDir,
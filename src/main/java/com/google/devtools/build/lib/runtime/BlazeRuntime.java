@@ -50,12 +50,15 @@ import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.pkgcache.PackageManager;
+import com.google.devtools.build.lib.profiler.AllocationTracker;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.MemoryProfiler;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.query2.QueryResultCache;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.rules.test.CoverageReportActionFactory;
 import com.google.devtools.build.lib.runtime.commands.BuildCommand;
@@ -113,6 +116,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -171,11 +175,18 @@ public final class BlazeRuntime {
   // Workspace state (currently exactly one workspace per server)
   private final BlazeDirectories directories;
   private final SkyframeExecutor skyframeExecutor;
+  private final QueryResultCache queryResultCache =
+      new QueryResultCache(QueryResultCache.DEFAULT_MAX_TARGETS);
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable
   private Range<Long> lastExecutionRange = null;
+  /** The metrics at the start of the current command, to log the ones of the command. */
+  private MetricsRegistry.Snapshot metricsAtCommandStart = MetricsRegistry.instance().snapshot();
+  /** Logs garbage collections to the profile while a command is profiled. */
+  @Nullable
+  private GCStatsRecorder gcStatsRecorder = null;
 
   private BlazeRuntime(BlazeDirectories directories,
       WorkspaceStatusAction.Factory workspaceStatusActionFactory,
@@ -288,7 +299,7 @@ public final class BlazeRuntime {
         profiledTasks = ProfiledTaskKinds.SLOWEST;
       }
       if (profiledTasks != ProfiledTaskKinds.NONE) {
-        Profiler.instance().start(profiledTasks, out,
+        Profiler.instance().start(profiledTasks, out, options.profileFormat,
             "Blaze profile for " + getOutputBase() + " at " + new Date()
             + ", build ID: " + buildID,
             recordFullProfilerData, clock, execStartTimeNanos);
@@ -464,6 +475,13 @@ public final class BlazeRuntime {
     return result.build();
   }
 
+  /**
+   * Returns the results of earlier queries, for the query command to reuse.
+   */
+  public QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
   /**
    * Returns the package manager.
    */
@@ -577,6 +595,12 @@ public final class BlazeRuntime {
    */
   void beforeCommand(CommandEnvironment env, CommonCommandOptions options, long execStartTimeNanos)
       throws AbruptExitException {
+    metricsAtCommandStart = MetricsRegistry.instance().snapshot();
+    // Attribute allocations while the command is profiled, dropping those of earlier commands.
+    AllocationTracker.instance().setEnabled(
+        options.profilePath != null || options.memoryProfilePath != null);
+    AllocationTracker.instance().finishPhase();
+
     // Conditionally enable profiling
     // We need to compensate for launchTimeNanos (measurements taken outside of the jvm).
     long startupTimeNanos = options.startupTime * 1000000L;
@@ -590,6 +614,8 @@ public final class BlazeRuntime {
           ProfilePhase.LAUNCH.description);
       profiler.logSimpleTaskDuration(execStartTimeNanos, 0, ProfilerTask.PHASE,
           ProfilePhase.INIT.description);
+      gcStatsRecorder = new GCStatsRecorder(ManagementFactory.getGarbageCollectorMXBeans());
+      gcStatsRecorder.startProfiling();
     }
 
     if (options.memoryProfilePath != null) {
@@ -637,6 +663,14 @@ public final class BlazeRuntime {
 
     clearEventBus();
 
+    LOG.info("Metrics of the command:\n"
+        + MetricsRegistry.instance().snapshot().minus(metricsAtCommandStart));
+
+    if (gcStatsRecorder != null) {
+      gcStatsRecorder.stopProfiling();
+      gcStatsRecorder = null;
+    }
+    AllocationTracker.instance().setEnabled(false);
     try {
       Profiler.instance().stop();
       MemoryProfiler.instance().stop();
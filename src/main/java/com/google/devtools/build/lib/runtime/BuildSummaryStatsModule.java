@@ -36,7 +36,7 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   private static final Logger LOG = Logger.getLogger(BuildSummaryStatsModule.class.getName());
 
-  private SimpleCriticalPathComputer criticalPathComputer;
+  private CompactCriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
 
@@ -49,7 +49,7 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   @Subscribe
   public void executionPhaseStarting(ExecutionStartingEvent event) {
-    criticalPathComputer = new SimpleCriticalPathComputer(BlazeClock.instance());
+    criticalPathComputer = new CompactCriticalPathComputer(BlazeClock.instance());
     eventBus.register(criticalPathComputer);
   }
 
@@ -68,6 +68,8 @@ public class BuildSummaryStatsModule extends BlazeModule {
         LOG.info(criticalPath.toString());
         LOG.info("Slowest actions:\n  " + Joiner.on("\n  ")
             .join(criticalPathComputer.getSlowestComponents()));
+        LOG.info("Actions with the least slack:\n  " + Joiner.on("\n  ")
+            .join(criticalPathComputer.getLeastSlackActions()));
         // We reverse the critical path because the profiler expect events ordered by the time
         // when the actions were executed while critical path computation is stored in the reverse
         // way.
@@ -13,10 +13,12 @@
 // limitations under the License.
 package com.google.devtools.build.lib.runtime;
 
+import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.util.OptionsUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParsingException;
@@ -51,6 +53,15 @@ public class CommonCommandOptions extends OptionsBase {
     }
   }
 
+  /**
+   * Converter for --profile_format.
+   */
+  public static class ProfileFormatConverter extends EnumConverter<Profiler.Format> {
+    public ProfileFormatConverter() {
+      super(Profiler.Format.class, "profile format");
+    }
+  }
+
   /**
    * Converter for --default_override. The format is:
    * --default_override=blazerc:command=option.
@@ -182,6 +193,16 @@ public class CommonCommandOptions extends OptionsBase {
       + "file. Use blaze analyze-profile to analyze the profile.")
   public PathFragment profilePath;
 
+  @Option(name = "profile_format",
+      defaultValue = "deflated",
+      category = "misc",
+      converter = ProfileFormatConverter.class,
+      help = "The format of the --profile file: 'deflated' for the compact default format, "
+          + "'columnar' for a larger, uncompressed file that analyze-profile can summarize "
+          + "without loading it into memory, or 'trace_events' for a JSON file that trace "
+          + "viewers such as chrome://tracing can load, also while the build is running.")
+  public Profiler.Format profileFormat;
+
   @Option(name = "record_full_profiler_data",
       defaultValue = "false",
       category = "undocumented",
@@ -0,0 +1,379 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionMiddlemanEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.util.Clock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Computes the critical path in the action graph based on events published to the event bus, like
+ * {@link SimpleCriticalPathComputer}, but cheaply enough to run on every build.
+ *
+ * <p>While the build runs, each finished action only takes the next id from a counter and stores
+ * the action and its start and finish times at that index of arrays that are allocated in chunks;
+ * no lock is taken and no map is updated. The dependencies between the actions are only looked at
+ * when the results are first requested, after the build.
+ *
+ * <p>Ids are assigned when an action finishes, and an action only starts after the actions that
+ * produce its inputs have finished, so the ids order the actions topologically. If shared actions
+ * produce the same artifact, the one that finished first is taken as its producer.
+ *
+ * <p>After instantiation, this object needs to be registered on the event bus to work.
+ */
+@ThreadSafe
+public class CompactCriticalPathComputer {
+
+  /** Number of top actions to record. */
+  static final int SLOWEST_COMPONENTS_SIZE = CriticalPathComputer.SLOWEST_COMPONENTS_SIZE;
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  // Enough for 2^28 actions; later actions are not recorded.
+  private static final int MAX_CHUNKS = 1 << 16;
+
+  /** The actions with ids in one range of {@link #CHUNK_SIZE} ids. */
+  private static final class Chunk {
+    final AtomicReferenceArray<Action> actions = new AtomicReferenceArray<>(CHUNK_SIZE);
+    final AtomicLongArray startNanos = new AtomicLongArray(CHUNK_SIZE);
+    final AtomicLongArray finishNanos = new AtomicLongArray(CHUNK_SIZE);
+  }
+
+  private final Clock clock;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+  // Computed on first use, after the build.
+  private Analysis analysis;
+
+  public CompactCriticalPathComputer(Clock clock) {
+    this.clock = clock;
+  }
+
+  /** Records an action that has finished executing. */
+  @Subscribe
+  @AllowConcurrentEvents
+  public void actionComplete(ActionCompletionEvent event) {
+    record(event.getAction(), event.getRelativeActionStartTime());
+  }
+
+  /**
+   * Records a middleman action execution. Even if middleman are almost instant, we record them
+   * because they depend on other actions and we need them for constructing the critical path.
+   */
+  @Subscribe
+  @AllowConcurrentEvents
+  public void middlemanAction(ActionMiddlemanEvent event) {
+    record(event.getAction(), event.getNanoTimeStart());
+  }
+
+  /**
+   * Records an action that was not executed because it was in the (disk) cache. This is needed so
+   * that we can calculate correctly the dependencies tree if we have some cached actions in the
+   * middle of the critical path.
+   */
+  @Subscribe
+  @AllowConcurrentEvents
+  public void actionCached(CachedActionEvent event) {
+    record(event.getAction(), event.getNanoTimeStart());
+  }
+
+  private void record(Action action, long startNanos) {
+    long finishNanos = clock.nanoTime();
+    int id = nextId.getAndIncrement();
+    int chunkIndex = id >>> CHUNK_BITS;
+    if (id < 0 || chunkIndex >= MAX_CHUNKS) {
+      return;
+    }
+    Chunk chunk = chunks.get(chunkIndex);
+    if (chunk == null) {
+      chunks.compareAndSet(chunkIndex, null, new Chunk());
+      chunk = chunks.get(chunkIndex);
+    }
+    int index = id & (CHUNK_SIZE - 1);
+    chunk.startNanos.lazySet(index, startNanos);
+    chunk.finishNanos.lazySet(index, finishNanos);
+    // Published last: readers skip the entry until the action is set.
+    chunk.actions.set(index, action);
+  }
+
+  /**
+   * Returns the critical path stats for the current command execution.
+   *
+   * <p>Must only be called once no more actions are executed.
+   */
+  public AggregatedCriticalPath<SimpleCriticalPathComponent> aggregate() {
+    Analysis result = analyze();
+    if (result.criticalPath.isEmpty()) {
+      return new AggregatedCriticalPath<>(0, result.criticalPath);
+    }
+    return new AggregatedCriticalPath<>(
+        result.criticalPath.get(0).getAggregatedElapsedTimeMillis(), result.criticalPath);
+  }
+
+  /**
+   * The list of slowest individual components, ignoring the time to build dependencies.
+   */
+  public ImmutableList<SimpleCriticalPathComponent> getSlowestComponents() {
+    return analyze().slowestComponents;
+  }
+
+  /**
+   * The actions that have to get faster first for the build to get faster: those with the least
+   * slack, and among them the slowest. An action's slack is how much longer it could have taken
+   * without making the critical path longer; it is zero for the actions on the critical path.
+   * Actions that took no time are left out.
+   */
+  public ImmutableList<SlackAction> getLeastSlackActions() {
+    return analyze().leastSlackActions;
+  }
+
+  private synchronized Analysis analyze() {
+    if (analysis == null) {
+      analysis = new Analysis();
+    }
+    return analysis;
+  }
+
+  /** An action with its own duration and its slack. */
+  public static final class SlackAction {
+    private final Action action;
+    private final long elapsedNanos;
+    private final long slackNanos;
+
+    private SlackAction(Action action, long elapsedNanos, long slackNanos) {
+      this.action = action;
+      this.elapsedNanos = elapsedNanos;
+      this.slackNanos = slackNanos;
+    }
+
+    public Action getAction() {
+      return action;
+    }
+
+    public long getElapsedTimeNanos() {
+      return elapsedNanos;
+    }
+
+    /** How much longer the action could have taken without making the critical path longer. */
+    public long getSlackNanos() {
+      return slackNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.2fs (slack %.2fs) %s", elapsedNanos / 1e9, slackNanos / 1e9,
+          action.describe());
+    }
+  }
+
+  /** The longest paths through the recorded actions. */
+  private final class Analysis {
+    private final int count;
+    private final Action[] actions;
+    private final long[] startNanos;
+    private final long[] elapsedNanos;
+    // The dependencies of action i are depIds[depStart[i]] to depIds[depStart[i + 1] - 1].
+    private final int[] depStart;
+    private int[] depIds = new int[16];
+
+    private final ImmutableList<SimpleCriticalPathComponent> criticalPath;
+    private final ImmutableList<SimpleCriticalPathComponent> slowestComponents;
+    private final ImmutableList<SlackAction> leastSlackActions;
+
+    Analysis() {
+      count = Math.min(nextId.get(), MAX_CHUNKS * CHUNK_SIZE);
+      actions = new Action[count];
+      startNanos = new long[count];
+      elapsedNanos = new long[count];
+      for (int id = 0; id < count; id++) {
+        Chunk chunk = chunks.get(id >>> CHUNK_BITS);
+        int index = id & (CHUNK_SIZE - 1);
+        actions[id] = chunk == null ? null : chunk.actions.get(index);
+        if (actions[id] != null) {
+          startNanos[id] = chunk.startNanos.get(index);
+          elapsedNanos[id] = chunk.finishNanos.get(index) - startNanos[id];
+        }
+      }
+      depStart = new int[count + 1];
+      computeDependencies();
+
+      // The longest path that ends with each action, and the dependency it goes through.
+      long[] pathNanos = new long[count];
+      int[] child = new int[count];
+      int last = -1;
+      for (int id = 0; id < count; id++) {
+        child[id] = -1;
+        for (int i = depStart[id]; i < depStart[id + 1]; i++) {
+          int dep = depIds[i];
+          if (child[id] == -1 || pathNanos[dep] > pathNanos[child[id]]) {
+            child[id] = dep;
+          }
+        }
+        pathNanos[id] = elapsedNanos[id] + (child[id] == -1 ? 0 : pathNanos[child[id]]);
+        if (actions[id] != null && (last == -1 || pathNanos[id] > pathNanos[last])) {
+          last = id;
+        }
+      }
+
+      // The longest path that starts with each action.
+      long[] tailNanos = Arrays.copyOf(elapsedNanos, count);
+      for (int id = count - 1; id >= 0; id--) {
+        for (int i = depStart[id]; i < depStart[id + 1]; i++) {
+          int dep = depIds[i];
+          tailNanos[dep] = Math.max(tailNanos[dep], elapsedNanos[dep] + tailNanos[id]);
+        }
+      }
+
+      criticalPath = criticalPath(last, child);
+      slowestComponents = slowestComponents();
+      leastSlackActions = leastSlackActions(last == -1 ? 0 : pathNanos[last], pathNanos,
+          tailNanos);
+    }
+
+    private void computeDependencies() {
+      Map<Artifact, Integer> producers = new HashMap<>();
+      for (int id = 0; id < count; id++) {
+        if (actions[id] != null) {
+          for (Artifact output : actions[id].getOutputs()) {
+            if (!producers.containsKey(output)) {
+              producers.put(output, id);
+            }
+          }
+        }
+      }
+      int deps = 0;
+      for (int id = 0; id < count; id++) {
+        depStart[id] = deps;
+        if (actions[id] == null) {
+          continue;
+        }
+        for (Artifact input : actions[id].getInputs()) {
+          Integer producer = producers.get(input);
+          // Later producers are shared actions that finished after this action started.
+          if (producer != null && producer < id) {
+            if (deps == depIds.length) {
+              depIds = Arrays.copyOf(depIds, deps * 2);
+            }
+            depIds[deps++] = producer;
+          }
+        }
+      }
+      depStart[count] = deps;
+    }
+
+    private SimpleCriticalPathComponent component(int id) {
+      SimpleCriticalPathComponent component =
+          new SimpleCriticalPathComponent(actions[id], startNanos[id]);
+      component.finishActionExecution(startNanos[id], startNanos[id] + elapsedNanos[id]);
+      return component;
+    }
+
+    private ImmutableList<SimpleCriticalPathComponent> criticalPath(int last, int[] child) {
+      List<Integer> ids = new ArrayList<>();
+      for (int id = last; id != -1; id = child[id]) {
+        ids.add(id);
+      }
+      // Components are linked to their child, so the first action of the path comes first.
+      List<SimpleCriticalPathComponent> components = new ArrayList<>();
+      SimpleCriticalPathComponent previous = null;
+      for (int i = ids.size() - 1; i >= 0; i--) {
+        SimpleCriticalPathComponent component = component(ids.get(i));
+        if (previous != null) {
+          component.addDepInfo(previous);
+        }
+        components.add(component);
+        previous = component;
+      }
+      return ImmutableList.copyOf(components).reverse();
+    }
+
+    private ImmutableList<SimpleCriticalPathComponent> slowestComponents() {
+      Comparator<Integer> bySpeed = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Long.compare(elapsedNanos[a], elapsedNanos[b]);
+        }
+      };
+      ImmutableList.Builder<SimpleCriticalPathComponent> result = ImmutableList.builder();
+      for (int id : top(bySpeed)) {
+        result.add(component(id));
+      }
+      return result.build();
+    }
+
+    private ImmutableList<SlackAction> leastSlackActions(final long criticalPathNanos,
+        final long[] pathNanos, final long[] tailNanos) {
+      // The longest path through an action counts the action in both directions.
+      final long[] slackNanos = new long[count];
+      for (int id = 0; id < count; id++) {
+        slackNanos[id] = criticalPathNanos - (pathNanos[id] + tailNanos[id] - elapsedNanos[id]);
+      }
+      Comparator<Integer> byUrgency = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int bySlack = Long.compare(slackNanos[b], slackNanos[a]);
+          return bySlack != 0 ? bySlack : Long.compare(elapsedNanos[a], elapsedNanos[b]);
+        }
+      };
+      ImmutableList.Builder<SlackAction> result = ImmutableList.builder();
+      for (int id : top(byUrgency)) {
+        result.add(new SlackAction(actions[id], elapsedNanos[id], slackNanos[id]));
+      }
+      return result.build();
+    }
+
+    /**
+     * Returns the ids of the {@link #SLOWEST_COMPONENTS_SIZE} greatest actions that took some
+     * time, greatest first.
+     */
+    private List<Integer> top(Comparator<Integer> comparator) {
+      PriorityQueue<Integer> top = new PriorityQueue<>(SLOWEST_COMPONENTS_SIZE, comparator);
+      for (int id = 0; id < count; id++) {
+        if (actions[id] == null || elapsedNanos[id] <= 0) {
+          continue;
+        }
+        if (top.size() < SLOWEST_COMPONENTS_SIZE) {
+          top.add(id);
+        } else if (comparator.compare(top.peek(), id) < 0) {
+          top.remove();
+          top.add(id);
+        }
+      }
+      List<Integer> result = new ArrayList<>(top);
+      Collections.sort(result, Collections.reverseOrder(comparator));
+      return result;
+    }
+  }
+}
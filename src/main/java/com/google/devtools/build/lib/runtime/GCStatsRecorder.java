@@ -14,11 +14,21 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.sun.management.GarbageCollectionNotificationInfo;
 
 import java.lang.management.GarbageCollectorMXBean;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
 
 /**
  * Record GC stats for a build.
@@ -28,6 +38,28 @@ public class GCStatsRecorder {
   private final Iterable<GarbageCollectorMXBean> mxBeans;
   private final ImmutableMap<String, GCStat> initialData;
 
+  /** Logs each collection that a collector reports as a task in the profile. */
+  private final NotificationListener profilingListener = new NotificationListener() {
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if (!notification.getType().equals(
+          GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+        return;
+      }
+      GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+          (CompositeData) notification.getUserData());
+      long now = Profiler.nanoTimeMaybe();
+      if (now < 0) {
+        return;
+      }
+      // The notification comes right after the collection, whose duration is only known in ms.
+      long duration = TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration());
+      Profiler.instance().logSimpleTaskDuration(Math.max(now - duration, 1), duration,
+          ProfilerTask.GC_PAUSE,
+          info.getGcName() + ": " + info.getGcAction() + " (" + info.getGcCause() + ")");
+    }
+  };
+
   public GCStatsRecorder(Iterable<GarbageCollectorMXBean> mxBeans) {
     this.mxBeans = mxBeans;
     ImmutableMap.Builder<String, GCStat> initialData = ImmutableMap.builder();
@@ -39,6 +71,34 @@ public class GCStatsRecorder {
     this.initialData = initialData.build();
   }
 
+  /**
+   * Starts logging each garbage collection as a {@link ProfilerTask#GC_PAUSE} task while the
+   * {@link Profiler} is active, until {@link #stopProfiling} is called. Collectors that do not
+   * send notifications are not logged.
+   */
+  public void startProfiling() {
+    for (GarbageCollectorMXBean mxBean : mxBeans) {
+      if (mxBean instanceof NotificationEmitter) {
+        ((NotificationEmitter) mxBean).addNotificationListener(profilingListener, null, null);
+      }
+    }
+  }
+
+  /**
+   * Stops logging garbage collections to the profile.
+   */
+  public void stopProfiling() {
+    for (GarbageCollectorMXBean mxBean : mxBeans) {
+      if (mxBean instanceof NotificationEmitter) {
+        try {
+          ((NotificationEmitter) mxBean).removeNotificationListener(profilingListener);
+        } catch (ListenerNotFoundException e) {
+          // Not started, nothing to stop.
+        }
+      }
+    }
+  }
+
   public Iterable<GCStat> getCurrentGcStats() {
     List<GCStat> stats = new ArrayList<>();
     for (GarbageCollectorMXBean mxBean : mxBeans) {
@@ -18,6 +18,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.RuleClass;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeCommandUtils;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
@@ -96,6 +97,12 @@ public class DumpCommand implements BlazeCommand {
         converter = SkyframeDumpEnumConverter.class,
         help = "Dump Skyframe graph: 'off', 'summary', or 'detailed'.")
     public SkyframeDumpOption dumpSkyframe;
+
+    @Option(name = "metrics",
+        defaultValue = "false",
+        category = "verbosity",
+        help = "Dump the counters and histograms collected since the server started.")
+    public boolean dumpMetrics;
   }
 
   /**
@@ -126,7 +133,8 @@ public class DumpCommand implements BlazeCommand {
 
     boolean anyOutput = dumpOptions.dumpPackages || dumpOptions.dumpVfs
         || dumpOptions.dumpArtifacts || dumpOptions.dumpActionCache
-        || dumpOptions.dumpRuleClasses || (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF);
+        || dumpOptions.dumpRuleClasses || (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF)
+        || dumpOptions.dumpMetrics;
     if (!anyOutput) {
       Map<String, String> categories = new HashMap<>();
       categories.put("verbosity", "Options that control what internal state is dumped");
@@ -180,6 +188,12 @@ public class DumpCommand implements BlazeCommand {
         out.println();
       }
 
+      if (dumpOptions.dumpMetrics) {
+        out.println("Metrics");
+        out.print(MetricsRegistry.instance().snapshot());
+        out.println();
+      }
+
       return success ? ExitCode.SUCCESS : ExitCode.ANALYSIS_FAILURE;
 
     } finally {
@@ -18,6 +18,7 @@ import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.profiler.ColumnarProfile;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
@@ -25,10 +26,10 @@ import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.output.HtmlCreator;
 import com.google.devtools.build.lib.profiler.output.PhaseText;
+import com.google.devtools.build.lib.profiler.output.PhaseText.Section;
 import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
 import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
-import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
-import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.profiler.statistics.ProfileStatistics;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
@@ -38,6 +39,7 @@ import com.google.devtools.build.lib.util.StringUtil;
 import com.google.devtools.build.lib.util.TimeUtilities;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.Converters;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParser;
@@ -46,7 +48,13 @@ import com.google.devtools.common.options.OptionsProvider;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Pattern;
 
 /**
@@ -61,12 +69,25 @@ import java.util.regex.Pattern;
          mustRunInWorkspace = false)
 public final class ProfileCommand implements BlazeCommand {
 
+  /**
+   * How many profiles in the deflated format are loaded and analyzed at once. Each of them is
+   * fully loaded into memory, unlike profiles in the columnar format, which are only scanned.
+   */
+  private static final int MAX_CONCURRENT_FULL_LOADS = 2;
+
   public static class DumpConverter extends Converters.StringSetConverter {
     public DumpConverter() {
       super("text", "raw", "text-unsorted", "raw-unsorted");
     }
   }
 
+  /** Converter for the text output sections. */
+  public static class SectionConverter extends EnumConverter<Section> {
+    public SectionConverter() {
+      super(Section.class, "output section");
+    }
+  }
+
   public static class ProfileOptions extends OptionsBase {
     @Option(
       name = "chart",
@@ -146,6 +167,19 @@ public final class ProfileCommand implements BlazeCommand {
     )
     public long taskTreeThreshold;
 
+    @Option(
+      name = "section",
+      defaultValue = "",
+      allowMultiple = true,
+      converter = SectionConverter.class,
+      help =
+          "Prints only the given section of the text output: 'summary', 'phases' or"
+              + " 'critical_path'. May be given multiple times; without it, all sections are"
+              + " printed. Statistics that no requested section needs are not computed."
+              + " Ignored with --html, --dump and --task_tree."
+    )
+    public List<Section> sections;
+
     @Option(name = "vfs_stats",
         defaultValue = "false",
         help = "If present, include VFS path statistics.")
@@ -186,6 +220,10 @@ public final class ProfileCommand implements BlazeCommand {
       opts.vfsStatsLimit = 0;
     }
 
+    Set<Section> sections =
+        opts.sections.isEmpty() ? EnumSet.allOf(Section.class) : EnumSet.copyOf(opts.sections);
+    ForkJoinPool pool = new ForkJoinPool();
+    Semaphore fullLoads = new Semaphore(MAX_CONCURRENT_FULL_LOADS);
     try (PrintStream out = new PrintStream(env.getReporter().getOutErr().getOutputStream())) {
       env.getReporter().handle(Event.warn(
           null, "This information is intended for consumption by Blaze developers"
@@ -197,7 +235,9 @@ public final class ProfileCommand implements BlazeCommand {
                 runtime.getWorkspaceName(),
                 options.getResidue(),
                 getInfoListener(env),
-                opts.vfsStatsLimit > 0);
+                opts.vfsStatsLimit > 0,
+                pool,
+                fullLoads);
         Path outputFile = env.getWorkingDirectory().getRelative(opts.combine);
         try (PrintStream output =
                 new PrintStream(new BufferedOutputStream(outputFile.getOutputStream()))) {
@@ -209,6 +249,7 @@ public final class ProfileCommand implements BlazeCommand {
             env.getReporter().handle(Event.info("Creating text output in " + outputFile));
             new PhaseText(
                     output,
+                    sections,
                     statistics.getSummaryStatistics(),
                     statistics.getSummaryPhaseStatistics(),
                     Optional.<CriticalPathStatistics>absent(),
@@ -223,6 +264,10 @@ public final class ProfileCommand implements BlazeCommand {
                   Event.error(
                       "Failed to write to output file " + outputFile + ":" + e.getMessage()));
         }
+      } else if (opts.dumpMode == null && opts.taskTree == null && !opts.html) {
+        printStatistics(
+            env, out, options.getResidue(), runtime.getWorkspaceName(), sections, opts, pool,
+            fullLoads);
       } else {
         for (String name : options.getResidue()) {
           Path profileFile = env.getWorkingDirectory().getRelative(name);
@@ -243,45 +288,30 @@ public final class ProfileCommand implements BlazeCommand {
               continue;
             }
 
-            PhaseSummaryStatistics phaseSummaryStatistics = new PhaseSummaryStatistics(info);
-            EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics =
-                new EnumMap<>(ProfilePhase.class);
-            for (ProfilePhase phase : ProfilePhase.values()) {
-              phaseStatistics.put(
-                  phase,
-                  new PhaseStatistics(
-                      phase, info, runtime.getWorkspaceName(), opts.vfsStatsLimit > 0));
-            }
+            ProfileStatistics statistics =
+                ProfileStatistics.create(
+                    info,
+                    runtime.getWorkspaceName(),
+                    opts.vfsStatsLimit > 0,
+                    EnumSet.allOf(ProfilePhase.class),
+                    true);
+            Path htmlFile =
+                profileFile.getParentDirectory().getChild(profileFile.getBaseName() + ".html");
 
-            CriticalPathStatistics critPathStats = new CriticalPathStatistics(info);
-            if (opts.html) {
-              Path htmlFile =
-                  profileFile.getParentDirectory().getChild(profileFile.getBaseName() + ".html");
-
-              env.getReporter().handle(Event.info("Creating HTML output in " + htmlFile));
-
-              HtmlCreator.create(
-                  info,
-                  htmlFile,
-                  phaseSummaryStatistics,
-                  phaseStatistics,
-                  critPathStats,
-                  info.getMissingActionsCount(),
-                  opts.htmlDetails,
-                  opts.htmlPixelsPerSecond,
-                  opts.vfsStatsLimit,
-                  opts.chart,
-                  opts.htmlHistograms);
-            } else {
-              new PhaseText(
-                      out,
-                      phaseSummaryStatistics,
-                      phaseStatistics,
-                      Optional.of(critPathStats),
-                      info.getMissingActionsCount(),
-                      opts.vfsStatsLimit)
-                  .print();
-            }
+            env.getReporter().handle(Event.info("Creating HTML output in " + htmlFile));
+
+            HtmlCreator.create(
+                info,
+                htmlFile,
+                statistics.getSummaryStatistics(),
+                statistics.getPhaseStatistics(),
+                statistics.getCriticalPathStatistics().get(),
+                statistics.getMissingActionsCount(),
+                opts.htmlDetails,
+                opts.htmlPixelsPerSecond,
+                opts.vfsStatsLimit,
+                opts.chart,
+                opts.htmlHistograms);
           } catch (IOException e) {
             System.out.println(e);
             env
@@ -290,10 +320,132 @@ public final class ProfileCommand implements BlazeCommand {
           }
         }
       }
+    } finally {
+      pool.shutdown();
     }
     return ExitCode.SUCCESS;
   }
 
+  /**
+   * Prints the text statistics of each profile file. The files are loaded and analyzed in
+   * parallel, but printed in the given order.
+   *
+   * @param fullLoads bounds how many files in the deflated format are loaded at once
+   */
+  private void printStatistics(
+      CommandEnvironment env,
+      PrintStream out,
+      List<String> files,
+      String workspaceName,
+      Set<Section> sections,
+      ProfileOptions opts,
+      ForkJoinPool pool,
+      Semaphore fullLoads) {
+    boolean criticalPath = sections.contains(Section.CRITICAL_PATH);
+    Set<ProfilePhase> phases = EnumSet.noneOf(ProfilePhase.class);
+    if (sections.contains(Section.PHASES)) {
+      phases = EnumSet.allOf(ProfilePhase.class);
+    } else if (criticalPath) {
+      // The critical path breakdown is relative to the execution time.
+      phases = EnumSet.of(ProfilePhase.EXECUTE);
+    }
+
+    List<AnalyzeProfileAction> actions = new ArrayList<>();
+    for (String name : files) {
+      AnalyzeProfileAction action = new AnalyzeProfileAction(
+          env.getWorkingDirectory().getRelative(name), getInfoListener(env), workspaceName,
+          opts.vfsStatsLimit > 0, phases, criticalPath, fullLoads);
+      pool.execute(action);
+      actions.add(action);
+    }
+    for (AnalyzeProfileAction action : actions) {
+      action.join();
+      if (action.error != null) {
+        env
+            .getReporter()
+            .handle(Event.error("Failed to analyze profile file(s): " + action.error.getMessage()));
+        continue;
+      }
+      ProfileStatistics statistics = action.statistics;
+      new PhaseText(
+              out,
+              sections,
+              statistics.getSummaryStatistics(),
+              statistics.getPhaseStatistics(),
+              statistics.getCriticalPathStatistics(),
+              statistics.getMissingActionsCount(),
+              opts.vfsStatsLimit)
+          .print();
+    }
+  }
+
+  /**
+   * Loads a profile file and computes the statistics for the text output.
+   */
+  private static final class AnalyzeProfileAction extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Path profileFile;
+    private final InfoListener listener;
+    private final String workspaceName;
+    private final boolean vfsStats;
+    private final Set<ProfilePhase> phases;
+    private final boolean criticalPath;
+    private final Semaphore fullLoads;
+
+    private ProfileStatistics statistics;
+    private IOException error;
+
+    AnalyzeProfileAction(Path profileFile, InfoListener listener, String workspaceName,
+        boolean vfsStats, Set<ProfilePhase> phases, boolean criticalPath, Semaphore fullLoads) {
+      this.profileFile = profileFile;
+      this.listener = listener;
+      this.workspaceName = workspaceName;
+      this.vfsStats = vfsStats;
+      this.phases = phases;
+      this.criticalPath = criticalPath;
+      this.fullLoads = fullLoads;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (ColumnarProfile.isColumnarProfile(profileFile)) {
+          statistics = ProfileStatistics.create(loadColumnarProfile(), phases, criticalPath);
+        } else {
+          fullLoads.acquireUninterruptibly();
+          try {
+            ProfileInfo info = ProfileInfo.loadProfileVerbosely(profileFile, listener);
+            ProfileInfo.aggregateProfile(info, listener);
+            statistics =
+                ProfileStatistics.create(info, workspaceName, vfsStats, phases, criticalPath);
+          } finally {
+            fullLoads.release();
+          }
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+
+    /**
+     * Loads a profile in the columnar format, which only needs to scan the columns of the profile
+     * file instead of loading all tasks.
+     */
+    private ColumnarProfile loadColumnarProfile() throws IOException {
+      listener.info("Loading " + profileFile.getPathString());
+      ColumnarProfile profile = ColumnarProfile.load(profileFile);
+      if (profile.isCorruptedOrIncomplete()) {
+        listener.warn("Profile file is incomplete or corrupted - not all records were parsed");
+      }
+      listener.info(profile.getComment() + ", " + profile.getTaskCount() + " record(s)");
+      if (vfsStats) {
+        listener.warn("VFS path statistics are not available for columnar profiles");
+      }
+      return profile;
+    }
+  }
+
   /**
    * Prints trees rooted at tasks with a description matching a pattern.
    * @see Task#printTaskTree(PrintStream, long)
@@ -23,12 +23,15 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.QueryResultCache;
+import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.output.AspectResolver;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
 import com.google.devtools.build.lib.query2.output.QueryOptions;
@@ -49,8 +52,12 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
 
 /**
  * Command line wrapper for executing a query with blaze.
@@ -66,6 +73,8 @@ import java.util.Set;
          canRunInOutputDirectory = true)
 public final class QueryCommand implements BlazeCommand {
 
+  private static final Logger LOG = Logger.getLogger(QueryCommand.class.getName());
+
   @Override
   public void editOptions(CommandEnvironment env, OptionsParser optionsParser) { }
 
@@ -86,6 +95,11 @@ public final class QueryCommand implements BlazeCommand {
       env.setupPackageCache(
           options.getOptions(PackageCacheOptions.class),
           runtime.getDefaultsPackageContent());
+      if (queryOptions.cacheQueryResults) {
+        // The version of the package graph that cached results are keyed on must reflect the
+        // files that changed since the last command.
+        env.getSkyframeExecutor().applyPendingInvalidations(env.getReporter());
+      }
     } catch (InterruptedException e) {
       env.getReporter().handle(Event.error("query interrupted"));
       return ExitCode.INTERRUPTED;
@@ -148,6 +162,28 @@ public final class QueryCommand implements BlazeCommand {
       return ExitCode.COMMAND_LINE_ERROR;
     }
 
+    QueryResultCache cache = queryOptions.cacheQueryResults ? runtime.getQueryResultCache() : null;
+    String cacheKey = null;
+    long version = 0;
+    if (cache != null) {
+      version = env.getSkyframeExecutor().getPackageGraphVersion();
+      cacheKey = Joiner.on('\n').join(expr, streamResults, queryOptions.keepGoing,
+          queryOptions.universeScope, settings, env.getTargetPatternEvaluator().getOffset());
+      QueryResultCache.Result cached = cache.get(cacheKey, version);
+      LOG.info(String.format("Query result cache %s: %d hits, %d misses",
+          cached != null ? "hit" : "miss", cache.getHitCount(), cache.getMissCount()));
+      if (cached != null) {
+        ExitCode exitCode = outputResult(env, queryOptions, formatter, cached);
+        if (exitCode != null) {
+          return exitCode;
+        }
+        if (cached.getTargets().isEmpty()) {
+          env.getReporter().handle(Event.info("Empty results"));
+        }
+        return ExitCode.SUCCESS;
+      }
+    }
+
     QueryEvalResult result;
     PrintStream output = null;
     OutputFormatterCallback<Target> callback;
@@ -161,9 +197,14 @@ public final class QueryCommand implements BlazeCommand {
     } else {
       callback = new AggregateAllOutputFormatterCallback<>();
     }
+    CollectingCallback collectingCallback = null;
+    if (cache != null && streamResults) {
+      collectingCallback = new CollectingCallback(callback, QueryResultCache.DEFAULT_MAX_TARGETS);
+    }
     try {
       callback.start();
-      result = queryEnv.evaluateQuery(expr, callback);
+      result = queryEnv.evaluateQuery(
+          expr, collectingCallback != null ? collectingCallback : callback);
     } catch (QueryException e) {
       // Keep consistent with reportBuildFileError()
       env.getReporter()
@@ -196,25 +237,21 @@ public final class QueryCommand implements BlazeCommand {
     }
 
     if (!streamResults) {
-      disableAnsiCharactersFiltering(env);
-      output = new PrintStream(env.getReporter().getOutErr().getOutputStream());
-
       // 3. Output results:
-      try {
-        Set<Target> targets = ((AggregateAllOutputFormatterCallback<Target>) callback).getOutput();
-        QueryOutputUtils.output(queryOptions, result,
-            targets, formatter, output,
-            queryOptions.aspectDeps.createResolver(
-                env.getPackageManager(), env.getReporter()));
-      } catch (ClosedByInterruptException | InterruptedException e) {
-        env.getReporter().handle(Event.error("query interrupted"));
-        return ExitCode.INTERRUPTED;
-      } catch (IOException e) {
-        env.getReporter().handle(Event.error("I/O error: " + e.getMessage()));
-        return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
-      } finally {
-        output.flush();
+      Set<Target> targets = ((AggregateAllOutputFormatterCallback<Target>) callback).getOutput();
+      QueryResultCache.Result orderedResult = QueryResultCache.Result.ordered(
+          QueryOutputUtils.extractSubgraph(result, targets));
+      if (cache != null && result.getSuccess()) {
+        cache.put(cacheKey, version, orderedResult);
+      }
+      ExitCode exitCode = outputResult(env, queryOptions, formatter, orderedResult);
+      if (exitCode != null) {
+        return exitCode;
       }
+    } else if (collectingCallback != null && collectingCallback.targets != null
+        && result.getSuccess()) {
+      cache.put(cacheKey, version,
+          QueryResultCache.Result.unordered(collectingCallback.targets));
     }
 
     if (result.isEmpty()) {
@@ -224,6 +261,36 @@ public final class QueryCommand implements BlazeCommand {
     return result.getSuccess() ? ExitCode.SUCCESS : ExitCode.PARTIAL_ANALYSIS_FAILURE;
   }
 
+  /**
+   * Prints a complete query result, either computed in full or taken from the cache, and returns
+   * the exit code of the command if that failed or null otherwise.
+   */
+  @Nullable
+  private static ExitCode outputResult(CommandEnvironment env, QueryOptions queryOptions,
+      OutputFormatter formatter, QueryResultCache.Result result) {
+    disableAnsiCharactersFiltering(env);
+    PrintStream output = new PrintStream(env.getReporter().getOutErr().getOutputStream());
+    AspectResolver aspectResolver =
+        queryOptions.aspectDeps.createResolver(env.getPackageManager(), env.getReporter());
+    try {
+      if (result.getGraph() != null) {
+        formatter.output(queryOptions, result.getGraph(), output, aspectResolver);
+      } else {
+        OutputFormatterCallback.processAllTargets(((StreamedFormatter) formatter)
+            .createStreamCallback(queryOptions, output, aspectResolver), result.getTargets());
+      }
+    } catch (ClosedByInterruptException | InterruptedException e) {
+      env.getReporter().handle(Event.error("query interrupted"));
+      return ExitCode.INTERRUPTED;
+    } catch (IOException e) {
+      env.getReporter().handle(Event.error("I/O error: " + e.getMessage()));
+      return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
+    } finally {
+      output.flush();
+    }
+    return null;
+  }
+
   /**
    * When Blaze is used with --color=no or not in a tty a ansi characters filter is set so that
    * we don't print fancy colors in non-supporting terminal outputs. But query output, specifically
@@ -260,6 +327,33 @@ public final class QueryCommand implements BlazeCommand {
         env.getPackageManager().getPackagePath());
   }
 
+  /**
+   * Passes streamed results on and keeps a copy of them for the cache, unless there are more than
+   * the given number of targets.
+   */
+  private static class CollectingCallback implements Callback<Target> {
+    private final Callback<Target> delegate;
+    private final int maxTargets;
+    @Nullable private List<Target> targets = new ArrayList<>();
+
+    CollectingCallback(Callback<Target> delegate, int maxTargets) {
+      this.delegate = delegate;
+      this.maxTargets = maxTargets;
+    }
+
+    @Override
+    public void process(Iterable<Target> partialResult)
+        throws QueryException, InterruptedException {
+      delegate.process(partialResult);
+      if (targets != null) {
+        Iterables.addAll(targets, partialResult);
+        if (targets.size() > maxTargets) {
+          targets = null;
+        }
+      }
+    }
+  }
+
   private static class AggregateAllOutputFormatterCallback<T> extends OutputFormatterCallback<T> {
 
     private Set<T> output = CompactHashSet.create();
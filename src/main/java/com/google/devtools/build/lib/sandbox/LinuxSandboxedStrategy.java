@@ -34,11 +34,15 @@ import com.google.devtools.build.lib.analysis.AnalysisUtils;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.config.RunUnder;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.rules.cpp.CppCompileAction;
 import com.google.devtools.build.lib.rules.fileset.FilesetActionContext;
 import com.google.devtools.build.lib.rules.test.TestRunnerAction;
+import com.google.devtools.build.lib.sandbox.SandboxPool.SandboxDirectory;
 import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
 import com.google.devtools.build.lib.unix.FilesystemUtils;
+import com.google.devtools.build.lib.unix.SpawnHelper;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
@@ -57,6 +61,8 @@ import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 /**
  * Strategy that uses sandboxing to execute a process.
  */
@@ -71,6 +77,8 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
   private final boolean verboseFailures;
   private final boolean sandboxDebug;
   private final StandaloneSpawnStrategy standaloneStrategy;
+  @Nullable private final SpawnHelper spawnHelper;
+  @Nullable private final SandboxPool sandboxPool;
   private final UUID uuid = UUID.randomUUID();
   private final AtomicInteger execCounter = new AtomicInteger();
 
@@ -79,14 +87,19 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
       BlazeDirectories blazeDirs,
       ExecutorService backgroundWorkers,
       boolean verboseFailures,
-      boolean sandboxDebug) {
+      boolean sandboxDebug,
+      @Nullable SpawnHelper spawnHelper,
+      @Nullable SandboxPool sandboxPool) {
     this.clientEnv = ImmutableMap.copyOf(clientEnv);
     this.blazeDirs = blazeDirs;
     this.execRoot = blazeDirs.getExecRoot();
     this.backgroundWorkers = Preconditions.checkNotNull(backgroundWorkers);
     this.verboseFailures = verboseFailures;
     this.sandboxDebug = sandboxDebug;
-    this.standaloneStrategy = new StandaloneSpawnStrategy(blazeDirs.getExecRoot(), verboseFailures);
+    this.spawnHelper = spawnHelper;
+    this.sandboxPool = sandboxPool;
+    this.standaloneStrategy =
+        new StandaloneSpawnStrategy(blazeDirs.getExecRoot(), verboseFailures, spawnHelper);
   }
 
   /**
@@ -110,30 +123,53 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
     }
 
     FileOutErr outErr = actionExecutionContext.getFileOutErr();
-
-    // The execId is a unique ID just for this invocation of "exec".
-    String execId = uuid + "-" + execCounter.getAndIncrement();
-
-    // Each invocation of "exec" gets its own sandbox.
-    Path sandboxPath =
-        execRoot.getRelative(Constants.PRODUCT_NAME + "-sandbox").getRelative(execId);
+    int timeout = getTimeout(spawn);
 
     ImmutableMap<Path, Path> mounts;
+    ImmutableSet<Path> createDirs;
+    SandboxDirectory sandboxDirectory = null;
+    Path sandboxPath;
+    Profiler.instance().startTask(ProfilerTask.SANDBOX_SETUP, spawn.getResourceOwner());
     try {
-      // Gather all necessary mounts for the sandbox.
-      mounts = getMounts(spawn, actionExecutionContext);
-    } catch (IllegalArgumentException | IOException e) {
-      throw new EnvironmentalExecException("Could not prepare mounts for sandbox execution", e);
-    }
+      try {
+        // Gather all necessary mounts for the sandbox.
+        mounts = getMounts(spawn, actionExecutionContext);
+      } catch (IllegalArgumentException | IOException e) {
+        throw new EnvironmentalExecException("Could not prepare mounts for sandbox execution", e);
+      }
 
-    ImmutableSet<Path> createDirs = createImportantDirs(spawn.getEnvironment());
+      createDirs = createImportantDirs(spawn.getEnvironment());
 
-    int timeout = getTimeout(spawn);
+      if (sandboxPool != null) {
+        try {
+          sandboxDirectory = sandboxPool.acquire(mounts);
+        } catch (IOException e) {
+          throw new EnvironmentalExecException("Could not prepare sandbox directory", e);
+        }
+        sandboxPath = sandboxDirectory.getRoot();
+      } else {
+        // The execId is a unique ID just for this invocation of "exec".
+        String execId = uuid + "-" + execCounter.getAndIncrement();
+
+        // Each invocation of "exec" gets its own sandbox.
+        sandboxPath =
+            execRoot.getRelative(Constants.PRODUCT_NAME + "-sandbox").getRelative(execId);
+      }
+    } finally {
+      Profiler.instance().completeTask(ProfilerTask.SANDBOX_SETUP);
+    }
 
     try {
       final NamespaceSandboxRunner runner =
           new NamespaceSandboxRunner(
-              execRoot, sandboxPath, mounts, createDirs, verboseFailures, sandboxDebug);
+              execRoot,
+              sandboxPath,
+              mounts,
+              createDirs,
+              verboseFailures,
+              sandboxDebug,
+              spawnHelper);
+      Profiler.instance().startTask(ProfilerTask.SANDBOX_EXECUTION, spawn.getResourceOwner());
       try {
         runner.run(
             spawn.getArguments(),
@@ -144,35 +180,61 @@ public class LinuxSandboxedStrategy implements SpawnActionContext {
             timeout,
             !spawn.getExecutionInfo().containsKey("requires-network"));
       } finally {
+        Profiler.instance().completeTask(ProfilerTask.SANDBOX_EXECUTION);
         // Due to the Linux kernel behavior, if we try to remove the sandbox too quickly after the
         // process has exited, we get "Device busy" errors because some of the mounts have not yet
         // been undone. A second later it usually works. We will just clean the old sandboxes up
         // using a background worker.
-        backgroundWorkers.execute(
-            new Runnable() {
-              @Override
-              public void run() {
-                try {
-                  while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                      runner.cleanup();
-                      return;
-                    } catch (IOException e2) {
-                      // Sleep & retry.
-                      Thread.sleep(250);
-                    }
-                  }
-                } catch (InterruptedException e) {
-                  // Exit.
-                }
-              }
-            });
+        backgroundWorkers.execute(new SandboxCleanup(runner, sandboxDirectory));
       }
     } catch (IOException e) {
       throw new UserExecException("I/O error during sandboxed execution", e);
     }
   }
 
+  /**
+   * Removes the sandbox of a finished spawn, or cleans it up for reuse if it came from the sandbox
+   * pool, retrying until the kernel has let go of its mounts.
+   */
+  private final class SandboxCleanup implements Runnable {
+    private final NamespaceSandboxRunner runner;
+    @Nullable private final SandboxDirectory sandboxDirectory;
+
+    SandboxCleanup(NamespaceSandboxRunner runner, @Nullable SandboxDirectory sandboxDirectory) {
+      this.runner = runner;
+      this.sandboxDirectory = sandboxDirectory;
+    }
+
+    @Override
+    public void run() {
+      boolean done = false;
+      Profiler.instance().startTask(ProfilerTask.SANDBOX_TEARDOWN, runner);
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            if (sandboxDirectory != null) {
+              sandboxPool.cleanUpAndRelease(sandboxDirectory);
+            } else {
+              runner.cleanup();
+            }
+            done = true;
+            return;
+          } catch (IOException e2) {
+            // Sleep & retry.
+            Thread.sleep(250);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Exit.
+      } finally {
+        if (!done && sandboxDirectory != null) {
+          sandboxPool.discard(sandboxDirectory);
+        }
+        Profiler.instance().completeTask(ProfilerTask.SANDBOX_TEARDOWN);
+      }
+    }
+  }
+
   private int getTimeout(Spawn spawn) throws ExecException {
     String timeoutStr = spawn.getExecutionInfo().get("timeout");
     if (timeoutStr != null) {
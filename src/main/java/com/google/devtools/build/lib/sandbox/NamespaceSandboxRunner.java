@@ -27,6 +27,8 @@ import com.google.devtools.build.lib.shell.AbnormalTerminationException;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.standalone.SpawnHelperRunner;
+import com.google.devtools.build.lib.unix.SpawnHelper;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.OsUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -41,6 +43,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Helper class for running the namespace sandbox. This runner prepares environment inside the
  * sandbox, handles sandbox output, performs cleanup and changes invocation if necessary.
@@ -56,6 +60,7 @@ public class NamespaceSandboxRunner {
   private final ImmutableSet<Path> createDirs;
   private final boolean verboseFailures;
   private final boolean sandboxDebug;
+  @Nullable private final SpawnHelper spawnHelper;
 
   public NamespaceSandboxRunner(
       Path execRoot,
@@ -63,7 +68,8 @@ public class NamespaceSandboxRunner {
       ImmutableMap<Path, Path> mounts,
       ImmutableSet<Path> createDirs,
       boolean verboseFailures,
-      boolean sandboxDebug) {
+      boolean sandboxDebug,
+      @Nullable SpawnHelper spawnHelper) {
     this.execRoot = execRoot;
     this.sandboxPath = sandboxPath;
     this.sandboxExecRoot = sandboxPath.getRelative(execRoot.asFragment().relativeTo("/"));
@@ -73,6 +79,7 @@ public class NamespaceSandboxRunner {
     this.createDirs = createDirs;
     this.verboseFailures = verboseFailures;
     this.sandboxDebug = sandboxDebug;
+    this.spawnHelper = spawnHelper;
   }
 
   static boolean isSupported(BlazeRuntime runtime) {
@@ -173,6 +180,13 @@ public class NamespaceSandboxRunner {
     commandLineArgs.add("--");
     commandLineArgs.addAll(spawnArguments);
 
+    if (spawnHelper != null) {
+      SpawnHelperRunner.run(
+          spawnHelper, commandLineArgs, spawnArguments, env, cwd, outErr, verboseFailures);
+      copyOutputs(outputs);
+      return;
+    }
+
     Command cmd = new Command(commandLineArgs.toArray(new String[0]), env, cwd);
 
     try {
@@ -187,7 +201,7 @@ public class NamespaceSandboxRunner {
       if (e instanceof AbnormalTerminationException) {
         TerminationStatus status =
             ((AbnormalTerminationException) e).getResult().getTerminationStatus();
-        timedOut = !status.exited() && (status.getTerminatingSignal() == 14 /* SIGALRM */);
+        timedOut = SpawnHelperRunner.timedOut(status);
       }
       String message =
           CommandFailureUtils.describeCommandFailure(
@@ -20,10 +20,13 @@ import com.google.devtools.build.lib.actions.Executor.ActionContext;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.unix.SpawnHelper;
 import com.google.devtools.build.lib.util.OS;
 
 import java.util.concurrent.ExecutorService;
 
+import javax.annotation.Nullable;
+
 /**
  * Provides the sandboxed spawn strategy.
  */
@@ -33,7 +36,11 @@ public class SandboxActionContextProvider extends ActionContextProvider {
   private final ImmutableList<ActionContext> strategies;
 
   public SandboxActionContextProvider(
-      CommandEnvironment env, BuildRequest buildRequest, ExecutorService backgroundWorkers) {
+      CommandEnvironment env,
+      BuildRequest buildRequest,
+      ExecutorService backgroundWorkers,
+      @Nullable SpawnHelper spawnHelper,
+      @Nullable SandboxPool sandboxPool) {
     boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
     boolean sandboxDebug = buildRequest.getOptions(SandboxOptions.class).sandboxDebug;
     Builder<ActionContext> strategies = ImmutableList.builder();
@@ -45,7 +52,9 @@ public class SandboxActionContextProvider extends ActionContextProvider {
               env.getDirectories(),
               backgroundWorkers,
               verboseFailures,
-              sandboxDebug));
+              sandboxDebug,
+              spawnHelper,
+              sandboxPool));
     }
 
     this.strategies = strategies.build();
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.sandbox;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.actions.ActionContextConsumer;
 import com.google.devtools.build.lib.actions.ActionContextProvider;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
@@ -25,6 +26,8 @@ import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.standalone.StandaloneModule;
+import com.google.devtools.build.lib.unix.SpawnHelper;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.common.options.OptionsBase;
@@ -44,6 +47,7 @@ public class SandboxModule extends BlazeModule {
   // Per-server state
   private ExecutorService backgroundWorkers;
   private Boolean sandboxingSupported = null;
+  private SandboxPool sandboxPool;
 
   // Per-command state
   private CommandEnvironment env;
@@ -61,8 +65,19 @@ public class SandboxModule extends BlazeModule {
     Preconditions.checkNotNull(buildRequest);
     Preconditions.checkNotNull(env);
     if (isSandboxingSupported(env.getRuntime())) {
+      // The spawn helper is owned by the standalone module, so that there is only one per server.
+      StandaloneModule standaloneModule = env.getRuntime().getBlazeModule(StandaloneModule.class);
+      SpawnHelper spawnHelper =
+          standaloneModule == null ? null : standaloneModule.getSpawnHelper(env, buildRequest);
       return ImmutableList.<ActionContextProvider>of(
-          new SandboxActionContextProvider(env, buildRequest, backgroundWorkers));
+          new SandboxActionContextProvider(
+              env,
+              buildRequest,
+              backgroundWorkers,
+              spawnHelper,
+              buildRequest.getOptions(SandboxOptions.class).reuseSandboxDirectories
+                  ? getSandboxPool(env.getRuntime())
+                  : null));
     }
 
     // For now, sandboxing is only supported on Linux and there's not much point in showing a scary
@@ -75,6 +90,15 @@ public class SandboxModule extends BlazeModule {
     return ImmutableList.of();
   }
 
+  private synchronized SandboxPool getSandboxPool(BlazeRuntime runtime) {
+    // The pool outlives commands, so that incremental builds start with warm sandboxes.
+    if (sandboxPool == null) {
+      sandboxPool =
+          new SandboxPool(runtime.getExecRoot().getRelative(Constants.PRODUCT_NAME + "-sandbox"));
+    }
+    return sandboxPool;
+  }
+
   @Override
   public Iterable<ActionContextConsumer> getActionContextConsumers() {
     Preconditions.checkNotNull(env);
@@ -38,4 +38,15 @@ public class SandboxOptions extends OptionsBase {
             + "Bazel or Skylark rules with debugging failures due to missing input files, etc."
   )
   public boolean sandboxDebug;
+
+  @Option(
+    name = "experimental_sandbox_reuse_directories",
+    defaultValue = "false",
+    category = "strategy",
+    help =
+        "Keep sandbox directories alive between actions and only add or remove the mount points "
+            + "that differ from the previous action, instead of creating and deleting a whole "
+            + "sandbox for every action. This speeds up actions with many inputs."
+  )
+  public boolean reuseSandboxDirectories;
 }
@@ -0,0 +1,208 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * A pool of sandbox directories that are reused across actions.
+ *
+ * <p>namespace-sandbox creates an empty file or directory in the sandbox for every mount point
+ * before it bind-mounts the inputs onto them. The mounts go away with the mount namespace when the
+ * action finishes, but the mount points stay. For actions with tens of thousands of inputs,
+ * creating and later deleting those mount points costs more than running the action. This pool
+ * keeps sandbox directories alive instead and only applies the difference between the mounts of
+ * the previous and the next action that use a directory.
+ *
+ * <p>At most one action uses a directory at a time, so the pool grows to the number of actions
+ * that run concurrently.
+ */
+@ThreadSafe
+final class SandboxPool {
+
+  /** A reusable sandbox directory together with the mounts it was last prepared for. */
+  static final class SandboxDirectory {
+    private final Path root;
+
+    /**
+     * The mounts whose mount points exist below {@link #root}, or null if the contents of the
+     * directory are unknown.
+     */
+    @Nullable private ImmutableMap<Path, Path> mounts;
+
+    private SandboxDirectory(Path root) {
+      this.root = root;
+    }
+
+    Path getRoot() {
+      return root;
+    }
+  }
+
+  private final Path sandboxBase;
+  private final Deque<SandboxDirectory> idle = new ArrayDeque<>();
+  private int directoriesCreated = 0;
+
+  SandboxPool(Path sandboxBase) {
+    this.sandboxBase = sandboxBase;
+  }
+
+  /**
+   * Returns a sandbox directory for an action with the given mounts. Mount points of the previous
+   * user of the directory that are not part of {@code mounts} are removed; the others are kept for
+   * namespace-sandbox to reuse.
+   */
+  SandboxDirectory acquire(ImmutableMap<Path, Path> mounts) throws IOException {
+    SandboxDirectory dir;
+    synchronized (this) {
+      dir = idle.pollFirst();
+      if (dir == null) {
+        dir = new SandboxDirectory(sandboxBase.getRelative("slot-" + directoriesCreated++));
+      }
+    }
+
+    try {
+      if (dir.mounts == null || !dir.root.exists()) {
+        // Either left behind by an earlier server, or something went wrong while cleaning it up.
+        if (dir.root.exists()) {
+          FileSystemUtils.deleteTree(dir.root);
+        }
+      } else {
+        removeStaleMountPoints(dir.root, dir.mounts, mounts);
+      }
+    } catch (IOException e) {
+      dir.mounts = null;
+      release(dir);
+      throw e;
+    }
+    dir.mounts = mounts;
+    return dir;
+  }
+
+  /**
+   * Removes everything that the action left behind in the directory except for its mount points,
+   * then returns the directory to the pool. This may block for a while and should be called from a
+   * background thread.
+   *
+   * <p>The kernel may take a moment to tear down the mounts after the action has exited, during
+   * which deleting files fails; callers should retry on {@link IOException}.
+   */
+  void cleanUpAndRelease(SandboxDirectory dir) throws IOException {
+    // If this throws, the directory stays out of the pool until a retry succeeds.
+    if (dir.mounts != null && dir.root.exists()) {
+      removeAllButMountPoints(dir.root, dir.mounts);
+    }
+    release(dir);
+  }
+
+  /**
+   * Returns the directory to the pool without cleaning it up; the next user deletes it entirely.
+   */
+  void discard(SandboxDirectory dir) {
+    dir.mounts = null;
+    release(dir);
+  }
+
+  private synchronized void release(SandboxDirectory dir) {
+    idle.addFirst(dir);
+  }
+
+  /** Returns the path of the mount point for {@code target} inside the sandbox {@code root}. */
+  static Path getMountPoint(Path root, Path target) {
+    return root.getRelative(target.asFragment().relativeTo("/"));
+  }
+
+  /**
+   * Deletes the mount points of {@code oldMounts} that are not mounted again (from the same source)
+   * in {@code newMounts}, and any directories that only existed to hold them.
+   */
+  @VisibleForTesting
+  static void removeStaleMountPoints(
+      Path root, Map<Path, Path> oldMounts, Map<Path, Path> newMounts) throws IOException {
+    Set<Path> neededDirs = null;
+    for (Map.Entry<Path, Path> mount : oldMounts.entrySet()) {
+      if (mount.getValue().equals(newMounts.get(mount.getKey()))) {
+        continue;
+      }
+      if (neededDirs == null) {
+        neededDirs = getAncestorsOfMountPoints(root, newMounts);
+      }
+      Path mountPoint = getMountPoint(root, mount.getKey());
+      if (mountPoint.exists(Symlinks.NOFOLLOW)) {
+        FileSystemUtils.deleteTree(mountPoint);
+      }
+      for (Path parent = mountPoint.getParentDirectory();
+          !parent.equals(root) && !neededDirs.contains(parent);
+          parent = parent.getParentDirectory()) {
+        if (!parent.exists(Symlinks.NOFOLLOW) || !parent.getDirectoryEntries().isEmpty()) {
+          break;
+        }
+        parent.delete();
+      }
+    }
+  }
+
+  /**
+   * Deletes everything below {@code root} that is neither a mount point of {@code mounts} nor a
+   * directory containing one. Mount points of directories are not descended into.
+   */
+  @VisibleForTesting
+  static void removeAllButMountPoints(Path root, Map<Path, Path> mounts) throws IOException {
+    Set<Path> mountPoints = new HashSet<>();
+    for (Path target : mounts.keySet()) {
+      mountPoints.add(getMountPoint(root, target));
+    }
+    removeAllBut(root, mountPoints, getAncestorsOfMountPoints(root, mounts));
+  }
+
+  private static void removeAllBut(Path dir, Set<Path> mountPoints, Set<Path> neededDirs)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      Path child = dir.getChild(dirent.getName());
+      if (mountPoints.contains(child)) {
+        continue;
+      }
+      if (neededDirs.contains(child) && dirent.getType() == Dirent.Type.DIRECTORY) {
+        removeAllBut(child, mountPoints, neededDirs);
+      } else {
+        FileSystemUtils.deleteTree(child);
+      }
+    }
+  }
+
+  private static Set<Path> getAncestorsOfMountPoints(Path root, Map<Path, Path> mounts) {
+    Set<Path> ancestors = new HashSet<>();
+    for (Path target : mounts.keySet()) {
+      for (Path parent = getMountPoint(root, target).getParentDirectory();
+          !parent.equals(root) && ancestors.add(parent);
+          parent = parent.getParentDirectory()) {}
+    }
+    return ancestors;
+  }
+}
@@ -18,6 +18,7 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.Mutability;
+import com.google.devtools.build.lib.syntax.PersistentAstCache;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.ValidationEnvironment;
 import com.google.devtools.build.lib.vfs.Path;
@@ -30,6 +31,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -44,9 +46,12 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  private final AtomicReference<PersistentAstCache> persistentAstCache;
 
-  public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+  public ASTFileLookupFunction(RuleClassProvider ruleClassProvider,
+      AtomicReference<PersistentAstCache> persistentAstCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @Override
@@ -96,6 +101,7 @@ public class ASTFileLookupFunction implements SkyFunction {
     //
     BuildFileAST ast = null;
     Path path = rootedPath.asPath();
+    PersistentAstCache cache = persistentAstCache.get();
     // Skylark files end with bzl
     boolean parseAsSkylark = filePathFragment.getPathString().endsWith(".bzl");
     try {
@@ -111,10 +117,11 @@ public class ASTFileLookupFunction implements SkyFunction {
                         /*astFileContentHashCode=*/null,
                         /*importMap=*/null)
                     .setupDynamic(Runtime.PKG_NAME, Runtime.NONE)
-                    .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE)));
+                    .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE)),
+                cache);
         }
       } else {
-        ast = BuildFileAST.parseBuildFile(path, astFileSize, env.getListener(), false);
+        ast = BuildFileAST.parseBuildFile(path, astFileSize, env.getListener(), false, cache);
       }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
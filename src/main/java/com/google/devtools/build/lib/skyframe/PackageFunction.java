@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -41,6 +42,8 @@ import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.packages.Preprocessor.AstAfterPreprocessing;
 import com.google.devtools.build.lib.packages.RuleVisibility;
 import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Counter;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
@@ -49,8 +52,10 @@ import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.Environment.Extension;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.PersistentAstCache;
 import com.google.devtools.build.lib.syntax.SkylarkImport;
 import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -73,8 +78,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -89,11 +96,22 @@ public class PackageFunction implements SkyFunction {
   private final Cache<PackageIdentifier, Preprocessor.AstAfterPreprocessing> astCache;
   private final AtomicBoolean showLoadingProgress;
   private final AtomicInteger numPackagesLoaded;
+  private final AtomicReference<PersistentAstCache> persistentAstCache;
   private final Profiler profiler = Profiler.instance();
   private final Label preludeLabel;
 
   // Not final only for testing.
   @Nullable private SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining;
+  // What the evaluations of packages in flight have computed so far, beyond the entries of astCache
+  // and packageFunctionCache. A state is created along with the astCache entry of its package and
+  // dropped when the evaluation of the package completes or fails, or by
+  // invalidateRestartStates() for evaluations that were abandoned.
+  private final Cache<PackageIdentifier, RestartState> restartStates =
+      CacheBuilder.newBuilder().build();
+
+  // The time that restarts did not spend redoing work; see MetricsRegistry.
+  private static final Counter restartReusedMicros =
+      MetricsRegistry.instance().counter("package.restart_reused_us");
 
   static final PathFragment DEFAULTS_PACKAGE_NAME = new PathFragment("tools/defaults");
 
@@ -104,6 +122,7 @@ public class PackageFunction implements SkyFunction {
       Cache<PackageIdentifier, LegacyBuilder> packageFunctionCache,
       Cache<PackageIdentifier, AstAfterPreprocessing> astCache,
       AtomicInteger numPackagesLoaded,
+      AtomicReference<PersistentAstCache> persistentAstCache,
       @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
@@ -116,6 +135,16 @@ public class PackageFunction implements SkyFunction {
     this.packageFunctionCache = packageFunctionCache;
     this.astCache = astCache;
     this.numPackagesLoaded = numPackagesLoaded;
+    this.persistentAstCache = persistentAstCache;
+  }
+
+  /**
+   * Drops the state of the evaluations that were abandoned without completing, e.g. because they
+   * were interrupted or another evaluation failed without keep-going. Must be called whenever the
+   * astCache and packageFunctionCache are cleared, since the states only complement their entries.
+   */
+  public void invalidateRestartStates() {
+    restartStates.invalidateAll();
   }
 
   public void setSkylarkImportLookupFunctionForInliningForTesting(
@@ -474,6 +503,7 @@ public class PackageFunction implements SkyFunction {
           packageLookupValue.getRoot(), packageId, legacyPkgBuilder, env);
     } catch (InternalInconsistentFilesystemException e) {
       packageFunctionCache.invalidate(packageId);
+      restartStates.invalidate(packageId);
       throw new PackageFunctionException(e,
           e.isTransient() ? Transience.TRANSIENT : Transience.PERSISTENT);
     }
@@ -486,6 +516,7 @@ public class PackageFunction implements SkyFunction {
               env, globPatterns, subincludes, packageId, legacyPkgBuilder.containsErrors());
     } catch (InternalInconsistentFilesystemException e) {
       packageFunctionCache.invalidate(packageId);
+      restartStates.invalidate(packageId);
       throw new PackageFunctionException(e,
           e.isTransient() ? Transience.TRANSIENT : Transience.PERSISTENT);
     }
@@ -502,6 +533,7 @@ public class PackageFunction implements SkyFunction {
 
     // We know this SkyFunction will not be called again, so we can remove the cache entry.
     packageFunctionCache.invalidate(packageId);
+    restartStates.invalidate(packageId);
 
     return new PackageValue(pkg);
   }
@@ -538,13 +570,18 @@ public class PackageFunction implements SkyFunction {
               ImmutableMap.<String, Extension>of(),
               ImmutableList.<Label>of());
     } else {
+      Map<SkyKey, SkyValue> inlinedImports = null;
+      if (skylarkImportLookupFunctionForInlining != null) {
+        inlinedImports = getRestartState(packageId).inlinedImports;
+      }
       importResult =
           fetchImportsFromBuildFile(
               buildFilePath,
               packageId,
               astAfterPreprocessing.ast,
               env,
-              skylarkImportLookupFunctionForInlining);
+              skylarkImportLookupFunctionForInlining,
+              inlinedImports);
     }
 
     return importResult;
@@ -553,6 +590,10 @@ public class PackageFunction implements SkyFunction {
   /**
    * Fetch the skylark loads for this BUILD file. If any of them haven't been computed yet,
    * returns null.
+   *
+   * @param inlinedImports the imports computed by earlier inline calls, which is updated with the
+   *     ones computed by this call; only used if {@code skylarkImportLookupFunctionForInlining} is
+   *     not null
    */
   @Nullable
   static SkylarkImportResult fetchImportsFromBuildFile(
@@ -560,7 +601,8 @@ public class PackageFunction implements SkyFunction {
       PackageIdentifier packageId,
       BuildFileAST buildFileAST,
       Environment env,
-      SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining)
+      @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
+      @Nullable Map<SkyKey, SkyValue> inlinedImports)
       throws PackageFunctionException, InterruptedException {
     ImmutableList<SkylarkImport> imports = buildFileAST.getImports();
     Map<String, Extension> importMap = Maps.newHashMapWithExpectedSize(imports.size());
@@ -617,9 +659,11 @@ public class PackageFunction implements SkyFunction {
         }
       } else {
         // Inlining calls to SkylarkImportLookupFunction
+        Preconditions.checkNotNull(inlinedImports, packageId);
+        SkylarkImportLookupFunction.requestImportedFiles(importLookupKeys, env, inlinedImports);
         for (SkyKey importLookupKey : importLookupKeys) {
           SkyValue skyValue = skylarkImportLookupFunctionForInlining.computeWithInlineCalls(
-              importLookupKey, env);
+              importLookupKey, env, inlinedImports);
           if (skyValue == null) {
             Preconditions.checkState(
                 env.valuesMissing(), "no skylark import value for %s", importLookupKey);
@@ -828,11 +872,17 @@ public class PackageFunction implements SkyFunction {
       Environment env)
       throws InterruptedException, PackageFunctionException {
     Package.LegacyBuilder pkgBuilder = packageFunctionCache.getIfPresent(packageId);
-    if (pkgBuilder == null) {
+    if (pkgBuilder != null) {
+      RestartState state = getRestartState(packageId);
+      logWorkReusedOnRestart(packageId, state.parsingNanos + state.packageCreationNanos);
+    } else {
       profiler.startTask(ProfilerTask.CREATE_PACKAGE, packageId.toString());
       try {
         AstAfterPreprocessing astAfterPreprocessing = astCache.getIfPresent(packageId);
-        if (astAfterPreprocessing == null) {
+        if (astAfterPreprocessing != null) {
+          logWorkReusedOnRestart(packageId, getRestartState(packageId).parsingNanos);
+        } else {
+          long parsingStartTime = BlazeClock.nanoTime();
           if (showLoadingProgress.get()) {
             env.getListener().handle(Event.progress("Loading package: " + packageId));
           }
@@ -867,7 +917,7 @@ public class PackageFunction implements SkyFunction {
           }
           StoredEventHandler astParsingEventHandler = new StoredEventHandler();
           BuildFileAST ast = PackageFactory.parseBuildFile(packageId, preprocessingResult.result,
-              preludeStatements, astParsingEventHandler);
+              preludeStatements, astParsingEventHandler, persistentAstCache.get());
           // If no globs were fetched during preprocessing, then there's no need to reuse *this
           // globber instance* during BUILD file evaluation; the correctness and performance
           // arguments below do not apply.
@@ -875,6 +925,10 @@ public class PackageFunction implements SkyFunction {
           astAfterPreprocessing = new AstAfterPreprocessing(preprocessingResult, ast,
               astParsingEventHandler, globberToStore);
           astCache.put(packageId, astAfterPreprocessing);
+          // Replaces any state left over from an evaluation that did not finish.
+          RestartState state = new RestartState();
+          state.parsingNanos = BlazeClock.nanoTime() - parsingStartTime;
+          restartStates.put(packageId, state);
         }
         SkylarkImportResult importResult;
         try {
@@ -885,12 +939,17 @@ public class PackageFunction implements SkyFunction {
               env);
         } catch (PackageFunctionException | InterruptedException e) {
           astCache.invalidate(packageId);
+          restartStates.invalidate(packageId);
           throw e;
         }
         if (importResult == null) {
           return null;
         }
         astCache.invalidate(packageId);
+        RestartState state = getRestartState(packageId);
+        // The imports are only needed to create the package.
+        state.inlinedImports.clear();
+        long packageCreationStartTime = BlazeClock.nanoTime();
         // If the globber was used to evaluate globs during preprocessing, it's important that we
         // reuse that globber during BUILD file evaluation for two reasons: (i) correctness, since
         // Skyframe deps are added after the fact (ii) performance, in the case that globs were
@@ -902,6 +961,7 @@ public class PackageFunction implements SkyFunction {
         pkgBuilder = packageFactory.createPackageFromPreprocessingAst(externalPkg, packageId,
             buildFilePath, astAfterPreprocessing, importResult.importMap,
             importResult.fileDependencies, defaultVisibility, globber);
+        state.packageCreationNanos = BlazeClock.nanoTime() - packageCreationStartTime;
         numPackagesLoaded.incrementAndGet();
         packageFunctionCache.put(packageId, pkgBuilder);
       } finally {
@@ -911,6 +971,48 @@ public class PackageFunction implements SkyFunction {
     return pkgBuilder;
   }
 
+  /**
+   * Returns the state of the evaluation of the given package, or a new empty state if there is
+   * none, e.g. because the cache entries of the package were created by another instance of this
+   * function.
+   */
+  private RestartState getRestartState(PackageIdentifier packageId) {
+    RestartState state = restartStates.getIfPresent(packageId);
+    if (state == null) {
+      state = new RestartState();
+      restartStates.put(packageId, state);
+    }
+    return state;
+  }
+
+  /**
+   * Records that a restart of the evaluation of a package did not have to redo work that took the
+   * given time. The work did not happen now, so the profile gets an event that carries the time in
+   * its description rather than a task that lasts that long.
+   */
+  private void logWorkReusedOnRestart(PackageIdentifier packageId, long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    restartReusedMicros.add(micros);
+    profiler.logEvent(ProfilerTask.PACKAGE_RESTART_REUSE, packageId + " (" + micros + " us)");
+  }
+
+  /**
+   * What the evaluation of a package has computed so far and what it cost, kept between Skyframe
+   * restarts of the evaluation so that a restart resumes where the previous one stopped.
+   *
+   * <p>The preprocessed and parsed BUILD file and the package under construction, together with
+   * the globber that fetched its globs, are kept in astCache and packageFunctionCache, which the
+   * {@link SkyframeExecutor} clears at the start of every build.
+   */
+  private static class RestartState {
+    /** The Skylark imports computed by inline calls so far. */
+    final Map<SkyKey, SkyValue> inlinedImports = new HashMap<>();
+    /** The time spent reading, preprocessing and parsing the BUILD file. */
+    long parsingNanos;
+    /** The time spent evaluating the BUILD file into a package. */
+    long packageCreationNanos;
+  }
+
   private static class InternalInconsistentFilesystemException extends NoSuchPackageException {
     private boolean isTransient;
 
@@ -701,9 +701,14 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     }
 
     postEvent(new ActionStartedEvent(action, actionStartTime));
-    ResourceSet estimate = action.estimateResourceConsumption(executorEngine);
+    ResourceSet estimate = null;
     ActionExecutionStatusReporter statusReporter = statusReporterRef.get();
     try {
+      if (fetchFromDiskCache(action, context)) {
+        completeAction(action, context.getMetadataHandler(), context.getFileOutErr(), false);
+        return;
+      }
+      estimate = action.estimateResourceConsumption(executorEngine);
       if (estimate == null || estimate == ResourceSet.ZERO) {
         statusReporter.setRunningFromBuildData(action);
       } else {
@@ -714,6 +719,7 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
       boolean outputDumped = executeActionTask(action, context);
       completeAction(action, context.getMetadataHandler(),
           context.getFileOutErr(), outputDumped);
+      storeInDiskCache(action, context);
     } finally {
       if (estimate != null) {
         resourceManager.releaseResources(action, estimate);
@@ -723,6 +729,33 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     }
   }
 
+  /**
+   * Creates the outputs of {@code action} from the local disk cache, if any. A cache that cannot be
+   * read is reported as a warning and treated as a miss.
+   */
+  private boolean fetchFromDiskCache(Action action, ActionExecutionContext context) {
+    try {
+      return actionCacheChecker.fetchFromDiskCache(
+          action, context.getMetadataHandler(), context.getExecutor().getExecRoot());
+    } catch (IOException e) {
+      reporter.handle(Event.warn(
+          "failed to read outputs of " + action.prettyPrint() + " from the local disk cache: "
+              + e.getMessage()));
+      return false;
+    }
+  }
+
+  private void storeInDiskCache(Action action, ActionExecutionContext context) {
+    try {
+      actionCacheChecker.storeInDiskCache(
+          action, context.getMetadataHandler(), context.getExecutor().getExecRoot());
+    } catch (IOException e) {
+      reporter.handle(Event.warn(
+          "failed to store outputs of " + action.prettyPrint() + " in the local disk cache: "
+              + e.getMessage()));
+    }
+  }
+
   private ActionExecutionException processAndThrow(
       ActionExecutionException e, Action action, FileOutErr outErrBuffer)
       throws ActionExecutionException {
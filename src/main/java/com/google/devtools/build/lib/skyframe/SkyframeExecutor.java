@@ -73,6 +73,7 @@ import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.OutputService;
@@ -108,6 +109,7 @@ import com.google.devtools.build.lib.skyframe.AspectValue.AspectValueKey;
 import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.FileDirtinessChecker;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
+import com.google.devtools.build.lib.syntax.PersistentAstCache;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -130,12 +132,14 @@ import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.ImmutableDiff;
 import com.google.devtools.build.skyframe.Injectable;
+import com.google.devtools.build.skyframe.IntVersion;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.Version;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 
 import java.io.IOException;
@@ -197,6 +201,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache =
       newPkgFunctionCache();
   private final Cache<PackageIdentifier, AstAfterPreprocessing> astCache = newAstCache();
+  // Keeps the rest of the state of the PackageFunction between reruns, and is cleared along with
+  // the caches above.
+  private PackageFunction packageFunction;
 
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
 
@@ -214,6 +221,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected final AtomicReference<ImmutableSet<PackageIdentifier>> deletedPackages =
       new AtomicReference<>(ImmutableSet.<PackageIdentifier>of());
   private final AtomicReference<EventBus> eventBus = new AtomicReference<>();
+  // The on-disk cache of parsed BUILD and .bzl files, or null if it is disabled.
+  private final AtomicReference<PersistentAstCache> persistentAstCache = new AtomicReference<>();
 
   private final ImmutableList<BuildInfoFactory> buildInfoFactories;
   // Under normal circumstances, the artifact factory persists for the life of a Blaze server, but
@@ -245,6 +254,16 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
 
+  /**
+   * Set whenever a node other than an injected precomputed value is invalidated or deleted, that
+   * is, whenever a value that earlier results were computed from may have changed.
+   */
+  private final AtomicBoolean graphChanged = new AtomicBoolean(true);
+  /** The version returned by {@link #getPackageGraphVersion} until the graph changes again. */
+  private long packageGraphVersion;
+  /** The number of graph versions of the evaluators before the current one. */
+  private long previousEvaluatorVersions;
+
   private final BinTools binTools;
   private boolean needToInjectEmbeddedArtifacts = true;
   private boolean needToInjectPrecomputedValuesForAnalysis = true;
@@ -330,7 +349,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.DIRECTORY_LISTING, new DirectoryListingFunction());
     map.put(SkyFunctions.PACKAGE_LOOKUP, new PackageLookupFunction(deletedPackages));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(SkyFunctions.AST_FILE_LOOKUP,
+        new ASTFileLookupFunction(ruleClassProvider, persistentAstCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
@@ -346,8 +366,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.TEST_SUITE_EXPANSION, new TestSuiteExpansionFunction());
     map.put(SkyFunctions.TARGET_PATTERN_PHASE, new TargetPatternPhaseFunction());
     map.put(SkyFunctions.RECURSIVE_PKG, new RecursivePkgFunction(directories));
-    map.put(
-        SkyFunctions.PACKAGE,
+    PackageFunction packageFunction =
         newPackageFunction(
             pkgFactory,
             packageManager,
@@ -355,7 +374,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             packageFunctionCache,
             astCache,
             numPackagesLoaded,
-            ruleClassProvider));
+            ruleClassProvider);
+    map.put(SkyFunctions.PACKAGE, packageFunction);
+    this.packageFunction = packageFunction;
     map.put(SkyFunctions.PACKAGE_ERROR, new PackageErrorFunction());
     map.put(SkyFunctions.TARGET_MARKER, new TargetMarkerFunction());
     map.put(SkyFunctions.TRANSITIVE_TARGET, new TransitiveTargetFunction(ruleClassProvider));
@@ -413,6 +434,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageFunctionCache,
         astCache,
         numPackagesLoaded,
+        persistentAstCache,
         null);
   }
 
@@ -515,6 +537,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    * factory methods and as an implementation detail of {@link #resetEvaluator}).
    */
   protected void init() {
+    if (memoizingEvaluator != null) {
+      // Keep the versions of the new evaluator apart from those of the old one.
+      previousEvaluatorVersions = getGraphVersion() + 1;
+    }
+    graphChanged.set(true);
     progressReceiver = newSkyframeProgressReceiver();
     Map<SkyFunctionName, SkyFunction> skyFunctions = skyFunctions(
         directories.getBuildDataDirectory(), pkgFactory, allowedMissingInputs);
@@ -542,6 +569,37 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     reinjectConstantValuesLazily();
   }
 
+  /**
+   * Performs the invalidations that are pending since the last evaluation, such as those of the
+   * files that changed since the last command, so that {@link #getPackageGraphVersion} takes them
+   * into account.
+   */
+  public void applyPendingInvalidations(EventHandler eventHandler) throws InterruptedException {
+    buildDriver.evaluate(ImmutableList.<SkyKey>of(), false, DEFAULT_THREAD_COUNT, eventHandler);
+  }
+
+  /**
+   * Returns the version of the evaluator's graph when it was first read after a node other than an
+   * injected precomputed value was last invalidated or deleted, so that results computed from the
+   * graph can be reused while it stays the same. The versions keep growing when the evaluator is
+   * reset.
+   * Invalidations that are still pending are not taken into account, see
+   * {@link #applyPendingInvalidations}.
+   */
+  public synchronized long getPackageGraphVersion() {
+    if (graphChanged.getAndSet(false)) {
+      packageGraphVersion = getGraphVersion();
+    }
+    return packageGraphVersion;
+  }
+
+  /** Returns the version of the graph after the last evaluation, counting from the first one. */
+  private long getGraphVersion() {
+    Version version = memoizingEvaluator.getCurrentVersion();
+    return previousEvaluatorVersions
+        + (version == null ? 0 : ((IntVersion) version).getVal() + 1);
+  }
+
   protected abstract Differencer evaluatorDiffer();
 
   protected abstract BuildDriver newBuildDriver();
@@ -893,6 +951,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     // If the PackageFunction was interrupted, there may be stale entries here.
     packageFunctionCache.invalidateAll();
     astCache.invalidateAll();
+    packageFunction.invalidateRestartStates();
     numPackagesLoaded.set(0);
 
     // Reset the stateful SkyframeCycleReporter, which contains cycles from last run.
@@ -1579,6 +1638,24 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return memoizingEvaluator;
   }
 
+  private void syncPersistentAstCache(EventHandler eventHandler, Path directory, long maxSize) {
+    PersistentAstCache cache = persistentAstCache.get();
+    if (maxSize <= 0) {
+      cache = null;
+    } else if (cache == null
+        || !cache.getDirectory().equals(directory)
+        || cache.getMaxSizeBytes() != maxSize) {
+      try {
+        cache = new PersistentAstCache(directory, maxSize);
+      } catch (IOException e) {
+        eventHandler.handle(Event.warn(
+            "cannot use the cache of parsed files in " + directory + ": " + e.getMessage()));
+        cache = null;
+      }
+    }
+    persistentAstCache.set(cache);
+  }
+
   /**
    * Stores the set of loaded packages and, if needed, evicts ConfiguredTarget values.
    *
@@ -1600,6 +1677,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
         packageCacheOptions.globbingThreads, defaultsPackageContents, commandId);
     setDeletedPackages(ImmutableSet.copyOf(packageCacheOptions.deletedPackages));
+    pkgFactory.setSkylarkCompilerMode(
+        packageCacheOptions.skylarkCompilerMode, packageCacheOptions.skylarkCompileThreshold);
+    syncPersistentAstCache(eventHandler, outputBase.getRelative("ast_cache"),
+        packageCacheOptions.persistentAstCacheSize * 1024L * 1024L);
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
     invalidateTransientErrors();
@@ -1780,6 +1861,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
+      if (!skyKey.functionName().equals(SkyFunctions.PRECOMPUTED)) {
+        graphChanged.set(true);
+      }
       if (ignoreInvalidations) {
         return;
       }
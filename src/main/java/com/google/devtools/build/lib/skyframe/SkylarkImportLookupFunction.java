@@ -82,7 +82,7 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       InterruptedException {
     SkylarkImportLookupKey key = (SkylarkImportLookupKey) skyKey.argument();
     try {
-      return computeInternal(key.importLabel, key.inWorkspace, env, null);
+      return computeInternal(key.importLabel, key.inWorkspace, env, null, null);
     } catch (InconsistentFilesystemException e) {
       throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
     } catch (SkylarkImportFailedException e) {
@@ -90,26 +90,50 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     }
   }
 
-  SkyValue computeWithInlineCalls(SkyKey skyKey, Environment env)
+  /**
+   * Computes the value for the given key, making inline calls instead of requesting the values of
+   * the imports from Skyframe.
+   *
+   * @param computedValues the values of the keys that were already computed inline while
+   *     evaluating the same node. Since Skyframe keeps the dependencies requested by a node across
+   *     its restarts, the caller can keep this map across restarts, so that every file is only
+   *     loaded once.
+   */
+  SkyValue computeWithInlineCalls(
+      SkyKey skyKey, Environment env, Map<SkyKey, SkyValue> computedValues)
       throws InconsistentFilesystemException,
           SkylarkImportFailedException,
           InterruptedException {
-    return computeWithInlineCallsInternal(skyKey, env, new LinkedHashSet<Label>());
+    return computeWithInlineCallsInternal(
+        skyKey, env, new LinkedHashSet<Label>(), computedValues);
   }
 
   private SkyValue computeWithInlineCallsInternal(
-      SkyKey skyKey, Environment env, Set<Label> visited)
+      SkyKey skyKey, Environment env, Set<Label> visited, Map<SkyKey, SkyValue> computedValues)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
+    SkyValue value = computedValues.get(skyKey);
+    if (value != null) {
+      return value;
+    }
     SkylarkImportLookupKey key = (SkylarkImportLookupKey) skyKey.argument();
-    return computeInternal(
+    value = computeInternal(
         key.importLabel,
         key.inWorkspace,
         env,
-        Preconditions.checkNotNull(visited, key.importLabel));
+        Preconditions.checkNotNull(visited, key.importLabel),
+        computedValues);
+    if (value != null) {
+      computedValues.put(skyKey, value);
+    }
+    return value;
   }
 
   SkyValue computeInternal(
-      Label fileLabel, boolean inWorkspace, Environment env, @Nullable Set<Label> visited)
+      Label fileLabel,
+      boolean inWorkspace,
+      Environment env,
+      @Nullable Set<Label> visited,
+      @Nullable Map<SkyKey, SkyValue> computedValues)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
     PathFragment filePath = fileLabel.toPathFragment();
 
@@ -171,8 +195,10 @@ public class SkylarkImportLookupFunction implements SkyFunction {
         throw new SkylarkImportFailedException("Skylark import cycle");
       }
       skylarkImportMap = Maps.newHashMapWithExpectedSize(imports.size());
+      requestImportedFiles(importLookupKeys, env, computedValues);
       for (SkyKey importLookupKey : importLookupKeys) {
-        SkyValue skyValue = this.computeWithInlineCallsInternal(importLookupKey, env, visited);
+        SkyValue skyValue =
+            this.computeWithInlineCallsInternal(importLookupKey, env, visited, computedValues);
         if (skyValue == null) {
           Preconditions.checkState(
               env.valuesMissing(), "no skylark import value for %s", importLookupKey);
@@ -210,6 +236,26 @@ public class SkylarkImportLookupFunction implements SkyFunction {
         extension, new SkylarkFileDependency(fileLabel, fileDependencies.build()));
   }
 
+  /**
+   * Requests the files of the given imports that were not loaded yet in a single batch, before
+   * they are loaded one after the other by inline calls. Otherwise every inline call whose file is
+   * missing would only request it on its own, and the files would be read one at a time.
+   *
+   * <p>Errors are reported by the inline calls, which request the files again.
+   */
+  static void requestImportedFiles(
+      List<SkyKey> importLookupKeys, Environment env, Map<SkyKey, SkyValue> computedValues) {
+    List<SkyKey> astLookupKeys = Lists.newArrayListWithExpectedSize(importLookupKeys.size());
+    for (SkyKey importLookupKey : importLookupKeys) {
+      if (!computedValues.containsKey(importLookupKey)) {
+        SkylarkImportLookupKey key = (SkylarkImportLookupKey) importLookupKey.argument();
+        astLookupKeys.add(ASTFileLookupValue.key(key.importLabel));
+      }
+    }
+    env.getValuesOrThrow(astLookupKeys,
+        ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
+  }
+
   /**
    * Computes the set of Labels corresponding to a collection of PathFragments representing
    * absolute import paths.
@@ -356,10 +402,11 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     PathFragment extensionFile = extensionLabel.toPathFragment();
     try (Mutability mutability = Mutability.create("importing %s", extensionFile)) {
       com.google.devtools.build.lib.syntax.Environment extensionEnv =
-          ruleClassProvider
-              .createSkylarkRuleClassEnvironment(
-                  mutability, eventHandler, ast.getContentHashCode(), importMap)
-              .setupOverride("native", packageFactory.getNativeModule(inWorkspace));
+          packageFactory.withSkylarkCompilerMode(
+              ruleClassProvider
+                  .createSkylarkRuleClassEnvironment(
+                      mutability, eventHandler, ast.getContentHashCode(), importMap)
+                  .setupOverride("native", packageFactory.getNativeModule(inWorkspace)));
       ast.exec(extensionEnv, eventHandler);
       try {
         SkylarkRuleClassFunctions.exportRuleFunctionsAndAspects(extensionEnv, extensionLabel);
@@ -109,6 +109,7 @@ public class WorkspaceFileFunction implements SkyFunction {
             Label.EXTERNAL_PACKAGE_IDENTIFIER,
             parser.getBuildFileAST(),
             skyEnvironment,
+            null,
             null);
     if (importResult == null) {
       return false;
@@ -0,0 +1,89 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.standalone;
+
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.shell.Command;
+import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.unix.SpawnHelper;
+import com.google.devtools.build.lib.util.CommandFailureUtils;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs wrapped spawns through a {@link SpawnHelper} and reports their failures the same way as the
+ * strategies that fork the server.
+ */
+public final class SpawnHelperRunner {
+
+  private SpawnHelperRunner() {}
+
+  /**
+   * Returns whether a process run through process-wrapper or namespace-sandbox was killed because
+   * it exceeded its timeout.
+   */
+  public static boolean timedOut(TerminationStatus status) {
+    return !status.exited() && status.getTerminatingSignal() == 14 /* SIGALRM */;
+  }
+
+  /**
+   * Runs {@code commandLine} through the spawn helper, with the output going straight to the files
+   * backing {@code outErr} instead of being pumped through the server.
+   *
+   * @param commandLine the command line to run, including the process-wrapper or sandbox
+   * @param spawnArguments the arguments of the spawn itself, for the failure message
+   * @param env the environment of the subprocess
+   * @param cwd the working directory of the subprocess
+   * @param verboseFailures whether the failure message should contain the whole command
+   * @throws UserExecException if the process failed or timed out
+   * @throws EnvironmentalExecException if the process could not be run at all
+   */
+  public static void run(
+      SpawnHelper spawnHelper,
+      List<String> commandLine,
+      List<String> spawnArguments,
+      Map<String, String> env,
+      File cwd,
+      FileOutErr outErr,
+      boolean verboseFailures)
+      throws ExecException {
+    TerminationStatus status;
+    try {
+      status =
+          spawnHelper.execute(
+              commandLine,
+              env,
+              cwd,
+              "/dev/null",
+              outErr.getOutputFile().getPathString(),
+              outErr.getErrorFile().getPathString(),
+              Command.NO_OBSERVER);
+    } catch (IOException e) {
+      String message = CommandFailureUtils.describeCommandFailure(
+          verboseFailures, spawnArguments, env, cwd.getPath());
+      throw new EnvironmentalExecException(message, e);
+    }
+    if (!status.success()) {
+      String message = CommandFailureUtils.describeCommandFailure(
+          verboseFailures, spawnArguments, env, cwd.getPath());
+      throw new UserExecException(String.format("%s: %s", message, status), timedOut(status));
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactResolver;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor.ActionContext;
+import com.google.devtools.build.lib.actions.cache.DiskActionOutputCache;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.FileWriteStrategy;
@@ -33,10 +34,13 @@ import com.google.devtools.build.lib.rules.test.StandaloneTestStrategy;
 import com.google.devtools.build.lib.rules.test.TestActionContext;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.unix.SpawnHelper;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 
 import java.io.IOException;
 
+import javax.annotation.Nullable;
+
 /**
  * Provide a standalone, local execution context.
  */
@@ -67,14 +71,19 @@ public class StandaloneActionContextProvider extends ActionContextProvider {
   private final CommandEnvironment env;
   private final ImmutableList<ActionContext> strategies;
 
-  public StandaloneActionContextProvider(CommandEnvironment env, BuildRequest buildRequest) {
+  public StandaloneActionContextProvider(
+      CommandEnvironment env, BuildRequest buildRequest, @Nullable SpawnHelper spawnHelper) {
     this.env = env;
     BlazeRuntime runtime = env.getRuntime();
     boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
 
     TestActionContext testStrategy =
         new StandaloneTestStrategy(
-            buildRequest, runtime.getBinTools(), env.getClientEnv(), runtime.getWorkspace());
+            buildRequest,
+            runtime.getBinTools(),
+            env.getClientEnv(),
+            runtime.getWorkspace(),
+            getTestResultCache(runtime, buildRequest.getOptions(ExecutionOptions.class)));
 
     Builder<ActionContext> strategiesBuilder = ImmutableList.builder();
 
@@ -82,7 +91,7 @@ public class StandaloneActionContextProvider extends ActionContextProvider {
     // could potentially be used and a spawnActionContext doesn't specify which one it wants, the
     // last one from strategies list will be used
     strategiesBuilder.add(
-        new StandaloneSpawnStrategy(runtime.getExecRoot(), verboseFailures),
+        new StandaloneSpawnStrategy(runtime.getExecRoot(), verboseFailures, spawnHelper),
         new DummyIncludeScanningContext(),
         new SpawnLinkStrategy(),
         new SpawnGccStrategy(),
@@ -93,6 +102,25 @@ public class StandaloneActionContextProvider extends ActionContextProvider {
     this.strategies = strategiesBuilder.build();
   }
 
+  /**
+   * Returns the cache for test results, which shares its directory with the local disk cache for
+   * action outputs, or null if there is none.
+   */
+  @Nullable
+  private static DiskActionOutputCache getTestResultCache(
+      BlazeRuntime runtime, ExecutionOptions options) {
+    if (options.localDiskCache == null) {
+      return null;
+    }
+    try {
+      return new DiskActionOutputCache(runtime.getWorkspace().getRelative(options.localDiskCache),
+          options.localDiskCacheMaxSizeMb * 1024L * 1024L);
+    } catch (IOException e) {
+      // The ExecutionTool reports that the cache cannot be used.
+      return null;
+    }
+  }
+
   @Override
   public Iterable<ActionContext> getActionContexts() {
     return strategies;
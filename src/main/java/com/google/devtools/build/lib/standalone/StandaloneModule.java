@@ -18,21 +18,67 @@ import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionContextProvider;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.unix.SpawnHelper;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.util.OsUtils;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
 
 /**
  * StandaloneModule provides pluggable functionality for blaze.
  */
 public class StandaloneModule extends BlazeModule {
+  private static final Logger LOG = Logger.getLogger(StandaloneModule.class.getName());
+
+  // Per-server state
+  private SpawnHelper spawnHelper;
+
+  // Per-command state
   private CommandEnvironment env;
   private BuildRequest buildRequest;
 
   @Override
   public Iterable<ActionContextProvider> getActionContextProviders() {
     return ImmutableList.<ActionContextProvider>of(
-        new StandaloneActionContextProvider(env, buildRequest));
+        new StandaloneActionContextProvider(env, buildRequest, getSpawnHelper(env, buildRequest)));
+  }
+
+  /**
+   * Returns the spawn helper of this server if the build asks for one, starting it on first use.
+   * Returns null if subprocesses should be started by forking the server, which is also the
+   * fallback if the helper cannot be started.
+   */
+  @Nullable
+  public synchronized SpawnHelper getSpawnHelper(CommandEnvironment env, BuildRequest request) {
+    if (OS.getCurrent() == OS.WINDOWS
+        || !request.getOptions(ExecutionOptions.class).useSpawnHelper) {
+      return null;
+    }
+    if (spawnHelper == null) {
+      BlazeRuntime runtime = env.getRuntime();
+      try {
+        spawnHelper = SpawnHelper.start(
+            runtime.getExecRoot()
+                .getRelative("_bin/spawn-helper" + OsUtils.executableExtension())
+                .getPathFile(),
+            runtime.getServerDirectory().getRelative("spawn-helper.socket").getPathFile());
+      } catch (IOException e) {
+        env.getReporter().handle(Event.warn(
+            "Could not start the spawn helper, falling back to forking the server: "
+                + e.getMessage()));
+        return null;
+      }
+    }
+    return spawnHelper;
   }
 
   @Override
@@ -47,6 +93,18 @@ public class StandaloneModule extends BlazeModule {
     this.buildRequest = null;
   }
 
+  @Override
+  public synchronized void blazeShutdown() {
+    if (spawnHelper != null) {
+      try {
+        spawnHelper.close();
+      } catch (IOException e) {
+        LOG.warning("Failed to stop the spawn helper: " + e.getMessage());
+      }
+      spawnHelper = null;
+    }
+  }
+
   @Subscribe
   public void buildStarting(BuildStartingEvent event) {
     buildRequest = event.getRequest();
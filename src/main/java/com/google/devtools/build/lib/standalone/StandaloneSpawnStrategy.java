@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.shell.AbnormalTerminationException;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.unix.SpawnHelper;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.OsUtils;
@@ -38,6 +39,8 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Strategy that uses subprocessing to execute a process.
  */
@@ -46,10 +49,21 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
   private final boolean verboseFailures;
   private final Path processWrapper;
   private final Path execRoot;
+  @Nullable private final SpawnHelper spawnHelper;
 
   public StandaloneSpawnStrategy(Path execRoot, boolean verboseFailures) {
+    this(execRoot, verboseFailures, null);
+  }
+
+  /**
+   * Creates a strategy that starts its subprocesses through {@code spawnHelper} instead of forking
+   * the server, unless it is null.
+   */
+  public StandaloneSpawnStrategy(
+      Path execRoot, boolean verboseFailures, @Nullable SpawnHelper spawnHelper) {
     this.verboseFailures = verboseFailures;
     this.execRoot = execRoot;
+    this.spawnHelper = spawnHelper;
     this.processWrapper = execRoot.getRelative(
         "_bin/process-wrapper" + OsUtils.executableExtension());
   }
@@ -99,6 +113,18 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
     args.addAll(spawn.getArguments());
 
     String cwd = executor.getExecRoot().getPathString();
+    if (spawnHelper != null && OS.getCurrent() != OS.WINDOWS) {
+      SpawnHelperRunner.run(
+          spawnHelper,
+          args,
+          spawn.getArguments(),
+          locallyDeterminedEnv(spawn.getEnvironment()),
+          new File(cwd),
+          actionExecutionContext.getFileOutErr(),
+          verboseFailures);
+      return;
+    }
+
     Command cmd = new Command(args.toArray(new String[]{}),
         locallyDeterminedEnv(spawn.getEnvironment()), new File(cwd));
 
@@ -112,11 +138,11 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
           /*killSubprocessOnInterrupt*/ true);
     } catch (AbnormalTerminationException e) {
       TerminationStatus status = e.getResult().getTerminationStatus();
-      boolean timedOut = !status.exited() && (status.getTerminatingSignal() == 14 /* SIGALRM */);
       String message =
           CommandFailureUtils.describeCommandFailure(
               verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
-      throw new UserExecException(String.format("%s: %s", message, e), timedOut);
+      throw new UserExecException(
+          String.format("%s: %s", message, e), SpawnHelperRunner.timedOut(status));
     } catch (CommandException e) {
       String message = CommandFailureUtils.describeCommandFailure(
           verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
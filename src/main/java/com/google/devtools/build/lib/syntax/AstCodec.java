@@ -0,0 +1,573 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.AbstractComprehension.Clause;
+import com.google.devtools.build.lib.syntax.AbstractComprehension.ForClause;
+import com.google.devtools.build.lib.syntax.DictionaryLiteral.DictionaryEntryLiteral;
+import com.google.devtools.build.lib.syntax.IfStatement.ConditionalStatements;
+import com.google.devtools.build.lib.syntax.SkylarkImports.SkylarkImportSyntaxException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes the result of parsing a file in a compact binary format and reads it back, for the
+ * {@link PersistentAstCache}.
+ *
+ * <p>Every node is a tag byte followed by its location and its fields. Integers are written as
+ * variable-length quantities; every distinct string is written once and referred to by its index
+ * afterwards; a node that appears more than once in the tree is referred to by its index the
+ * second time, so that reading preserves the sharing. Locations are offsets into the parsed input;
+ * the line numbers are computed from the input when the file is read back.
+ *
+ * <p>Only the nodes that the {@link Parser} creates are supported. Bump {@link #VERSION} whenever
+ * the format or the AST classes change.
+ */
+final class AstCodec {
+
+  static final int VERSION = 1;
+
+  private static final int MAGIC = 0x41535443;
+
+  private static final int NULL = 0;
+  private static final int BACKREF = 1;
+  private static final int IDENTIFIER = 2;
+  private static final int STRING_LITERAL = 3;
+  private static final int INTEGER_LITERAL = 4;
+  private static final int LIST = 5;
+  private static final int TUPLE = 6;
+  private static final int DICTIONARY = 7;
+  private static final int DICTIONARY_ENTRY = 8;
+  private static final int FUNCALL = 9;
+  private static final int DOT = 10;
+  private static final int BINARY_OPERATOR = 11;
+  private static final int NOT = 12;
+  private static final int CONDITIONAL_EXPRESSION = 13;
+  private static final int LIST_COMPREHENSION = 14;
+  private static final int DICT_COMPREHENSION = 15;
+  private static final int POSITIONAL_ARGUMENT = 16;
+  private static final int KEYWORD_ARGUMENT = 17;
+  private static final int STAR_ARGUMENT = 18;
+  private static final int STAR_STAR_ARGUMENT = 19;
+  private static final int MANDATORY_PARAMETER = 20;
+  private static final int OPTIONAL_PARAMETER = 21;
+  private static final int STAR_PARAMETER = 22;
+  private static final int STAR_STAR_PARAMETER = 23;
+  private static final int ASSIGNMENT = 24;
+  private static final int EXPRESSION_STATEMENT = 25;
+  private static final int IF = 26;
+  private static final int CONDITIONAL_STATEMENTS = 27;
+  private static final int FOR = 28;
+  private static final int FUNCTION_DEF = 29;
+  private static final int RETURN = 30;
+  private static final int FLOW = 31;
+  private static final int LOAD = 32;
+  private static final int COMMENT = 33;
+
+  private static final int FOR_CLAUSE = 0;
+  private static final int IF_CLAUSE = 1;
+
+  private AstCodec() {}
+
+  /**
+   * Returns the statements and comments of the given parse result in binary form.
+   *
+   * @throws IllegalArgumentException if the tree contains a node the format does not support
+   */
+  static byte[] write(Parser.ParseResult result) {
+    Writer writer = new Writer();
+    writer.writeInt(MAGIC);
+    writer.writeInt(VERSION);
+    writer.writeNodes(result.statements);
+    writer.writeNodes(result.comments);
+    return writer.toByteArray();
+  }
+
+  /**
+   * Reads back a parse result written by {@link #write} for the given input.
+   *
+   * @throws IOException if the data is not in the expected format
+   */
+  static Parser.ParseResult read(byte[] data, ParserInputSource input) throws IOException {
+    Reader reader =
+        new Reader(data, LineNumberTable.create(input.getContent(), input.getPath()));
+    try {
+      if (reader.readInt() != MAGIC || reader.readInt() != VERSION) {
+        throw new IOException("not a syntax tree of version " + VERSION);
+      }
+      List<Statement> statements = reader.readNodes(Statement.class);
+      List<Comment> comments = reader.readNodes(Comment.class);
+      if (reader.pos != data.length) {
+        throw new IOException("unexpected data after the syntax tree");
+      }
+      Location location = statements.isEmpty()
+          ? Location.fromPathFragment(input.getPath())
+          : Lexer.createLocation(reader.lineNumberTable,
+              statements.get(0).getLocation().getStartOffset(),
+              statements.get(statements.size() - 1).getLocation().getEndOffset());
+      return new Parser.ParseResult(statements, comments, location, /*containsErrors=*/false);
+    } catch (RuntimeException e) {
+      throw new IOException("corrupt syntax tree: " + e, e);
+    }
+  }
+
+  private static final class Writer {
+    private byte[] buffer = new byte[4096];
+    private int size;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Object, Integer> nodes = new IdentityHashMap<>();
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+
+    private void writeByte(int b) {
+      if (size == buffer.length) {
+        buffer = Arrays.copyOf(buffer, size * 2);
+      }
+      buffer[size++] = (byte) b;
+    }
+
+    void writeInt(int value) {
+      writeByte(value >>> 24);
+      writeByte(value >>> 16);
+      writeByte(value >>> 8);
+      writeByte(value);
+    }
+
+    /** Writes a non-negative int in 7-bit groups, least significant first. */
+    void writeVarInt(int value) {
+      while ((value & ~0x7f) != 0) {
+        writeByte((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      writeByte(value);
+    }
+
+    void writeString(@Nullable String value) {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      Integer index = strings.get(value);
+      if (index != null) {
+        writeVarInt(index + 2);
+        return;
+      }
+      strings.put(value, strings.size());
+      writeVarInt(1);
+      writeVarInt(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        writeVarInt(value.charAt(i));
+      }
+    }
+
+    void writeLocation(@Nullable Location location) {
+      if (location == null) {
+        writeVarInt(0);
+      } else {
+        writeVarInt(location.getStartOffset() + 1);
+        writeVarInt(location.getEndOffset() - location.getStartOffset());
+      }
+    }
+
+    void writeNodes(List<? extends ASTNode> list) {
+      writeVarInt(list.size());
+      for (ASTNode node : list) {
+        writeNode(node);
+      }
+    }
+
+    void writeNode(@Nullable ASTNode node) {
+      if (node == null) {
+        writeVarInt(NULL);
+        return;
+      }
+      Integer index = nodes.get(node);
+      if (index != null) {
+        writeVarInt(BACKREF);
+        writeVarInt(index);
+        return;
+      }
+      writeFields(node);
+      nodes.put(node, nodes.size());
+    }
+
+    private void writeTag(int tag, ASTNode node) {
+      writeVarInt(tag);
+      writeLocation(node.getLocation());
+    }
+
+    private void writeFields(ASTNode node) {
+      if (node instanceof Identifier) {
+        writeTag(IDENTIFIER, node);
+        writeString(((Identifier) node).getName());
+      } else if (node instanceof StringLiteral) {
+        StringLiteral literal = (StringLiteral) node;
+        writeTag(STRING_LITERAL, node);
+        writeString(literal.getValue());
+        writeVarInt(literal.getQuoteChar());
+      } else if (node instanceof IntegerLiteral) {
+        int value = ((IntegerLiteral) node).getValue();
+        writeTag(INTEGER_LITERAL, node);
+        writeVarInt((value << 1) ^ (value >> 31));
+      } else if (node instanceof ListLiteral) {
+        ListLiteral literal = (ListLiteral) node;
+        writeTag(literal.isTuple() ? TUPLE : LIST, node);
+        writeNodes(literal.getElements());
+      } else if (node instanceof DictionaryLiteral) {
+        writeTag(DICTIONARY, node);
+        writeNodes(((DictionaryLiteral) node).getEntries());
+      } else if (node instanceof DictionaryEntryLiteral) {
+        DictionaryEntryLiteral entry = (DictionaryEntryLiteral) node;
+        writeTag(DICTIONARY_ENTRY, node);
+        writeNode(entry.getKey());
+        writeNode(entry.getValue());
+      } else if (node instanceof FuncallExpression) {
+        FuncallExpression call = (FuncallExpression) node;
+        writeTag(FUNCALL, node);
+        writeNode(call.getObject());
+        writeNode(call.getFunction());
+        writeNodes(call.getArguments());
+      } else if (node instanceof DotExpression) {
+        DotExpression dot = (DotExpression) node;
+        writeTag(DOT, node);
+        writeNode(dot.getObj());
+        writeNode(dot.getField());
+      } else if (node instanceof BinaryOperatorExpression) {
+        BinaryOperatorExpression binary = (BinaryOperatorExpression) node;
+        writeTag(BINARY_OPERATOR, node);
+        writeVarInt(binary.getOperator().ordinal());
+        writeNode(binary.getLhs());
+        writeNode(binary.getRhs());
+      } else if (node instanceof NotExpression) {
+        writeTag(NOT, node);
+        writeNode(((NotExpression) node).getExpression());
+      } else if (node instanceof ConditionalExpression) {
+        ConditionalExpression conditional = (ConditionalExpression) node;
+        writeTag(CONDITIONAL_EXPRESSION, node);
+        writeNode(conditional.getThenCase());
+        writeNode(conditional.getCondition());
+        writeNode(conditional.getElseCase());
+      } else if (node instanceof ListComprehension || node instanceof DictComprehension) {
+        AbstractComprehension comprehension = (AbstractComprehension) node;
+        writeTag(node instanceof ListComprehension ? LIST_COMPREHENSION : DICT_COMPREHENSION, node);
+        writeNodes(comprehension.getOutputExpressions());
+        writeVarInt(comprehension.getClauses().size());
+        for (Clause clause : comprehension.getClauses()) {
+          if (clause instanceof ForClause) {
+            writeVarInt(FOR_CLAUSE);
+            writeNode(clause.getLValue().getExpression());
+          } else {
+            writeVarInt(IF_CLAUSE);
+          }
+          writeNode(clause.getExpression());
+        }
+      } else if (node instanceof Argument.Passed) {
+        Argument.Passed argument = (Argument.Passed) node;
+        if (argument.isPositional()) {
+          writeTag(POSITIONAL_ARGUMENT, node);
+        } else if (argument.isKeyword()) {
+          writeTag(KEYWORD_ARGUMENT, node);
+          writeString(argument.getName());
+        } else if (argument.isStar()) {
+          writeTag(STAR_ARGUMENT, node);
+        } else {
+          writeTag(STAR_STAR_ARGUMENT, node);
+        }
+        writeNode(argument.getValue());
+      } else if (node instanceof Parameter) {
+        Parameter<?, ?> parameter = (Parameter<?, ?>) node;
+        if (parameter.getType() != null) {
+          throw new IllegalArgumentException("typed parameter " + parameter);
+        }
+        if (parameter.isMandatory()) {
+          writeTag(MANDATORY_PARAMETER, node);
+          writeString(parameter.getName());
+        } else if (parameter.isOptional()) {
+          writeTag(OPTIONAL_PARAMETER, node);
+          writeString(parameter.getName());
+          writeNode((Expression) parameter.getDefaultValue());
+        } else if (parameter.isStar()) {
+          writeTag(STAR_PARAMETER, node);
+          writeString(parameter.getName());
+        } else {
+          writeTag(STAR_STAR_PARAMETER, node);
+          writeString(parameter.getName());
+        }
+      } else if (node instanceof AssignmentStatement) {
+        AssignmentStatement assignment = (AssignmentStatement) node;
+        writeTag(ASSIGNMENT, node);
+        writeNode(assignment.getLValue().getExpression());
+        writeNode(assignment.getExpression());
+      } else if (node instanceof ExpressionStatement) {
+        writeTag(EXPRESSION_STATEMENT, node);
+        writeNode(((ExpressionStatement) node).getExpression());
+      } else if (node instanceof IfStatement) {
+        IfStatement statement = (IfStatement) node;
+        writeTag(IF, node);
+        writeNodes(statement.getThenBlocks());
+        writeNodes(statement.getElseBlock());
+      } else if (node instanceof ConditionalStatements) {
+        ConditionalStatements statements = (ConditionalStatements) node;
+        writeTag(CONDITIONAL_STATEMENTS, node);
+        writeNode(statements.getCondition());
+        writeNodes(statements.getStmts());
+      } else if (node instanceof ForStatement) {
+        ForStatement statement = (ForStatement) node;
+        writeTag(FOR, node);
+        writeNode(statement.getVariable().getExpression());
+        writeNode(statement.getCollection());
+        writeNodes(statement.block());
+      } else if (node instanceof FunctionDefStatement) {
+        FunctionDefStatement statement = (FunctionDefStatement) node;
+        writeTag(FUNCTION_DEF, node);
+        writeNode(statement.getIdent());
+        writeNodes(statement.getParameters());
+        writeNodes(statement.getStatements());
+      } else if (node instanceof ReturnStatement) {
+        writeTag(RETURN, node);
+        writeNode(((ReturnStatement) node).getReturnExpression());
+      } else if (node instanceof FlowStatement) {
+        writeTag(FLOW, node);
+        writeVarInt(((FlowStatement) node).getKind().ordinal());
+      } else if (node instanceof LoadStatement) {
+        LoadStatement statement = (LoadStatement) node;
+        writeTag(LOAD, node);
+        writeString(statement.getImport().getImportString());
+        writeLocation(statement.getImportLocation());
+        writeVarInt(statement.getSymbolMap().size());
+        for (Map.Entry<Identifier, String> symbol : statement.getSymbolMap().entrySet()) {
+          writeNode(symbol.getKey());
+          writeString(symbol.getValue());
+        }
+      } else if (node instanceof Comment) {
+        writeTag(COMMENT, node);
+        writeString(((Comment) node).getValue());
+      } else {
+        throw new IllegalArgumentException("unsupported node " + node.getClass().getName());
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final byte[] data;
+    private int pos;
+    private final LineNumberTable lineNumberTable;
+    private final List<String> strings = new ArrayList<>();
+    private final List<ASTNode> nodes = new ArrayList<>();
+
+    Reader(byte[] data, LineNumberTable lineNumberTable) {
+      this.data = data;
+      this.lineNumberTable = lineNumberTable;
+    }
+
+    int readInt() {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | (data[pos++] & 0xff);
+      }
+      return value;
+    }
+
+    int readVarInt() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = data[pos++];
+        value |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+
+    @Nullable
+    String readString() {
+      int index = readVarInt();
+      if (index == 0) {
+        return null;
+      } else if (index > 1) {
+        return strings.get(index - 2);
+      }
+      char[] chars = new char[readVarInt()];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = (char) readVarInt();
+      }
+      String value = new String(chars);
+      strings.add(value);
+      return value;
+    }
+
+    @Nullable
+    Location readLocation() {
+      int start = readVarInt() - 1;
+      if (start < 0) {
+        return null;
+      }
+      return Lexer.createLocation(lineNumberTable, start, start + readVarInt());
+    }
+
+    <T extends ASTNode> List<T> readNodes(Class<T> type) throws IOException {
+      int count = readVarInt();
+      List<T> list = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        list.add(readNode(type));
+      }
+      return list;
+    }
+
+    @Nullable
+    <T extends ASTNode> T readNode(Class<T> type) throws IOException {
+      int tag = readVarInt();
+      if (tag == NULL) {
+        return null;
+      } else if (tag == BACKREF) {
+        return type.cast(nodes.get(readVarInt()));
+      }
+      Location location = readLocation();
+      ASTNode node = readFields(tag);
+      node.setLocation(location);
+      nodes.add(node);
+      return type.cast(node);
+    }
+
+    private Expression readExpression() throws IOException {
+      return readNode(Expression.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ASTNode readFields(int tag) throws IOException {
+      switch (tag) {
+        case IDENTIFIER:
+          return new Identifier(readString());
+        case STRING_LITERAL:
+          return new StringLiteral(readString(), (char) readVarInt());
+        case INTEGER_LITERAL: {
+          int value = readVarInt();
+          return new IntegerLiteral((value >>> 1) ^ -(value & 1));
+        }
+        case LIST:
+          return ListLiteral.makeList(readNodes(Expression.class));
+        case TUPLE:
+          return ListLiteral.makeTuple(readNodes(Expression.class));
+        case DICTIONARY:
+          return new DictionaryLiteral(readNodes(DictionaryEntryLiteral.class));
+        case DICTIONARY_ENTRY:
+          return new DictionaryEntryLiteral(readExpression(), readExpression());
+        case FUNCALL:
+          return new FuncallExpression(readExpression(), readNode(Identifier.class),
+              readNodes(Argument.Passed.class));
+        case DOT:
+          return new DotExpression(readExpression(), readNode(Identifier.class));
+        case BINARY_OPERATOR:
+          return new BinaryOperatorExpression(
+              Operator.values()[readVarInt()], readExpression(), readExpression());
+        case NOT:
+          return new NotExpression(readExpression());
+        case CONDITIONAL_EXPRESSION:
+          return new ConditionalExpression(readExpression(), readExpression(), readExpression());
+        case LIST_COMPREHENSION:
+        case DICT_COMPREHENSION: {
+          List<Expression> outputs = readNodes(Expression.class);
+          AbstractComprehension comprehension = tag == LIST_COMPREHENSION
+              ? new ListComprehension(outputs.get(0))
+              : new DictComprehension(outputs.get(0), outputs.get(1));
+          int clauses = readVarInt();
+          for (int i = 0; i < clauses; i++) {
+            if (readVarInt() == FOR_CLAUSE) {
+              comprehension.addFor(readExpression(), readExpression());
+            } else {
+              comprehension.addIf(readExpression());
+            }
+          }
+          return comprehension;
+        }
+        case POSITIONAL_ARGUMENT:
+          return new Argument.Positional(readExpression());
+        case KEYWORD_ARGUMENT:
+          return new Argument.Keyword(readString(), readExpression());
+        case STAR_ARGUMENT:
+          return new Argument.Star(readExpression());
+        case STAR_STAR_ARGUMENT:
+          return new Argument.StarStar(readExpression());
+        case MANDATORY_PARAMETER:
+          return new Parameter.Mandatory<Expression, Expression>(readString());
+        case OPTIONAL_PARAMETER:
+          return new Parameter.Optional<Expression, Expression>(readString(), readExpression());
+        case STAR_PARAMETER:
+          return new Parameter.Star<Expression, Expression>(readString());
+        case STAR_STAR_PARAMETER:
+          return new Parameter.StarStar<Expression, Expression>(readString());
+        case ASSIGNMENT:
+          return new AssignmentStatement(readExpression(), readExpression());
+        case EXPRESSION_STATEMENT:
+          return new ExpressionStatement(readExpression());
+        case IF:
+          return new IfStatement(
+              readNodes(ConditionalStatements.class), readNodes(Statement.class));
+        case CONDITIONAL_STATEMENTS:
+          return new ConditionalStatements(readExpression(), readNodes(Statement.class));
+        case FOR:
+          return new ForStatement(readExpression(), readExpression(), readNodes(Statement.class));
+        case FUNCTION_DEF: {
+          Identifier ident = readNode(Identifier.class);
+          List<Parameter<Expression, Expression>> parameters = new ArrayList<>();
+          for (Parameter<?, ?> parameter : readNodes(Parameter.class)) {
+            parameters.add((Parameter<Expression, Expression>) parameter);
+          }
+          FunctionSignature.WithValues<Expression, Expression> signature;
+          try {
+            signature = FunctionSignature.WithValues.<Expression, Expression>of(parameters);
+          } catch (FunctionSignature.SignatureException e) {
+            throw new IOException(e);
+          }
+          return new FunctionDefStatement(ident, parameters, signature, readNodes(Statement.class));
+        }
+        case RETURN:
+          return new ReturnStatement(readExpression());
+        case FLOW:
+          return new FlowStatement(FlowStatement.Kind.values()[readVarInt()]);
+        case LOAD: {
+          SkylarkImport imp;
+          try {
+            imp = SkylarkImports.create(readString());
+          } catch (SkylarkImportSyntaxException e) {
+            throw new IOException(e);
+          }
+          Location importLocation = readLocation();
+          int count = readVarInt();
+          Map<Identifier, String> symbols = new LinkedHashMap<>();
+          for (int i = 0; i < count; i++) {
+            symbols.put(readNode(Identifier.class), readString());
+          }
+          return new LoadStatement(imp, importLocation, symbols);
+        }
+        case COMMENT:
+          return new Comment(readString());
+        default:
+          throw new IOException("unknown node tag " + tag);
+      }
+    }
+  }
+}
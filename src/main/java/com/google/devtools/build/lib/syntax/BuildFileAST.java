@@ -171,8 +171,17 @@ public class BuildFileAST extends ASTNode {
                                             EventHandler eventHandler,
                                             boolean parsePython)
       throws IOException {
+    return parseBuildFile(buildFile, fileSize, eventHandler, parsePython, null);
+  }
+
+  public static BuildFileAST parseBuildFile(Path buildFile, long fileSize,
+                                            EventHandler eventHandler,
+                                            boolean parsePython,
+                                            @Nullable PersistentAstCache cache)
+      throws IOException {
     ParserInputSource inputSource = ParserInputSource.create(buildFile, fileSize);
-    return parseBuildFile(inputSource, eventHandler, parsePython);
+    return parseBuildFile(inputSource, ImmutableList.<Statement>of(), eventHandler, parsePython,
+        cache);
   }
 
   /**
@@ -183,7 +192,19 @@ public class BuildFileAST extends ASTNode {
                                             List<Statement> preludeStatements,
                                             EventHandler eventHandler,
                                             boolean parsePython) {
-    Parser.ParseResult result = Parser.parseFile(input, eventHandler, parsePython);
+    return parseBuildFile(input, preludeStatements, eventHandler, parsePython, null);
+  }
+
+  /**
+   * Parse the specified build file, returning its AST, through the given cache of parsed files if
+   * it is not null. All errors during scanning or parsing will be reported to the reporter.
+   */
+  public static BuildFileAST parseBuildFile(ParserInputSource input,
+                                            List<Statement> preludeStatements,
+                                            EventHandler eventHandler,
+                                            boolean parsePython,
+                                            @Nullable PersistentAstCache cache) {
+    Parser.ParseResult result = Parser.parseFile(input, eventHandler, parsePython, cache);
     return new BuildFileAST(preludeStatements, result);
   }
 
@@ -207,9 +228,22 @@ public class BuildFileAST extends ASTNode {
 
   public static BuildFileAST parseSkylarkFile(Path file, long fileSize, EventHandler eventHandler,
       ValidationEnvironment validationEnvironment) throws IOException {
+    return parseSkylarkFile(file, fileSize, eventHandler, validationEnvironment, null);
+  }
+
+  /**
+   * Parse the specified Skylark file, returning its AST, through the given cache of parsed files
+   * if it is not null. All errors during scanning, parsing or validation will be reported to the
+   * reporter.
+   *
+   * @throws IOException if the file cannot not be read.
+   */
+  public static BuildFileAST parseSkylarkFile(Path file, long fileSize, EventHandler eventHandler,
+      ValidationEnvironment validationEnvironment, @Nullable PersistentAstCache cache)
+      throws IOException {
     ParserInputSource input = ParserInputSource.create(file, fileSize);
     Parser.ParseResult result =
-        Parser.parseFileForSkylark(input, eventHandler, validationEnvironment);
+        Parser.parseFileForSkylark(input, eventHandler, validationEnvironment, cache);
     return new BuildFileAST(ImmutableList.<Statement>of(), result,
         HashCode.fromBytes(file.getMD5Digest()).toString());
   }
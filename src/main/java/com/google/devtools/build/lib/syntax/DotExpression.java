@@ -27,6 +27,8 @@ import net.bytebuddy.implementation.bytecode.constant.TextConstant;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Syntax node for a dot expression.
  * e.g.  obj.field, but not obj.method()
@@ -37,11 +39,25 @@ public final class DotExpression extends Expression {
 
   private final Identifier field;
 
+  // The struct field methods that this expression called, by receiver class. Null until the first
+  // call, and after deserialization.
+  @Nullable private transient volatile InlineCache<MethodDescriptor> structFieldCache;
+
   public DotExpression(Expression obj, Identifier field) {
     this.obj = obj;
     this.field = field;
   }
 
+  private InlineCache<MethodDescriptor> getStructFieldCache() {
+    InlineCache<MethodDescriptor> cache = structFieldCache;
+    if (cache == null) {
+      // A cache created by a racing thread is lost, which only costs a lookup.
+      cache = new InlineCache<>();
+      structFieldCache = cache;
+    }
+    return cache;
+  }
+
   public Expression getObj() {
     return obj;
   }
@@ -59,7 +75,22 @@ public final class DotExpression extends Expression {
   Object doEval(Environment env) throws EvalException, InterruptedException {
     Object objValue = obj.eval(env);
     String name = field.getName();
-    Object result = eval(objValue, name, getLocation(), env);
+    Object result;
+    if (objValue instanceof ClassObject) {
+      result = eval(objValue, name, getLocation(), env);
+    } else {
+      MethodDescriptor method = getStructFieldCache().get(objValue.getClass(), 0);
+      if (method == null) {
+        method = getStructField(objValue.getClass(), name, getLocation());
+        if (method != null) {
+          getStructFieldCache().put(objValue.getClass(), 0, method);
+        }
+      }
+      result = method == null
+          ? null
+          : FuncallExpression.callMethod(
+              method, name, objValue, new Object[] {}, getLocation(), env);
+    }
     return checkResult(objValue, result, name, getLocation());
   }
 
@@ -106,15 +137,25 @@ public final class DotExpression extends Expression {
       }
     }
 
-    List<MethodDescriptor> methods =
-        FuncallExpression.getMethods(objValue.getClass(), name, 0, loc);
+    MethodDescriptor method = getStructField(objValue.getClass(), name, loc);
+    if (method != null) {
+      return FuncallExpression.callMethod(method, name, objValue, new Object[] {}, loc, env);
+    }
+
+    return null;
+  }
+
+  /** Returns the method of the given class that implements a struct field, or null if none. */
+  @Nullable
+  private static MethodDescriptor getStructField(Class<?> objClass, String name, Location loc)
+      throws EvalException {
+    List<MethodDescriptor> methods = FuncallExpression.getMethods(objClass, name, 0, loc);
     if (methods != null && !methods.isEmpty()) {
       MethodDescriptor method = Iterables.getOnlyElement(methods);
       if (method.getAnnotation().structField()) {
-        return FuncallExpression.callMethod(method, name, objValue, new Object[] {}, loc, env);
+        return method;
       }
     }
-
     return null;
   }
 
@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.Mutability.Freezable;
 import com.google.devtools.build.lib.syntax.Mutability.MutabilityException;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction.CompilerMode;
 import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -183,6 +184,9 @@ public final class Environment implements Freezable {
     /** The set of known global variables of the caller. */
     @Nullable Set<String> knownGlobalVariables;
 
+    /** The resolved local variables of the caller. */
+    @Nullable Object[] localSlots;
+
     /** Whether the caller is in Skylark mode. */
     boolean isSkylark;
 
@@ -193,12 +197,14 @@ public final class Environment implements Freezable {
         Frame lexicalFrame,
         Frame globalFrame,
         Set<String> knownGlobalVariables,
+        Object[] localSlots,
         boolean isSkylark) {
       this.continuation = continuation;
       this.function = function;
       this.caller = caller;
       this.lexicalFrame = lexicalFrame;
       this.globalFrame = globalFrame;
+      this.localSlots = localSlots;
       this.isSkylark = isSkylark;
     }
   }
@@ -318,6 +324,13 @@ public final class Environment implements Freezable {
    */
   @Nullable private Set<String> knownGlobalVariables;
 
+  /**
+   * When in a function whose local variables were resolved by {@link ValidationEnvironment}, the
+   * values of these variables indexed by slot, null for the ones not assigned yet. Variables that
+   * were not resolved live in the lexical Frame instead.
+   */
+  @Nullable private Object[] localSlots;
+
   /**
    * When in a lexical (Skylark) frame, this lists the names of the functions in the call stack.
    * We currently use it to artificially disable recursion.
@@ -331,11 +344,25 @@ public final class Environment implements Freezable {
    * @param globals the global Frame that this function closes over from its definition Environment
    */
   void enterScope(BaseFunction function, FuncallExpression caller, Frame globals) {
+    enterScope(function, caller, globals, null);
+  }
+
+  /**
+   * Enters a scope like {@link #enterScope(BaseFunction, FuncallExpression, Frame)}, with an array
+   * holding the resolved local variables of the function.
+   *
+   * @param locals the local variables indexed by slot, with the parameters already assigned, or
+   *     null if the function has no resolved local variables
+   */
+  void enterScope(
+      BaseFunction function, FuncallExpression caller, Frame globals, @Nullable Object[] locals) {
     continuation = new Continuation(
-        continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables, isSkylark);
+        continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables,
+        localSlots, isSkylark);
     lexicalFrame = new Frame(mutability(), null);
     globalFrame = globals;
     knownGlobalVariables = new HashSet<String>();
+    localSlots = locals;
     isSkylark = true;
   }
 
@@ -347,6 +374,7 @@ public final class Environment implements Freezable {
     lexicalFrame = continuation.lexicalFrame;
     globalFrame = continuation.globalFrame;
     knownGlobalVariables = continuation.knownGlobalVariables;
+    localSlots = continuation.localSlots;
     isSkylark = continuation.isSkylark;
     continuation = continuation.continuation;
   }
@@ -356,6 +384,38 @@ public final class Environment implements Freezable {
    */
   @Nullable private String fileContentHashCode;
 
+  /**
+   * When user-defined functions called in this Environment are compiled to byte code.
+   */
+  private CompilerMode compilerMode = CompilerMode.OFF;
+
+  /**
+   * The number of interpreted calls after which a function is compiled in
+   * {@link CompilerMode#TIERED} mode.
+   */
+  private int compileThreshold;
+
+  /**
+   * Sets when user-defined functions called in this Environment are compiled to byte code.
+   * @param mode the compiler mode
+   * @param threshold the number of interpreted calls after which a function is compiled in
+   *     {@link CompilerMode#TIERED} mode
+   * @return this Environment, in fluid style
+   */
+  public Environment setCompilerMode(CompilerMode mode, int threshold) {
+    this.compilerMode = Preconditions.checkNotNull(mode);
+    this.compileThreshold = threshold;
+    return this;
+  }
+
+  CompilerMode getCompilerMode() {
+    return compilerMode;
+  }
+
+  int getCompileThreshold() {
+    return compileThreshold;
+  }
+
   /**
    * Is this Environment being evaluated during the loading phase?
    * This is fixed during Environment setup, and enables various functions
@@ -689,6 +749,41 @@ public final class Environment implements Freezable {
     return dynamicValue;
   }
 
+  /**
+   * Returns the value of the resolved local variable in the given slot of the current function.
+   * If the variable was not assigned yet, it is looked up by name like {@link #lookup(String)}
+   * does, which finds it among the global variables if it exists there.
+   */
+  Object lookupLocal(int slot, String varname) throws NoSuchVariableException {
+    Object value = localSlots[slot];
+    return value != null ? value : lookup(varname);
+  }
+
+  /**
+   * Assigns the resolved local variable in the given slot of the current function.
+   *
+   * <p>This is the counterpart of {@link #update} for resolved variables. {@link
+   * ValidationEnvironment} never resolves the names of dynamic variables, and a known global
+   * variable of the same name can only exist before the first assignment, since a local variable
+   * shadows it afterwards; so only the first assignment needs checking.
+   */
+  void updateLocal(int slot, String varname, Object value, Location loc) throws EvalException {
+    Preconditions.checkNotNull(value, "updateLocal(value == null)");
+    if (localSlots[slot] == null) {
+      LValue.checkNotKnownGlobal(this, varname, loc);
+    }
+    localSlots[slot] = value;
+  }
+
+  /**
+   * Returns the names of the dynamic variables, which are always looked up by name.
+   */
+  Set<String> getDynamicVariableNames() {
+    Set<String> vars = new HashSet<>();
+    dynamicFrame.addVariableNamesTo(vars);
+    return vars;
+  }
+
   /**
    * Like {@link #lookup(String)}, but instead of throwing an exception in the case
    * where <code>varname</code> is not defined, <code>defaultValue</code> is returned instead.
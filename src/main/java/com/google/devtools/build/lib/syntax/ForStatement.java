@@ -184,9 +184,10 @@ public final class ForStatement extends Statement {
     append(code, ByteCodeMethodCalls.BCIterator.next);
     // store current element into l-value
     code.add(variable.compileAssignment(this, debugAccessors, scope));
+    // count the iteration; continue statements jump to the header after this
+    append(code, new IntegerVariableIncrease(sizeCounterVariable, 1));
     // compile code for the body
     for (Statement statement : block) {
-      append(code, new IntegerVariableIncrease(sizeCounterVariable, 1));
       code.add(statement.compile(scope, loopLabels, debugInfo));
     }
     // compile code for the loop header
@@ -199,7 +200,6 @@ public final class ForStatement extends Statement {
         Jump.ifIntOperandToZero(PrimitiveComparison.NOT_EQUAL).to(loopBody));
     append(
         code,
-        breakLoop,
         // load arguments for checkConcurrentModification and call it
         originalIterable.load(),
         sizeCounterVariable.load(),
@@ -209,7 +209,9 @@ public final class ForStatement extends Statement {
             "checkConcurrentModification",
             Iterable.class,
             int.class,
-            ASTNode.class));
+            ASTNode.class),
+        // like the interpreter, a break skips the check
+        breakLoop);
     return ByteCodeUtils.compoundAppender(code);
   }
 }
@@ -44,6 +44,9 @@ import net.bytebuddy.implementation.bytecode.StackManipulation;
 import net.bytebuddy.implementation.bytecode.assign.TypeCasting;
 import net.bytebuddy.implementation.bytecode.constant.TextConstant;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -68,6 +71,8 @@ public final class FuncallExpression extends Expression {
   public static final class MethodDescriptor {
     private final Method method;
     private final SkylarkCallable annotation;
+    // A handle of type (Object, Object[])Object for the method, created on its first invocation.
+    @Nullable private volatile MethodHandle methodHandle;
 
     private MethodDescriptor(Method method, SkylarkCallable annotation) {
       this.method = method;
@@ -78,6 +83,45 @@ public final class FuncallExpression extends Expression {
       return method;
     }
 
+    /** Returns whether the method takes arguments of the types of the given ones. */
+    boolean acceptsArguments(List<Object> args) {
+      Class<?>[] params = method.getParameterTypes();
+      for (int i = 0; i < params.length; i++) {
+        if (!params[i].isAssignableFrom(args.get(i).getClass())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns a handle that invokes the method on a receiver, which is ignored for static methods,
+     * with the arguments spread from an array. Like {@link Method#invoke}, the handle wraps the
+     * exceptions thrown by the method in an {@link InvocationTargetException}; errors are not
+     * wrapped.
+     */
+    MethodHandle getMethodHandle() throws IllegalAccessException {
+      MethodHandle handle = methodHandle;
+      if (handle == null) {
+        // This happens when the interface is public but the implementation classes
+        // have reduced visibility.
+        method.setAccessible(true);
+        handle = MethodHandles.lookup().unreflect(method);
+        MethodHandle wrap = MethodHandles.dropArguments(
+            WRAP_TARGET_EXCEPTION.asType(
+                MethodType.methodType(handle.type().returnType(), Exception.class)),
+            1, handle.type().parameterList());
+        handle = MethodHandles.catchException(handle, Exception.class, wrap).asFixedArity()
+            .asSpreader(Object[].class, method.getParameterTypes().length);
+        if (Modifier.isStatic(method.getModifiers())) {
+          handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        handle = handle.asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+        methodHandle = handle;
+      }
+      return handle;
+    }
+
     /**
      * Returns the SkylarkCallable annotation corresponding to this method.
      */
@@ -86,6 +130,22 @@ public final class FuncallExpression extends Expression {
     }
   }
 
+  private static final MethodHandle WRAP_TARGET_EXCEPTION;
+
+  static {
+    try {
+      WRAP_TARGET_EXCEPTION = MethodHandles.lookup().findStatic(FuncallExpression.class,
+          "wrapTargetException", MethodType.methodType(Object.class, Exception.class));
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @SuppressWarnings("unused") // Called through WRAP_TARGET_EXCEPTION.
+  private static Object wrapTargetException(Exception e) throws InvocationTargetException {
+    throw new InvocationTargetException(e);
+  }
+
   private static final LoadingCache<Class<?>, Map<String, List<MethodDescriptor>>> methodCache =
       CacheBuilder.newBuilder()
       .initialCapacity(10)
@@ -190,6 +250,28 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  /**
+   * What a method call resolved to for a class of receiver: a builtin function of the receiver's
+   * type or a Java method with a single overload for the number of arguments.
+   */
+  private static final class ResolvedMethod {
+    @Nullable private final BaseFunction function;
+    private final boolean namespace;
+    @Nullable private final MethodDescriptor method;
+
+    private ResolvedMethod(
+        @Nullable BaseFunction function, boolean namespace, @Nullable MethodDescriptor method) {
+      this.function = function;
+      this.namespace = namespace;
+      this.method = method;
+    }
+  }
+
+  // Method calls are resolved once per receiver class, since it is the class that determines the
+  // method; the same holds for the functions of the receiver's Skylark type. Null until the first
+  // call, and after deserialization.
+  @Nullable private transient volatile InlineCache<ResolvedMethod> inlineCache;
+
   /**
    * Note: the grammar definition restricts the function value in a function
    * call expression to be a global identifier; however, the representation of
@@ -216,6 +298,16 @@ public final class FuncallExpression extends Expression {
     this(null, func, args);
   }
 
+  private InlineCache<ResolvedMethod> getInlineCache() {
+    InlineCache<ResolvedMethod> cache = inlineCache;
+    if (cache == null) {
+      // A cache created by a racing thread is lost, which only costs a lookup.
+      cache = new InlineCache<>();
+      inlineCache = cache;
+    }
+    return cache;
+  }
+
   /**
    * Returns the number of positional arguments.
    */
@@ -325,48 +417,53 @@ public final class FuncallExpression extends Expression {
 
   static Object callMethod(MethodDescriptor methodDescriptor, String methodName, Object obj,
       Object[] args, Location loc, Environment env) throws EvalException {
+    Method method = methodDescriptor.getMethod();
+    if (obj == null && !Modifier.isStatic(method.getModifiers())) {
+      throw new EvalException(loc, "Method '" + methodName + "' is not static");
+    }
+    MethodHandle handle;
     try {
-      Method method = methodDescriptor.getMethod();
-      if (obj == null && !Modifier.isStatic(method.getModifiers())) {
-        throw new EvalException(loc, "Method '" + methodName + "' is not static");
-      }
-      // This happens when the interface is public but the implementation classes
-      // have reduced visibility.
-      method.setAccessible(true);
-      Object result = method.invoke(obj, args);
-      if (method.getReturnType().equals(Void.TYPE)) {
-        return Runtime.NONE;
-      }
-      if (result == null) {
-        if (methodDescriptor.getAnnotation().allowReturnNones()) {
-          return Runtime.NONE;
-        } else {
-          throw new EvalException(loc,
-              "Method invocation returned None, please contact Skylark developers: " + methodName
-              + Printer.listString(ImmutableList.copyOf(args), "(", ", ", ")", null));
-        }
-      }
-      // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
-      result = SkylarkType.convertToSkylark(result, method, env);
-      if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
-        throw new EvalException(loc, Printer.format(
-            "Method '%s' returns an object of invalid type %r", methodName, result.getClass()));
-      }
-      return result;
+      handle = methodDescriptor.getMethodHandle();
     } catch (IllegalAccessException e) {
       // TODO(bazel-team): Print a nice error message. Maybe the method exists
       // and an argument is missing or has the wrong type.
       throw new EvalException(loc, "Method invocation failed: " + e);
+    }
+    Object result;
+    try {
+      result = handle.invokeExact(obj, args);
     } catch (InvocationTargetException e) {
       if (e.getCause() instanceof FuncallException) {
         throw new EvalException(loc, e.getCause().getMessage());
-      } else if (e.getCause() != null) {
+      } else {
         throw new EvalExceptionWithJavaCause(loc, e.getCause());
+      }
+    } catch (RuntimeException | Error e) {
+      // Errors, and a ClassCastException or WrongMethodTypeException if the arguments do not fit
+      // the method, are not thrown by the method itself.
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+    if (method.getReturnType().equals(Void.TYPE)) {
+      return Runtime.NONE;
+    }
+    if (result == null) {
+      if (methodDescriptor.getAnnotation().allowReturnNones()) {
+        return Runtime.NONE;
       } else {
-        // This is unlikely to happen
-        throw new EvalException(loc, "Method invocation failed: " + e);
+        throw new EvalException(loc,
+            "Method invocation returned None, please contact Skylark developers: " + methodName
+            + Printer.listString(ImmutableList.copyOf(args), "(", ", ", ")", null));
       }
     }
+    // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
+    result = SkylarkType.convertToSkylark(result, method, env);
+    if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      throw new EvalException(loc, Printer.format(
+          "Method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+    }
+    return result;
   }
 
   // TODO(bazel-team): If there's exactly one usable method, this works. If there are multiple
@@ -378,17 +475,7 @@ public final class FuncallExpression extends Expression {
     List<MethodDescriptor> methods = getMethods(objClass, methodName, args.size(), getLocation());
     if (methods != null) {
       for (MethodDescriptor method : methods) {
-        Class<?>[] params = method.getMethod().getParameterTypes();
-        int i = 0;
-        boolean matching = true;
-        for (Class<?> param : params) {
-          if (!param.isAssignableFrom(args.get(i).getClass())) {
-            matching = false;
-            break;
-          }
-          i++;
-        }
-        if (matching) {
+        if (method.acceptsArguments(args)) {
           if (matchingMethod == null) {
             matchingMethod = method;
           } else {
@@ -550,20 +637,6 @@ public final class FuncallExpression extends Expression {
     }
   }
 
-  /**
-   * A {@link StackManipulation} invoking invokeObjectMethod.
-   * <p>Kept close to the definition of the method to avoid reflection errors when changing it.
-   */
-  private static final StackManipulation invokeObjectMethod =
-      ByteCodeUtils.invoke(
-          FuncallExpression.class,
-          "invokeObjectMethod",
-          String.class,
-          ImmutableList.class,
-          ImmutableMap.class,
-          FuncallExpression.class,
-          Environment.class);
-
   /**
    * Call a method depending on the type of an object it is called on.
    *
@@ -582,9 +655,27 @@ public final class FuncallExpression extends Expression {
     Location location = call.getLocation();
     Object value = positionals.get(0);
     ImmutableList<Object> positionalArgs = positionals.subList(1, positionals.size());
+    ResolvedMethod resolved = call.getInlineCache().get(value.getClass(), positionalArgs.size());
+    if (resolved != null) {
+      if (resolved.function != null) {
+        return resolved.function.call(
+            resolved.namespace ? positionalArgs : positionals,
+            ImmutableMap.<String, Object>copyOf(keyWordArgs),
+            call,
+            env);
+      }
+      if (keyWordArgs.isEmpty() && resolved.method.acceptsArguments(positionalArgs)) {
+        return callMethod(
+            resolved.method, method, value, positionalArgs.toArray(), location, env);
+      }
+      // Resolve the call again to report the error.
+    }
     BaseFunction function = Runtime.getFunction(EvalUtils.getSkylarkType(value.getClass()), method);
     if (function != null) {
-      if (!isNamespace(value.getClass())) {
+      boolean namespace = isNamespace(value.getClass());
+      call.getInlineCache().put(
+          value.getClass(), positionalArgs.size(), new ResolvedMethod(function, namespace, null));
+      if (!namespace) {
         // Use self as an implicit parameter in front.
         positionalArgs = positionals;
       }
@@ -625,10 +716,84 @@ public final class FuncallExpression extends Expression {
                 method,
                 EvalUtils.getDataTypeNameFromClass(objClass)));
       }
+      if (obj != null
+          && getMethods(objClass, method, positionalArgs.size(), location).size() == 1) {
+        // With other overloads, the method to call depends on the types of the arguments.
+        call.getInlineCache().put(
+            objClass, positionalArgs.size(), new ResolvedMethod(null, false, methodDescriptor));
+      }
       return callMethod(methodDescriptor, method, obj, positionalArgs.toArray(), location, env);
     }
   }
 
+  /**
+   * A {@link StackManipulation} invoking callFunction.
+   * <p>Kept close to the definition of the method to avoid reflection errors when changing it.
+   */
+  private static final StackManipulation callFunction =
+      ByteCodeUtils.invoke(
+          FuncallExpression.class,
+          "callFunction",
+          BaseFunction.class,
+          List.class,
+          Map.class,
+          FuncallExpression.class,
+          Environment.class);
+
+  /**
+   * Calls a function and adds the call to the stack trace of any error, as {@link
+   * Expression#eval} does for interpreted calls.
+   *
+   * <p>Public for reflection by the compiler and access from generated byte code.
+   */
+  public static Object callFunction(
+      BaseFunction function,
+      List<Object> positionals,
+      Map<String, Object> keyWordArgs,
+      FuncallExpression call,
+      Environment env)
+      throws EvalException, InterruptedException {
+    try {
+      return function.call(positionals, keyWordArgs, call, env);
+    } catch (EvalException | RuntimeException e) {
+      throw call.handleException(e);
+    }
+  }
+
+  /**
+   * A {@link StackManipulation} invoking callObjectMethod.
+   * <p>Kept close to the definition of the method to avoid reflection errors when changing it.
+   */
+  private static final StackManipulation callObjectMethod =
+      ByteCodeUtils.invoke(
+          FuncallExpression.class,
+          "callObjectMethod",
+          String.class,
+          ImmutableList.class,
+          ImmutableMap.class,
+          FuncallExpression.class,
+          Environment.class);
+
+  /**
+   * As {@link #invokeObjectMethod(String, ImmutableList, ImmutableMap, FuncallExpression,
+   * Environment)}, but adds the call to the stack trace of any error.
+   *
+   * <p>Public for reflection by the compiler and access from generated byte code.
+   */
+  public static Object callObjectMethod(
+      String method,
+      ImmutableList<Object> positionals,
+      ImmutableMap<String, Object> keyWordArgs,
+      FuncallExpression call,
+      Environment env)
+      throws EvalException, InterruptedException {
+    try {
+      return invokeObjectMethod(method, positionals, keyWordArgs, call, env);
+    } catch (EvalException | RuntimeException e) {
+      throw call.handleException(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private void evalArguments(ImmutableList.Builder<Object> posargs, Map<String, Object> kwargs,
       Environment env)
@@ -755,8 +920,8 @@ public final class FuncallExpression extends Expression {
    *
    * <p>The byte code leaves the arguments on the stack in order of:
    * positional arguments, key word arguments, this FuncallExpression, Environment
-   * This is the order required by {@link #invokeObjectMethod} and
-   *  {@link BaseFunction#call(List, Map, FuncallExpression, Environment)}.
+   * This is the order required by {@link #callObjectMethod} and
+   *  {@link #callFunction} after the function.
    */
   private void compileArguments(
       VariableScope scope,
@@ -820,7 +985,7 @@ public final class FuncallExpression extends Expression {
         new TextConstant(func.getName()),
         debugAccessors.loadLocation,
         checkDuplicates,
-        // load the arguments in the correct order for invokeObjectMethod and BaseFunction.call
+        // load the arguments in the correct order for callObjectMethod and callFunction
         positionalsBuilder.load(),
         ByteCodeMethodCalls.BCImmutableList.Builder.build,
         keyWordArgs.load(),
@@ -838,7 +1003,7 @@ public final class FuncallExpression extends Expression {
       throws EvalException {
     append(code, new TextConstant(func.getName()));
     compileArguments(scope, debugInfo, debugAccessors, code);
-    append(code, invokeObjectMethod);
+    append(code, callObjectMethod);
   }
 
   private void compileGlobalFunctionCall(
@@ -850,6 +1015,6 @@ public final class FuncallExpression extends Expression {
     code.add(func.compile(scope, debugInfo));
     append(code, debugAccessors.loadLocation, checkCallable);
     compileArguments(scope, debugInfo, debugAccessors, code);
-    append(code, BaseFunction.call);
+    append(code, callFunction);
   }
 }
@@ -34,6 +34,10 @@ public class FunctionDefStatement extends Statement {
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter<Expression, Expression>> parameters;
 
+  // The number of local variables resolved by validation, including the parameters, or -1 if the
+  // function was not validated and all of its variables are looked up by name.
+  private int localCount = -1;
+
   public FunctionDefStatement(Identifier ident,
       Iterable<Parameter<Expression, Expression>> parameters,
       FunctionSignature.WithValues<Expression, Expression> signature,
@@ -63,6 +67,7 @@ public class FunctionDefStatement extends Statement {
             FunctionSignature.WithValues.<Object, SkylarkType>create(
                 signature.getSignature(), defaultValues, types),
             statements,
+            localCount,
             env.getGlobals()));
   }
 
@@ -122,6 +127,7 @@ public class FunctionDefStatement extends Statement {
     for (Statement stmts : statements) {
       stmts.validate(localEnv);
     }
+    localCount = localEnv.resolveLocals(names.subList(0, args), statements);
   }
 
   @Override
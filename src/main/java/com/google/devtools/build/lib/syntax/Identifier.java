@@ -26,9 +26,6 @@ import javax.annotation.Nullable;
 // (1) intern the strings, so we can use == to compare, and have .equals use the assumption.
 // Then have Argument and Parameter use Identifier again instead of String as keys.
 // (2) Use Identifier, not String, as keys in the Environment, which will be cleaner.
-// (3) For performance, avoid doing HashMap lookups at runtime, and compile local variable access
-// into array reference with a constant index. Variable lookups are currently a speed bottleneck,
-// as previously measured in an experiment.
 /**
  *  Syntax node for an identifier.
  */
@@ -36,6 +33,10 @@ public final class Identifier extends Expression {
 
   private final String name;
 
+  // The slot of the local variable named by this identifier in the function containing it, as
+  // resolved by ValidationEnvironment, or -1 if the variable is looked up by name.
+  private int slot = -1;
+
   public Identifier(String name) {
     this.name = name;
   }
@@ -47,6 +48,18 @@ public final class Identifier extends Expression {
     return name;
   }
 
+  void setSlot(int slot) {
+    this.slot = slot;
+  }
+
+  /**
+   * Returns the slot of the local variable named by this identifier, or -1 if it is not a
+   * resolved local variable.
+   */
+  int getSlot() {
+    return slot;
+  }
+
   public boolean isPrivate() {
     return name.startsWith("_");
   }
@@ -73,7 +86,7 @@ public final class Identifier extends Expression {
   @Override
   Object doEval(Environment env) throws EvalException {
     try {
-      return env.lookup(name);
+      return slot < 0 ? env.lookup(name) : env.lookupLocal(slot, name);
     } catch (Environment.NoSuchVariableException e) {
       throw createInvalidIdentifierException();
     }
@@ -0,0 +1,92 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import javax.annotation.Nullable;
+
+/**
+ * A polymorphic inline cache of a call site in a Skylark AST. It remembers what the call site
+ * resolved to for the few receiver classes it has seen, so that calling the same method on an
+ * object of the same class again needs neither a lookup by name nor overload resolution.
+ *
+ * <p>A call site that sees more than {@link #MAX_ENTRIES} receiver classes is megamorphic: it stops
+ * caching and always resolves the call anew.
+ *
+ * <p>ASTs are shared by all threads evaluating them, so entries are published by replacing an
+ * immutable list; an entry that is lost in a race is simply resolved again next time. The cache is
+ * not serialized with the AST: AST nodes keep it in a transient field and create it again when
+ * they need it.
+ */
+@ThreadSafe
+final class InlineCache<V> {
+
+  private static final int MAX_ENTRIES = 4;
+
+  private static final class Entry<V> {
+    private final Class<?> receiverClass;
+    private final int argCount;
+    private final V value;
+
+    private Entry(Class<?> receiverClass, int argCount, V value) {
+      this.receiverClass = receiverClass;
+      this.argCount = argCount;
+      this.value = value;
+    }
+  }
+
+  @Nullable private volatile ImmutableList<Entry<V>> entries;
+  private volatile boolean megamorphic;
+
+  /**
+   * Returns what the call site resolved to for the given class of receiver and number of
+   * positional arguments, or null if it is not cached.
+   */
+  @Nullable
+  V get(Class<?> receiverClass, int argCount) {
+    ImmutableList<Entry<V>> current = entries;
+    if (current == null) {
+      return null;
+    }
+    for (int i = 0; i < current.size(); i++) {
+      Entry<V> entry = current.get(i);
+      if (entry.receiverClass == receiverClass && entry.argCount == argCount) {
+        return entry.value;
+      }
+    }
+    return null;
+  }
+
+  /** Remembers what the call site resolved to, unless the call site is megamorphic. */
+  void put(Class<?> receiverClass, int argCount, V value) {
+    if (megamorphic) {
+      return;
+    }
+    ImmutableList<Entry<V>> current = entries;
+    if (current == null) {
+      current = ImmutableList.of();
+    }
+    if (current.size() == MAX_ENTRIES) {
+      megamorphic = true;
+      entries = null;
+      return;
+    }
+    entries = ImmutableList.<Entry<V>>builder()
+        .addAll(current)
+        .add(new Entry<>(receiverClass, argCount, value))
+        .build();
+  }
+}
@@ -26,6 +26,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
 import net.bytebuddy.implementation.bytecode.Removal;
 import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -94,17 +95,30 @@ public class LValue implements Serializable {
       throws EvalException, InterruptedException {
     Preconditions.checkNotNull(result, "trying to assign null to %s", ident);
 
-    // The variable may have been referenced successfully if a global variable
-    // with the same name exists. In this case an Exception needs to be thrown.
-    if (env.isKnownGlobalVariable(ident.getName())) {
+    if (ident.getSlot() >= 0) {
+      env.updateLocal(ident.getSlot(), ident.getName(), result, loc);
+      return;
+    }
+    checkNotKnownGlobal(env, ident.getName(), loc);
+    env.update(ident.getName(), result);
+  }
+
+  /**
+   * Fails if a global variable of the given name was read in the current function: the variable
+   * may have been referenced successfully only because the global exists.
+   *
+   * <p>public for invocation by compiled code
+   */
+  public static void checkNotKnownGlobal(Environment env, String name, Location loc)
+      throws EvalException {
+    if (env.isKnownGlobalVariable(name)) {
       throw new EvalException(
           loc,
           String.format(
               "Variable '%s' is referenced before assignment. "
                   + "The variable is defined in the global scope.",
-              ident.getName()));
+              name));
     }
-    env.update(ident.getName(), result);
   }
 
   void validate(ValidationEnvironment env, Location loc) throws EvalException {
@@ -156,7 +170,7 @@ public class LValue implements Serializable {
       List<ByteCodeAppender> code)
       throws EvalException {
     if (leftValue instanceof Identifier) {
-      code.add(compileAssignment(scope, (Identifier) leftValue));
+      code.add(compileAssignment(scope, debugAccessors, (Identifier) leftValue));
     } else if (leftValue instanceof ListLiteral) {
       List<Expression> lValueExpressions = ((ListLiteral) leftValue).getElements();
       compileAssignment(node, debugAccessors, scope, lValueExpressions, code);
@@ -210,12 +224,24 @@ public class LValue implements Serializable {
   /**
    * Compile assignment to a single identifier.
    */
-  private static ByteCodeAppender compileAssignment(VariableScope scope, Identifier identifier) {
+  private static ByteCodeAppender compileAssignment(
+      VariableScope scope, AstAccessors debugAccessors, Identifier identifier) {
     // don't store to/create the _ "variable" the value is not needed, just remove it
     if (identifier.getName().equals("_")) {
       return new ByteCodeAppender.Simple(Removal.SINGLE);
     }
-    return scope.getVariable(identifier).store();
+    return new ByteCodeAppender.Compound(
+        new ByteCodeAppender.Simple(
+            scope.loadEnvironment(),
+            new TextConstant(identifier.getName()),
+            debugAccessors.loadLocation,
+            ByteCodeUtils.invoke(
+                LValue.class,
+                "checkNotKnownGlobal",
+                Environment.class,
+                String.class,
+                Location.class)),
+        scope.getVariable(identifier).store());
   }
 
   /**
@@ -14,7 +14,6 @@
 
 package com.google.devtools.build.lib.syntax;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.Event;
@@ -39,17 +38,12 @@ import java.util.Stack;
  * <p>
  * Since BUILD files are small, we just tokenize the entire file a-priori
  * instead of interleaving scanning with parsing.
+ * <p>
+ * The lexer scans a char[] copy of the whole input. Identifiers are interned
+ * per input, so every distinct identifier is copied out of the buffer once.
  */
 public final class Lexer {
 
-  private static final Map<Character, TokenKind> EQUAL_TOKENS =
-      ImmutableMap.<Character, TokenKind>of(
-          '=', TokenKind.EQUALS_EQUALS,
-          '!', TokenKind.NOT_EQUALS,
-          '>', TokenKind.GREATER_EQUALS,
-          '<', TokenKind.LESS_EQUALS,
-          '+', TokenKind.PLUS_EQUALS);
-
   private final EventHandler eventHandler;
 
   // Input buffer and position
@@ -87,6 +81,8 @@ public final class Lexer {
 
   private boolean parsePython;
 
+  private final SymbolTable symbols = new SymbolTable();
+
   /**
    * Constructs a lexer which tokenizes the contents of the specified
    * InputBuffer. Any errors during lexing are reported on "handler".
@@ -159,19 +155,27 @@ public final class Lexer {
   }
 
   Location createLocation(int start, int end) {
-    return new LexerLocation(locationInfo, start, end);
+    return new LexerLocation(locationInfo.lineNumberTable, start, end);
+  }
+
+  /**
+   * Returns the location of the given range of an input whose lines are numbered by the given
+   * table, as if it was created by a Lexer of that input.
+   */
+  static Location createLocation(LineNumberTable lineNumberTable, int start, int end) {
+    return new LexerLocation(lineNumberTable, start, end);
   }
 
   // Don't use an inner class as we don't want to close over the Lexer, only
-  // the LocationInfo.
+  // its LineNumberTable.
   @Immutable
   private static final class LexerLocation extends Location {
 
     private final LineNumberTable lineNumberTable;
 
-    LexerLocation(LocationInfo locationInfo, int start, int end) {
+    LexerLocation(LineNumberTable lineNumberTable, int start, int end) {
       super(start, end);
-      this.lineNumberTable = locationInfo.lineNumberTable;
+      this.lineNumberTable = lineNumberTable;
     }
 
     @Override
@@ -508,13 +512,98 @@ public final class Lexer {
     keywordMap.put("yield", TokenKind.YIELD);
   }
 
-  private TokenKind getTokenKindForIdentfier(String id) {
-    TokenKind kind = keywordMap.get(id);
-    return kind == null ? TokenKind.IDENTIFIER : kind;
+  /**
+   * The identifiers and keywords seen in one input. Identifiers repeat a lot in BUILD files, so
+   * the text of each distinct identifier is copied out of the buffer only once and shared by all
+   * its tokens; keywords are never copied. Lookups hash the characters in the buffer instead of
+   * creating a string first.
+   */
+  private static final class SymbolTable {
+    private int[] hashes = new int[64];
+    private String[] names = new String[64];
+    private TokenKind[] kinds = new TokenKind[64];
+    private int size;
+
+    SymbolTable() {
+      for (Map.Entry<String, TokenKind> keyword : keywordMap.entrySet()) {
+        String name = keyword.getKey();
+        insert(slot(name.hashCode(), name.toCharArray(), 0, name.length()),
+            name.hashCode(), name, keyword.getValue());
+      }
+    }
+
+    /**
+     * Returns the token for the identifier or keyword at {@code buffer[start, end)}, whose
+     * {@link String#hashCode} is {@code hash}.
+     */
+    Token token(char[] buffer, int start, int end, int hash) {
+      int slot = slot(hash, buffer, start, end);
+      if (names[slot] == null) {
+        String name = new String(buffer, start, end - start);
+        insert(slot, hash, name, TokenKind.IDENTIFIER);
+        return new Token(TokenKind.IDENTIFIER, start, end, name);
+      }
+      TokenKind kind = kinds[slot];
+      return new Token(kind, start, end, kind == TokenKind.IDENTIFIER ? names[slot] : null);
+    }
+
+    /** Returns the slot of the given name, or the empty slot where it belongs. */
+    private int slot(int hash, char[] buffer, int start, int end) {
+      int mask = names.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        String name = names[slot];
+        if (name == null || (hashes[slot] == hash && matches(name, buffer, start, end))) {
+          return slot;
+        }
+      }
+    }
+
+    private static boolean matches(String name, char[] buffer, int start, int end) {
+      if (name.length() != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (name.charAt(i - start) != buffer[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void insert(int slot, int hash, String name, TokenKind kind) {
+      hashes[slot] = hash;
+      names[slot] = name;
+      kinds[slot] = kind;
+      size++;
+      if (size * 2 > names.length) {
+        int[] oldHashes = hashes;
+        String[] oldNames = names;
+        TokenKind[] oldKinds = kinds;
+        hashes = new int[oldNames.length * 2];
+        names = new String[oldNames.length * 2];
+        kinds = new TokenKind[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+          if (oldNames[i] != null) {
+            int newSlot = oldHashes[i] & mask;
+            while (names[newSlot] != null) {
+              newSlot = (newSlot + 1) & mask;
+            }
+            hashes[newSlot] = oldHashes[i];
+            names[newSlot] = oldNames[i];
+            kinds[newSlot] = oldKinds[i];
+          }
+        }
+      }
+    }
   }
 
-  private String scanIdentifier() {
-    int oldPos = pos - 1;
+  /**
+   * Advances 'pos' past the rest of an identifier and returns the {@link String#hashCode} of the
+   * whole identifier.
+   */
+  private int scanIdentifier() {
+    int hash = buffer[pos - 1];
     while (pos < buffer.length) {
       switch (buffer[pos]) {
         case '_':
@@ -530,13 +619,14 @@ public final class Lexer {
         case 'Y': case 'Z':
         case '0': case '1': case '2': case '3': case '4': case '5':
         case '6': case '7': case '8': case '9':
+          hash = 31 * hash + buffer[pos];
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return hash;
       }
     }
-    return bufferSlice(oldPos, pos);
+    return hash;
   }
 
   /**
@@ -549,10 +639,8 @@ public final class Lexer {
    */
   private Token identifierOrKeyword() {
     int oldPos = pos - 1;
-    String id = scanIdentifier();
-    TokenKind kind = getTokenKindForIdentfier(id);
-    return new Token(kind, oldPos, pos,
-        (kind == TokenKind.IDENTIFIER) ? id : null);
+    int hash = scanIdentifier();
+    return symbols.token(buffer, oldPos, pos, hash);
   }
 
   private String scanInteger() {
@@ -620,6 +708,24 @@ public final class Lexer {
     return new Token(TokenKind.INT, oldPos, pos, value);
   }
 
+  /** Returns the kind of the two-char operator made of c and '=', or null if there is none. */
+  private static TokenKind equalToken(char c) {
+    switch (c) {
+      case '=':
+        return TokenKind.EQUALS_EQUALS;
+      case '!':
+        return TokenKind.NOT_EQUALS;
+      case '>':
+        return TokenKind.GREATER_EQUALS;
+      case '<':
+        return TokenKind.LESS_EQUALS;
+      case '+':
+        return TokenKind.PLUS_EQUALS;
+      default:
+        return null;
+    }
+  }
+
   /**
    * Tokenizes a two-char operator.
    * @return true if it tokenized an operator
@@ -632,7 +738,7 @@ public final class Lexer {
     char c2 = buffer[pos + 1];
     TokenKind tok = null;
     if (c2 == '=') {
-      tok = EQUAL_TOKENS.get(c1);
+      tok = equalToken(c1);
     } else if (c2 == '*' && c1 == '*') {
       tok = TokenKind.STAR_STAR;
     }
@@ -58,6 +58,11 @@ public final class LoadStatement extends Statement {
     return cachedSymbols;
   }
 
+  /** Returns the loaded symbols, mapped to the names under which they are defined. */
+  public ImmutableMap<Identifier, String> getSymbolMap() {
+    return symbols;
+  }
+
   public SkylarkImport getImport() {
     return imp;
   }
@@ -25,6 +25,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.syntax.DictionaryLiteral.DictionaryEntryLiteral;
@@ -215,12 +216,16 @@ public class Parser {
    */
   public static ParseResult parseFile(
       ParserInputSource input, EventHandler eventHandler, boolean parsePython) {
-    Lexer lexer = new Lexer(input, eventHandler, parsePython);
-    ParsingMode parsingMode = parsePython ? PYTHON : BUILD;
-    Parser parser = new Parser(lexer, eventHandler, parsingMode);
-    List<Statement> statements = parser.parseFileInput();
-    return new ParseResult(statements, parser.comments, locationFromStatements(lexer, statements),
-        parser.errorsCount > 0 || lexer.containsErrors());
+    return parseFile(input, eventHandler, parsePython, null);
+  }
+
+  /**
+   * Same as {@link #parseFile(ParserInputSource, EventHandler, boolean)}, but reads BUILD files
+   * through the given cache of parsed files, if not null.
+   */
+  public static ParseResult parseFile(ParserInputSource input, EventHandler eventHandler,
+      boolean parsePython, @Nullable PersistentAstCache cache) {
+    return parseFile(input, eventHandler, parsePython ? PYTHON : BUILD, cache);
   }
 
   /**
@@ -232,13 +237,24 @@ public class Parser {
       ParserInputSource input,
       EventHandler eventHandler,
       @Nullable ValidationEnvironment validationEnvironment) {
-    Lexer lexer = new Lexer(input, eventHandler, false);
-    Parser parser = new Parser(lexer, eventHandler, SKYLARK);
-    List<Statement> statements = parser.parseFileInput();
+    return parseFileForSkylark(input, eventHandler, validationEnvironment, null);
+  }
+
+  /**
+   * Same as {@link #parseFileForSkylark(ParserInputSource, EventHandler, ValidationEnvironment)},
+   * but reads the file through the given cache of parsed files, if not null. Validation always
+   * runs, also on the trees read from the cache.
+   */
+  public static ParseResult parseFileForSkylark(
+      ParserInputSource input,
+      EventHandler eventHandler,
+      @Nullable ValidationEnvironment validationEnvironment,
+      @Nullable PersistentAstCache cache) {
+    ParseResult result = parseFile(input, eventHandler, SKYLARK, cache);
     boolean hasSemanticalErrors = false;
     try {
       if (validationEnvironment != null) {
-        validationEnvironment.validateAst(statements);
+        validationEnvironment.validateAst(result.statements);
       }
     } catch (EvalException e) {
       // Do not report errors caused by a previous parsing error, as it has already been reported.
@@ -247,8 +263,37 @@ public class Parser {
       }
       hasSemanticalErrors = true;
     }
+    return new ParseResult(result.statements, result.comments, result.location,
+        result.containsErrors || hasSemanticalErrors);
+  }
+
+  private static ParseResult parseFile(ParserInputSource input, EventHandler eventHandler,
+      ParsingMode parsingMode, @Nullable PersistentAstCache cache) {
+    if (cache == null || parsingMode == PYTHON) {
+      return parse(input, eventHandler, parsingMode);
+    }
+    String key = cache.key(input, parsingMode);
+    ParseResult result = cache.get(key, input);
+    if (result != null) {
+      return result;
+    }
+    // Only files that parse without any messages are cached, so that there is nothing to replay.
+    StoredEventHandler events = new StoredEventHandler();
+    result = parse(input, events, parsingMode);
+    events.replayOn(eventHandler);
+    if (events.isEmpty() && !result.containsErrors) {
+      cache.put(key, result);
+    }
+    return result;
+  }
+
+  private static ParseResult parse(
+      ParserInputSource input, EventHandler eventHandler, ParsingMode parsingMode) {
+    Lexer lexer = new Lexer(input, eventHandler, parsingMode == PYTHON);
+    Parser parser = new Parser(lexer, eventHandler, parsingMode);
+    List<Statement> statements = parser.parseFileInput();
     return new ParseResult(statements, parser.comments, locationFromStatements(lexer, statements),
-        parser.errorsCount > 0 || lexer.containsErrors() || hasSemanticalErrors);
+        parser.errorsCount > 0 || lexer.containsErrors());
   }
 
   /**
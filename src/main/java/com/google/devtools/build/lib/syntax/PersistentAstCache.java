@@ -0,0 +1,229 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Counter;
+import com.google.devtools.build.lib.syntax.Parser.ParseResult;
+import com.google.devtools.build.lib.syntax.Parser.ParsingMode;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cache of parsed BUILD and .bzl files on disk, so that a new server does not have to parse again
+ * the files that an earlier one has already parsed.
+ *
+ * <p>Entries are keyed by a digest of the contents of the file and the parsing mode, hold the
+ * syntax tree in the format of {@link AstCodec} and are never invalidated; when the total size of
+ * the entries exceeds the limit, the least recently used ones are deleted. Only files that parse
+ * without errors or warnings are stored. A missing, unreadable or corrupt entry is a cache miss.
+ */
+@ThreadSafe
+public final class PersistentAstCache {
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // Totals of all the caches of the server, shown by 'dump --metrics' and logged per command.
+  private static final Counter totalHits =
+      MetricsRegistry.instance().counter("persistent_ast_cache.hits");
+  private static final Counter totalMisses =
+      MetricsRegistry.instance().counter("persistent_ast_cache.misses");
+
+  private final Path directory;
+  private final long maxSizeBytes;
+  private final AtomicLong sizeBytes = new AtomicLong();
+  private final AtomicInteger tempFileCounter = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache that stores its entries in the given directory, which is created if needed, and
+   * uses at most about {@code maxSizeBytes} of disk space.
+   */
+  public PersistentAstCache(Path directory, long maxSizeBytes) throws IOException {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+    FileSystemUtils.createDirectoryAndParents(directory);
+    long size = 0;
+    for (Path entry : directory.getDirectoryEntries()) {
+      if (entry.getBaseName().endsWith(TEMP_SUFFIX)) {
+        // Left behind by a server that died while writing it.
+        entry.delete();
+      } else {
+        size += entry.getFileSize();
+      }
+    }
+    sizeBytes.set(size);
+    if (size > maxSizeBytes) {
+      evict();
+    }
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /** Returns the number of lookups that found an entry. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups that did not find an entry. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the key of the entry for the given input parsed in the given mode. */
+  String key(ParserInputSource input, ParsingMode parsingMode) {
+    return new Fingerprint()
+        .addInt(AstCodec.VERSION)
+        .addString(parsingMode.name())
+        .addString(new String(input.getContent()))
+        .hexDigestAndReset();
+  }
+
+  /** Returns the cached parse result of the given input, or null if there is none. */
+  @Nullable
+  ParseResult get(String key, ParserInputSource input) {
+    Path entry = directory.getRelative(key);
+    byte[] data;
+    try {
+      data = FileSystemUtils.readContent(entry);
+    } catch (IOException e) {
+      misses.incrementAndGet();
+      totalMisses.increment();
+      return null;
+    }
+    ParseResult result;
+    try {
+      result = AstCodec.read(data, input);
+    } catch (IOException e) {
+      // A corrupt entry; it would never become valid again.
+      delete(entry);
+      sizeBytes.addAndGet(-data.length);
+      misses.incrementAndGet();
+      totalMisses.increment();
+      return null;
+    }
+    try {
+      // Mark the entry as recently used.
+      entry.setLastModifiedTime(BlazeClock.instance().currentTimeMillis());
+    } catch (IOException e) {
+      // The entry is evicted earlier than it should be.
+    }
+    hits.incrementAndGet();
+    totalHits.increment();
+    return result;
+  }
+
+  /** Stores the given parse result; failures to write are ignored. */
+  void put(String key, ParseResult result) {
+    byte[] data;
+    try {
+      data = AstCodec.write(result);
+    } catch (IllegalArgumentException e) {
+      // The tree contains a node the format does not support.
+      return;
+    }
+    Path entry = directory.getRelative(key);
+    Path temp = directory.getRelative(
+        key + "." + tempFileCounter.incrementAndGet() + TEMP_SUFFIX);
+    try {
+      FileSystemUtils.writeContent(temp, data);
+      temp.renameTo(entry);
+    } catch (IOException e) {
+      delete(temp);
+      return;
+    }
+    if (sizeBytes.addAndGet(data.length) > maxSizeBytes) {
+      evict();
+    }
+  }
+
+  private static void delete(Path path) {
+    try {
+      path.delete();
+    } catch (IOException e) {
+      // Nothing else to do; the entry is skipped the next time it is read.
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache uses at most three quarters of its
+   * maximum size, so that evictions do not happen on every write.
+   */
+  private synchronized void evict() {
+    if (sizeBytes.get() <= maxSizeBytes) {
+      return;
+    }
+    final List<Path> entries = new ArrayList<>();
+    final List<Long> lastUsed = new ArrayList<>();
+    final List<Long> sizes = new ArrayList<>();
+    long total = 0;
+    try {
+      for (Path entry : directory.getDirectoryEntries()) {
+        if (entry.getBaseName().endsWith(TEMP_SUFFIX)) {
+          continue;
+        }
+        try {
+          long size = entry.getFileSize();
+          lastUsed.add(entry.getLastModifiedTime());
+          sizes.add(size);
+          entries.add(entry);
+          total += size;
+        } catch (IOException e) {
+          // Deleted concurrently.
+        }
+      }
+    } catch (IOException e) {
+      return;
+    }
+    List<Integer> order = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(lastUsed.get(a), lastUsed.get(b));
+      }
+    });
+    long target = maxSizeBytes / 4 * 3;
+    for (int i : order) {
+      if (total <= target) {
+        break;
+      }
+      delete(entries.get(i));
+      total -= sizes.get(i);
+    }
+    sizeBytes.set(total);
+  }
+}
@@ -81,6 +81,8 @@ public class SyntaxTreeVisitor {
     visitAll(node.block());
   }
 
+  public void visit(@SuppressWarnings("unused") FlowStatement node) {}
+
   public void visit(LoadStatement node) {
     visitAll(node.getSymbols());
   }
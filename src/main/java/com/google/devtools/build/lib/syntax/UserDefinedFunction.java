@@ -13,13 +13,16 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.syntax.EvalException.EvalExceptionWithJavaCause;
 import com.google.devtools.build.lib.syntax.compiler.ByteCodeUtils;
 import com.google.devtools.build.lib.syntax.compiler.DebugInfo;
 import com.google.devtools.build.lib.syntax.compiler.LoopLabels;
@@ -28,6 +31,7 @@ import com.google.devtools.build.lib.syntax.compiler.VariableScope;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
 import net.bytebuddy.asm.ClassVisitorWrapper;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.modifier.MethodManifestation;
@@ -60,6 +64,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -69,26 +76,60 @@ public class UserDefinedFunction extends BaseFunction {
 
   private final ImmutableList<Statement> statements;
 
+  // The number of slots for local variables resolved by ValidationEnvironment, or -1 if the local
+  // variables are looked up by name in a Frame.
+  private final int localCount;
+
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
-  private Optional<Method> method;
+  /** When user-defined functions are compiled to byte code instead of being interpreted. */
+  public enum CompilerMode {
+    /** Functions are always interpreted. */
+    OFF,
+    /** Functions are compiled when they are called for the first time. */
+    EAGER,
+    /**
+     * Functions are interpreted until they have been called a number of times, so that only hot
+     * functions pay for compilation.
+     */
+    TIERED
+  }
+
   // TODO(bazel-team) make this configurable once the compiler is stable
   public static boolean debugCompiler = false;
   public static boolean debugCompilerPrintByteCode = false;
   private static File debugFolder;
-  public static boolean enableCompiler = false;
+
+  // The compiled version of this function, once it was compiled.
+  @Nullable private volatile Method compiledMethod;
+  // Set if this function could not be compiled; it is interpreted from then on.
+  private volatile boolean compilationFailed;
+  private final AtomicInteger interpretedCalls = new AtomicInteger();
 
   protected UserDefinedFunction(
       Identifier function,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
       ImmutableList<Statement> statements,
+      int localCount,
       Environment.Frame definitionGlobals)
       throws EvalException {
     super(function.getName(), signature, function.getLocation());
     this.statements = statements;
+    this.localCount = localCount;
     this.definitionGlobals = definitionGlobals;
-    method = enableCompiler ? buildCompiledFunction() : Optional.<Method>absent();
+  }
+
+  /** Returns whether calls to this function run compiled code from now on. */
+  @VisibleForTesting
+  boolean isCompiled() {
+    return compiledMethod != null;
+  }
+
+  /** Returns the number of local variable slots of this function, or -1 if it has none. */
+  @VisibleForTesting
+  int getLocalCount() {
+    return localCount;
   }
 
   public FunctionSignature.WithValues<Object, SkylarkType> getFunctionSignature() {
@@ -111,23 +152,27 @@ public class UserDefinedFunction extends BaseFunction {
               getName(), Iterables.getLast(env.getStackTrace()).getName()));
     }
 
-    if (enableCompiler && method.isPresent()) {
-      Object returnValue = callCompiledFunction(arguments, ast, env);
-      if (returnValue != null) {
-        return returnValue;
-      }
+    Method compiled = getCompiledMethod(env);
+    if (compiled != null) {
+      return callCompiledFunction(compiled, arguments, ast, env);
     }
 
     Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_FN,
         getLocationPathAndLine() + "#" + getName());
     try {
-      env.enterScope(this, ast, definitionGlobals);
       ImmutableList<String> names = signature.getSignature().getNames();
-
-      // Registering the functions's arguments as variables in the local Environment
-      int i = 0;
-      for (String name : names) {
-        env.update(name, arguments[i++]);
+      if (localCount >= 0) {
+        // The parameters take the first slots of the local variables.
+        Object[] locals = new Object[localCount];
+        System.arraycopy(arguments, 0, locals, 0, names.size());
+        env.enterScope(this, ast, definitionGlobals, locals);
+      } else {
+        env.enterScope(this, ast, definitionGlobals);
+        // Registering the functions's arguments as variables in the local Environment
+        int i = 0;
+        for (String name : names) {
+          env.update(name, arguments[i++]);
+        }
       }
 
       try {
@@ -150,24 +195,57 @@ public class UserDefinedFunction extends BaseFunction {
     }
   }
 
-  private Object callCompiledFunction(Object[] arguments, FuncallExpression ast, Environment env) {
+  /**
+   * Returns the compiled version of this function, compiling it first if the compiler mode of the
+   * calling Environment asks for it, or null if the function is to be interpreted.
+   */
+  @Nullable
+  private Method getCompiledMethod(Environment env) {
+    CompilerMode mode = env.getCompilerMode();
+    if (mode == CompilerMode.OFF || compilationFailed) {
+      return null;
+    }
+    Method compiled = compiledMethod;
+    if (compiled != null) {
+      return compiled;
+    }
+    if (mode == CompilerMode.TIERED
+        && interpretedCalls.incrementAndGet() <= env.getCompileThreshold()) {
+      return null;
+    }
+    synchronized (this) {
+      if (compiledMethod == null && !compilationFailed) {
+        Optional<Method> method = buildCompiledFunction();
+        if (method.isPresent()) {
+          compiledMethod = method.get();
+        } else {
+          compilationFailed = true;
+        }
+      }
+      return compiledMethod;
+    }
+  }
+
+  private Object callCompiledFunction(
+      Method compiled, Object[] arguments, FuncallExpression ast, Environment env)
+      throws EvalException, InterruptedException {
     compilerDebug("Calling compiled function " + getLocationPathAndLine() + " " + getName());
+    Object[] argumentsAndEnvironment = Arrays.copyOf(arguments, arguments.length + 1);
+    argumentsAndEnvironment[arguments.length] = env;
+    Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_COMPILED_FN,
+        getLocationPathAndLine() + "#" + getName());
     try {
-      Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_COMPILED_FN,
-          getLocationPathAndLine() + "#" + getName());
       env.enterScope(this, ast, definitionGlobals);
-
-      return method
-          .get()
-          .invoke(null, ImmutableList.builder().add(arguments).add(env).build().toArray());
-
+      return compiled.invoke(null, argumentsAndEnvironment);
     } catch (IllegalAccessException e) {
       // this should never happen
       throw new RuntimeException(
           "Compiler created code that could not be accessed reflectively.", e);
     } catch (InvocationTargetException e) {
-      compilerDebug("Error running compiled version", e.getCause());
-      return null;
+      // The compiled code may have had side effects already, so it must not be retried by the
+      // interpreter.
+      Throwables.propagateIfPossible(e.getCause(), EvalException.class, InterruptedException.class);
+      throw new EvalExceptionWithJavaCause(getLocation(), e.getCause());
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYLARK_USER_COMPILED_FN);
       env.exitScope();
@@ -180,7 +258,7 @@ public class UserDefinedFunction extends BaseFunction {
    *
    * <p>The "call" method contains the compiled version of this function's AST.
    */
-  private Optional<Method> buildCompiledFunction() throws EvalException {
+  private Optional<Method> buildCompiledFunction() {
     // replace the / character in the path so we have file system compatible class names
     // the java specification mentions that $ should be used in generated code
     // see http://docs.oracle.com/javase/specs/jls/se7/html/jls-3.html#jls-3.8
@@ -222,7 +300,9 @@ public class UserDefinedFunction extends BaseFunction {
       List<Class<?>> parameterTypes = sig.getShape().toClasses();
       parameterTypes.add(Environment.class);
       Unloaded<CompiledFunction> unloadedImplementation =
-          new ByteBuddy()
+          // Byte Buddy cannot tell the version of newer JVMs, so the class file version is given
+          // explicitly.
+          new ByteBuddy(ClassFileVersion.JAVA_V8)
               .withClassVisitor(new StackMapFrameClassVisitor(debugCompilerPrintByteCode))
               .subclass(CompiledFunction.class)
               .name(compiledFunctionClassName)
@@ -252,6 +332,8 @@ public class UserDefinedFunction extends BaseFunction {
           unloadedImplementation
               .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
               .getLoaded();
+      // Link the class now, so that invalid byte code is detected before the function runs.
+      Class.forName(functionClass.getName(), true, functionClass.getClassLoader());
 
       return Optional.of(
           ReflectionUtils.getMethod(
@@ -259,12 +341,10 @@ public class UserDefinedFunction extends BaseFunction {
                   "call",
                   parameterTypes.toArray(new Class<?>[parameterTypes.size()]))
               .getLoadedMethod());
-    } catch (EvalException e) {
-      // don't capture EvalExceptions
-      throw e;
-    } catch (Throwable e) {
+    } catch (EvalException | ClassNotFoundException | RuntimeException | LinkageError e) {
+      // Constructs the compiler does not support, or errors the interpreter reports only when
+      // the offending statement is executed; the function is interpreted instead.
       compilerDebug("Error while compiling", e);
-      // TODO(bazel-team) don't capture all throwables? couldn't compile this, log somewhere?
     }
     return Optional.absent();
   }
@@ -336,12 +416,16 @@ public class UserDefinedFunction extends BaseFunction {
   }
 
   private void compilerDebug(String message) {
-    System.err.println(message);
+    if (debugCompiler) {
+      System.err.println(message);
+    }
   }
 
   private void compilerDebug(String message, Throwable e) {
-    compilerDebug(message);
-    e.printStackTrace();
+    if (debugCompiler) {
+      compilerDebug(message);
+      e.printStackTrace();
+    }
   }
 
   /**
@@ -17,8 +17,10 @@ package com.google.devtools.build.lib.syntax;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,6 +29,11 @@ import java.util.Stack;
 /**
  * An Environment for the semantic checking of Skylark files.
  *
+ * <p>The local ValidationEnvironment of a function also resolves its local variables: every
+ * variable assigned in the function gets a slot in an array that holds its value while the function
+ * runs, and every identifier naming such a variable is bound to the slot, so that it is read and
+ * assigned without looking up its name. See {@link #resolveLocals}.
+ *
  * @see Statement#validate
  * @see Expression#validate
  */
@@ -34,6 +41,14 @@ public final class ValidationEnvironment {
 
   private final ValidationEnvironment parent;
 
+  // The variables of the Environment that are looked up dynamically, in the Environment of the
+  // caller. They are never resolved to slots, since assigning them is an error at runtime.
+  private final Set<String> dynamicVariables;
+
+  // In the local environment of a function, the slot of each local variable, in order of
+  // declaration.
+  private final Map<String, Integer> localSlots = new LinkedHashMap<>();
+
   private Set<String> variables = new HashSet<>();
 
   private Map<String, Location> variableLocations = new HashMap<>();
@@ -59,6 +74,7 @@ public final class ValidationEnvironment {
     Set<String> builtinVariables = env.getVariableNames();
     variables.addAll(builtinVariables);
     readOnlyVariables.addAll(builtinVariables);
+    dynamicVariables = env.getDynamicVariableNames();
   }
 
   /**
@@ -67,6 +83,7 @@ public final class ValidationEnvironment {
   public ValidationEnvironment(ValidationEnvironment parent) {
     // Don't copy readOnlyVariables: Variables may shadow global values.
     this.parent = parent;
+    this.dynamicVariables = parent.dynamicVariables;
   }
 
   /**
@@ -91,6 +108,40 @@ public final class ValidationEnvironment {
     }
     variables.add(varname);
     variableLocations.put(varname, location);
+    if (parent != null && !dynamicVariables.contains(varname) && !localSlots.containsKey(varname)) {
+      localSlots.put(varname, localSlots.size());
+    }
+  }
+
+  /**
+   * Binds all identifiers in the body of the function validated by this local environment that
+   * name a local variable to the variable's slot. This is called after the whole function was
+   * validated, so that also identifiers that appear before the first assignment of their variable,
+   * e.g. in a loop, are bound.
+   *
+   * <p>The parameters of the function must have been declared first, in order, so that they get
+   * the first slots.
+   *
+   * @return the number of slots, or -1 if the function cannot be resolved because one of its
+   *     parameters is a dynamic variable; then all variables of the function are looked up by name
+   */
+  int resolveLocals(List<String> parameters, List<Statement> statements) {
+    Preconditions.checkState(parent != null);
+    boolean resolvable = true;
+    for (int i = 0; i < parameters.size(); i++) {
+      Integer slot = localSlots.get(parameters.get(i));
+      resolvable &= slot != null && slot == i;
+    }
+    final Map<String, Integer> slots =
+        resolvable ? localSlots : Collections.<String, Integer>emptyMap();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        Integer slot = slots.get(node.getName());
+        node.setSlot(slot != null ? slot : -1);
+      }
+    }.visitAll(statements);
+    return resolvable ? localSlots.size() : -1;
   }
 
   private void checkReadonly(String varname, Location location) throws EvalException {
@@ -103,7 +103,7 @@ public abstract class Variable {
 
     /**
      * Looks for the variable in the method calls outside environment and fail with debug info
-     * if not found.
+     * if not found, with the same message as the interpreter.
      */
     public static Object lookupUnboundVariable(Environment global, String variable, ASTNode node)
         throws EvalExceptionWithStackTrace {
@@ -111,9 +111,7 @@ public abstract class Variable {
         return global.lookup(variable);
       } catch (NoSuchVariableException e) {
         throw new EvalExceptionWithStackTrace(
-            new EvalException(
-                node.getLocation(),
-                "local variable '" + variable + "' referenced before assignment"),
+            new EvalException(node.getLocation(), "name '" + variable + "' is not defined"),
             node);
       }
     }
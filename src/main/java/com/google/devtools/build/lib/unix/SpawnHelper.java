@@ -0,0 +1,222 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.shell.Killable;
+import com.google.devtools.build.lib.shell.KillableObserver;
+import com.google.devtools.build.lib.shell.TerminationStatus;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts subprocesses through the {@code spawn-helper} binary instead of forking the server JVM.
+ *
+ * <p>Forking a JVM with a multi-gigabyte heap is slow, and at high parallelism the fork latency
+ * dominates the runtime of short actions. The spawn helper is a tiny native process that is started
+ * once per server; every subprocess is requested over its own {@link LocalClientSocket} connection
+ * and started with {@code vfork()} from the helper. See {@code src/main/tools/spawn-helper.c} for
+ * the wire protocol.
+ *
+ * <p>This class is thread-safe: any number of subprocesses may be run concurrently.
+ */
+public final class SpawnHelper implements Closeable {
+
+  /** How often a thread waiting for a subprocess checks whether it was interrupted. */
+  private static final long INTERRUPT_POLL_MILLIS = 100;
+
+  private final Process helperProcess;
+  private final LocalSocketAddress address;
+
+  private SpawnHelper(Process helperProcess, LocalSocketAddress address) {
+    this.helperProcess = helperProcess;
+    this.address = address;
+  }
+
+  /**
+   * Starts the spawn helper and waits until it accepts connections.
+   *
+   * @param helperBinary path to the {@code spawn-helper} binary
+   * @param socketFile the socket file the helper should listen on; it is replaced if it exists
+   * @throws IOException if the helper could not be started
+   */
+  public static SpawnHelper start(File helperBinary, File socketFile) throws IOException {
+    Process process = new ProcessBuilder(helperBinary.getPath(), socketFile.getPath())
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    // The helper exits as soon as its stdin is closed, so we must keep it open for as long as we
+    // want to use the helper.
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.ISO_8859_1));
+    String line = reader.readLine();
+    if (!"ready".equals(line)) {
+      process.destroy();
+      throw new IOException("spawn-helper failed to start: " + helperBinary);
+    }
+    return new SpawnHelper(process, new LocalSocketAddress(socketFile));
+  }
+
+  /**
+   * Runs a subprocess and waits for it to terminate.
+   *
+   * <p>If the current thread is interrupted, the subprocess is killed; the method still waits for
+   * it to terminate and returns its status, with the interrupted status of the thread preserved.
+   *
+   * @param argv the command line; {@code argv[0]} must be a path, it is not looked up in PATH
+   * @param env the complete environment of the subprocess
+   * @param cwd the working directory of the subprocess
+   * @param stdinPath the file to read stdin from
+   * @param stdoutPath the file to append stdout to
+   * @param stderrPath the file to append stderr to
+   * @param observer observer that may kill the subprocess, e.g. on timeout
+   * @return the termination status of the subprocess
+   * @throws IOException if the subprocess could not be started or the helper went away
+   */
+  public TerminationStatus execute(
+      List<String> argv,
+      Map<String, String> env,
+      File cwd,
+      String stdinPath,
+      String stdoutPath,
+      String stderrPath,
+      KillableObserver observer)
+      throws IOException {
+    try (LocalClientSocket socket = new LocalClientSocket(address)) {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      byte[] request = encodeRequest(argv, env, cwd, stdinPath, stdoutPath, stderrPath);
+      out.writeInt(request.length);
+      out.write(request);
+      out.flush();
+
+      int tag = in.read();
+      if (tag == 'E') {
+        throw new IOException(
+            "spawn-helper could not start '" + argv.get(0) + "': errno " + in.readInt());
+      } else if (tag != 'P') {
+        throw new IOException("unexpected reply from spawn-helper: " + tag);
+      }
+      in.readInt(); // The pid; the process is only addressed through the connection.
+
+      Killable killable = new SpawnedProcess(out);
+      boolean wasInterrupted = false;
+      observer.startObserving(killable);
+      try {
+        while (true) {
+          try {
+            LocalSocket.poll(socket.fd, INTERRUPT_POLL_MILLIS);
+            break;
+          } catch (SocketTimeoutException e) {
+            if (Thread.interrupted()) {
+              wasInterrupted = true;
+              killable.kill();
+            }
+          }
+        }
+        tag = in.read();
+        if (tag != 'X') {
+          throw new EOFException("spawn-helper went away while running '" + argv.get(0) + "'");
+        }
+        return toTerminationStatus(in.readInt());
+      } finally {
+        observer.stopObserving(killable);
+        if (wasInterrupted) {
+          Thread.currentThread().interrupt(); // preserve interrupted status
+        }
+      }
+    }
+  }
+
+  /** Kills all running subprocesses and stops the helper. */
+  @Override
+  public void close() throws IOException {
+    helperProcess.getOutputStream().close();
+    try {
+      helperProcess.waitFor();
+    } catch (InterruptedException e) {
+      helperProcess.destroy();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Converts a raw wait status into the encoding of {@link Process#waitFor}, which is what {@link
+   * TerminationStatus} expects: the exit code, or 128 plus the number of the terminating signal.
+   */
+  private static TerminationStatus toTerminationStatus(int waitStatus) {
+    int signal = waitStatus & 0x7f;
+    return new TerminationStatus(signal == 0 ? (waitStatus >> 8) & 0xff : 128 + signal);
+  }
+
+  private static byte[] encodeRequest(
+      List<String> argv,
+      Map<String, String> env,
+      File cwd,
+      String stdinPath,
+      String stdoutPath,
+      String stderrPath) throws IOException {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    writeString(request, cwd.getPath());
+    writeString(request, stdinPath);
+    writeString(request, stdoutPath);
+    writeString(request, stderrPath);
+    writeString(request, Integer.toString(argv.size()));
+    for (String arg : argv) {
+      writeString(request, arg);
+    }
+    writeString(request, Integer.toString(env.size()));
+    for (Map.Entry<String, String> entry : env.entrySet()) {
+      writeString(request, entry.getKey() + "=" + entry.getValue());
+    }
+    return request.toByteArray();
+  }
+
+  private static void writeString(OutputStream out, String s) throws IOException {
+    out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+    out.write(0);
+  }
+
+  /** A subprocess started by the helper, killed by writing to its connection. */
+  private static final class SpawnedProcess implements Killable {
+    private final OutputStream connection;
+
+    SpawnedProcess(OutputStream connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public void kill() {
+      try {
+        synchronized (this) {
+          connection.write(0);
+          connection.flush();
+        }
+      } catch (IOException e) {
+        // The helper already closed the connection, so the process is gone.
+      }
+    }
+  }
+}
@@ -659,4 +659,15 @@ public abstract class FileSystem {
    * See {@link Path#renameTo} for specification.
    */
   protected abstract void renameTo(Path sourcePath, Path targetPath) throws IOException;
+
+  /**
+   * Creates a hard link. See {@link Path#createHardLink} for specification.
+   *
+   * <p>The default implementation throws an {@link UnsupportedOperationException}; file systems
+   * that are backed by a real file system should override it.
+   */
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    throw new UnsupportedOperationException(
+        "hard links are not supported by " + getClass().getSimpleName());
+  }
 }
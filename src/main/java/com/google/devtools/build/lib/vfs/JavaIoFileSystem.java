@@ -251,6 +251,19 @@ public class JavaIoFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    try {
+      Files.createLink(getIoFile(linkPath).toPath(), getIoFile(originalPath).toPath());
+    } catch (java.nio.file.FileAlreadyExistsException e) {
+      throw new IOException(linkPath + ERR_FILE_EXISTS);
+    } catch (java.nio.file.AccessDeniedException e) {
+      throw new IOException(linkPath + ERR_PERMISSION_DENIED);
+    } catch (java.nio.file.NoSuchFileException e) {
+      throw new FileNotFoundException(e.getFile() + ERR_NO_SUCH_FILE_OR_DIR);
+    }
+  }
+
   @Override
   protected PathFragment readSymbolicLink(Path path) throws IOException {
     File file = getIoFile(path);
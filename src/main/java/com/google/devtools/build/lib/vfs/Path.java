@@ -829,6 +829,18 @@ public class Path implements Comparable<Path>, Serializable {
     fileSystem.renameTo(this, target);
   }
 
+  /**
+   * Creates a hard link with the name of the current path that refers to the same file as
+   * "original". Hard links cannot be created across devices.
+   *
+   * @throws IOException if the creation of the hard link was unsuccessful for any reason
+   * @throws UnsupportedOperationException if the file system does not support hard links
+   */
+  public void createHardLink(Path original) throws IOException {
+    checkSameFilesystem(original);
+    fileSystem.createHardLink(this, original);
+  }
+
   /**
    * Returns the size in bytes of the file denoted by the current path,
    * following symbolic links.
@@ -316,6 +316,13 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected void createHardLink(Path linkPath, Path originalPath) throws IOException {
+    synchronized (linkPath) {
+      FilesystemUtils.link(originalPath.toString(), linkPath.toString());
+    }
+  }
+
   @Override
   protected PathFragment readSymbolicLink(Path path) throws IOException {
     // Note that the default implementation of readSymbolicLinkUnchecked calls this method and thus
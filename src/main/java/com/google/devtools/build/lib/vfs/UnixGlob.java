@@ -22,6 +22,7 @@ import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
@@ -40,13 +41,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 /**
  * Implementation of a subset of UNIX-style file globbing, expanding "*" and "?" as wildcards, but
  * not [a-z] ranges.
@@ -325,6 +331,16 @@ public final class UnixGlob {
   public static final AtomicReference<FilesystemCalls> DEFAULT_SYSCALLS_REF =
       new AtomicReference<>(DEFAULT_SYSCALLS);
 
+  /**
+   * Returns a work queue for a thread pool shared by concurrent globs, e.g. by those of all the
+   * packages being loaded. The queue runs the tasks of the globs that have queued the fewest tasks
+   * first, so that a few huge recursive globs do not hold up the small globs of other packages.
+   * Only globs may be run on a pool with this queue.
+   */
+  public static BlockingQueue<Runnable> newGlobWorkQueue() {
+    return new PriorityBlockingQueue<>();
+  }
+
   public static Builder forPath(Path path) {
     return new Builder(path);
   }
@@ -426,7 +442,8 @@ public final class UnixGlob {
 
     /**
      * Sets the threadpool to use for parallel glob evaluation.
-     * If unset, evaluation is done in-thread.
+     * If unset, evaluation is done in-thread. The pool may be shared by concurrent globs; see
+     * {@link UnixGlob#newGlobWorkQueue}.
      */
     public Builder setThreadPool(ThreadPoolExecutor pool) {
       this.threadPool = pool;
@@ -522,6 +539,69 @@ public final class UnixGlob {
     }
   }
 
+  /**
+   * A task of a glob, ordered before the tasks of globs that had queued more tasks by the time it
+   * was queued, and after earlier tasks of globs that had queued as many.
+   */
+  private static final class GlobTask implements Runnable, Comparable<GlobTask> {
+    private static final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    private final Runnable runnable;
+    private final long rank;
+    private final long sequenceNumber = nextSequenceNumber.getAndIncrement();
+
+    GlobTask(Runnable runnable, long rank) {
+      this.runnable = runnable;
+      this.rank = rank;
+    }
+
+    @Override
+    public void run() {
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo(GlobTask other) {
+      int result = Long.compare(rank, other.rank);
+      return result != 0 ? result : Long.compare(sequenceNumber, other.sequenceNumber);
+    }
+  }
+
+  /**
+   * A directory to be matched against the remainder of a pattern. With "**", the same one can be
+   * reached in several ways: if a pattern starts with "**", a/b is reached both by "**" matching
+   * a/b and by "**" matching a, then a/b, then nothing.
+   */
+  private static final class GlobTaskKey {
+    private final Path base;
+    private final String[] patternParts;
+    private final int idx;
+    private final int excludeIdx;
+
+    GlobTaskKey(Path base, String[] patternParts, int idx, int excludeIdx) {
+      this.base = base;
+      this.patternParts = patternParts;
+      this.idx = idx;
+      this.excludeIdx = excludeIdx;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof GlobTaskKey)) {
+        return false;
+      }
+      GlobTaskKey other = (GlobTaskKey) obj;
+      return base.equals(other.base) && patternParts == other.patternParts && idx == other.idx
+          && excludeIdx == other.excludeIdx;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((base.hashCode() * 31 + System.identityHashCode(patternParts)) * 31 + idx) * 31
+          + excludeIdx;
+    }
+  }
+
   /**
    * GlobVisitor executes a glob using parallelism, which is useful when
    * the glob() requires many readdir() calls on high latency filesystems.
@@ -540,6 +620,8 @@ public final class UnixGlob {
     private final GlobFuture result;
     private final ThreadPoolExecutor executor;
     private final AtomicLong pendingOps = new AtomicLong(0);
+    private final AtomicLong queuedOps = new AtomicLong(0);
+    private final Set<GlobTaskKey> queuedKeys = Sets.newConcurrentHashSet();
     private final AtomicReference<IOException> failure = new AtomicReference<>();
     private volatile boolean canceled = false;
 
@@ -593,7 +675,7 @@ public final class UnixGlob {
         return Futures.immediateFuture(Collections.<Path>emptyList());
       }
 
-      List<String[]> splitPatterns = checkAndSplitPatterns(patterns);
+      List<String[]> splitPatterns = checkAndSplitPatterns(ImmutableSet.copyOf(patterns));
       List<String[]> splitExcludes = checkAndSplitPatterns(excludePatterns);
 
       // We do a dumb loop, even though it will likely duplicate work
@@ -620,13 +702,16 @@ public final class UnixGlob {
         final int excludeIdx,
         final Collection<Path> results, final Cache<String, Pattern> cache,
         final Predicate<Path> dirPred, final FilesystemCalls syscalls) throws IOException {
+      if (!queuedKeys.add(new GlobTaskKey(base, patternParts, idx, excludeIdx))) {
+        return;
+      }
       enqueue(new Runnable() {
         @Override
         public void run() {
           Profiler.instance().startTask(ProfilerTask.VFS_GLOB, this);
           try {
             reallyGlob(base, baseIsDir, patternParts, idx, excludeDirectories,
-                    excludePatterns, excludeIdx, results, cache, dirPred, syscalls);
+                    excludePatterns, excludeIdx, results, cache, dirPred, syscalls, null);
           } catch (IOException e) {
             failure.set(e);
           } finally {
@@ -665,7 +750,7 @@ public final class UnixGlob {
       if (executor == null) {
         wrapped.run();
       } else {
-        executor.execute(wrapped);
+        executor.execute(new GlobTask(wrapped, queuedOps.getAndIncrement()));
       }
     }
 
@@ -701,7 +786,8 @@ public final class UnixGlob {
         int excludeIdx,
         Collection<Path> results, Cache<String, Pattern> cache,
         Predicate<Path> dirPred,
-        FilesystemCalls syscalls) throws IOException {
+        FilesystemCalls syscalls,
+        @Nullable Collection<Dirent> baseDents) throws IOException {
       if (baseIsDir && !dirPred.apply(base)) {
         return;
       }
@@ -724,13 +810,6 @@ public final class UnixGlob {
           = getRelevantExcludes(base, excludePatterns, excludeIdx, cache);
       final String pattern = patternParts[idx];
 
-      // ** is special: it can match nothing at all.
-      // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
-      if ("**".equals(pattern)) {
-        queueGlob(base, baseIsDir, patternParts, idx + 1, excludeDirectories,
-            excludePatterns, excludeIdx, results, cache, dirPred, syscalls);
-      }
-
       if (!pattern.contains("*") && !pattern.contains("?")) {
         // We do not need to do a readdir in this case, just a stat.
         Path child = base.getChild(pattern);
@@ -747,7 +826,17 @@ public final class UnixGlob {
         return;
       }
 
-      Collection<Dirent> dents = syscalls.readdir(base, Symlinks.FOLLOW);
+      Collection<Dirent> dents =
+          baseDents != null ? baseDents : syscalls.readdir(base, Symlinks.FOLLOW);
+
+      // ** is special: it can match nothing at all.
+      // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
+      // The rest of the pattern is matched right away, so that it can reuse the directory listing.
+      if ("**".equals(pattern)
+          && queuedKeys.add(new GlobTaskKey(base, patternParts, idx + 1, excludeIdx))) {
+        reallyGlob(base, baseIsDir, patternParts, idx + 1, excludeDirectories,
+            excludePatterns, excludeIdx, results, cache, dirPred, syscalls, dents);
+      }
 
       for (Dirent dent : dents) {
         Dirent.Type type = dent.getType();
@@ -39,7 +39,10 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Histogram;
 import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -69,6 +72,9 @@ final class WorkerSpawnStrategy implements SpawnActionContext {
   public static final String REASON_NO_TOOLS =
       "Not using worker strategy, because the action has no tools";
 
+  private static final Histogram borrowTimes =
+      MetricsRegistry.instance().histogram("worker.borrow_us");
+
   private final WorkerPool workers;
   private final IncrementalHeuristic incrementalHeuristic;
   private final StandaloneSpawnStrategy standaloneStrategy;
@@ -226,7 +232,9 @@ final class WorkerSpawnStrategy implements SpawnActionContext {
     WorkResponse response = null;
 
     try {
+      long startTime = BlazeClock.nanoTime();
       worker = workers.borrowObject(key);
+      borrowTimes.record((BlazeClock.nanoTime() - startTime) / 1000);
       request.writeDelimitedTo(worker.getOutputStream());
       worker.getOutputStream().flush();
 
@@ -251,6 +251,12 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
         "Re-entrant evaluation for request: %s", requestInfo);
   }
 
+  @Nullable
+  @Override
+  public Version getCurrentVersion() {
+    return lastGraphVersion;
+  }
+
   @Override
   public Map<SkyKey, SkyValue> getValues() {
     return graph.getValues();
@@ -81,6 +81,13 @@ public interface MemoizingEvaluator {
    */
   void deleteDirty(long versionAgeLimit);
 
+  /**
+   * Returns the version of the graph after the last call to {@link #evaluate}, or null if it was
+   * never called.
+   */
+  @Nullable
+  Version getCurrentVersion();
+
   /**
    * Returns the values in the graph.
    *
@@ -36,6 +36,9 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.profiler.AllocationTracker;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.KeyedCounter;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
@@ -624,6 +627,14 @@ public final class ParallelEvaluator implements Evaluator {
     }
   }
 
+  // Always-on counters per SkyFunctionName; see MetricsRegistry.
+  private static final KeyedCounter evaluationCounts =
+      MetricsRegistry.instance().keyedCounter("skyframe.evaluations");
+  private static final KeyedCounter evaluationMicros =
+      MetricsRegistry.instance().keyedCounter("skyframe.evaluation_time_us");
+  private static final KeyedCounter restartCounts =
+      MetricsRegistry.instance().keyedCounter("skyframe.restarts");
+
   private static final ErrorClassifier VALUE_VISITOR_ERROR_CLASSIFIER =
       new ErrorClassifier() {
         @Override
@@ -929,6 +940,7 @@ public final class ParallelEvaluator implements Evaluator {
 
       SkyValue value = null;
       long startTime = BlazeClock.instance().nanoTime();
+      long startAllocatedBytes = AllocationTracker.instance().start();
       try {
         value = factory.compute(skyKey, env);
       } catch (final SkyFunctionException builderException) {
@@ -984,8 +996,11 @@ public final class ParallelEvaluator implements Evaluator {
         throw ex;
       } finally {
         env.doneBuilding();
+        AllocationTracker.instance().finish(functionName, startAllocatedBytes);
         long elapsedTimeNanos =  BlazeClock.instance().nanoTime() - startTime;
+        evaluationCounts.get(skyKey.functionName()).increment();
         if (elapsedTimeNanos > 0)  {
+          evaluationMicros.get(skyKey.functionName()).add(elapsedTimeNanos / 1000);
           if (progressReceiver != null) {
             progressReceiver.computed(skyKey, elapsedTimeNanos);
           }
@@ -1063,6 +1078,11 @@ public final class ParallelEvaluator implements Evaluator {
         return;
       }
 
+      // The function is restarted once the new dependencies are done; the profile counts the
+      // restarts of every function.
+      Profiler.instance().logEvent(ProfilerTask.SKYFUNCTION_RESTART, skyKey.functionName());
+      restartCounts.get(skyKey.functionName()).increment();
+
       for (Map.Entry<SkyKey, NodeEntry> e : graph.createIfAbsentBatch(newDirectDeps).entrySet()) {
         SkyKey newDirectDep = e.getKey();
         NodeEntry newDirectDepEntry = e.getValue();
@@ -0,0 +1,536 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// spawn-helper is a small, long-lived process that starts subprocesses on
+// behalf of the Bazel server. Forking the server JVM gets slower the larger
+// its heap is, whereas forking this process is cheap no matter how many
+// subprocesses it starts.
+//
+// Usage: spawn-helper <socket-path>
+//
+// The helper listens on the AF_UNIX socket <socket-path> and prints "ready" to
+// stdout once it accepts connections. It exits when its stdin is closed, which
+// happens at the latest when the server that started it dies.
+//
+// Every connection runs exactly one subprocess. The client sends a 4-byte
+// big-endian length followed by that many bytes of NUL-terminated strings:
+//
+//   <cwd> <stdin-path> <stdout-path> <stderr-path>
+//   <argc> <argv[0]> ... <argv[argc-1]> <envc> <env[0]> ... <env[envc-1]>
+//
+// argv[0] must be a path to the executable; PATH is not searched. stdout and
+// stderr are opened for appending. The helper replies with 'P' and the 4-byte
+// pid once the subprocess has been started, or with 'E' and the 4-byte errno
+// if it could not be started. When the subprocess exits, the helper sends 'X'
+// and the 4-byte raw wait status, then closes the connection.
+//
+// The subprocess is started in its own process group. If the client sends any
+// byte or closes the connection before the subprocess exits, the whole process
+// group receives SIGTERM.
+
+#define _GNU_SOURCE
+
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/types.h>
+#include <sys/un.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "process-tools.h"
+
+// Requests larger than this are rejected; command lines are usually passed
+// through parameter files long before they get this big.
+#define MAX_REQUEST_SIZE (64 * 1024 * 1024)
+
+// How long a client may take to send its request after connecting. Requests
+// are read without blocking, so a slow client only delays its own subprocess.
+#define REQUEST_TIMEOUT_MILLIS (30 * 1000)
+
+// A client connection, which is either still sending its request or waiting
+// for its subprocess to exit.
+struct Connection {
+  int fd;          // Connection to the client, or -1 if the client went away.
+  bool running;    // Whether the subprocess has been started.
+
+  // While the request is read: the length header, the request itself once
+  // the header is complete, how many bytes of both have been received, and
+  // when the client has to be done sending.
+  unsigned char header[4];
+  char *request;
+  size_t request_len;
+  size_t received;
+  int64_t deadline_millis;
+
+  // Once the subprocess runs:
+  pid_t pid;       // Process (and process group) id of the subprocess.
+  bool killed;     // Whether SIGTERM has already been sent.
+};
+
+static struct Connection *connections = NULL;
+static size_t num_connections = 0;
+static size_t connections_capacity = 0;
+
+static const char *socket_path = NULL;
+static int sigchld_pipe[2];
+
+// Written by the vforked child before it exits if exec fails. The child shares
+// our address space until then, and we are suspended while it runs.
+static volatile int exec_errno;
+
+static void OnSigchld(int sig) {
+  int saved_errno = errno;
+  char c = 0;
+  // If the pipe is full, there is already a wake-up pending.
+  (void)write(sigchld_pipe[1], &c, 1);
+  errno = saved_errno;
+}
+
+static void SetCloseOnExec(int fd) {
+  CHECK_CALL(fcntl(fd, F_SETFD, FD_CLOEXEC));
+}
+
+static void PutInt(char *buf, uint32_t value) {
+  buf[0] = (char)(value >> 24);
+  buf[1] = (char)(value >> 16);
+  buf[2] = (char)(value >> 8);
+  buf[3] = (char)value;
+}
+
+// Writes a tag byte followed by a 4-byte big-endian value. Errors are ignored:
+// the client may already have gone away, and it has no-one to tell.
+static void SendReply(int fd, char tag, uint32_t value) {
+  char buf[5];
+  buf[0] = tag;
+  PutInt(buf + 1, value);
+  size_t written = 0;
+  while (written < sizeof(buf)) {
+    ssize_t r = write(fd, buf + written, sizeof(buf) - written);
+    if (r < 0 && errno == EINTR) {
+      continue;
+    }
+    if (r <= 0) {
+      return;
+    }
+    written += r;
+  }
+}
+
+static int64_t NowMillis() {
+  struct timespec now;
+  CHECK_CALL(clock_gettime(CLOCK_MONOTONIC, &now));
+  return (int64_t)now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+// Returns the string starting at *pos and advances *pos past its terminating
+// NUL, or returns NULL if the buffer ends first.
+static char *NextString(char *buf, size_t len, size_t *pos) {
+  if (*pos >= len) {
+    return NULL;
+  }
+  char *start = buf + *pos;
+  char *end = memchr(start, '\0', len - *pos);
+  if (end == NULL) {
+    return NULL;
+  }
+  *pos = (end - buf) + 1;
+  return start;
+}
+
+// Parses a count followed by that many strings into a NULL-terminated array.
+static char **NextStringArray(char *buf, size_t len, size_t *pos) {
+  char *count_str = NextString(buf, len, pos);
+  if (count_str == NULL) {
+    return NULL;
+  }
+  char *endptr;
+  long count = strtol(count_str, &endptr, 10);
+  if (*endptr != '\0' || count < 0 || (size_t)count > len) {
+    return NULL;
+  }
+  char **result = calloc(count + 1, sizeof(char *));
+  CHECK_NOT_NULL(result);
+  for (long i = 0; i < count; i++) {
+    result[i] = NextString(buf, len, pos);
+    if (result[i] == NULL) {
+      free(result);
+      return NULL;
+    }
+  }
+  return result;
+}
+
+static int OpenAndMove(const char *path, int flags, int target_fd) {
+  int fd = open(path, flags, 0666);
+  if (fd < 0) {
+    return -1;
+  }
+  if (fd != target_fd) {
+    if (dup2(fd, target_fd) < 0) {
+      return -1;
+    }
+    close(fd);
+  }
+  return 0;
+}
+
+// Starts the subprocess described by the request. Returns its pid, or -1 with
+// errno set.
+static pid_t Spawn(const char *cwd, const char *stdin_path,
+                   const char *stdout_path, const char *stderr_path,
+                   char *const *argv, char *const *envp) {
+  if (argv[0] == NULL) {
+    errno = EINVAL;
+    return -1;
+  }
+
+  exec_errno = 0;
+  pid_t pid = vfork();
+  if (pid < 0) {
+    return -1;
+  }
+  if (pid == 0) {
+    // In child. Only async-signal-safe calls from here on, and no returning.
+    if (setpgid(0, 0) < 0 || chdir(cwd) < 0 ||
+        OpenAndMove(stdin_path, O_RDONLY, STDIN_FILENO) < 0 ||
+        OpenAndMove(stdout_path, O_WRONLY | O_CREAT | O_APPEND,
+                    STDOUT_FILENO) < 0 ||
+        OpenAndMove(stderr_path, O_WRONLY | O_CREAT | O_APPEND,
+                    STDERR_FILENO) < 0) {
+      exec_errno = errno;
+      _exit(127);
+    }
+    signal(SIGPIPE, SIG_DFL);
+    signal(SIGCHLD, SIG_DFL);
+    sigset_t empty;
+    sigemptyset(&empty);
+    sigprocmask(SIG_SETMASK, &empty, NULL);
+
+    // Force umask to include read and execute for everyone, to make output
+    // permissions predictable.
+    umask(022);
+
+    execve(argv[0], argv, envp);
+    exec_errno = errno;
+    _exit(127);
+  }
+
+  // In parent. vfork() resumes us once the child has exec'd or exited.
+  if (exec_errno != 0) {
+    int saved_errno = exec_errno;
+    waitpid(pid, NULL, 0);
+    errno = saved_errno;
+    return -1;
+  }
+  return pid;
+}
+
+static void AddConnection(int fd) {
+  if (num_connections == connections_capacity) {
+    connections_capacity =
+        connections_capacity == 0 ? 16 : connections_capacity * 2;
+    connections =
+        realloc(connections, connections_capacity * sizeof(struct Connection));
+    CHECK_NOT_NULL(connections);
+  }
+  struct Connection *connection = &connections[num_connections++];
+  memset(connection, 0, sizeof(*connection));
+  connection->fd = fd;
+  connection->deadline_millis = NowMillis() + REQUEST_TIMEOUT_MILLIS;
+}
+
+// Closes the connection (if the client is still there) and forgets about it.
+// The last connection takes its place in the table.
+static void RemoveConnection(size_t i) {
+  if (connections[i].fd >= 0) {
+    close(connections[i].fd);
+  }
+  free(connections[i].request);
+  connections[i] = connections[--num_connections];
+}
+
+// Parses the complete request of a connection and starts the subprocess.
+// Returns false if the connection should be closed.
+static bool StartSubprocess(struct Connection *connection) {
+  char *buf = connection->request;
+  size_t len = connection->request_len;
+  size_t pos = 0;
+  char *cwd = NextString(buf, len, &pos);
+  char *stdin_path = NextString(buf, len, &pos);
+  char *stdout_path = NextString(buf, len, &pos);
+  char *stderr_path = NextString(buf, len, &pos);
+  char **argv = stderr_path != NULL ? NextStringArray(buf, len, &pos) : NULL;
+  char **envp = argv != NULL ? NextStringArray(buf, len, &pos) : NULL;
+
+  bool started = false;
+  if (envp == NULL) {
+    SendReply(connection->fd, 'E', EINVAL);
+  } else {
+    pid_t pid = Spawn(cwd, stdin_path, stdout_path, stderr_path, argv, envp);
+    if (pid < 0) {
+      SendReply(connection->fd, 'E', errno);
+    } else {
+      SendReply(connection->fd, 'P', pid);
+      connection->running = true;
+      connection->pid = pid;
+      started = true;
+    }
+  }
+
+  free(argv);
+  free(envp);
+  free(connection->request);
+  connection->request = NULL;
+  return started;
+}
+
+// Reads whatever part of the request is available without blocking, and
+// starts the subprocess once the request is complete. Returns false if the
+// connection should be closed.
+static bool ReadRequest(struct Connection *connection) {
+  for (;;) {
+    char *dest;
+    size_t remaining;
+    if (connection->received < sizeof(connection->header)) {
+      dest = (char *)connection->header + connection->received;
+      remaining = sizeof(connection->header) - connection->received;
+    } else {
+      size_t done = connection->received - sizeof(connection->header);
+      dest = connection->request + done;
+      remaining = connection->request_len - done;
+    }
+
+    if (remaining > 0) {
+      ssize_t r = read(connection->fd, dest, remaining);
+      if (r < 0 && errno == EINTR) {
+        continue;
+      }
+      if (r < 0 && (errno == EAGAIN || errno == EWOULDBLOCK)) {
+        return true;
+      }
+      if (r <= 0) {
+        return false;
+      }
+      connection->received += r;
+    }
+
+    if (connection->received == sizeof(connection->header) &&
+        connection->request == NULL) {
+      unsigned char *header = connection->header;
+      size_t len = ((size_t)header[0] << 24) | ((size_t)header[1] << 16) |
+                   ((size_t)header[2] << 8) | (size_t)header[3];
+      if (len > MAX_REQUEST_SIZE) {
+        SendReply(connection->fd, 'E', EINVAL);
+        return false;
+      }
+      connection->request = malloc(len + 1);
+      CHECK_NOT_NULL(connection->request);
+      connection->request_len = len;
+    }
+
+    if (connection->request != NULL &&
+        connection->received ==
+            sizeof(connection->header) + connection->request_len) {
+      // The replies are tiny, so it is fine to write them blocking.
+      CHECK_CALL(fcntl(connection->fd, F_SETFL, 0));
+      return StartSubprocess(connection);
+    }
+  }
+}
+
+// Kills the subprocess of a client that asked for it or went away.
+static void HandleClientInput(struct Connection *connection) {
+  char c;
+  ssize_t r = read(connection->fd, &c, 1);
+  if (r < 0 && errno == EINTR) {
+    return;
+  }
+  if (r <= 0) {
+    // Nobody is waiting for the exit status anymore.
+    close(connection->fd);
+    connection->fd = -1;
+  }
+  if (!connection->killed) {
+    kill(-connection->pid, SIGTERM);
+    connection->killed = true;
+  }
+}
+
+static void ReapChildren() {
+  char drain[64];
+  while (read(sigchld_pipe[0], drain, sizeof(drain)) > 0) {
+  }
+
+  int status;
+  pid_t pid;
+  while ((pid = waitpid(-1, &status, WNOHANG)) > 0) {
+    for (size_t i = 0; i < num_connections; i++) {
+      if (connections[i].running && connections[i].pid == pid) {
+        // The subprocess is done, but may have left children behind.
+        kill(-pid, SIGKILL);
+        if (connections[i].fd >= 0) {
+          SendReply(connections[i].fd, 'X', (uint32_t)status);
+        }
+        RemoveConnection(i);
+        break;
+      }
+    }
+  }
+}
+
+// Drops the connections of clients that did not send their request in time,
+// and returns how long poll() may wait for the next deadline (-1 if none).
+static int ExpireRequests() {
+  int64_t now = NowMillis();
+  int64_t timeout = -1;
+  for (size_t i = num_connections; i-- > 0;) {
+    if (connections[i].running) {
+      continue;
+    }
+    if (connections[i].deadline_millis <= now) {
+      RemoveConnection(i);
+    } else if (timeout < 0 || connections[i].deadline_millis - now < timeout) {
+      timeout = connections[i].deadline_millis - now;
+    }
+  }
+  return (int)timeout;
+}
+
+static void Shutdown() {
+  for (size_t i = 0; i < num_connections; i++) {
+    if (connections[i].running) {
+      kill(-connections[i].pid, SIGKILL);
+    }
+  }
+  unlink(socket_path);
+  exit(EXIT_SUCCESS);
+}
+
+static int Listen(const char *path) {
+  struct sockaddr_un addr;
+  if (strlen(path) >= sizeof(addr.sun_path)) {
+    DIE("socket path too long: %s\n", path);
+  }
+  memset(&addr, 0, sizeof(addr));
+  addr.sun_family = AF_UNIX;
+  strncpy(addr.sun_path, path, sizeof(addr.sun_path) - 1);
+
+  int fd;
+  CHECK_CALL(fd = socket(AF_UNIX, SOCK_STREAM, 0));
+  SetCloseOnExec(fd);
+  unlink(path);
+  CHECK_CALL(bind(fd, (struct sockaddr *)&addr, sizeof(addr)));
+  CHECK_CALL(listen(fd, 128));
+  return fd;
+}
+
+int main(int argc, char *argv[]) {
+  if (argc != 2) {
+    fprintf(stderr, "Usage: %s <socket-path>\n", argv[0]);
+    exit(EXIT_FAILURE);
+  }
+  socket_path = argv[1];
+
+  // Writes to clients that went away must not kill us.
+  signal(SIGPIPE, SIG_IGN);
+
+  CHECK_CALL(pipe(sigchld_pipe));
+  for (int i = 0; i < 2; i++) {
+    SetCloseOnExec(sigchld_pipe[i]);
+    CHECK_CALL(fcntl(sigchld_pipe[i], F_SETFL, O_NONBLOCK));
+  }
+  HandleSignal(SIGCHLD, OnSigchld);
+
+  int listen_fd = Listen(socket_path);
+  printf("ready\n");
+  fflush(stdout);
+
+  struct pollfd *fds = NULL;
+  size_t fds_capacity = 0;
+  for (;;) {
+    int timeout = ExpireRequests();
+
+    // The first three entries are fixed; one entry per connection follows.
+    size_t nfds = 3 + num_connections;
+    if (nfds > fds_capacity) {
+      fds_capacity = nfds * 2;
+      fds = realloc(fds, fds_capacity * sizeof(struct pollfd));
+      CHECK_NOT_NULL(fds);
+    }
+    fds[0].fd = STDIN_FILENO;
+    fds[0].events = POLLIN;
+    fds[1].fd = sigchld_pipe[0];
+    fds[1].events = POLLIN;
+    fds[2].fd = listen_fd;
+    fds[2].events = POLLIN;
+    for (size_t i = 0; i < num_connections; i++) {
+      fds[3 + i].fd = connections[i].fd;  // Negative fds are ignored by poll().
+      fds[3 + i].events = POLLIN;
+    }
+
+    int ready = poll(fds, nfds, timeout);
+    if (ready < 0) {
+      if (errno == EINTR) {
+        continue;
+      }
+      DIE("poll: %s\n", strerror(errno));
+    }
+
+    if (fds[0].revents != 0) {
+      char c;
+      if (read(STDIN_FILENO, &c, 1) <= 0) {
+        Shutdown();
+      }
+    }
+
+    // Removing a connection moves the last one into its place. Going from the
+    // end keeps the connections that are still to be handled at the index of
+    // their poll entry.
+    for (size_t i = nfds - 3; i-- > 0;) {
+      if (fds[3 + i].revents == 0) {
+        continue;
+      }
+      if (connections[i].running) {
+        HandleClientInput(&connections[i]);
+      } else if (!ReadRequest(&connections[i])) {
+        RemoveConnection(i);
+      }
+    }
+
+    if (fds[1].revents != 0) {
+      ReapChildren();
+    }
+
+    if (fds[2].revents != 0) {
+      int client_fd = accept(listen_fd, NULL, NULL);
+      if (client_fd >= 0) {
+        SetCloseOnExec(client_fd);
+        CHECK_CALL(fcntl(client_fd, F_SETFL, O_NONBLOCK));
+        AddConnection(client_fd);
+      } else if (errno != EINTR && errno != ECONNABORTED) {
+        DIE("accept: %s\n", strerror(errno));
+      }
+    }
+  }
+}
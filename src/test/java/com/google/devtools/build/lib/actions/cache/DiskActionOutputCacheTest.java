@@ -0,0 +1,196 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link DiskActionOutputCache}.
+ */
+@RunWith(JUnit4.class)
+public class DiskActionOutputCacheTest {
+  private static final PathFragment OUT = new PathFragment("bazel-out/bin/pkg/out");
+  private static final String KEY = Fingerprint.md5Digest("action");
+
+  private Path cacheRoot;
+  private Path workspace1;
+  private Path workspace2;
+
+  @Before
+  public final void createDirectories() throws Exception {
+    FileSystem fileSystem = FileSystems.initDefaultAsNative();
+    Path testRoot = fileSystem.getPath(TestUtils.makeTempDir().getPath());
+    cacheRoot = testRoot.getChild("cache");
+    workspace1 = testRoot.getChild("ws1");
+    workspace2 = testRoot.getChild("ws2");
+    FileSystemUtils.createDirectoryAndParents(workspace1.getRelative(OUT).getParentDirectory());
+    FileSystemUtils.createDirectoryAndParents(workspace2.getRelative(OUT).getParentDirectory());
+  }
+
+  private DiskActionOutputCache createCache(long maxSizeBytes) throws IOException {
+    return new DiskActionOutputCache(cacheRoot, maxSizeBytes);
+  }
+
+  /** Writes an output into {@code execRoot} and stores it in the cache under {@code key}. */
+  private void storeOutput(DiskActionOutputCache cache, String key, Path execRoot,
+      PathFragment output, String content) throws IOException {
+    Path path = execRoot.getRelative(output);
+    FileSystemUtils.writeContent(path, UTF_8, content);
+    cache.store(key, execRoot, ImmutableMap.of(output, path.getMD5Digest()));
+  }
+
+  @Test
+  public void testFetchesOutputsStoredByOtherWorkspace() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    storeOutput(cache, KEY, workspace1, OUT, "hello");
+
+    assertThat(cache.fetch(KEY, workspace2, ImmutableList.of(OUT))).isTrue();
+    assertThat(FileSystemUtils.readContent(workspace2.getRelative(OUT), UTF_8))
+        .isEqualTo("hello");
+  }
+
+  @Test
+  public void testMissesUnknownKeyAndDifferentOutputs() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    storeOutput(cache, KEY, workspace1, OUT, "hello");
+
+    assertThat(cache.fetch(Fingerprint.md5Digest("other"), workspace2, ImmutableList.of(OUT)))
+        .isFalse();
+    assertThat(cache.fetch(KEY, workspace2, ImmutableList.of(new PathFragment("other/out"))))
+        .isFalse();
+    assertThat(workspace2.getRelative(OUT).exists()).isFalse();
+  }
+
+  @Test
+  public void testGetOutputsListsStoredOutputs() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    assertThat(cache.getOutputs(KEY)).isNull();
+
+    storeOutput(cache, KEY, workspace1, OUT, "hello");
+
+    assertThat(cache.getOutputs(KEY)).containsExactly(OUT);
+  }
+
+  @Test
+  public void testTrimEvictsLeastRecentlyUsedEntries() throws Exception {
+    DiskActionOutputCache cache = createCache(10);
+    String oldKey = Fingerprint.md5Digest("old");
+    String newKey = Fingerprint.md5Digest("new");
+    PathFragment oldOut = new PathFragment("bazel-out/bin/pkg/old");
+    storeOutput(cache, oldKey, workspace1, oldOut, "0123456");
+    storeOutput(cache, newKey, workspace1, OUT, "6543210");
+    // Make sure the entry of the old action is older, whatever the file system's granularity.
+    Path oldEntry = cacheRoot.getRelative("ac/" + oldKey.substring(0, 2) + "/" + oldKey);
+    oldEntry.setLastModifiedTime(oldEntry.getLastModifiedTime() - 10000);
+
+    cache.trim();
+
+    assertThat(cache.fetch(oldKey, workspace2, ImmutableList.of(oldOut))).isFalse();
+    assertThat(cache.fetch(newKey, workspace2, ImmutableList.of(OUT))).isTrue();
+  }
+
+  @Test
+  public void testEntryWithEvictedBlobIsMiss() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    PathFragment first = new PathFragment("bazel-out/bin/pkg/first");
+    PathFragment second = new PathFragment("bazel-out/bin/pkg/second");
+    Path firstPath = workspace1.getRelative(first);
+    Path secondPath = workspace1.getRelative(second);
+    FileSystemUtils.writeContent(firstPath, UTF_8, "first");
+    FileSystemUtils.writeContent(secondPath, UTF_8, "second");
+    cache.store(KEY, workspace1,
+        ImmutableMap.of(first, firstPath.getMD5Digest(), second, secondPath.getMD5Digest()));
+    String digest = Fingerprint.hexDigest(secondPath.getMD5Digest());
+    cacheRoot.getRelative("cas/" + digest.substring(0, 2) + "/" + digest).delete();
+
+    assertThat(cache.fetch(KEY, workspace2, ImmutableList.of(first, second))).isFalse();
+    // The outputs that could be created are rolled back.
+    assertThat(workspace2.getRelative(first).exists()).isFalse();
+  }
+
+  private Path getBlob(Path output) throws IOException {
+    String digest = Fingerprint.hexDigest(output.getMD5Digest());
+    return cacheRoot.getRelative("cas/" + digest.substring(0, 2) + "/" + digest);
+  }
+
+  @Test
+  public void testChangingModeOfFetchedOutputLeavesBlobUnchanged() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    storeOutput(cache, KEY, workspace1, OUT, "hello");
+    Path stored = workspace1.getRelative(OUT);
+    Path blob = getBlob(stored);
+    // The writable output was copied, and the blob is read-only.
+    assertThat(stored.isWritable()).isTrue();
+    assertThat(blob.isWritable()).isFalse();
+    assertThat(blob.isExecutable()).isTrue();
+
+    // Someone makes the blob writable through an output that shares its storage.
+    blob.chmod(0755);
+    assertThat(cache.fetch(KEY, workspace2, ImmutableList.of(OUT))).isTrue();
+    Path fetched = workspace2.getRelative(OUT);
+    fetched.chmod(0555);
+    fetched.chmod(0644);
+
+    assertThat(blob.isWritable()).isTrue();
+    assertThat(blob.isExecutable()).isTrue();
+    assertThat(FileSystemUtils.readContent(blob, UTF_8)).isEqualTo("hello");
+  }
+
+  @Test
+  public void testReadOnlyOutputsAreLinked() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    Path stored = workspace1.getRelative(OUT);
+    FileSystemUtils.writeContent(stored, UTF_8, "hello");
+    stored.chmod(0555);
+    cache.store(KEY, workspace1, ImmutableMap.of(OUT, stored.getMD5Digest()));
+
+    assertThat(cache.fetch(KEY, workspace2, ImmutableList.of(OUT))).isTrue();
+    Path fetched = workspace2.getRelative(OUT);
+    assertThat(fetched.stat().getNodeId()).isEqualTo(stored.stat().getNodeId());
+    // Completing the action does not change the shared storage.
+    fetched.chmod(0555);
+    assertThat(getBlob(stored).isWritable()).isFalse();
+  }
+
+  @Test
+  public void testModifiedBlobIsMiss() throws Exception {
+    DiskActionOutputCache cache = createCache(1 << 20);
+    storeOutput(cache, KEY, workspace1, OUT, "hello");
+    Path blob = getBlob(workspace1.getRelative(OUT));
+    blob.chmod(0755);
+    FileSystemUtils.writeContent(blob, UTF_8, "tampered");
+
+    assertThat(cache.fetch(KEY, workspace2, ImmutableList.of(OUT))).isFalse();
+    assertThat(workspace2.getRelative(OUT).exists()).isFalse();
+    assertThat(blob.exists()).isFalse();
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.graph;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the heap that a {@link Digraph} and a {@link CompactDigraph} of the same random acyclic
+ * graph retain, and how long the traversals of query output take on each: a sorted topological
+ * order, the forward closure of the first node and the subgraph of every other node. Usage:
+ *
+ * <pre>
+ *   java -Xmx... ... CompactDigraphBenchmark [nodes [edges per node]]
+ * </pre>
+ */
+class CompactDigraphBenchmark {
+
+  private static long usedHeap(MemoryMXBean memory) {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private static void report(String what, long start) {
+    System.out.printf("  %s: %d ms%n", what, (System.nanoTime() - start) / 1000000);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+    int edgesPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    String[] labels = new String[nodes];
+    for (int i = 0; i < nodes; i++) {
+      labels[i] = "//pkg" + (i / 100) + ":target" + (i % 100);
+    }
+    Set<String> everyOther = new HashSet<>();
+    for (int i = 0; i < nodes; i += 2) {
+      everyOther.add(labels[i]);
+    }
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    Random random = new Random(0);
+
+    long before = usedHeap(memory);
+    Digraph<String> graph = new Digraph<>();
+    for (int i = 0; i < nodes; i++) {
+      graph.createNode(labels[i]);
+      for (int j = 0; j < edgesPerNode && i > 0; j++) {
+        graph.addEdge(labels[random.nextInt(i)], labels[i]);
+      }
+    }
+    long digraphBytes = usedHeap(memory) - before;
+    CompactDigraph<String> compact = CompactDigraph.copyOf(graph);
+    long compactBytes = usedHeap(memory) - before - digraphBytes;
+    System.out.printf("%d nodes, %d edges: Digraph %d MB, CompactDigraph %d MB%n",
+        graph.getNodeCount(), graph.getEdgeCount(), digraphBytes >> 20, compactBytes >> 20);
+
+    System.out.println("Digraph:");
+    long start = System.nanoTime();
+    graph.getTopologicalOrder(Ordering.natural());
+    report("sorted topological order", start);
+    start = System.nanoTime();
+    graph.getFwdReachable(ImmutableList.of(graph.getNode(labels[0])));
+    report("forward closure", start);
+    start = System.nanoTime();
+    graph.extractSubgraph(everyOther);
+    report("subgraph", start);
+
+    System.out.println("CompactDigraph:");
+    start = System.nanoTime();
+    compact.getTopologicalOrder(Ordering.natural());
+    report("sorted topological order", start);
+    start = System.nanoTime();
+    BitSet first = new BitSet();
+    first.set(compact.getNode(labels[0]));
+    compact.getFwdReachable(first);
+    report("forward closure", start);
+    start = System.nanoTime();
+    CompactDigraph.subgraphOf(graph, everyOther);
+    report("subgraph, including the copy", start);
+  }
+}
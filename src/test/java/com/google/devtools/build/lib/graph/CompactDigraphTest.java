@@ -0,0 +1,209 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.graph;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link CompactDigraph}.
+ */
+@RunWith(JUnit4.class)
+public class CompactDigraphTest {
+
+  /** Returns a random graph of nodes "n0" to "n{size-1}"; edges go forward unless cyclic. */
+  private static Digraph<String> randomGraph(Random random, int size, boolean cyclic) {
+    Digraph<String> graph = new Digraph<>();
+    for (int i = 0; i < size; i++) {
+      graph.createNode("n" + i);
+    }
+    for (int i = 0; i < size * 2; i++) {
+      int from = random.nextInt(size);
+      int to = random.nextInt(size);
+      if (cyclic || from < to) {
+        graph.addEdge("n" + from, "n" + to);
+      }
+    }
+    return graph;
+  }
+
+  private static <T> List<T> labels(Iterable<Node<T>> nodes) {
+    List<T> result = new ArrayList<>();
+    for (Node<T> node : nodes) {
+      result.add(node.getLabel());
+    }
+    return result;
+  }
+
+  /** Returns the edges of the graph as "from->to" strings. */
+  private static Set<String> edges(Digraph<String> graph) {
+    Set<String> result = new HashSet<>();
+    for (Node<String> node : graph.getNodes()) {
+      for (Node<String> successor : node.getSuccessors()) {
+        result.add(node.getLabel() + "->" + successor.getLabel());
+      }
+    }
+    return result;
+  }
+
+  private static Set<String> edges(CompactDigraph<String> graph) {
+    Set<String> result = new HashSet<>();
+    for (int node = 0; node < graph.getNodeCount(); node++) {
+      for (int i = 0; i < graph.getSuccessorCount(node); i++) {
+        result.add(graph.getLabel(node) + "->" + graph.getLabel(graph.getSuccessor(node, i)));
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testBuilder() {
+    CompactDigraph.Builder<String> builder = CompactDigraph.builder();
+    assertThat(builder.addNode("a")).isEqualTo(0);
+    assertThat(builder.addNode("b")).isEqualTo(1);
+    assertThat(builder.addNode("a")).isEqualTo(0);
+    builder.addEdge("a", "b").addEdge("a", "b").addEdge("c", "a");
+    CompactDigraph<String> graph = builder.build();
+
+    assertThat(graph.getNodeCount()).isEqualTo(3);
+    assertThat(graph.getEdgeCount()).isEqualTo(2);
+    assertThat(graph.getLabels()).containsExactly("a", "b", "c").inOrder();
+    assertThat(graph.getNode("c")).isEqualTo(2);
+    assertThat(graph.getNode("d")).isEqualTo(-1);
+    assertThat(graph.getSuccessorCount(0)).isEqualTo(1);
+    assertThat(graph.getSuccessor(0, 0)).isEqualTo(1);
+    assertThat(graph.getPredecessorCount(0)).isEqualTo(1);
+    assertThat(graph.getPredecessor(0, 0)).isEqualTo(2);
+  }
+
+  @Test
+  public void testCopyOfHasSameEdges() {
+    Random random = new Random(1);
+    for (int i = 0; i < 20; i++) {
+      Digraph<String> graph = randomGraph(random, 30, true);
+      CompactDigraph<String> compact = CompactDigraph.copyOf(graph);
+      assertThat(compact.getNodeCount()).isEqualTo(graph.getNodeCount());
+      assertThat(compact.getEdgeCount()).isEqualTo(graph.getEdgeCount());
+      assertThat(edges(compact)).isEqualTo(edges(graph));
+    }
+  }
+
+  @Test
+  public void testTopologicalOrderMatchesDigraph() {
+    Random random = new Random(2);
+    for (int i = 0; i < 20; i++) {
+      Digraph<String> graph = randomGraph(random, 30, false);
+      CompactDigraph<String> compact = CompactDigraph.copyOf(graph);
+      assertThat(compact.getLabels(compact.getTopologicalOrder(Ordering.natural())))
+          .containsExactlyElementsIn(labels(graph.getTopologicalOrder(Ordering.natural())))
+          .inOrder();
+
+      List<String> order = compact.getLabels(compact.getTopologicalOrder(null));
+      for (Node<String> node : graph.getNodes()) {
+        for (Node<String> successor : node.getSuccessors()) {
+          assertThat(order.indexOf(node.getLabel()))
+              .isLessThan(order.indexOf(successor.getLabel()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testStrongComponentsAndRanks() {
+    // a -> b <-> c -> d, a -> d
+    CompactDigraph<String> graph = CompactDigraph.<String>builder()
+        .addEdge("a", "b").addEdge("b", "c").addEdge("c", "b").addEdge("c", "d").addEdge("a", "d")
+        .build();
+    int[] components = graph.getStrongComponents();
+    int a = components[graph.getNode("a")];
+    int b = components[graph.getNode("b")];
+    int c = components[graph.getNode("c")];
+    int d = components[graph.getNode("d")];
+    assertThat(b).isEqualTo(c);
+    assertThat(a).isGreaterThan(b);
+    assertThat(b).isGreaterThan(d);
+
+    assertThat(graph.getMinRanks()).isEqualTo(new int[] {0, 1, 1, 1});
+    assertThat(graph.getMaxRanks()).isEqualTo(new int[] {0, 1, 1, 2});
+  }
+
+  @Test
+  public void testExtractSubgraphMatchesDigraph() {
+    Random random = new Random(3);
+    for (int i = 0; i < 20; i++) {
+      Digraph<String> graph = randomGraph(random, 30, i % 2 == 0);
+      Set<String> subset = new HashSet<>();
+      for (int j = 0; j < 30; j++) {
+        if (random.nextBoolean()) {
+          subset.add("n" + j);
+        }
+      }
+      CompactDigraph<String> compact = CompactDigraph.subgraphOf(graph, subset);
+      assertThat(compact.getLabels()).containsExactlyElementsIn(subset);
+      assertThat(edges(compact)).isEqualTo(edges(graph.extractSubgraph(subset)));
+    }
+  }
+
+  @Test
+  public void testReachability() {
+    Random random = new Random(4);
+    for (int i = 0; i < 20; i++) {
+      Digraph<String> graph = randomGraph(random, 30, true);
+      CompactDigraph<String> compact = CompactDigraph.copyOf(graph);
+      BitSet start = new BitSet();
+      start.set(compact.getNode("n0"));
+      start.set(compact.getNode("n1"));
+      List<Node<String>> startNodes = ImmutableList.of(graph.getNode("n0"), graph.getNode("n1"));
+      assertThat(compact.getLabels(compact.getFwdReachable(start)))
+          .containsExactlyElementsIn(labels(graph.getFwdReachable(startNodes)));
+      assertThat(compact.getLabels(compact.getBackReachable(start)))
+          .containsExactlyElementsIn(labels(graph.getBackReachable(startNodes)));
+    }
+  }
+
+  @Test
+  public void testShortestPath() {
+    CompactDigraph<String> graph = CompactDigraph.<String>builder()
+        .addEdge("a", "b").addEdge("b", "c").addEdge("c", "d").addEdge("a", "c").addEdge("e", "a")
+        .build();
+    assertThat(graph.getLabels(graph.getShortestPath(graph.getNode("a"), graph.getNode("d"))))
+        .containsExactly("a", "c", "d").inOrder();
+    assertThat(graph.getLabels(graph.getShortestPath(graph.getNode("b"), graph.getNode("b"))))
+        .containsExactly("b");
+    assertThat(graph.getShortestPath(graph.getNode("d"), graph.getNode("a"))).isNull();
+  }
+
+  @Test
+  public void testCreateImageUnderPartition() {
+    CompactDigraph<String> graph = CompactDigraph.<String>builder()
+        .addEdge("a", "b").addEdge("b", "c").addEdge("a", "c")
+        .build();
+    CompactDigraph<String> image =
+        graph.createImageUnderPartition(new int[] {0, 0, 1}, ImmutableList.of("ab", "c"));
+    assertThat(edges(image)).containsExactly("ab->ab", "ab->c");
+  }
+}
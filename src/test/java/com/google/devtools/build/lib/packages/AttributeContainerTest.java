@@ -16,8 +16,11 @@ package com.google.devtools.build.lib.packages;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
@@ -99,4 +102,44 @@ public class AttributeContainerTest {
     assertEquals(location2, container.getAttributeLocation(attribute2.getName()));
     assertNull(container.getAttributeLocation("nomatch"));
   }
+
+  @Test
+  public void testDefaultValues() throws Exception {
+    Object defaultValue = attribute2.getDefaultValue(null);
+    assertEquals(defaultValue, container.getAttr(attribute2));
+    container.setAttributeValue(attribute2, 42, false);
+    assertEquals(42, container.getAttr(attribute2));
+    container.setAttributeValue(attribute2, defaultValue, false);
+    assertEquals(defaultValue, container.getAttr(attribute2));
+    assertFalse(container.isAttributeValueExplicitlySpecified(attribute2));
+    container.setAttributeValue(attribute2, defaultValue, true);
+    assertEquals(defaultValue, container.getAttr(attribute2));
+    assertTrue(container.isAttributeValueExplicitlySpecified(attribute2));
+  }
+
+  @Test
+  public void testLocationWithoutValue() throws Exception {
+    Location location = newLocation();
+    container.setAttributeLocation(attribute2, location);
+    container.setAttributeValue(attribute1, ImmutableList.of(), true);
+    assertEquals(location, container.getAttributeLocation(attribute2.getName()));
+    assertEquals(attribute2.getDefaultValue(null), container.getAttr(attribute2));
+    assertFalse(container.isAttributeValueExplicitlySpecified(attribute2));
+    assertNull(container.getAttributeLocation(attribute1.getName()));
+
+    container.setAttributeValue(attribute2, 7, true);
+    assertEquals(7, container.getAttr(attribute2));
+    assertEquals(location, container.getAttributeLocation(attribute2.getName()));
+    assertEquals(ImmutableList.of(), container.getAttr(attribute1));
+  }
+
+  @Test
+  public void testLabelListsAreShared() throws Exception {
+    AttributeContainer other = new AttributeContainer(ruleClass);
+    container.setAttributeValue(attribute1,
+        ImmutableList.of(Label.parseAbsolute("//a:b"), Label.parseAbsolute("//c:d")), true);
+    other.setAttributeValue(attribute1,
+        ImmutableList.of(Label.parseAbsolute("//a:b"), Label.parseAbsolute("//c:d")), true);
+    assertSame(container.getAttr(attribute1), other.getAttr(attribute1));
+  }
 }
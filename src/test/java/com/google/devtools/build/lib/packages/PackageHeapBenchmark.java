@@ -0,0 +1,100 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how much heap the loaded packages of a large repository retain. A synthetic repository
+ * of packages with C++, Java and generated rules, that depend on each other and use the same
+ * visibility, copts and tags, like real BUILD files do, is loaded and kept alive, and the growth of
+ * the heap is reported. Usage:
+ *
+ * <pre>
+ *   java -Xmx... ... PackageHeapBenchmark [packages [rules per package]]
+ * </pre>
+ */
+class PackageHeapBenchmark {
+
+  private static String buildFile(int pkg, int rules) {
+    StringBuilder build = new StringBuilder();
+    String other = "//pkg" + ((pkg + 1) % 1000);
+    for (int i = 0; i < rules; i++) {
+      switch (i % 4) {
+        case 0:
+          build.append("cc_library(name = 'cc" + i + "', srcs = ['cc" + i + ".cc'],")
+              .append(" hdrs = ['cc" + i + ".h'], copts = ['-Wall', '-Werror'],")
+              .append(" deps = ['" + other + ":cc0', ':cc" + (i / 2) + "'],")
+              .append(" visibility = ['//visibility:public'])\n");
+          break;
+        case 1:
+          build.append("java_library(name = 'java" + i + "', srcs = ['Java" + i + ".java'],")
+              .append(" deps = ['" + other + ":java1'], tags = ['manual'],")
+              .append(" visibility = ['//visibility:public'])\n");
+          break;
+        case 2:
+          build.append("genrule(name = 'gen" + i + "', srcs = [':cc0'], outs = ['gen" + i + ".h'],")
+              .append(" cmd = 'cp $< $@')\n");
+          break;
+        default:
+          build.append("filegroup(name = 'files" + i + "', srcs = ['data" + i + ".txt'])\n");
+      }
+    }
+    return build.toString();
+  }
+
+  private static long usedHeap(MemoryMXBean memory) {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int packages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int rulesPerPackage = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    Scratch scratch = new Scratch();
+    List<Path> buildFiles = new ArrayList<>(packages);
+    for (int i = 0; i < packages; i++) {
+      buildFiles.add(scratch.file("/workspace/pkg" + i + "/BUILD", buildFile(i, rulesPerPackage)));
+    }
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    PackageFactoryApparatus packageFactory = new PackageFactoryApparatus(eventHandler);
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    long before = usedHeap(memory);
+    long start = System.nanoTime();
+    List<Package> loaded = new ArrayList<>(packages);
+    for (int i = 0; i < packages; i++) {
+      Package pkg = packageFactory.createPackage("pkg" + i, buildFiles.get(i));
+      if (pkg.containsErrors()) {
+        throw new IllegalStateException("errors in pkg" + i + ": " + eventHandler.getEvents());
+      }
+      loaded.add(pkg);
+    }
+    long millis = (System.nanoTime() - start) / 1000000;
+    long retained = usedHeap(memory) - before;
+    long rules = (long) packages * rulesPerPackage;
+    System.out.printf("%d packages, %d rules loaded in %d ms, %d MB retained, %d bytes per rule%n",
+        loaded.size(), rules, millis, retained >> 20, retained / rules);
+  }
+}
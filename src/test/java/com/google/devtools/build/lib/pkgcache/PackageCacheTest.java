@@ -341,6 +341,30 @@ public class PackageCacheTest extends FoundationTestCase {
     assertNotSame(oldPkg, newPkg);
   }
 
+  @Test
+  public void testPackageGraphVersionChangesWhenPackagesMayHaveChanged() throws Exception {
+    Path path = scratch.file("pkg/BUILD", "cc_library(name = 'foo')");
+    path.setLastModifiedTime(1000);
+    getPackage("pkg");
+    long version = skyframeExecutor.getPackageGraphVersion();
+
+    // Loading more packages does not change the results computed so far.
+    createPkg1();
+    getPackage("pkg1");
+    skyframeExecutor.applyPendingInvalidations(reporter);
+    assertEquals(version, skyframeExecutor.getPackageGraphVersion());
+
+    path.setLastModifiedTime(1001);
+    invalidatePackages();
+    skyframeExecutor.applyPendingInvalidations(reporter);
+    long changedVersion = skyframeExecutor.getPackageGraphVersion();
+    assertThat(changedVersion).isGreaterThan(version);
+
+    // The version keeps growing when the evaluator is reset.
+    skyframeExecutor.resetEvaluator();
+    assertThat(skyframeExecutor.getPackageGraphVersion()).isGreaterThan(changedVersion);
+  }
+
   @Test
   public void testMovedBuildFileCausesReloadAfterSync() throws Exception {
     Path buildFile1 = scratch.file("pkg/BUILD",
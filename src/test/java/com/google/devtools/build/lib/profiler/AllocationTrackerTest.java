@@ -0,0 +1,125 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.util.BlazeClock;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link AllocationTracker}.
+ */
+@RunWith(JUnit4.class)
+public class AllocationTrackerTest {
+
+  private final AllocationTracker tracker = AllocationTracker.instance();
+
+  // Keeps the allocations reachable, so that they are not optimized away.
+  private final List<Object> allocated = new ArrayList<>();
+
+  @Before
+  public final void enableTracker() {
+    tracker.setEnabled(true);
+    Assume.assumeTrue(tracker.isEnabled());
+    tracker.finishPhase();
+  }
+
+  @After
+  public final void disableTracker() {
+    tracker.setEnabled(false);
+    tracker.finishPhase();
+  }
+
+  private void work(String key, String detail, int bytes) {
+    long start = tracker.start();
+    allocated.add(new byte[bytes]);
+    if (detail != null) {
+      tracker.setDetail(detail);
+    }
+    tracker.finish(key, start);
+  }
+
+  @Test
+  public void testAttributesBytesToKeysAndDetails() {
+    work("PACKAGE", null, 1 << 20);
+    work("CONFIGURED_TARGET", "cc_library rule", 2 << 20);
+    work("CONFIGURED_TARGET", "java_library rule", 3 << 20);
+
+    AllocationTracker.Summary summary = tracker.finishPhase();
+    assertThat(summary.getBytesByKey().keySet())
+        .containsExactly("CONFIGURED_TARGET", "PACKAGE").inOrder();
+    assertThat(summary.getBytesByKey().get("PACKAGE")).isAtLeast(1L << 20);
+    assertThat(summary.getBytesByKey().get("CONFIGURED_TARGET")).isAtLeast(5L << 20);
+    assertThat(summary.getBytesByDetail().keySet())
+        .containsExactly("java_library rule", "cc_library rule").inOrder();
+    assertThat(summary.getBytesByDetail().get("cc_library rule")).isAtLeast(2L << 20);
+
+    // The next phase starts empty.
+    assertThat(tracker.finishPhase().isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testDisabledTrackerRecordsNothing() {
+    tracker.setEnabled(false);
+    assertThat(tracker.start()).isEqualTo(-1);
+    work("PACKAGE", "cc_library rule", 1 << 20);
+    assertThat(tracker.finishPhase().isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testPhaseAllocationsInProfileAndMemoryProfile() throws Exception {
+    ByteArrayOutputStream profile = new ByteArrayOutputStream();
+    ByteArrayOutputStream memoryProfile = new ByteArrayOutputStream();
+    Profiler profiler = Profiler.instance();
+    profiler.start(ProfiledTaskKinds.ALL, profile, Profiler.Format.TRACE_EVENTS, "allocations",
+        false, BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    MemoryProfiler.instance().start(memoryProfile);
+    profiler.markPhase(ProfilePhase.ANALYZE);
+    work("CONFIGURED_TARGET", "cc_library rule", 1 << 20);
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    MemoryProfiler.instance().stop();
+    profiler.stop();
+
+    List<String> allocationLines = new ArrayList<>();
+    for (String line : memoryProfile.toString("UTF-8").split("\n")) {
+      if (line.contains(":allocated:")) {
+        allocationLines.add(line.substring(0, line.lastIndexOf(':')));
+      }
+    }
+    String phase = ProfilePhase.ANALYZE.description;
+    assertThat(allocationLines).containsExactlyElementsIn(ImmutableList.of(
+        phase + ":allocated:skyfunction:CONFIGURED_TARGET",
+        phase + ":allocated:target-kind:cc_library rule")).inOrder();
+
+    String trace = new String(profile.toByteArray(), StandardCharsets.UTF_8);
+    int allocationEvent = trace.indexOf("Allocated by SkyFunction CONFIGURED_TARGET: ");
+    assertThat(allocationEvent).isAtLeast(0);
+    assertThat(trace.indexOf("Allocated by target kind cc_library rule: ")).isAtLeast(0);
+    assertThat(allocationEvent).isLessThan(trace.indexOf(ProfilePhase.EXECUTE.description));
+  }
+}
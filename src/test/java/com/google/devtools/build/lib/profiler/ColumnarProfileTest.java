@@ -0,0 +1,205 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the columnar profile format.
+ */
+@RunWith(JUnit4.class)
+public class ColumnarProfileTest {
+
+  private final Profiler profiler = Profiler.instance();
+
+  /** A clock that advances by a millisecond on every call, so that profiles are reproducible. */
+  private static final class TickingClock implements Clock {
+    private final AtomicLong nanos = new AtomicLong(TimeUnit.SECONDS.toNanos(1000));
+
+    @Override
+    public long currentTimeMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    @Override
+    public long nanoTime() {
+      return nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  /** Profiles a small build with all phases, a worker thread and a critical path. */
+  private void profileBuild(Path file, Profiler.Format format) throws Exception {
+    final Clock clock = new TickingClock();
+    profiler.start(ProfiledTaskKinds.ALL, file.getOutputStream(), format, "columnar test", false,
+        clock, clock.nanoTime());
+    profiler.markPhase(ProfilePhase.INIT);
+    profiler.markPhase(ProfilePhase.LOAD);
+    profiler.startTask(ProfilerTask.SKYFUNCTION, "//pkg:BUILD");
+    // Shorter than the minimum duration of VFS_STAT, so only aggregated in the parent.
+    profiler.logSimpleTask(clock.nanoTime(), ProfilerTask.VFS_STAT, "/pkg/BUILD");
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "PACKAGE");
+    profiler.completeTask(ProfilerTask.SKYFUNCTION);
+    profiler.markPhase(ProfilePhase.ANALYZE);
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "CONFIGURED_TARGET");
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 3; i++) {
+          profiler.startTask(ProfilerTask.ACTION, "action " + i);
+          profiler.logSimpleTask(clock.nanoTime(), ProfilerTask.SPAWN, "gcc");
+          profiler.logSimpleTask(clock.nanoTime(), ProfilerTask.VFS_STAT, "/out/" + i);
+          profiler.completeTask(ProfilerTask.ACTION);
+        }
+      }
+    };
+    worker.start();
+    worker.join();
+    profiler.markPhase(ProfilePhase.FINISH);
+    profiler.startTask(ProfilerTask.CRITICAL_PATH, "Critical path");
+    for (int i = 0; i < 3; i++) {
+      profiler.logSimpleTaskDuration(
+          clock.nanoTime(), 1000 * (i + 1), ProfilerTask.CRITICAL_PATH_COMPONENT, "action " + i);
+    }
+    profiler.completeTask(ProfilerTask.CRITICAL_PATH);
+    profiler.stop();
+  }
+
+  /** Returns the tasks as strings, with the thread ids replaced by their order of appearance. */
+  private static List<String> dump(ProfileInfo info) {
+    Map<Long, Integer> threads = new HashMap<>();
+    List<String> result = new ArrayList<>();
+    for (ProfileInfo.Task task : info.allTasksById) {
+      if (!threads.containsKey(task.threadId)) {
+        threads.put(task.threadId, threads.size());
+      }
+      result.add(threads.get(task.threadId) + "|" + task.id + "|" + task.parentId + "|"
+          + task.startTime + "|" + task.durationNanos + "|" + task.type + "|"
+          + task.getDescription() + "|" + Arrays.toString(task.stats.content));
+    }
+    return result;
+  }
+
+  private static List<String> path(CriticalPathEntry path) {
+    List<String> result = new ArrayList<>();
+    for (CriticalPathEntry entry = path; entry != null; entry = entry.next) {
+      result.add(entry.task.getDescription() + " " + entry.duration);
+    }
+    return result;
+  }
+
+  @Test
+  public void testLoadsSameTasksAsDeflatedFormat() throws Exception {
+    Path dir = new InMemoryFileSystem(BlazeClock.instance()).getPath("/profiles");
+    dir.createDirectory();
+    Path deflated = dir.getRelative("deflated.dat");
+    Path columnar = dir.getRelative("columnar.dat");
+    profileBuild(deflated, Profiler.Format.DEFLATED);
+    profileBuild(columnar, Profiler.Format.COLUMNAR);
+
+    assertThat(ColumnarProfile.isColumnarProfile(deflated)).isFalse();
+    assertThat(ColumnarProfile.isColumnarProfile(columnar)).isTrue();
+    ProfileInfo deflatedInfo = ProfileInfo.loadProfile(deflated);
+    ProfileInfo columnarInfo = ProfileInfo.loadProfile(columnar);
+    deflatedInfo.calculateStats();
+    columnarInfo.calculateStats();
+    assertThat(columnarInfo.isCorruptedOrIncomplete()).isFalse();
+    assertThat(columnarInfo.comment).isEqualTo("columnar test");
+    assertThat(dump(columnarInfo)).containsExactlyElementsIn(dump(deflatedInfo)).inOrder();
+  }
+
+  @Test
+  public void testMappedSummaryMatchesProfileInfo() throws Exception {
+    Path file = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("columnar.dat");
+    profileBuild(file, Profiler.Format.COLUMNAR);
+    ColumnarProfile profile = ColumnarProfile.load(file);
+    ProfileInfo info = ProfileInfo.loadProfile(file);
+    info.calculateStats();
+    assertThat(profile.getTaskCount()).isEqualTo(info.allTasksById.size());
+
+    PhaseSummaryStatistics expectedSummary = new PhaseSummaryStatistics(info);
+    PhaseSummaryStatistics summary = new PhaseSummaryStatistics();
+    summary.addProfile(profile);
+    assertThat(summary.getTotalDuration()).isEqualTo(expectedSummary.getTotalDuration());
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      assertThat(profile.hasPhase(phase)).isEqualTo(expectedSummary.contains(phase));
+      PhaseStatistics expected = new PhaseStatistics(phase, info, "workspace", false);
+      PhaseStatistics actual = new PhaseStatistics(phase, profile);
+      assertThat(actual.wasExecuted()).isEqualTo(expected.wasExecuted());
+      assertThat(actual.getPhaseDurationNanos()).isEqualTo(expected.getPhaseDurationNanos());
+      assertThat(actual.getTotalDurationNanos()).isEqualTo(expected.getTotalDurationNanos());
+      assertThat(actual.getSkyFunctionRestarts()).isEqualTo(expected.getSkyFunctionRestarts());
+      for (ProfilerTask type : ProfilerTask.values()) {
+        assertThat(actual.getCount(type)).isEqualTo(expected.getCount(type));
+        assertThat(actual.getTotalDurationNanos(type))
+            .isEqualTo(expected.getTotalDurationNanos(type));
+      }
+    }
+    assertThat(new PhaseStatistics(ProfilePhase.EXECUTE, profile).getCount(ProfilerTask.VFS_STAT))
+        .isEqualTo(3);
+    assertThat(new PhaseStatistics(ProfilePhase.LOAD, profile).getSkyFunctionRestarts())
+        .isEqualTo(ImmutableMap.of("PACKAGE", 1L));
+
+    CriticalPathEntry expectedPath = new CriticalPathStatistics(info).getTotalPath();
+    CriticalPathEntry criticalPath = new CriticalPathStatistics(profile).getTotalPath();
+    assertThat(path(criticalPath)).containsExactly("action 2 3000", "action 1 2000",
+        "action 0 1000").inOrder();
+    assertThat(path(criticalPath)).isEqualTo(path(expectedPath));
+  }
+
+  @Test
+  public void testIncompleteProfileKeepsCompleteBlocks() throws Exception {
+    Path dir = new InMemoryFileSystem(BlazeClock.instance()).getPath("/profiles");
+    dir.createDirectory();
+    Path complete = dir.getRelative("complete.dat");
+    profileBuild(complete, Profiler.Format.COLUMNAR);
+    byte[] content = FileSystemUtils.readContent(complete);
+    // Cut the file in the footer, as if Blaze had crashed while writing it.
+    Path truncated = dir.getRelative("truncated.dat");
+    FileSystemUtils.writeContent(truncated, Arrays.copyOf(content, content.length - 10));
+
+    ColumnarProfile profile = ColumnarProfile.load(truncated);
+    assertThat(profile.isCorruptedOrIncomplete()).isTrue();
+    assertThat(profile.getTaskCount()).isEqualTo(ColumnarProfile.load(complete).getTaskCount());
+    ProfileInfo info = ProfileInfo.loadProfile(truncated);
+    assertThat(info.isCorruptedOrIncomplete()).isTrue();
+    assertThat(info.allTasksById).hasSize((int) profile.getTaskCount());
+  }
+}
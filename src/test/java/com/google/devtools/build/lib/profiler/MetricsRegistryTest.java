@@ -0,0 +1,128 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Range;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Counter;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Histogram;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.HistogramSnapshot;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.KeyedCounter;
+import com.google.devtools.build.lib.profiler.MetricsRegistry.Snapshot;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MetricsRegistry}. The registry is shared, so each test uses its own names.
+ */
+@RunWith(JUnit4.class)
+public class MetricsRegistryTest {
+
+  private final MetricsRegistry registry = MetricsRegistry.instance();
+
+  @Test
+  public void testConcurrentCounting() throws Exception {
+    final Counter counter = registry.counter("test.concurrent");
+    final Histogram histogram = registry.histogram("test.concurrent_us");
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            counter.increment();
+            histogram.record(i);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(registry.counter("test.concurrent")).isSameAs(counter);
+    assertThat(counter.get()).isEqualTo(80000);
+    HistogramSnapshot snapshot = registry.snapshot().getHistograms().get("test.concurrent_us");
+    assertThat(snapshot.getCount()).isEqualTo(80000);
+    assertThat(snapshot.getSum()).isEqualTo(8L * 9999 * 10000 / 2);
+    assertThat(snapshot.getMax()).isEqualTo(9999);
+  }
+
+  @Test
+  public void testKeyedCountersInSnapshot() {
+    KeyedCounter counter = registry.keyedCounter("test.keyed");
+    counter.get("A").add(3);
+    counter.get("B").increment();
+    counter.get("A").increment();
+    assertThat(registry.snapshot().getCounters()).containsEntry("test.keyed[A]", 4L);
+    assertThat(registry.snapshot().getCounters()).containsEntry("test.keyed[B]", 1L);
+  }
+
+  @Test
+  public void testBucketBoundaries() {
+    for (int bucket = 0; bucket < Histogram.BUCKETS - 1; bucket++) {
+      long lowest = Histogram.lowestValue(bucket);
+      long highest = Histogram.highestValue(bucket);
+      assertThat(Histogram.bucket(lowest)).isEqualTo(bucket);
+      assertThat(Histogram.bucket(highest)).isEqualTo(bucket);
+      assertThat(Histogram.lowestValue(bucket + 1)).isEqualTo(highest + 1);
+      // Relative error of at most 1/16.
+      assertThat(highest - lowest).isAtMost(lowest / 16);
+    }
+    assertThat(Histogram.bucket(Long.MAX_VALUE)).isEqualTo(Histogram.BUCKETS - 1);
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram histogram = registry.histogram("test.percentiles_us");
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    HistogramSnapshot snapshot = registry.snapshot().getHistograms().get("test.percentiles_us");
+    assertThat(snapshot.getPercentile(50)).isIn(Range.closed(500L, 500L + 500 / 16));
+    assertThat(snapshot.getPercentile(99)).isIn(Range.closed(990L, 1000L));
+    assertThat(snapshot.getPercentile(100)).isEqualTo(1000);
+    assertThat(snapshot.getMean()).isWithin(0.001).of(500.5);
+  }
+
+  @Test
+  public void testSnapshotDifference() {
+    Counter counter = registry.counter("test.difference");
+    Counter unchanged = registry.counter("test.unchanged");
+    Histogram histogram = registry.histogram("test.difference_us");
+    counter.add(5);
+    unchanged.add(7);
+    histogram.record(1000);
+    Snapshot before = registry.snapshot();
+    counter.add(2);
+    histogram.record(10);
+    histogram.record(20);
+    Snapshot difference = registry.snapshot().minus(before);
+
+    assertThat(difference.getCounters()).containsEntry("test.difference", 2L);
+    assertThat(difference.getCounters()).doesNotContainKey("test.unchanged");
+    HistogramSnapshot histogramDifference = difference.getHistograms().get("test.difference_us");
+    assertThat(histogramDifference.getCount()).isEqualTo(2);
+    assertThat(histogramDifference.getSum()).isEqualTo(30);
+    assertThat(histogramDifference.getPercentile(100)).isEqualTo(20);
+    assertThat(difference.toString()).contains("test.difference: 2\n");
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a synthetic profile in each format and measures the time and the peak heap that the
+ * text summary of analyze-profile needs: the phase summary, the per-phase statistics and the
+ * critical path. Usage:
+ *
+ * <pre>
+ *   java -Xmx... ... ProfileAnalysisBenchmark [directory [actions [threads]]]
+ * </pre>
+ */
+class ProfileAnalysisBenchmark {
+
+  private static void profileBuild(Path file, Profiler.Format format, final int actions,
+      int threads) throws Exception {
+    Profiler profiler = Profiler.instance();
+    try (OutputStream out = new BufferedOutputStream(file.getOutputStream(), 1024 * 1024)) {
+      profiler.start(ProfiledTaskKinds.ALL, out, format, "benchmark", false,
+          BlazeClock.instance(), BlazeClock.instance().nanoTime());
+      profiler.markPhase(ProfilePhase.LOAD);
+      profiler.markPhase(ProfilePhase.ANALYZE);
+      profiler.markPhase(ProfilePhase.EXECUTE);
+      List<Thread> workers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final int first = t;
+        final int step = threads;
+        Thread worker = new Thread() {
+          @Override
+          public void run() {
+            Profiler profiler = Profiler.instance();
+            for (int i = first; i < actions; i += step) {
+              profiler.startTask(ProfilerTask.ACTION, "Compiling pkg" + (i / 100) + "/f" + i);
+              profiler.logSimpleTask(
+                  BlazeClock.instance().nanoTime(), ProfilerTask.VFS_STAT, "/out/f" + i);
+              profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.SPAWN, "gcc");
+              profiler.completeTask(ProfilerTask.ACTION);
+            }
+          }
+        };
+        worker.start();
+        workers.add(worker);
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      profiler.markPhase(ProfilePhase.FINISH);
+      profiler.startTask(ProfilerTask.CRITICAL_PATH, "Critical path");
+      for (int i = 0; i < 100; i++) {
+        profiler.logSimpleTaskDuration(BlazeClock.instance().nanoTime(), 1000,
+            ProfilerTask.CRITICAL_PATH_COMPONENT, "Compiling pkg0/f" + i);
+      }
+      profiler.completeTask(ProfilerTask.CRITICAL_PATH);
+      profiler.stop();
+    }
+  }
+
+  private static void resetPeakHeap(List<MemoryPoolMXBean> pools) {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    for (MemoryPoolMXBean pool : pools) {
+      pool.resetPeakUsage();
+    }
+  }
+
+  private static long peakHeap(List<MemoryPoolMXBean> pools) {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String directory = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+    int actions = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    Path dir = new JavaIoFileSystem().getPath(directory);
+    List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPools.add(pool);
+      }
+    }
+
+    for (Profiler.Format format : Profiler.Format.values()) {
+      Path file = dir.getRelative("benchmark-" + format.toString().toLowerCase() + ".profile");
+      long start = System.nanoTime();
+      profileBuild(file, format, actions, threads);
+      long written = System.nanoTime();
+
+      resetPeakHeap(heapPools);
+      long before = peakHeap(heapPools);
+      long analysisStart = System.nanoTime();
+      long executionNanos;
+      if (format == Profiler.Format.COLUMNAR) {
+        ColumnarProfile profile = ColumnarProfile.load(file);
+        new PhaseSummaryStatistics().addProfile(profile);
+        executionNanos = new PhaseStatistics(ProfilePhase.EXECUTE, profile)
+            .getTotalDurationNanos(ProfilerTask.ACTION);
+        new CriticalPathStatistics(profile);
+      } else {
+        ProfileInfo info = ProfileInfo.loadProfile(file);
+        info.calculateStats();
+        new PhaseSummaryStatistics(info);
+        executionNanos = new PhaseStatistics(ProfilePhase.EXECUTE, info, "benchmark", false)
+            .getTotalDurationNanos(ProfilerTask.ACTION);
+        new CriticalPathStatistics(info);
+      }
+      long end = System.nanoTime();
+      System.out.printf("%s: %d MB written in %d ms, summary in %d ms with peak heap %d MB "
+          + "(action time %d ms)%n",
+          format, file.getFileSize() >> 20, (written - start) / 1000000,
+          (end - analysisStart) / 1000000, (peakHeap(heapPools) - before) >> 20,
+          executionNanos / 1000000);
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,241 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.output.PhaseText;
+import com.google.devtools.build.lib.profiler.output.PhaseText.Section;
+import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
+import com.google.devtools.build.lib.profiler.statistics.ProfileStatistics;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the parallel profile analysis of {@link ProfileStatistics} and
+ * {@link MultiProfileStatistics}, and for the sections of {@link PhaseText}.
+ */
+@RunWith(JUnit4.class)
+public class ProfileStatisticsTest {
+
+  // More root tasks than the analysis calculates in a single fork-join task.
+  private static final int ACTIONS = 3000;
+
+  private final Profiler profiler = Profiler.instance();
+  private ForkJoinPool pool;
+  private Path dir;
+
+  /** A clock that advances by a millisecond on every call, so that profiles are reproducible. */
+  private static final class TickingClock implements Clock {
+    private final AtomicLong nanos = new AtomicLong(TimeUnit.SECONDS.toNanos(1000));
+
+    @Override
+    public long currentTimeMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    @Override
+    public long nanoTime() {
+      return nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  @Before
+  public final void createPool() throws Exception {
+    pool = new ForkJoinPool(4);
+    dir = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("statistics");
+    dir.createDirectory();
+  }
+
+  @After
+  public final void shutdownPool() {
+    pool.shutdown();
+  }
+
+  /** Profiles a build with many actions on a worker thread and a critical path. */
+  private Path profileBuild(String name) throws Exception {
+    Path file = dir.getRelative(name);
+    final Clock clock = new TickingClock();
+    profiler.start(ProfiledTaskKinds.ALL, file.getOutputStream(), Profiler.Format.COLUMNAR,
+        "statistics test", false, clock, clock.nanoTime());
+    profiler.markPhase(ProfilePhase.INIT);
+    profiler.markPhase(ProfilePhase.LOAD);
+    profiler.startTask(ProfilerTask.SKYFUNCTION, "//pkg:BUILD");
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "PACKAGE");
+    profiler.completeTask(ProfilerTask.SKYFUNCTION);
+    profiler.markPhase(ProfilePhase.ANALYZE);
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < ACTIONS; i++) {
+          profiler.startTask(ProfilerTask.ACTION, "action " + i);
+          profiler.logSimpleTask(clock.nanoTime(), ProfilerTask.SPAWN, "gcc");
+          profiler.completeTask(ProfilerTask.ACTION);
+        }
+      }
+    };
+    worker.start();
+    worker.join();
+    profiler.markPhase(ProfilePhase.FINISH);
+    profiler.startTask(ProfilerTask.CRITICAL_PATH, "Critical path");
+    profiler.logSimpleTaskDuration(
+        clock.nanoTime(), 1000, ProfilerTask.CRITICAL_PATH_COMPONENT, "action 0");
+    profiler.completeTask(ProfilerTask.CRITICAL_PATH);
+    profiler.stop();
+    return file;
+  }
+
+  private ProfileStatistics analyze(final Path file, final Set<ProfilePhase> phases,
+      final boolean criticalPath) {
+    return pool.invoke(new RecursiveTask<ProfileStatistics>() {
+      @Override
+      protected ProfileStatistics compute() {
+        try {
+          ProfileInfo info = ProfileInfo.loadProfile(file);
+          info.calculateStats();
+          return ProfileStatistics.create(info, "workspace", false, phases, criticalPath);
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+  }
+
+  private static void assertSameStatistics(PhaseStatistics actual, PhaseStatistics expected) {
+    assertThat(actual.wasExecuted()).isEqualTo(expected.wasExecuted());
+    assertThat(actual.getPhaseDurationNanos()).isEqualTo(expected.getPhaseDurationNanos());
+    assertThat(actual.getTotalDurationNanos()).isEqualTo(expected.getTotalDurationNanos());
+    assertThat(actual.getSkyFunctionRestarts()).isEqualTo(expected.getSkyFunctionRestarts());
+    for (ProfilerTask type : ProfilerTask.values()) {
+      assertThat(actual.getCount(type)).isEqualTo(expected.getCount(type));
+      assertThat(actual.getTotalDurationNanos(type))
+          .isEqualTo(expected.getTotalDurationNanos(type));
+    }
+  }
+
+  @Test
+  public void testParallelAnalysisMatchesColumnarScan() throws Exception {
+    Path file = profileBuild("profile.dat");
+    ProfileStatistics statistics =
+        analyze(file, EnumSet.allOf(ProfilePhase.class), true);
+    ColumnarProfile profile = ColumnarProfile.load(file);
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      assertSameStatistics(statistics.getPhaseStatistics().get(phase),
+          new PhaseStatistics(phase, profile));
+    }
+    assertThat(statistics.getPhaseStatistics().get(ProfilePhase.EXECUTE)
+        .getCount(ProfilerTask.ACTION)).isEqualTo(ACTIONS);
+    assertThat(statistics.getPhaseStatistics().get(ProfilePhase.EXECUTE)
+        .getCount(ProfilerTask.SPAWN)).isEqualTo(ACTIONS);
+    assertThat(statistics.getCriticalPathStatistics().get().getTotalPath().task.getDescription())
+        .isEqualTo("action 0");
+  }
+
+  @Test
+  public void testOnlyRequestedStatistics() throws Exception {
+    Path file = profileBuild("profile.dat");
+    ProfileStatistics statistics = analyze(file, EnumSet.of(ProfilePhase.EXECUTE), false);
+    assertThat(statistics.getPhaseStatistics().keySet())
+        .containsExactlyElementsIn(EnumSet.allOf(ProfilePhase.class));
+    assertThat(statistics.getPhaseStatistics().get(ProfilePhase.EXECUTE).wasExecuted()).isTrue();
+    assertThat(statistics.getPhaseStatistics().get(ProfilePhase.LOAD).wasExecuted()).isFalse();
+    assertThat(statistics.getCriticalPathStatistics().isPresent()).isFalse();
+    assertThat(statistics.getSummaryStatistics().contains(ProfilePhase.LOAD)).isTrue();
+  }
+
+  private static String print(ProfileStatistics statistics, Set<Section> sections) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new PhaseText(
+            new PrintStream(output, true),
+            sections,
+            statistics.getSummaryStatistics(),
+            statistics.getPhaseStatistics(),
+            statistics.getCriticalPathStatistics(),
+            statistics.getMissingActionsCount(),
+            0)
+        .print();
+    return output.toString();
+  }
+
+  @Test
+  public void testTextSections() throws Exception {
+    ProfileStatistics statistics =
+        analyze(profileBuild("profile.dat"), EnumSet.allOf(ProfilePhase.class), true);
+
+    String all = print(statistics, EnumSet.allOf(Section.class));
+    assertThat(all).contains("=== PHASE SUMMARY INFORMATION ===");
+    assertThat(all).contains("=== EXECUTION PHASE INFORMATION ===");
+    assertThat(all).contains("Critical path");
+
+    String summary = print(statistics, EnumSet.of(Section.SUMMARY));
+    assertThat(summary).contains("=== PHASE SUMMARY INFORMATION ===");
+    assertThat(summary).doesNotContain("EXECUTION PHASE");
+    assertThat(summary).doesNotContain("Critical path");
+
+    String criticalPath = print(statistics, EnumSet.of(Section.CRITICAL_PATH));
+    assertThat(criticalPath).contains("=== CRITICAL PATH INFORMATION ===");
+    assertThat(criticalPath).contains("Critical path");
+    assertThat(criticalPath).doesNotContain("PHASE SUMMARY");
+    assertThat(criticalPath).doesNotContain("Total time (across all threads)");
+
+    String phases = print(statistics, EnumSet.of(Section.PHASES));
+    assertThat(phases).contains("=== EXECUTION PHASE INFORMATION ===");
+    assertThat(phases).doesNotContain("Critical path");
+  }
+
+  @Test
+  public void testMultipleFilesInParallel() throws Exception {
+    profileBuild("first.dat");
+    profileBuild("second.dat");
+    MultiProfileStatistics statistics = new MultiProfileStatistics(
+        dir, "workspace", ImmutableList.of("first.dat", "second.dat", "missing.dat"),
+        new ProfileInfo.InfoListener() {
+          @Override
+          public void info(String text) {}
+
+          @Override
+          public void warn(String text) {}
+        },
+        false,
+        pool,
+        new Semaphore(1));
+    assertThat(statistics).containsExactly(dir.getRelative("first.dat"),
+        dir.getRelative("second.dat"));
+    PhaseStatistics execution = statistics.getSummaryPhaseStatistics(ProfilePhase.EXECUTE);
+    assertThat(execution.getPhaseCount()).isEqualTo(2);
+    assertThat(execution.getCount(ProfilerTask.ACTION)).isEqualTo(2 * ACTIONS);
+  }
+}
@@ -15,12 +15,15 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
@@ -28,6 +31,10 @@ import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -37,6 +44,8 @@ import org.junit.runners.JUnit4;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -343,6 +352,42 @@ public class ProfilerTest extends FoundationTestCase {
     assertThat(info.getTasksForPhase(p3)).hasSize(103);
   }
 
+  @Test
+  public void testSkyFunctionRestarts() throws Exception {
+    Path cacheFile = cacheDir.getRelative("profile_restarts.dat");
+    profiler.start(ProfiledTaskKinds.ALL, cacheFile.getOutputStream(), "restart test", false,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    profiler.markPhase(ProfilePhase.LOAD);
+    profiler.startTask(ProfilerTask.SKYFUNCTION, "//pkg:BUILD");
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "PACKAGE");
+    profiler.completeTask(ProfilerTask.SKYFUNCTION);
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "PACKAGE");
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "GLOB");
+    profiler.markPhase(ProfilePhase.ANALYZE);
+    profiler.logEvent(ProfilerTask.SKYFUNCTION_RESTART, "CONFIGURED_TARGET");
+    profiler.stop();
+
+    ProfileInfo info = ProfileInfo.loadProfile(cacheFile);
+    info.calculateStats();
+    info.analyzeRelationships();
+    int restarts = 0;
+    for (ProfileInfo.Task task : info.allTasksById) {
+      if (task.type == ProfilerTask.SKYFUNCTION_RESTART) {
+        restarts++;
+      }
+    }
+    assertEquals(4, restarts);
+
+    PhaseStatistics loading = new PhaseStatistics(ProfilePhase.LOAD, info, "workspace", false);
+    assertThat(loading.getSkyFunctionRestarts())
+        .isEqualTo(ImmutableMap.of("GLOB", 1L, "PACKAGE", 2L));
+    assertEquals(3, loading.getCount(ProfilerTask.SKYFUNCTION_RESTART));
+    PhaseStatistics analysis =
+        new PhaseStatistics(ProfilePhase.ANALYZE, info, "workspace", false);
+    assertThat(analysis.getSkyFunctionRestarts())
+        .isEqualTo(ImmutableMap.of("CONFIGURED_TARGET", 1L));
+  }
+
   @Test
   public void testCorruptedFile() throws Exception {
     Path cacheFile = cacheDir.getRelative("profile5.dat");
@@ -439,6 +484,77 @@ public class ProfilerTest extends FoundationTestCase {
     profiler.stop();
   }
 
+  @Test
+  public void testTraceEventFormat() throws Exception {
+    Path traceFile = cacheDir.getRelative("profile.json");
+    profiler.start(ProfiledTaskKinds.ALL, traceFile.getOutputStream(),
+        Profiler.Format.TRACE_EVENTS, "trace \"test\"", false, BlazeClock.instance(),
+        BlazeClock.instance().nanoTime());
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    Thread worker = new Thread("worker") {
+      @Override
+      public void run() {
+        profiler.startTask(ProfilerTask.ACTION, new HasMnemonic() {
+          @Override
+          public String getMnemonic() {
+            return "CppCompile";
+          }
+
+          @Override
+          public String toString() {
+            return "Compiling a.cc";
+          }
+        });
+        profiler.logSimpleTaskDuration(
+            BlazeClock.instance().nanoTime(), 5000, ProfilerTask.SPAWN, "gcc");
+        profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.VFS_STAT, "a.h");
+        profiler.completeTask(ProfilerTask.ACTION);
+      }
+    };
+    worker.start();
+    worker.join();
+    profiler.stop();
+
+    JsonArray events =
+        new JsonParser().parse(new String(FileSystemUtils.readContent(traceFile), UTF_8))
+            .getAsJsonArray();
+    Map<String, JsonObject> eventsByName = new HashMap<>();
+    for (JsonElement event : events) {
+      eventsByName.put(event.getAsJsonObject().get("name").getAsString(),
+          event.getAsJsonObject());
+    }
+    assertEquals("trace \"test\"",
+        eventsByName.get("process_name").getAsJsonObject("args").get("name").getAsString());
+
+    JsonObject phase = eventsByName.get(ProfilePhase.EXECUTE.description);
+    assertEquals("i", phase.get("ph").getAsString());
+    assertEquals("g", phase.get("s").getAsString());
+
+    JsonObject action = eventsByName.get("CppCompile");
+    assertEquals("X", action.get("ph").getAsString());
+    assertEquals(
+        "Compiling a.cc", action.getAsJsonObject("args").get("description").getAsString());
+    assertEquals(1, action.getAsJsonObject("args").getAsJsonObject("VFS_STAT")
+        .get("count").getAsInt());
+
+    JsonObject spawn = eventsByName.get("gcc");
+    assertEquals(5.0, spawn.get("dur").getAsDouble(), 0.0);
+    assertEquals(action.get("tid").getAsLong(), spawn.get("tid").getAsLong());
+    assertTrue(spawn.get("ts").getAsDouble() >= action.get("ts").getAsDouble());
+    // The short VFS_STAT task is only aggregated in the action.
+    assertFalse(eventsByName.containsKey("a.h"));
+
+    boolean namedWorker = false;
+    for (JsonElement event : events) {
+      JsonObject object = event.getAsJsonObject();
+      if (object.get("name").getAsString().equals("thread_name")
+          && object.get("tid").getAsLong() == action.get("tid").getAsLong()) {
+        namedWorker = object.getAsJsonObject("args").get("name").getAsString().equals("worker");
+      }
+    }
+    assertTrue(namedWorker);
+  }
+
   private Clock getTestClock() {
     return BlazeClock.instance();
   }
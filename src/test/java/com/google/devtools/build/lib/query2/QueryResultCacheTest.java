@@ -0,0 +1,165 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.QueryResultCache.Result;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Tests for {@link QueryResultCache}. */
+@RunWith(JUnit4.class)
+public class QueryResultCacheTest extends QueryTestCase {
+
+  private Target w;
+  private Target x;
+  private Target y;
+
+  @Before
+  public final void writeFiles() throws Exception {
+    scratch.file("a/BUILD",
+        "filegroup(name = 'w')",
+        "filegroup(name = 'x', srcs = [':w'])",
+        "filegroup(name = 'y', srcs = [':x'])");
+    w = getTarget("//a:w");
+    x = getTarget("//a:x");
+    y = getTarget("//a:y");
+  }
+
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10);
+    assertThat(cache.get("q", 1)).isNull();
+    Result result = Result.unordered(ImmutableList.of(w, x));
+    cache.put("q", 1, result);
+    assertThat(cache.get("q", 1)).isSameAs(result);
+    assertThat(cache.get("other", 1)).isNull();
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testEntriesAreDroppedWhenTheVersionChanges() throws Exception {
+    QueryResultCache cache = new QueryResultCache(10);
+    cache.put("q1", 1, Result.unordered(ImmutableList.of(w)));
+    cache.put("q2", 1, Result.unordered(ImmutableList.of(x)));
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("q1", 2)).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+    // A result of the old version drops the entries of the new one as well.
+    cache.put("q1", 2, Result.unordered(ImmutableList.of(w)));
+    cache.put("q2", 1, Result.unordered(ImmutableList.of(x)));
+    assertThat(cache.get("q1", 1)).isNull();
+    assertThat(cache.get("q2", 1)).isNotNull();
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    QueryResultCache cache = new QueryResultCache(3);
+    Result q1 = Result.unordered(ImmutableList.of(w));
+    Result q2 = Result.unordered(ImmutableList.of(x));
+    Result q3 = Result.unordered(ImmutableList.of(y));
+    cache.put("q1", 1, q1);
+    cache.put("q2", 1, q2);
+    cache.put("q3", 1, q3);
+    // Using q1 makes q2 the least recently used entry.
+    assertThat(cache.get("q1", 1)).isSameAs(q1);
+    cache.put("q4", 1, Result.unordered(ImmutableList.of(w, x)));
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("q2", 1)).isNull();
+    assertThat(cache.get("q3", 1)).isNull();
+    assertThat(cache.get("q1", 1)).isSameAs(q1);
+    assertThat(cache.get("q4", 1)).isNotNull();
+  }
+
+  @Test
+  public void testReplacedEntriesAreCountedOnce() throws Exception {
+    QueryResultCache cache = new QueryResultCache(3);
+    cache.put("q1", 1, Result.unordered(ImmutableList.of(w, x)));
+    cache.put("q1", 1, Result.unordered(ImmutableList.of(y)));
+    cache.put("q2", 1, Result.unordered(ImmutableList.of(w, x)));
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("q1", 1).getTargets()).containsExactly(y);
+  }
+
+  @Test
+  public void testResultsLargerThanTheCacheAreNotStored() throws Exception {
+    QueryResultCache cache = new QueryResultCache(2);
+    Result small = Result.unordered(ImmutableList.of(w));
+    cache.put("small", 1, small);
+    cache.put("large", 1, Result.unordered(ImmutableList.of(w, x, y)));
+    assertThat(cache.get("large", 1)).isNull();
+    // Skipping the large result does not evict anything.
+    assertThat(cache.get("small", 1)).isSameAs(small);
+  }
+
+  /**
+   * Evaluates the same query before and after a BUILD file is edited, the way the query command
+   * does: the result is looked up at the version of the package graph after the changed files have
+   * been invalidated, and stored if it was not found.
+   */
+  @Test
+  public void testEditedBuildFileInvalidatesCachedResult() throws Exception {
+    QueryResultCache cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_TARGETS);
+    String query = "deps(//a:y)";
+    assertThat(evalThroughCache(cache, query)).containsExactly("//a:w", "//a:x", "//a:y");
+    assertThat(cache.getMissCount()).isEqualTo(1);
+    assertThat(evalThroughCache(cache, query)).containsExactly("//a:w", "//a:x", "//a:y");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+
+    scratch.overwriteFile("a/BUILD",
+        "filegroup(name = 'w')",
+        "filegroup(name = 'x')",
+        "filegroup(name = 'y', srcs = [':x'])");
+    getSkyframeExecutor().invalidateFilesUnderPathForTesting(reporter,
+        new ModifiedFileSet.Builder().modify(new PathFragment("a/BUILD")).build(), rootDirectory);
+    assertThat(evalThroughCache(cache, query)).containsExactly("//a:x", "//a:y");
+    assertThat(cache.getMissCount()).isEqualTo(2);
+    assertThat(evalThroughCache(cache, query)).containsExactly("//a:x", "//a:y");
+    assertThat(cache.getHitCount()).isEqualTo(2);
+  }
+
+  private Set<String> evalThroughCache(QueryResultCache cache, String query) throws Exception {
+    SkyframeExecutor skyframeExecutor = getSkyframeExecutor();
+    skyframeExecutor.applyPendingInvalidations(reporter);
+    long version = skyframeExecutor.getPackageGraphVersion();
+    Result result = cache.get(query, version);
+    if (result == null) {
+      RecordingCallback callback = new RecordingCallback();
+      newQueryEnvironment(false, EnumSet.noneOf(Setting.class), ImmutableList.<String>of(), 1)
+          .evaluateQuery(query, callback);
+      result = Result.unordered(callback.getTargets());
+      cache.put(query, version, result);
+    }
+    Set<String> labels = new TreeSet<>();
+    for (Target target : result.getTargets()) {
+      labels.add(target.getLabel().toString());
+    }
+    return labels;
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AbstractUniquifier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests for the streamed evaluation of set operations, let expressions and large results, in both
+ * {@link BlazeQueryEnvironment} and {@link SkyQueryEnvironment}.
+ */
+@RunWith(JUnit4.class)
+public class QueryStreamingTest extends QueryTestCase {
+
+  @Before
+  public final void writeFiles() throws Exception {
+    scratch.file("a/BUILD",
+        "filegroup(name = 'w')",
+        "filegroup(name = 'x')",
+        "filegroup(name = 'y')",
+        "filegroup(name = 'z', srcs = [':x', ':y'])");
+  }
+
+  private List<AbstractBlazeQueryEnvironment<Target>> environments() {
+    return ImmutableList.of(
+        newQueryEnvironment(false, EnumSet.noneOf(Setting.class), ImmutableList.<String>of(), 1),
+        newQueryEnvironment(false, EnumSet.noneOf(Setting.class), ImmutableList.of("//a/..."), 1));
+  }
+
+  @Test
+  public void testMinusWithSeveralOperands() throws Exception {
+    for (AbstractBlazeQueryEnvironment<Target> env : environments()) {
+      assertThat(evalToLabels(env, "//a:all - //a:w - (//a:x + //a:BUILD)"))
+          .containsExactly("//a:y", "//a:z");
+      assertThat(evalToLabels(env, "//a:all except //a:all - //a:w")).isEmpty();
+      assertThat(evalToLabels(env, "//a:z - deps(//a:z)")).isEmpty();
+    }
+  }
+
+  @Test
+  public void testCaretWithSeveralOperands() throws Exception {
+    for (AbstractBlazeQueryEnvironment<Target> env : environments()) {
+      assertThat(evalToLabels(env, "//a:all ^ (//a:x + //a:y + //a:z) ^ deps(//a:z)"))
+          .containsExactly("//a:x", "//a:y", "//a:z");
+      assertThat(evalToLabels(env, "deps(//a:z) intersect //a:w + //a:x ^ //a:x"))
+          .containsExactly("//a:x");
+      assertThat(evalToLabels(env, "//a:w ^ //a:x")).isEmpty();
+    }
+  }
+
+  @Test
+  public void testLet() throws Exception {
+    for (AbstractBlazeQueryEnvironment<Target> env : environments()) {
+      assertThat(evalToLabels(env, "let v = deps(//a:z) in $v - //a:y"))
+          .containsExactly("//a:x", "//a:z");
+      // The inner binding is only visible in its body.
+      assertThat(evalToLabels(env, "let v = //a:x in (let v = //a:y in $v) + $v"))
+          .containsExactly("//a:x", "//a:y");
+      assertThat(evalToLabels(env, "let v = //a:all in $v ^ (let v = //a:w in $v)"))
+          .containsExactly("//a:w");
+    }
+  }
+
+  @Test
+  public void testDuplicatesAreSuppressed() throws Exception {
+    for (AbstractBlazeQueryEnvironment<Target> env : environments()) {
+      RecordingCallback callback = new RecordingCallback();
+      env.evaluateQuery("//a:x + deps(//a:z) + //a:x + (let v = //a:all in $v + $v)", callback);
+      List<Target> targets = callback.getTargets();
+      assertThat(targets).hasSize(new HashSet<>(targets).size());
+      assertThat(callback.getLabels()).containsExactly("//a:w", "//a:x", "//a:y", "//a:z");
+    }
+  }
+
+  @Test
+  public void testResultsLargerThanBatchAreStreamed() throws Exception {
+    int threshold = BatchStreamedCallback.DEFAULT_BATCH_THRESHOLD;
+    // Each package has more than half a batch of files, so that three of them make two batches.
+    int files = threshold / 2 + 100;
+    for (String pkg : ImmutableList.of("big1", "big2", "big3")) {
+      scratch.file(pkg + "/BUILD", "exports_files(['f%d' % i for i in range(" + files + ")])");
+    }
+    for (AbstractBlazeQueryEnvironment<Target> env : ImmutableList.of(
+        newQueryEnvironment(false, EnumSet.noneOf(Setting.class), ImmutableList.<String>of(), 1),
+        newQueryEnvironment(
+            false, EnumSet.noneOf(Setting.class), ImmutableList.of("//big1/...", "//big2/...",
+                "//big3/..."), 1))) {
+      RecordingCallback callback = new RecordingCallback();
+      env.evaluateQuery("//big1:* + //big2:* + //big1:f0 + //big3:* + //big2:*", callback);
+      List<Target> targets = callback.getTargets();
+      // The files and the BUILD file of each package, each of them once.
+      assertThat(targets).hasSize(3 * (files + 1));
+      assertThat(new HashSet<>(targets)).hasSize(3 * (files + 1));
+      List<List<Target>> batches = callback.getBatches();
+      assertThat(batches).hasSize(2);
+      assertThat(batches.get(0).size()).isAtLeast(threshold);
+    }
+  }
+
+  @Test
+  public void testBatchesOfCallback() throws Exception {
+    RecordingCallback recorder = new RecordingCallback();
+    BatchStreamedCallback<Target> callback = new BatchStreamedCallback<>(recorder, 3,
+        new AbstractUniquifier<Target, String>() {
+          @Override
+          protected String extractKey(Target target) {
+            return target.getLabel().toString();
+          }
+        });
+    Target w = getTarget("//a:w");
+    Target x = getTarget("//a:x");
+    Target y = getTarget("//a:y");
+    Target z = getTarget("//a:z");
+    callback.process(ImmutableList.of(w, x));
+    assertThat(recorder.getBatches()).isEmpty();
+    callback.process(ImmutableList.of(x, w, y, z));
+    callback.process(ImmutableList.of(z, y));
+    assertThat(recorder.getBatches()).hasSize(1);
+    callback.processLastPending();
+    assertThat(recorder.getTargets()).containsExactly(w, x, y, z).inOrder();
+  }
+
+  @Test
+  public void testKeepGoingErrorsAreReportedInOperandOrder() throws Exception {
+    scratch.file("b/BUILD", "filegroup(name = 'b', srcs = ['//nob:f'])");
+    scratch.file("c/BUILD", "filegroup(name = 'c', srcs = ['//noc:f'])");
+    reporter.removeHandler(failFastHandler);
+    for (String operator : ImmutableList.of("-", "^", "except", "intersect")) {
+      eventCollector.clear();
+      AbstractBlazeQueryEnvironment<Target> env = newQueryEnvironment(
+          /*keepGoing=*/true, EnumSet.noneOf(Setting.class), ImmutableList.<String>of(), 1);
+      env.evaluateQuery(
+          "deps(//b:b) " + operator + " deps(//c:c) " + operator + " deps(//a:z)",
+          new RecordingCallback());
+      List<String> errors = new ArrayList<>();
+      for (Event event : eventCollector) {
+        if (event.getMessage().contains("no such package")) {
+          errors.add(event.getMessage().contains("'nob'") ? "nob" : "noc");
+        }
+      }
+      assertThat(ImmutableSet.copyOf(errors)).containsExactly("nob", "noc").inOrder();
+    }
+  }
+}
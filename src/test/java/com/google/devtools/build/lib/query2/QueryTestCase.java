@@ -0,0 +1,103 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.pkgcache.PackageManager;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Base class of tests that evaluate queries over the packages of a {@link BuildViewTestCase}.
+ */
+public abstract class QueryTestCase extends BuildViewTestCase {
+
+  /** Collects the results of a query and the batches they were passed on in. */
+  public static class RecordingCallback implements Callback<Target> {
+    private final List<List<Target>> batches = new ArrayList<>();
+
+    @Override
+    public void process(Iterable<Target> partialResult) {
+      batches.add(ImmutableList.copyOf(partialResult));
+    }
+
+    public List<List<Target>> getBatches() {
+      return batches;
+    }
+
+    /** Returns all the results, in the order they were received. */
+    public List<Target> getTargets() {
+      List<Target> targets = new ArrayList<>();
+      for (List<Target> batch : batches) {
+        targets.addAll(batch);
+      }
+      return targets;
+    }
+
+    /** Returns the sorted labels of all the results. */
+    public Set<String> getLabels() {
+      Set<String> labels = new TreeSet<>();
+      for (Target target : getTargets()) {
+        labels.add(target.getLabel().toString());
+      }
+      return labels;
+    }
+  }
+
+  /**
+   * Returns a {@link BlazeQueryEnvironment} if the universe is empty, and a
+   * {@link SkyQueryEnvironment} over the given universe otherwise.
+   */
+  protected AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(
+      boolean keepGoing, Set<Setting> settings, List<String> universeScope, int threads) {
+    PackageManager packageManager = getPackageManager();
+    return AbstractBlazeQueryEnvironment.newQueryEnvironment(
+        packageManager.newTransitiveLoader(),
+        getSkyframeExecutor(),
+        packageManager,
+        packageManager.newTargetPatternEvaluator(),
+        keepGoing,
+        /*strictScope=*/true,
+        /*orderedResults=*/false,
+        universeScope,
+        threads,
+        Predicates.<Label>alwaysTrue(),
+        reporter,
+        settings,
+        ImmutableList.<QueryFunction>of(),
+        packageManager.getPackagePath());
+  }
+
+  /** Evaluates the query and returns the sorted labels of the results. */
+  protected static Set<String> evalToLabels(AbstractBlazeQueryEnvironment<Target> env,
+      String query) throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    QueryEvalResult result = env.evaluateQuery(query, callback);
+    if (!result.getSuccess()) {
+      throw new AssertionError("errors while evaluating " + query);
+    }
+    return callback.getLabels();
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests for {@link SkyQueryEnvironment}, in particular that reverse dependencies computed over
+ * several shards in parallel are the same as those computed serially.
+ */
+@RunWith(JUnit4.class)
+public class SkyQueryEnvironmentTest extends QueryTestCase {
+
+  @Before
+  public final void writeFiles() throws Exception {
+    scratch.file("r/BUILD",
+        "filegroup(name = 'leaf')",
+        "filegroup(name = 'a', srcs = [':leaf'])",
+        "filegroup(name = 'b', srcs = [':leaf'])",
+        "filegroup(name = 'c', srcs = [':a', ':b'])",
+        "genrule(name = 'src_user', srcs = [':leaf'], outs = ['src.out'], cmd = 'true')",
+        "genrule(name = 'tool_user', tools = [':leaf'], outs = ['tool.out'], cmd = 'true')",
+        "filegroup(name = 'd', srcs = [':c', ':tool_user'])",
+        "filegroup(name = 'other')");
+  }
+
+  /** Returns an environment over //r/... that reads the graph one key per shard. */
+  private SkyQueryEnvironment newShardedEnvironment(Set<Setting> settings) {
+    SkyQueryEnvironment env = (SkyQueryEnvironment)
+        newQueryEnvironment(false, settings, ImmutableList.of("//r/..."), 4);
+    env.setShardSize(1);
+    return env;
+  }
+
+  private SkyQueryEnvironment newSerialEnvironment(Set<Setting> settings) {
+    return (SkyQueryEnvironment)
+        newQueryEnvironment(false, settings, ImmutableList.of("//r/..."), 1);
+  }
+
+  @Test
+  public void testShardedAllRdepsEqualSerial() throws Exception {
+    Set<Setting> settings = EnumSet.noneOf(Setting.class);
+    Set<String> serial = evalToLabels(newSerialEnvironment(settings), "allrdeps(//r:leaf)");
+    assertThat(serial).containsExactly("//r:leaf", "//r:a", "//r:b", "//r:c", "//r:d",
+        "//r:src_user", "//r:tool_user");
+    assertThat(evalToLabels(newShardedEnvironment(settings), "allrdeps(//r:leaf)"))
+        .isEqualTo(serial);
+    assertThat(evalToLabels(newShardedEnvironment(settings), "allrdeps(//r:leaf, 1)"))
+        .containsExactly("//r:leaf", "//r:a", "//r:b", "//r:src_user", "//r:tool_user");
+  }
+
+  @Test
+  public void testShardedAllRdepsWithDependencyFilterEqualSerial() throws Exception {
+    Set<Setting> settings = EnumSet.of(Setting.NO_HOST_DEPS);
+    Set<String> serial = evalToLabels(newSerialEnvironment(settings), "allrdeps(//r:leaf)");
+    // The tools of the genrule are host dependencies, so tool_user is not a reverse dependency.
+    assertThat(serial).containsExactly("//r:leaf", "//r:a", "//r:b", "//r:c", "//r:d",
+        "//r:src_user");
+    assertThat(evalToLabels(newShardedEnvironment(settings), "allrdeps(//r:leaf)"))
+        .isEqualTo(serial);
+  }
+
+  @Test
+  public void testShardedReverseDepsEqualSerial() throws Exception {
+    for (Set<Setting> settings : ImmutableList.<Set<Setting>>of(
+        EnumSet.noneOf(Setting.class), EnumSet.of(Setting.NO_HOST_DEPS))) {
+      List<Set<String>> serial = reverseDepsOfResults(newSerialEnvironment(settings));
+      List<Set<String>> sharded = reverseDepsOfResults(newShardedEnvironment(settings));
+      assertThat(sharded).isEqualTo(serial);
+      // The reverse deps of an empty input, and those of all the targets of //r.
+      assertThat(serial.get(0)).isEmpty();
+      assertThat(serial.get(1)).contains("//r:c");
+      assertThat(serial.get(1)).doesNotContain("//r:other");
+    }
+  }
+
+  /**
+   * Returns the labels of the reverse deps of the empty set and of all the targets of //r, computed
+   * while the query is being evaluated, so that the shards run in parallel.
+   */
+  private static List<Set<String>> reverseDepsOfResults(final SkyQueryEnvironment env)
+      throws Exception {
+    final List<Set<String>> result = new ArrayList<>();
+    env.evaluateQuery("//r:*", new Callback<Target>() {
+      @Override
+      public void process(Iterable<Target> partialResult)
+          throws QueryException, InterruptedException {
+        result.add(toLabels(env.getReverseDeps(ImmutableList.<Target>of())));
+        result.add(toLabels(env.getReverseDeps(partialResult)));
+      }
+    });
+    assertThat(result).hasSize(2);
+    return result;
+  }
+
+  private static Set<String> toLabels(Iterable<Target> targets) {
+    Set<String> labels = new TreeSet<>();
+    for (Target target : targets) {
+      labels.add(target.getLabel().toString());
+    }
+    return labels;
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
+import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.protobuf.CodedInputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link ProtoOutputFormatter}. */
+@RunWith(JUnit4.class)
+public class ProtoOutputFormatterTest extends StreamedOutputFormatterTestCase {
+
+  @Override
+  protected AbstractUnorderedFormatter newFormatter() {
+    return new ProtoOutputFormatter();
+  }
+
+  @Override
+  protected byte[] printAllAtOnce(QueryOptions options, List<Target> targets) throws Exception {
+    ProtoOutputFormatter formatter = new ProtoOutputFormatter();
+    formatter.createStreamCallback(options, new PrintStream(ByteStreams.nullOutputStream()),
+        AspectResolver.Mode.OFF.createResolver(null, null));
+    Build.QueryResult.Builder queryResult = Build.QueryResult.newBuilder();
+    for (Target target : targets) {
+      queryResult.addTarget(formatter.toTargetProtoBuffer(target));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    queryResult.build().writeTo(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testTargetsCanBeReadOneByOne() throws Exception {
+    byte[] output = printStreamed(newOptions(OrderOutput.NO), Lists.partition(targets, 3));
+    assertThat(Build.QueryResult.parseFrom(output).getTargetCount()).isEqualTo(targets.size());
+
+    CodedInputStream in = CodedInputStream.newInstance(output);
+    List<String> names = new ArrayList<>();
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      assertThat(tag >>> 3).isEqualTo(Build.QueryResult.TARGET_FIELD_NUMBER);
+      Build.Target.Builder target = Build.Target.newBuilder();
+      in.readMessage(target, null);
+      names.add(getName(target.build()));
+    }
+    List<String> labels = new ArrayList<>();
+    for (Target target : targets) {
+      labels.add(target.getLabel().toString());
+    }
+    assertThat(names).isEqualTo(labels);
+  }
+
+  private static String getName(Build.Target target) {
+    switch (target.getType()) {
+      case RULE:
+        return target.getRule().getName();
+      case SOURCE_FILE:
+        return target.getSourceFile().getName();
+      case GENERATED_FILE:
+        return target.getGeneratedFile().getName();
+      case PACKAGE_GROUP:
+        return target.getPackageGroup().getName();
+      default:
+        throw new IllegalArgumentException(target.getType().toString());
+    }
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.common.options.Options;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the time to the first byte, the total time and the peak heap of the streamed output
+ * formatters, by printing the targets of a synthetic repository in batches like a streamed query
+ * does, to an output that discards them. Usage:
+ *
+ * <pre>
+ *   java -Xmx... ... QueryOutputBenchmark [packages [rules per package [formats...]]]
+ * </pre>
+ */
+class QueryOutputBenchmark {
+
+  /** Discards the output, and remembers when the first byte came. */
+  private static class TimingOutputStream extends OutputStream {
+    private long firstByteNanos = -1;
+    private long bytes;
+
+    @Override
+    public void write(int b) {
+      write(null, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (firstByteNanos < 0) {
+        firstByteNanos = System.nanoTime();
+      }
+      bytes += len;
+    }
+  }
+
+  private static String buildFile(int pkg, int rules) {
+    StringBuilder build = new StringBuilder();
+    for (int i = 0; i < rules; i++) {
+      build.append("cc_library(name = 'lib" + i + "', srcs = ['lib" + i + ".cc'],")
+          .append(" hdrs = ['lib" + i + ".h'], copts = ['-Wall'],")
+          .append(" deps = ['//pkg" + (pkg / 2) + ":lib" + (i / 2) + "'],")
+          .append(" visibility = ['//visibility:public'])\n");
+    }
+    return build.toString();
+  }
+
+  private static void resetPeakHeap(List<MemoryPoolMXBean> pools) {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    for (MemoryPoolMXBean pool : pools) {
+      pool.resetPeakUsage();
+    }
+  }
+
+  private static long peakHeap(List<MemoryPoolMXBean> pools) {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int packages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int rulesPerPackage = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    List<String> formats = new ArrayList<>();
+    for (int i = 2; i < args.length; i++) {
+      formats.add(args[i]);
+    }
+    if (formats.isEmpty()) {
+      formats.add("proto");
+      formats.add("xml");
+    }
+
+    Scratch scratch = new Scratch();
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    PackageFactoryApparatus packageFactory = new PackageFactoryApparatus(eventHandler);
+    List<Target> targets = new ArrayList<>();
+    for (int i = 0; i < packages; i++) {
+      Package pkg = packageFactory.createPackage("pkg" + i,
+          scratch.file("/workspace/pkg" + i + "/BUILD", buildFile(i, rulesPerPackage)));
+      if (pkg.containsErrors()) {
+        throw new IllegalStateException("errors in pkg" + i + ": " + eventHandler.getEvents());
+      }
+      Iterables.addAll(targets, pkg.getTargets());
+    }
+    List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPools.add(pool);
+      }
+    }
+    QueryOptions options = Options.getDefaults(QueryOptions.class);
+    for (String format : formats) {
+      StreamedFormatter formatter = (StreamedFormatter) OutputFormatter.getFormatter(
+          OutputFormatter.getDefaultFormatters(), format);
+      TimingOutputStream out = new TimingOutputStream();
+      resetPeakHeap(heapPools);
+      long before = peakHeap(heapPools);
+      long start = System.nanoTime();
+      OutputFormatterCallback<Target> callback = formatter.createStreamCallback(options,
+          new PrintStream(out), AspectResolver.Mode.OFF.createResolver(null, null));
+      callback.start();
+      for (List<Target> batch : Iterables.partition(targets, 10000)) {
+        callback.process(batch);
+      }
+      callback.close();
+      long end = System.nanoTime();
+      System.out.printf("%s: %d targets, %d MB in %d ms, first byte after %d ms, "
+          + "peak heap %d MB above the targets%n",
+          format, targets.size(), out.bytes >> 20, (end - start) / 1000000,
+          (out.firstByteNanos - start) / 1000000, (peakHeap(heapPools) - before) >> 20);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.graph.CompactDigraph;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.QueryTestCase;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
+import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class of the tests that check that a formatter which writes each batch of targets as it
+ * arrives prints the same bytes as printing all the targets at once did, for unordered (streamed)
+ * and ordered results, for empty results, and for results that come in several batches.
+ */
+public abstract class StreamedOutputFormatterTestCase extends QueryTestCase {
+
+  /** The targets of the test package, sorted by label. */
+  protected List<Target> targets;
+  /** The dependency graph of the {@link #targets}. */
+  protected CompactDigraph<Target> graph;
+
+  /** Returns a new instance of the formatter under test. */
+  protected abstract AbstractUnorderedFormatter newFormatter();
+
+  /**
+   * Prints the targets the way the formatter did before it streamed its output: by building the
+   * whole result in memory and writing it at the end.
+   */
+  protected abstract byte[] printAllAtOnce(QueryOptions options, List<Target> targets)
+      throws Exception;
+
+  @Before
+  public final void createTargets() throws Exception {
+    scratch.file("p/BUILD",
+        "package_group(name = 'friends', packages = ['//p/...'])",
+        "exports_files(['data.txt'], visibility = [':friends'])",
+        "cc_library(name = 'lib', srcs = ['lib.cc'], hdrs = ['lib.h'], copts = ['-Wall'],",
+        "    visibility = ['//visibility:public'])",
+        "cc_binary(name = 'bin', srcs = ['main.cc'], deps = [':lib'])",
+        "genrule(name = 'gen', srcs = ['lib.h', 'data.txt'], outs = ['gen.h'],",
+        "    cmd = 'echo \"<a & b>\" \\'c\\' > $@')",
+        "filegroup(name = 'group', srcs = [':gen', ':bin', 'data.txt'])",
+        "sh_test(name = 'test', srcs = ['test.sh'], data = [':group'], tags = ['small', 'x<y'])");
+    RecordingCallback callback = new RecordingCallback();
+    newQueryEnvironment(false, EnumSet.noneOf(Setting.class), ImmutableList.<String>of(), 1)
+        .evaluateQuery("//p:*", callback);
+    targets = new ArrayList<>(callback.getTargets());
+    Collections.sort(targets, new Comparator<Target>() {
+      @Override
+      public int compare(Target a, Target b) {
+        return a.getLabel().compareTo(b.getLabel());
+      }
+    });
+    assertThat(targets.size()).isGreaterThan(10);
+
+    Map<Label, Target> byLabel = new HashMap<>();
+    for (Target target : targets) {
+      byLabel.put(target.getLabel(), target);
+    }
+    CompactDigraph.Builder<Target> builder = CompactDigraph.builder();
+    for (Target target : targets) {
+      builder.addNode(target);
+      if (target instanceof Rule) {
+        for (Label label : ((Rule) target).getLabels()) {
+          if (byLabel.containsKey(label)) {
+            builder.addEdge(target, byLabel.get(label));
+          }
+        }
+      }
+    }
+    graph = builder.build();
+  }
+
+  protected static QueryOptions newOptions(OrderOutput orderOutput) {
+    QueryOptions options = Options.getDefaults(QueryOptions.class);
+    options.orderOutput = orderOutput;
+    return options;
+  }
+
+  private static AspectResolver aspectResolver() {
+    return AspectResolver.Mode.OFF.createResolver(null, null);
+  }
+
+  /** Returns the output of the formatter for the targets passed in the given batches. */
+  protected byte[] printStreamed(QueryOptions options, Iterable<? extends List<Target>> batches)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream printStream = new PrintStream(out);
+    OutputFormatterCallback<Target> callback =
+        newFormatter().createStreamCallback(options, printStream, aspectResolver());
+    callback.start();
+    for (List<Target> batch : batches) {
+      callback.process(batch);
+    }
+    callback.close();
+    printStream.flush();
+    return out.toByteArray();
+  }
+
+  /** Returns the output of the formatter for an ordered result. */
+  private byte[] printOrdered(QueryOptions options, CompactDigraph<Target> result)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream printStream = new PrintStream(out);
+    newFormatter().output(options, result, printStream, aspectResolver());
+    printStream.flush();
+    return out.toByteArray();
+  }
+
+  private void assertSameOutput(byte[] expected, byte[] actual) throws Exception {
+    // Compare the strings first for a readable message; the bytes must match as well.
+    assertThat(new String(actual, "ISO-8859-1")).isEqualTo(new String(expected, "ISO-8859-1"));
+    assertThat(actual).isEqualTo(expected);
+  }
+
+  @Test
+  public void testUnorderedOutputIsUnchanged() throws Exception {
+    QueryOptions options = newOptions(OrderOutput.NO);
+    byte[] expected = printAllAtOnce(options, targets);
+    assertThat(expected.length).isGreaterThan(0);
+    assertSameOutput(expected, printStreamed(options, ImmutableList.of(targets)));
+
+    List<Target> reversed = Lists.reverse(targets);
+    assertSameOutput(printAllAtOnce(options, reversed),
+        printStreamed(options, ImmutableList.of(reversed)));
+  }
+
+  @Test
+  public void testOutputInSeveralBatchesIsUnchanged() throws Exception {
+    QueryOptions options = newOptions(OrderOutput.NO);
+    byte[] expected = printAllAtOnce(options, targets);
+    for (int batchSize : new int[] {1, 2, 3, targets.size() - 1}) {
+      assertSameOutput(expected, printStreamed(options, Lists.partition(targets, batchSize)));
+    }
+    // Empty batches in between do not change anything either.
+    List<List<Target>> batches = new ArrayList<>();
+    for (List<Target> batch : Lists.partition(targets, 4)) {
+      batches.add(ImmutableList.<Target>of());
+      batches.add(batch);
+    }
+    batches.add(ImmutableList.<Target>of());
+    assertSameOutput(expected, printStreamed(options, batches));
+  }
+
+  @Test
+  public void testOrderedOutputIsUnchanged() throws Exception {
+    for (OrderOutput order : new OrderOutput[] {OrderOutput.DEPS, OrderOutput.FULL}) {
+      QueryOptions options = newOptions(order);
+      List<Target> ordered =
+          ImmutableList.copyOf(newFormatter().getOrderedTargets(graph, options));
+      assertThat(ordered).containsExactlyElementsIn(targets);
+      assertSameOutput(printAllAtOnce(options, ordered), printOrdered(options, graph));
+    }
+  }
+
+  @Test
+  public void testEmptyOutputIsUnchanged() throws Exception {
+    QueryOptions options = newOptions(OrderOutput.NO);
+    byte[] expected = printAllAtOnce(options, ImmutableList.<Target>of());
+    assertSameOutput(expected, printStreamed(options, ImmutableList.<List<Target>>of()));
+    assertSameOutput(expected,
+        printStreamed(options, ImmutableList.of(ImmutableList.<Target>of())));
+    assertSameOutput(expected,
+        printOrdered(newOptions(OrderOutput.FULL), CompactDigraph.<Target>builder().build()));
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/** Tests for {@link XmlOutputFormatter}. */
+@RunWith(JUnit4.class)
+public class XmlOutputFormatterTest extends StreamedOutputFormatterTestCase {
+
+  @Override
+  protected AbstractUnorderedFormatter newFormatter() {
+    return new XmlOutputFormatter();
+  }
+
+  @Override
+  protected byte[] printAllAtOnce(QueryOptions options, List<Target> targets) throws Exception {
+    XmlOutputFormatter formatter = new XmlOutputFormatter();
+    formatter.createStreamCallback(options, new PrintStream(ByteStreams.nullOutputStream()),
+        AspectResolver.Mode.OFF.createResolver(null, null));
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    doc.setXmlVersion("1.1");
+    Element queryElem = doc.createElement("query");
+    queryElem.setAttribute("version", "2");
+    doc.appendChild(queryElem);
+    for (Target target : targets) {
+      queryElem.appendChild(formatter.createTargetElement(doc, target));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    transformer.transform(new DOMSource(doc), new StreamResult(out));
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,240 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link RemoteExecutionClient} against a {@link LocalRemoteExecutionServer}.
+ */
+@RunWith(JUnit4.class)
+public class RemoteExecutionClientTest {
+  private Path localRoot;
+  private LocalRemoteExecutionServer server;
+  private RemoteExecutionClient client;
+
+  @Before
+  public final void startServer() throws Exception {
+    FileSystem fileSystem = FileSystems.initDefaultAsNative();
+    Path testRoot = fileSystem.getPath(TestUtils.makeTempDir().getPath());
+    localRoot = testRoot.getChild("local");
+    FileSystemUtils.createDirectoryAndParents(localRoot);
+    server = LocalRemoteExecutionServer.start(testRoot.getChild("server"), 0);
+    client = new RemoteExecutionClient("localhost", server.getPort(), 10000, 0);
+  }
+
+  @After
+  public final void stopServer() throws Exception {
+    client.close();
+    server.close();
+  }
+
+  /** Writes a local file and returns its digest. */
+  private ByteString writeFile(String name, String content) throws IOException {
+    Path path = localRoot.getRelative(name);
+    FileSystemUtils.writeContent(path, UTF_8, content);
+    return ByteString.copyFrom(path.getMD5Digest());
+  }
+
+  @Test
+  public void testFindsOnlyBlobsThatWereNotUploaded() throws Exception {
+    ByteString uploaded = writeFile("a", "uploaded");
+    ByteString notUploaded = writeFile("b", "not uploaded");
+    client.uploadBlob(uploaded, localRoot.getChild("a"));
+
+    assertThat(client.findMissingBlobs(Arrays.asList(uploaded, notUploaded)))
+        .containsExactly(notUploaded);
+  }
+
+  @Test
+  public void testUploadsManyBlobs() throws Exception {
+    Map<ByteString, Path> files = new LinkedHashMap<>();
+    for (int i = 0; i < 40; i++) {
+      files.put(writeFile("file" + i, "content " + i), localRoot.getChild("file" + i));
+    }
+    client.uploadBlobs(files);
+    assertThat(client.findMissingBlobs(files.keySet())).isEmpty();
+  }
+
+  @Test
+  public void testRejectsBlobWithWrongDigest() throws Exception {
+    ByteString digest = writeFile("a", "one");
+    writeFile("a", "two");
+    try {
+      client.uploadBlob(digest, localRoot.getChild("a"));
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("do not match");
+    }
+    assertThat(client.findMissingBlobs(Arrays.asList(digest))).containsExactly(digest);
+  }
+
+  @Test
+  public void testExecutesCommandAndDownloadsOutputs() throws Exception {
+    ByteString input = writeFile("in", "hello");
+    client.uploadBlob(input, localRoot.getChild("in"));
+
+    ExecuteResponse response = client.execute(ExecuteRequest.newBuilder()
+        .addArguments("/bin/sh")
+        .addArguments("-c")
+        .addArguments("cat pkg/in > out/result && echo done")
+        .addInputs(FileEntry.newBuilder().setPath("pkg/in").setDigest(input))
+        .addOutputPaths("out/result")
+        .addOutputPaths("out/never_created")
+        .build());
+
+    assertThat(response.getExitCode()).isEqualTo(0);
+    assertThat(response.getStdout().toStringUtf8()).isEqualTo("done\n");
+    assertThat(response.getOutputsCount()).isEqualTo(1);
+    FileEntry output = response.getOutputs(0);
+    assertThat(output.getPath()).isEqualTo("out/result");
+    assertThat(output.getDigest()).isEqualTo(input);
+
+    Path result = localRoot.getRelative("result");
+    client.downloadBlob(output.getDigest(), result);
+    assertThat(FileSystemUtils.readContent(result, UTF_8)).isEqualTo("hello");
+  }
+
+  @Test
+  public void testReportsExitCode() throws Exception {
+    ExecuteResponse response = client.execute(ExecuteRequest.newBuilder()
+        .addArguments("/bin/sh")
+        .addArguments("-c")
+        .addArguments("echo oops >&2; exit 3")
+        .build());
+
+    assertThat(response.getExitCode()).isEqualTo(3);
+    assertThat(response.getStderr().toStringUtf8()).isEqualTo("oops\n");
+  }
+
+  @Test
+  public void testDownloadOfUnknownBlobFailsAndKeepsConnectionUsable() throws Exception {
+    ByteString digest = writeFile("a", "content");
+    Path target = localRoot.getRelative("target");
+    try {
+      client.downloadBlob(digest, target);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("not found");
+    }
+    assertThat(target.exists()).isFalse();
+
+    client.uploadBlob(digest, localRoot.getChild("a"));
+    client.downloadBlob(digest, target);
+    assertThat(FileSystemUtils.readContent(target, UTF_8)).isEqualTo("content");
+  }
+
+  @Test
+  public void testRejectsPathsOutsideOfExecRoot() throws Exception {
+    ByteString input = writeFile("in", "hello");
+    client.uploadBlob(input, localRoot.getChild("in"));
+    for (String path : new String[] {"../escaped", "/tmp/escaped", "pkg/../../escaped"}) {
+      try {
+        client.execute(ExecuteRequest.newBuilder()
+            .addArguments("/bin/true")
+            .addInputs(FileEntry.newBuilder().setPath(path).setDigest(input))
+            .build());
+        fail();
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("is not below the execution root");
+      }
+      try {
+        client.execute(ExecuteRequest.newBuilder()
+            .addArguments("/bin/true")
+            .addOutputPaths(path)
+            .build());
+        fail();
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("is not below the execution root");
+      }
+    }
+  }
+
+  @Test
+  public void testTimesOutIfServerDoesNotReply() throws Exception {
+    try (ServerSocket silentServer = new ServerSocket(0)) {
+      RemoteExecutionClient silentClient =
+          new RemoteExecutionClient("localhost", silentServer.getLocalPort(), 10000, 100);
+      try {
+        silentClient.execute(ExecuteRequest.newBuilder().addArguments("/bin/true").build());
+        fail();
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("timed out");
+      } finally {
+        silentClient.close();
+      }
+    }
+  }
+
+  @Test
+  public void testInterruptAbortsCall() throws Exception {
+    try (ServerSocket silentServer = new ServerSocket(0)) {
+      final RemoteExecutionClient silentClient =
+          new RemoteExecutionClient("localhost", silentServer.getLocalPort(), 10000, 0);
+      final AtomicReference<Throwable> thrown = new AtomicReference<>();
+      Thread caller = new Thread() {
+        @Override
+        public void run() {
+          try {
+            silentClient.execute(ExecuteRequest.newBuilder().addArguments("/bin/true").build());
+          } catch (Throwable t) {
+            thrown.set(t);
+          }
+        }
+      };
+      caller.start();
+      try (Socket accepted = silentServer.accept()) {
+        caller.interrupt();
+        caller.join(10000);
+        assertThat(caller.isAlive()).isFalse();
+        assertThat(thrown.get()).isInstanceOf(InterruptedException.class);
+        // The client closed its end of the connection after sending the request.
+        accepted.setSoTimeout(10000);
+        InputStream in = accepted.getInputStream();
+        while (in.read() != -1) {
+          // Skip the request.
+        }
+      } finally {
+        silentClient.close();
+      }
+    }
+  }
+}
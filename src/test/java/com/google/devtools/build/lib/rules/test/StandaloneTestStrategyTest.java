@@ -0,0 +1,308 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.rules.test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.ActionContextProvider;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.BlazeExecutor;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.Executor.ActionContext;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.actions.cache.DiskActionOutputCache;
+import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.view.test.TestStatus.BlazeTestStatus;
+import com.google.devtools.build.lib.view.test.TestStatus.TestResultData;
+import com.google.devtools.common.options.OptionsParser;
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link StandaloneTestStrategy}, in particular for its test result cache. The tests are
+ * run by a fake spawn strategy that fails a given number of times before it passes.
+ */
+@RunWith(JUnit4.class)
+public class StandaloneTestStrategyTest extends BuildViewTestCase {
+
+  private Path execRoot;
+  private DiskActionOutputCache cache;
+  private FakeSpawnStrategy spawnStrategy;
+  private final List<TestResult> results = new ArrayList<>();
+
+  /** Writes a line to the test log and fails while {@code failuresLeft} is positive. */
+  private static final class FakeSpawnStrategy implements SpawnActionContext {
+    int runs;
+    int failuresLeft;
+
+    @Override
+    public void exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+        throws ExecException {
+      runs++;
+      try (OutputStream out = actionExecutionContext.getFileOutErr().getOutputStream()) {
+        out.write(("run " + runs + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      if (failuresLeft > 0) {
+        failuresLeft--;
+        throw new UserExecException("test failed");
+      }
+    }
+
+    @Override
+    public String strategyLocality(String mnemonic, boolean remotable) {
+      return "fake";
+    }
+
+    @Override
+    public boolean isRemotable(String mnemonic, boolean remotable) {
+      return false;
+    }
+  }
+
+  /** Digests inputs by their exec path, so that the cache key is the same for every run. */
+  private static final class FakeInputFileCache implements ActionInputFileCache {
+    @Override
+    public ByteString getDigest(ActionInput input) {
+      return ByteString.copyFromUtf8(input.getExecPathString());
+    }
+
+    @Override
+    public boolean isFile(Artifact input) {
+      return true;
+    }
+
+    @Override
+    public long getSizeInBytes(ActionInput input) {
+      return 0;
+    }
+
+    @Override
+    public boolean contentsAvailableLocally(ByteString digest) {
+      return false;
+    }
+
+    @Override
+    public ActionInput getInputFromDigest(ByteString digest) {
+      return null;
+    }
+
+    @Override
+    public Path getInputPath(ActionInput input) {
+      return null;
+    }
+  }
+
+  @Before
+  public final void createCache() throws Exception {
+    execRoot = directories.getExecRoot();
+    cache = new DiskActionOutputCache(
+        scratch.getFileSystem().getPath("/test_result_cache"), 1 << 20);
+    spawnStrategy = new FakeSpawnStrategy();
+    ResourceManager.instance().setAvailableResources(
+        ResourceSet.create(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, 1000));
+    mockToolsConfig.overwrite("/bazel_tools_workspace/tools/test/BUILD",
+        "filegroup(name = 'runtime', srcs = ['test-setup.sh'])");
+    mockToolsConfig.create("/bazel_tools_workspace/tools/test/test-setup.sh", "exec $@");
+    invalidatePackages();
+    scratch.file("tests/BUILD", "sh_test(name = 'test', srcs = ['test.sh'])");
+    scratch.file("tests/test.sh", "exit 0");
+  }
+
+  private TestRunnerAction getTestAction() throws Exception {
+    return getTestAction("//tests:test");
+  }
+
+  private TestRunnerAction getTestAction(String label) throws Exception {
+    Artifact status = Iterables.getOnlyElement(
+        TestProvider.getTestStatusArtifacts(getConfiguredTarget(label)));
+    TestRunnerAction action = (TestRunnerAction) getGeneratingAction(status);
+    for (Artifact output : action.getOutputs()) {
+      FileSystemUtils.createDirectoryAndParents(output.getPath().getParentDirectory());
+    }
+    return action;
+  }
+
+  /** Runs the test action as the execution phase would, with the given execution options. */
+  private TestResult exec(TestRunnerAction action, String... options) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(ExecutionOptions.class);
+    parser.parse(options);
+    EventBus bus = new EventBus();
+    bus.register(this);
+    BlazeExecutor executor = new BlazeExecutor(
+        execRoot,
+        directories.getOutputPath(),
+        new Reporter(new StoredEventHandler()),
+        bus,
+        BlazeClock.instance(),
+        parser,
+        /*verboseFailures=*/ false,
+        /*showSubcommands=*/ false,
+        ImmutableList.<ActionContext>of(),
+        ImmutableMap.<String, SpawnActionContext>of("", spawnStrategy),
+        ImmutableList.<ActionContextProvider>of());
+    StandaloneTestStrategy strategy = new StandaloneTestStrategy(
+        parser, binTools, ImmutableMap.<String, String>of(), directories.getWorkspace(), cache);
+    ActionExecutionContext context = new ActionExecutionContext(
+        executor,
+        new FakeInputFileCache(),
+        null,
+        new FileOutErr(execRoot.getRelative("stdout"), execRoot.getRelative("stderr")),
+        new Artifact.MiddlemanExpander() {
+          @Override
+          public void expand(Artifact mm, Collection<? super Artifact> output) {}
+        });
+
+    results.clear();
+    action.executeUnconditionally();
+    strategy.exec(action, context);
+    return Iterables.getOnlyElement(results);
+  }
+
+  @Subscribe
+  public void testResult(TestResult result) {
+    results.add(result);
+  }
+
+  private static TestResultData readStatus(Path path) throws IOException {
+    try (InputStream in = path.getInputStream()) {
+      return TestResultData.parseFrom(in);
+    }
+  }
+
+  /**
+   * Stores the only entry of the cache again as if the test had been run in
+   * {@code otherExecRoot}: the outputs are copied there and the absolute log paths in the cached
+   * status are rewritten. The outputs in the exec root are removed.
+   */
+  private void moveCacheEntryTo(TestRunnerAction action, Path otherExecRoot) throws Exception {
+    Path keyDir = Iterables.getOnlyElement(
+        scratch.getFileSystem().getPath("/test_result_cache/ac").getDirectoryEntries());
+    String key = Iterables.getOnlyElement(keyDir.getDirectoryEntries()).getBaseName();
+    String oldPrefix = execRoot.getPathString() + "/";
+    String newPrefix = otherExecRoot.getPathString() + "/";
+    Map<PathFragment, byte[]> outputs = new LinkedHashMap<>();
+    for (PathFragment output : cache.getOutputs(key)) {
+      Path source = execRoot.getRelative(output);
+      Path target = otherExecRoot.getRelative(output);
+      FileSystemUtils.createDirectoryAndParents(target.getParentDirectory());
+      if (output.equals(action.getCacheStatusArtifact().getExecPath())) {
+        TestResultData data = readStatus(source);
+        TestResultData rewritten = data.toBuilder()
+            .setPassedLog(data.getPassedLog().replace(oldPrefix, newPrefix))
+            .build();
+        try (OutputStream out = target.getOutputStream()) {
+          rewritten.writeTo(out);
+        }
+      } else {
+        FileSystemUtils.copyFile(source, target);
+      }
+      outputs.put(output, target.getMD5Digest());
+      source.delete();
+    }
+    cache.store(key, otherExecRoot, outputs);
+  }
+
+  @Test
+  public void testPassedTestIsReplayedFromOtherExecRoot() throws Exception {
+    TestRunnerAction action = getTestAction();
+    TestResult result = exec(action);
+    assertThat(result.getData().getStatus()).isEqualTo(BlazeTestStatus.PASSED);
+    assertThat(spawnStrategy.runs).isEqualTo(1);
+
+    moveCacheEntryTo(action, scratch.getFileSystem().getPath("/other/execroot"));
+    TestResult replayed = exec(action);
+    assertThat(spawnStrategy.runs).isEqualTo(1);
+    assertThat(replayed.getData().getStatus()).isEqualTo(BlazeTestStatus.PASSED);
+    assertThat(replayed.getData().getRemotelyCached()).isTrue();
+    assertThat(replayed.getData().getPassedLog())
+        .isEqualTo(action.getTestLog().getPath().getPathString());
+    assertThat(FileSystemUtils.readContent(action.getTestLog().getPath(), StandardCharsets.UTF_8))
+        .isEqualTo("run 1\n");
+    assertThat(readStatus(action.getCacheStatusArtifact().getPath()).getRemotelyCached())
+        .isTrue();
+  }
+
+  @Test
+  public void testFailedTestIsNotCached() throws Exception {
+    TestRunnerAction action = getTestAction();
+    spawnStrategy.failuresLeft = 2;
+    assertThat(exec(action).getData().getStatus()).isEqualTo(BlazeTestStatus.FAILED);
+    assertThat(exec(action).getData().getStatus()).isEqualTo(BlazeTestStatus.FAILED);
+    assertThat(spawnStrategy.runs).isEqualTo(2);
+    assertThat(scratch.getFileSystem().getPath("/test_result_cache/ac").getDirectoryEntries())
+        .isEmpty();
+  }
+
+  @Test
+  public void testNonCacheableTestIsNotCached() throws Exception {
+    useConfiguration("--nocache_test_results");
+    TestRunnerAction action = getTestAction();
+    exec(action);
+    TestResult result = exec(action);
+    assertThat(spawnStrategy.runs).isEqualTo(2);
+    assertThat(result.getData().getRemotelyCached()).isFalse();
+  }
+
+  @Test
+  public void testCoverageTestIsNotCached() throws Exception {
+    scratch.file("third_party/gcov/BUILD",
+        "licenses(['notice'])",
+        "filegroup(name = 'gcov_for_xcode')",
+        "filegroup(name = 'gcov_for_xcode_osx')");
+    useConfiguration("--collect_code_coverage", "--instrumentation_filter=//cc");
+    scratch.file("cc/BUILD", "cc_test(name = 'test', srcs = ['test.cc'])");
+    TestRunnerAction action = getTestAction("//cc:test");
+    assertThat(action.getCoverageData()).isNotNull();
+    exec(action);
+    TestResult result = exec(action);
+    assertThat(spawnStrategy.runs).isEqualTo(2);
+    assertThat(result.getData().getRemotelyCached()).isFalse();
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CompactCriticalPathComputer}.
+ */
+@RunWith(JUnit4.class)
+public class CompactCriticalPathComputerTest {
+
+  private ManualClock clock;
+  private CompactCriticalPathComputer computer;
+  private Path outputDir;
+  private Root root;
+
+  @Before
+  public final void createComputer() throws Exception {
+    clock = new ManualClock();
+    computer = new CompactCriticalPathComputer(clock);
+    InMemoryFileSystem fs = new InMemoryFileSystem(BlazeClock.instance());
+    outputDir = fs.getPath("/exec/out");
+    root = Root.asDerivedRoot(fs.getPath("/exec"), outputDir);
+  }
+
+  private Artifact artifact(String name) {
+    return new Artifact(outputDir.getRelative(name), root);
+  }
+
+  private static Action action(Artifact output, Artifact... inputs) {
+    return new TestAction(TestAction.NO_EFFECT, ImmutableList.copyOf(inputs),
+        ImmutableList.of(output));
+  }
+
+  private void complete(Action action, long startMillis) {
+    computer.actionComplete(new ActionCompletionEvent(
+        clock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis() - startMillis),
+        action));
+  }
+
+  private static List<Action> actions(List<SimpleCriticalPathComponent> components) {
+    List<Action> actions = new ArrayList<>();
+    for (SimpleCriticalPathComponent component : components) {
+      actions.add(component.getAction());
+    }
+    return actions;
+  }
+
+  @Test
+  public void testCriticalPathAndSlack() {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    Artifact c = artifact("c");
+    Artifact d = artifact("d");
+    Artifact e = artifact("e");
+    Action actionA = action(a);
+    Action actionB = action(b);
+    Action actionE = action(e, b);
+    Action actionC = action(c, a, e);
+    Action actionD = action(d);
+
+    // A, B and D start at 0; E is a cache hit after B; C starts when A and E are done.
+    clock.advanceMillis(5);
+    complete(actionD, 0);
+    clock.advanceMillis(5);
+    complete(actionA, 0);
+    clock.advanceMillis(10);
+    complete(actionB, 0);
+    computer.actionCached(new CachedActionEvent(actionE, clock.nanoTime()));
+    clock.advanceMillis(25);
+    complete(actionC, 20);
+
+    AggregatedCriticalPath<SimpleCriticalPathComponent> criticalPath = computer.aggregate();
+    assertThat(criticalPath.totalTime()).isEqualTo(45);
+    assertThat(actions(criticalPath.components()))
+        .containsExactly(actionC, actionE, actionB).inOrder();
+    assertThat(criticalPath.components().get(0).getElapsedTimeMillis()).isEqualTo(25);
+
+    assertThat(actions(computer.getSlowestComponents()))
+        .containsExactly(actionC, actionB, actionA, actionD).inOrder();
+
+    List<Action> leastSlack = new ArrayList<>();
+    List<Long> slackMillis = new ArrayList<>();
+    for (CompactCriticalPathComputer.SlackAction slackAction :
+        computer.getLeastSlackActions()) {
+      leastSlack.add(slackAction.getAction());
+      slackMillis.add(TimeUnit.NANOSECONDS.toMillis(slackAction.getSlackNanos()));
+    }
+    assertThat(leastSlack).containsExactly(actionC, actionB, actionA, actionD).inOrder();
+    assertThat(slackMillis).containsExactly(0L, 0L, 10L, 40L).inOrder();
+  }
+
+  @Test
+  public void testEmptyBuild() {
+    assertThat(computer.aggregate().totalTime()).isEqualTo(0);
+    assertThat(computer.aggregate().components()).isEmpty();
+    assertThat(computer.getLeastSlackActions()).isEmpty();
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    final CompactCriticalPathComputer concurrentComputer =
+        new CompactCriticalPathComputer(BlazeClock.instance());
+    final Action action = new NullAction();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 2000; i++) {
+            concurrentComputer.actionComplete(
+                new ActionCompletionEvent(BlazeClock.instance().nanoTime() - 1000, action));
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(concurrentComputer.getSlowestComponents())
+        .hasSize(CompactCriticalPathComputer.SLOWEST_COMPONENTS_SIZE);
+    assertThat(concurrentComputer.aggregate().components()).hasSize(1);
+  }
+}
@@ -105,7 +105,9 @@ public class LinuxSandboxedStrategyTestCase {
                     blazeDirs,
                     MoreExecutors.newDirectExecutorService(),
                     true,
-                    false)),
+                    false,
+                    null,
+                    null)),
             ImmutableList.<ActionContextProvider>of());
   }
 
@@ -0,0 +1,125 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.sandbox.SandboxPool.SandboxDirectory;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link SandboxPool}.
+ */
+@RunWith(JUnit4.class)
+public class SandboxPoolTest {
+  private FileSystem fileSystem;
+  private SandboxPool pool;
+
+  @Before
+  public final void createPool() throws Exception {
+    fileSystem = new InMemoryFileSystem();
+    pool = new SandboxPool(fileSystem.getPath("/execroot/sandbox"));
+  }
+
+  private ImmutableMap<Path, Path> mounts(String... targetsAndSources) {
+    ImmutableMap.Builder<Path, Path> mounts = ImmutableMap.builder();
+    for (int i = 0; i < targetsAndSources.length; i += 2) {
+      mounts.put(
+          fileSystem.getPath(targetsAndSources[i]), fileSystem.getPath(targetsAndSources[i + 1]));
+    }
+    return mounts.build();
+  }
+
+  /** Creates the mount points the way namespace-sandbox does. */
+  private void createMountPoints(SandboxDirectory dir, ImmutableMap<Path, Path> mounts)
+      throws IOException {
+    for (Path target : mounts.keySet()) {
+      Path mountPoint = SandboxPool.getMountPoint(dir.getRoot(), target);
+      FileSystemUtils.createDirectoryAndParents(mountPoint.getParentDirectory());
+      FileSystemUtils.createEmptyFile(mountPoint);
+    }
+  }
+
+  private Path inSandbox(SandboxDirectory dir, String path) {
+    return SandboxPool.getMountPoint(dir.getRoot(), fileSystem.getPath(path));
+  }
+
+  @Test
+  public void testReusesReleasedDirectory() throws Exception {
+    ImmutableMap<Path, Path> mounts = mounts("/a/b", "/src/b");
+    SandboxDirectory first = pool.acquire(mounts);
+    SandboxDirectory second = pool.acquire(mounts);
+    assertThat(second.getRoot()).isNotEqualTo(first.getRoot());
+
+    pool.cleanUpAndRelease(first);
+    assertThat(pool.acquire(mounts).getRoot()).isEqualTo(first.getRoot());
+  }
+
+  @Test
+  public void testCleanUpKeepsOnlyMountPoints() throws Exception {
+    ImmutableMap<Path, Path> mounts = mounts("/a/b/c", "/src/c", "/d", "/src/d");
+    SandboxDirectory dir = pool.acquire(mounts);
+    createMountPoints(dir, mounts);
+    FileSystemUtils.createEmptyFile(inSandbox(dir, "/a/b/junk"));
+    FileSystemUtils.createDirectoryAndParents(inSandbox(dir, "/tmp/x"));
+
+    pool.cleanUpAndRelease(dir);
+
+    assertThat(inSandbox(dir, "/a/b/c").exists()).isTrue();
+    assertThat(inSandbox(dir, "/d").exists()).isTrue();
+    assertThat(inSandbox(dir, "/a/b/junk").exists()).isFalse();
+    assertThat(inSandbox(dir, "/tmp").exists()).isFalse();
+  }
+
+  @Test
+  public void testAcquireRemovesStaleMountPoints() throws Exception {
+    ImmutableMap<Path, Path> oldMounts =
+        mounts("/a/b/c", "/src/c", "/a/keep", "/src/keep", "/x/y/z", "/src/z", "/moved", "/src/1");
+    SandboxDirectory dir = pool.acquire(oldMounts);
+    createMountPoints(dir, oldMounts);
+    pool.cleanUpAndRelease(dir);
+
+    ImmutableMap<Path, Path> newMounts = mounts("/a/keep", "/src/keep", "/moved", "/src/2");
+    assertThat(pool.acquire(newMounts)).isSameAs(dir);
+
+    assertThat(inSandbox(dir, "/a/keep").exists()).isTrue();
+    assertThat(inSandbox(dir, "/a/b").exists()).isFalse();
+    assertThat(inSandbox(dir, "/x").exists()).isFalse();
+    // The source changed, so namespace-sandbox has to create the mount point anew.
+    assertThat(inSandbox(dir, "/moved").exists()).isFalse();
+  }
+
+  @Test
+  public void testDiscardedDirectoryIsDeletedOnReuse() throws Exception {
+    ImmutableMap<Path, Path> mounts = mounts("/a", "/src/a");
+    SandboxDirectory dir = pool.acquire(mounts);
+    createMountPoints(dir, mounts);
+    FileSystemUtils.createEmptyFile(inSandbox(dir, "/junk"));
+    pool.discard(dir);
+
+    assertThat(pool.acquire(mounts)).isSameAs(dir);
+    assertThat(dir.getRoot().exists()).isFalse();
+  }
+}
@@ -134,7 +134,7 @@ public class FileFunctionTest {
                     new FileSymlinkInfiniteExpansionUniquenessFunction())
                 .put(SkyFunctions.FILE, new FileFunction(pkgLocatorRef))
                 .put(SkyFunctions.PACKAGE,
-                    new PackageFunction(null, null, null, null, null, null, null))
+                    new PackageFunction(null, null, null, null, null, null, null, null))
                 .put(SkyFunctions.PACKAGE_LOOKUP,
                     new PackageLookupFunction(new AtomicReference<>(
                         ImmutableSet.<PackageIdentifier>of())))
@@ -17,23 +17,37 @@ package com.google.devtools.build.lib.skyframe;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
+import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.packages.util.SubincludePreprocessor;
+import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.skyframe.PackageFunction.SkylarkImportResult;
 import com.google.devtools.build.lib.skyframe.util.SkyframeExecutorTestUtils;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystem;
@@ -43,11 +57,15 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.AbstractSkyFunctionEnvironment;
 import com.google.devtools.build.skyframe.ErrorInfo;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.RecordingDifferencer;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.ValueOrExceptionUtils;
+import com.google.devtools.build.skyframe.ValueOrUntypedException;
+import com.google.devtools.common.options.OptionsParser;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -55,6 +73,7 @@ import org.junit.runners.JUnit4;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -493,6 +512,211 @@ public class PackageFunctionTest extends BuildViewTestCase {
     validPackage(PackageValue.key(PackageIdentifier.parse("pkg2")));
   }
 
+  @Test
+  public void testRestartReusesPackageUnderConstruction() throws Exception {
+    scratch.file("pkg/BUILD",
+        "load('/pkg/ext', 'a')",
+        "exports_files(glob(['*.txt']))");
+    scratch.file("pkg/ext.bzl", "a = 1");
+    scratch.file("pkg/a.txt");
+
+    Path profile = outputBase.getRelative("profile.dat");
+    Profiler profiler = Profiler.instance();
+    profiler.start(ProfiledTaskKinds.ALL, profile.getOutputStream(), "restart test", false,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    try {
+      validPackage(PackageValue.key(PackageIdentifier.parse("pkg")));
+    } finally {
+      profiler.stop();
+    }
+
+    // The glob is only requested from Skyframe once the package is constructed, so the function
+    // restarts and finds the package it has already constructed. The reused time is recorded as
+    // an event, so that it does not overlap the tasks that actually ran.
+    ProfileInfo info = ProfileInfo.loadProfile(profile);
+    List<String> reused = Lists.newArrayList();
+    for (ProfileInfo.Task task : info.allTasksById) {
+      if (task.type == ProfilerTask.PACKAGE_RESTART_REUSE) {
+        assertEquals(0, task.durationNanos);
+        reused.add(task.getDescription());
+      }
+    }
+    assertThat(reused).isNotEmpty();
+    for (String description : reused) {
+      assertThat(description).matches("pkg \\(\\d+ us\\)");
+    }
+  }
+
+  /**
+   * Serves dependencies from the Skyframe graph of the test, except for the ones in
+   * {@link #missing}, and records every batch of dependencies that is requested.
+   */
+  private class RecordingEnvironment extends AbstractSkyFunctionEnvironment {
+    private final Set<SkyKey> missing = Sets.newHashSet();
+    private final List<Set<SkyKey>> requests = Lists.newArrayList();
+
+    @Override
+    protected Map<SkyKey, ValueOrUntypedException> getValueOrUntypedExceptions(
+        Set<SkyKey> depKeys) {
+      requests.add(ImmutableSet.copyOf(depKeys));
+      Map<SkyKey, ValueOrUntypedException> result = Maps.newHashMap();
+      for (SkyKey key : depKeys) {
+        if (missing.contains(key)) {
+          valuesMissing = true;
+          result.put(key, ValueOrExceptionUtils.ofNull());
+          continue;
+        }
+        EvaluationResult<SkyValue> evaluation;
+        try {
+          evaluation = SkyframeExecutorTestUtils.evaluate(
+              getSkyframeExecutor(), key, /*keepGoing=*/true, reporter);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        ErrorInfo error = evaluation.getError(key);
+        result.put(key, error == null
+            ? ValueOrExceptionUtils.ofValueUntyped(evaluation.get(key))
+            : ValueOrExceptionUtils.ofExn(error.getException()));
+      }
+      return result;
+    }
+
+    /** Returns the batches of requested dependencies that contain ASTs of Skylark files. */
+    List<Set<SkyKey>> getAstRequests() {
+      List<Set<SkyKey>> astRequests = Lists.newArrayList();
+      for (Set<SkyKey> request : requests) {
+        Set<SkyKey> asts = Sets.newHashSet();
+        for (SkyKey key : request) {
+          if (key.functionName().equals(SkyFunctions.AST_FILE_LOOKUP)) {
+            asts.add(key);
+          }
+        }
+        if (!asts.isEmpty()) {
+          astRequests.add(asts);
+        }
+      }
+      return astRequests;
+    }
+
+    @Override
+    public EventHandler getListener() {
+      return reporter;
+    }
+
+    @Override
+    public boolean inErrorBubblingForTesting() {
+      return false;
+    }
+  }
+
+  private static SkyKey astKey(String label) throws Exception {
+    return ASTFileLookupValue.key(Label.parseAbsolute(label));
+  }
+
+  @Test
+  public void testInlinedImportsAreRequestedInOneBatch() throws Exception {
+    Path buildFile = scratch.file("foo/BUILD",
+        "load('/a/ext', 'a')",
+        "load('/b/ext', 'b')",
+        "load('/c/ext', 'c')");
+    scratch.file("a/BUILD");
+    scratch.file("a/ext.bzl", "a = 'A'");
+    scratch.file("b/BUILD");
+    scratch.file("b/ext.bzl",
+        "load('/d/ext', 'd')",
+        "b = 'B' + d");
+    scratch.file("c/BUILD");
+    scratch.file("c/ext.bzl", "c = 'C'");
+    scratch.file("d/BUILD");
+    scratch.file("d/ext.bzl", "d = 'D'");
+    BuildFileAST ast = BuildFileAST.parseBuildFile(buildFile, reporter, false);
+    PackageIdentifier packageId = PackageIdentifier.parse("foo");
+    SkylarkImportLookupFunction inliningFunction =
+        new SkylarkImportLookupFunction(ruleClassProvider, getPackageFactory());
+    Map<SkyKey, SkyValue> inlinedImports = Maps.newHashMap();
+
+    // The AST of //d:ext.bzl, which is loaded by //b:ext.bzl, is not available yet.
+    RecordingEnvironment env = new RecordingEnvironment();
+    env.missing.add(astKey("//d:ext.bzl"));
+    assertNull(PackageFunction.fetchImportsFromBuildFile(
+        buildFile, packageId, ast, env, inliningFunction, inlinedImports));
+    // All the ASTs are requested together before any import is computed inline.
+    assertEquals(
+        ImmutableSet.of(astKey("//a:ext.bzl"), astKey("//b:ext.bzl"), astKey("//c:ext.bzl")),
+        env.getAstRequests().get(0));
+    Set<SkyKey> notComputed = Sets.newHashSet();
+    for (String label : ImmutableList.of("//a:ext.bzl", "//b:ext.bzl", "//c:ext.bzl")) {
+      if (!inlinedImports.containsKey(
+          SkylarkImportLookupValue.key(Label.parseAbsolute(label), false))) {
+        notComputed.add(astKey(label));
+      }
+    }
+    assertThat(notComputed).contains(astKey("//b:ext.bzl"));
+
+    // After the restart, only the imports that were not computed are requested again.
+    env = new RecordingEnvironment();
+    SkylarkImportResult result = PackageFunction.fetchImportsFromBuildFile(
+        buildFile, packageId, ast, env, inliningFunction, inlinedImports);
+    assertEquals(notComputed, env.getAstRequests().get(0));
+    assertThat(result.importMap.keySet()).containsExactly("/a/ext", "/b/ext", "/c/ext");
+    assertEquals("A", result.importMap.get("/a/ext").get("a"));
+    assertEquals("BD", result.importMap.get("/b/ext").get("b"));
+    assertEquals("C", result.importMap.get("/c/ext").get("c"));
+    assertThat(result.fileDependencies).containsExactly(Label.parseAbsolute("//a:ext.bzl"),
+        Label.parseAbsolute("//b:ext.bzl"), Label.parseAbsolute("//c:ext.bzl"),
+        Label.parseAbsolute("//d:ext.bzl"));
+  }
+
+  @Test
+  public void testImportsAreRequestedInOneBatch() throws Exception {
+    Path buildFile = scratch.file("foo/BUILD",
+        "load('/a/ext', 'a')",
+        "load('/b/ext', 'b')");
+    scratch.file("a/BUILD");
+    scratch.file("a/ext.bzl", "a = 'A'");
+    scratch.file("b/BUILD");
+    scratch.file("b/ext.bzl", "b = 'B'");
+    BuildFileAST ast = BuildFileAST.parseBuildFile(buildFile, reporter, false);
+    PackageIdentifier packageId = PackageIdentifier.parse("foo");
+    SkyKey importA = SkylarkImportLookupValue.key(Label.parseAbsolute("//a:ext.bzl"), false);
+    SkyKey importB = SkylarkImportLookupValue.key(Label.parseAbsolute("//b:ext.bzl"), false);
+
+    RecordingEnvironment env = new RecordingEnvironment();
+    env.missing.add(importB);
+    assertNull(PackageFunction.fetchImportsFromBuildFile(
+        buildFile, packageId, ast, env, null, null));
+    assertThat(env.requests).contains(ImmutableSet.of(importA, importB));
+
+    env = new RecordingEnvironment();
+    SkylarkImportResult result = PackageFunction.fetchImportsFromBuildFile(
+        buildFile, packageId, ast, env, null, null);
+    assertEquals("A", result.importMap.get("/a/ext").get("a"));
+    assertEquals("B", result.importMap.get("/b/ext").get("b"));
+  }
+
+  @Test
+  public void testFilesAreParsedThroughPersistentAstCache() throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(PackageCacheOptions.class);
+    parser.parse("--default_visibility=public", "--legacy_globbing_threads=7",
+        "--experimental_persistent_ast_cache_size=1");
+    getSkyframeExecutor().sync(reporter, parser.getOptions(PackageCacheOptions.class),
+        outputBase, rootDirectory, "", UUID.randomUUID());
+    // The cache is keyed by contents, so the second BUILD file is read from the entry of the first.
+    scratch.file("a/BUILD", "load('/ext/ext', 'x')", "exports_files([x])");
+    scratch.file("b/BUILD", "load('/ext/ext', 'x')", "exports_files([x])");
+    scratch.file("ext/BUILD");
+    scratch.file("ext/ext.bzl", "x = 'file'");
+
+    MetricsRegistry.Snapshot before = MetricsRegistry.instance().snapshot();
+    validPackage(PackageValue.key(PackageIdentifier.parse("a")));
+    Package b = validPackage(PackageValue.key(PackageIdentifier.parse("b"))).getPackage();
+    MetricsRegistry.Snapshot delta = MetricsRegistry.instance().snapshot().minus(before);
+    assertEquals(2L, (long) delta.getCounters().get("persistent_ast_cache.misses"));
+    assertEquals(1L, (long) delta.getCounters().get("persistent_ast_cache.hits"));
+    assertEquals("file", b.getTarget("file").getName());
+    assertTrue(outputBase.getRelative("ast_cache").exists());
+  }
+
   @Test
   public void testBadWorkspaceFile() throws Exception {
     Path workspacePath = scratch.overwriteFile("WORKSPACE", "junk");
@@ -82,7 +82,7 @@ public class PackageLookupFunctionTest extends FoundationTestCase {
         new PackageLookupFunction(deletedPackages));
     skyFunctions.put(
         SkyFunctions.PACKAGE,
-        new PackageFunction(null, null, null, null, null, null, null));
+        new PackageFunction(null, null, null, null, null, null, null, null));
     skyFunctions.put(SkyFunctions.FILE_STATE, new FileStateFunction(tsgm, externalFilesHelper));
     skyFunctions.put(SkyFunctions.FILE, new FileFunction(pkgLocator));
     skyFunctions.put(SkyFunctions.BLACKLISTED_PACKAGE_PREFIXES,
@@ -0,0 +1,212 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.ResolvedTargets;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
+import com.google.devtools.build.lib.query2.SkyQueryEnvironment;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.WalkableGraph;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how long {@code allrdeps} takes in {@link SkyQueryEnvironment} over a synthetic graph.
+ * Every package has the same number of rules, and each rule depends on two rules of the parent
+ * package in a binary tree of packages, so the search from the root has few, wide levels. Usage:
+ *
+ * <pre>
+ *   java -Xmx... ... SkyQueryRdepsBenchmark [packages [rules per package [threads...]]]
+ * </pre>
+ */
+class SkyQueryRdepsBenchmark {
+
+  /** An immutable graph of transitive traversal and package nodes. */
+  private static class SyntheticGraph implements WalkableGraph {
+    private final Map<SkyKey, SkyValue> values = new HashMap<>();
+    private final ListMultimap<SkyKey, SkyKey> directDeps = ArrayListMultimap.create();
+    private final ListMultimap<SkyKey, SkyKey> reverseDeps = ArrayListMultimap.create();
+
+    @Override
+    public boolean exists(SkyKey key) {
+      return values.containsKey(key);
+    }
+
+    @Override
+    public SkyValue getValue(SkyKey key) {
+      return values.get(key);
+    }
+
+    @Override
+    public Map<SkyKey, SkyValue> getSuccessfulValues(Iterable<SkyKey> keys) {
+      Map<SkyKey, SkyValue> result = new HashMap<>();
+      for (SkyKey key : keys) {
+        SkyValue value = values.get(key);
+        if (value != null) {
+          result.put(key, value);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public Map<SkyKey, Exception> getMissingAndExceptions(Iterable<SkyKey> keys) {
+      Map<SkyKey, Exception> result = new HashMap<>();
+      for (SkyKey key : keys) {
+        if (!values.containsKey(key)) {
+          result.put(key, null);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public Exception getException(SkyKey key) {
+      return null;
+    }
+
+    @Override
+    public Map<SkyKey, Iterable<SkyKey>> getDirectDeps(Iterable<SkyKey> keys) {
+      return get(directDeps, keys);
+    }
+
+    @Override
+    public Map<SkyKey, Iterable<SkyKey>> getReverseDeps(Iterable<SkyKey> keys) {
+      return get(reverseDeps, keys);
+    }
+
+    private static Map<SkyKey, Iterable<SkyKey>> get(
+        ListMultimap<SkyKey, SkyKey> edges, Iterable<SkyKey> keys) {
+      ImmutableMap.Builder<SkyKey, Iterable<SkyKey>> result = ImmutableMap.builder();
+      for (SkyKey key : keys) {
+        result.put(key, edges.get(key));
+      }
+      return result.build();
+    }
+
+    void addPackage(Package pkg) {
+      values.put(PackageValue.key(pkg.getPackageIdentifier()), new PackageValue(pkg));
+      for (Target target : pkg.getTargets()) {
+        SkyKey key = TransitiveTraversalValue.key(target.getLabel());
+        values.put(key, TransitiveTraversalValue.forTarget(target, null));
+        if (target instanceof Rule) {
+          for (Label dep : ((Rule) target).getTransitions(Rule.ALL_DEPS).values()) {
+            SkyKey depKey = TransitiveTraversalValue.key(dep);
+            directDeps.put(key, depKey);
+            reverseDeps.put(depKey, key);
+          }
+        }
+      }
+    }
+  }
+
+  private static String buildFile(int pkg, int rules) {
+    StringBuilder build = new StringBuilder();
+    String parent = "//pkg" + ((pkg - 1) / 2);
+    for (int i = 0; i < rules; i++) {
+      build.append("cc_library(name = 'lib" + i + "', deps = [");
+      if (pkg > 0) {
+        build.append("'" + parent + ":lib" + i + "', ")
+            .append("'" + parent + ":lib" + ((i + 1) % rules) + "'");
+      } else if (i > 0) {
+        build.append("':lib0'");
+      }
+      build.append("])\n");
+    }
+    return build.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int packages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int rulesPerPackage = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    Scratch scratch = new Scratch();
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    PackageFactoryApparatus packageFactory = new PackageFactoryApparatus(eventHandler);
+    final SyntheticGraph graph = new SyntheticGraph();
+    for (int i = 0; i < packages; i++) {
+      Package pkg = packageFactory.createPackage("pkg" + i,
+          scratch.file("/workspace/pkg" + i + "/BUILD", buildFile(i, rulesPerPackage)));
+      if (pkg.containsErrors()) {
+        throw new IllegalStateException("errors in pkg" + i + ": " + eventHandler.getEvents());
+      }
+      graph.addPackage(pkg);
+    }
+    String pattern = "//pkg0:lib0";
+    graph.values.put(
+        TargetPatternValue.key(pattern, TargetPatternEvaluator.DEFAULT_FILTERING_POLICY, ""),
+        new TargetPatternValue(ResolvedTargets.of(Label.parseAbsolute(pattern))));
+    final SkyKey universeKey = PrepareDepsOfPatternsValue.key(ImmutableList.of("//..."), "");
+    graph.values.put(universeKey,
+        new PrepareDepsOfPatternsValue(ImmutableList.<TargetPatternValue.TargetPatternKey>of()));
+    WalkableGraphFactory graphFactory = new WalkableGraphFactory() {
+      @Override
+      public EvaluationResult<SkyValue> prepareAndGet(Collection<String> roots, String offset,
+          int numThreads, EventHandler eventHandler) {
+        return EvaluationResult.<SkyValue>builder()
+            .addResult(universeKey, graph.values.get(universeKey))
+            .setWalkableGraph(graph)
+            .build();
+      }
+    };
+
+    // By default, compare a single thread with one per processor.
+    int[] threadCounts = {1, Runtime.getRuntime().availableProcessors()};
+    if (args.length > 2) {
+      threadCounts = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        threadCounts[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+    for (int threads : threadCounts) {
+      SkyQueryEnvironment env = new SkyQueryEnvironment(/*keepGoing=*/false,
+          /*strictScope=*/false, threads, Predicates.<Label>alwaysTrue(), eventHandler,
+          EnumSet.of(Setting.NO_IMPLICIT_DEPS), ImmutableList.<QueryFunction>of(), "",
+          graphFactory, ImmutableList.of("//..."), null);
+      final AtomicInteger count = new AtomicInteger();
+      long start = System.nanoTime();
+      env.evaluateQuery("allrdeps(" + pattern + ")", new Callback<Target>() {
+        @Override
+        public void process(Iterable<Target> partialResult) {
+          count.addAndGet(Iterables.size(partialResult));
+        }
+      });
+      System.out.printf("%d threads: %d rdeps of %s in %d ms%n",
+          threads, count.get(), pattern, (System.nanoTime() - start) / 1000000);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Predicate;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.util.Collection;
+
+import javax.annotation.Nullable;
+
+/**
+ * Measures how fast BUILD and .bzl files are read, lexed and parsed. All such files below a
+ * directory, e.g. the root of a large source tree, are parsed in several rounds and the best round
+ * is reported, so that runs of different versions of the parser can be compared. If a cache
+ * directory is given, the files are read through a {@link PersistentAstCache} there, which the
+ * first round fills. Usage:
+ *
+ * <pre>
+ *   java ... BuildFileParseBenchmark directory [rounds [cache directory]]
+ * </pre>
+ */
+class BuildFileParseBenchmark {
+
+  private static final Predicate<Path> IS_BUILD_OR_BZL_FILE = new Predicate<Path>() {
+    @Override
+    public boolean apply(Path path) {
+      String name = path.getBaseName();
+      return (name.equals("BUILD") || name.endsWith(".bzl")) && path.isFile();
+    }
+  };
+
+  /** Parses all the files and returns the time it took in microseconds. */
+  private static long time(Collection<Path> files, @Nullable PersistentAstCache cache)
+      throws Exception {
+    long start = System.nanoTime();
+    for (Path file : files) {
+      ParserInputSource input = ParserInputSource.create(file);
+      StoredEventHandler eventHandler = new StoredEventHandler();
+      if (file.getBaseName().equals("BUILD")) {
+        Parser.parseFile(input, eventHandler, /*parsePython=*/false, cache);
+      } else {
+        Parser.parseFileForSkylark(input, eventHandler, /*validationEnvironment=*/null, cache);
+      }
+    }
+    return (System.nanoTime() - start) / 1000;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: BuildFileParseBenchmark directory [rounds [cache directory]]");
+      System.exit(2);
+    }
+    Path root = new JavaIoFileSystem().getPath(new java.io.File(args[0]).getAbsolutePath());
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    PersistentAstCache cache = null;
+    if (args.length > 2) {
+      Path cacheDirectory =
+          root.getFileSystem().getPath(new java.io.File(args[2]).getAbsolutePath());
+      cache = new PersistentAstCache(cacheDirectory, Long.MAX_VALUE);
+    }
+    Collection<Path> files = FileSystemUtils.traverseTree(root, IS_BUILD_OR_BZL_FILE);
+    long bytes = 0;
+    for (Path file : files) {
+      bytes += file.getFileSize();
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < rounds; i++) {
+      best = Math.min(best, time(files, cache));
+    }
+    System.out.printf("%d files, %d KB parsed in %.2f ms (best of %d rounds), %.1f MB/s%n",
+        files.size(), bytes / 1024, best / 1000.0, rounds, bytes / 1.048576 / Math.max(best, 1));
+    if (cache != null) {
+      System.out.printf("cache: %d hits, %d misses%n", cache.getHitCount(), cache.getMissCount());
+    }
+  }
+}
@@ -388,4 +388,54 @@ public class FunctionTest extends EvaluationTestCase {
     assertEquals("abc2|", lookup("v4"));
     assertEquals("abfg|cde", lookup("v5"));
   }
+
+  @Test
+  public void testLocalVariablesAreResolvedToSlots() throws Exception {
+    eval("def func(a, b):",
+        "  c = a + b",
+        "  return [c + x for x in [a, b]]",
+        "y = func(1, 2)\n");
+    assertThat((Iterable<?>) lookup("y")).containsExactly(4, 5).inOrder();
+    UserDefinedFunction func = (UserDefinedFunction) lookup("func");
+    assertThat(func.getLocalCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void testLocalUnassignedOnBranchFallsBackToGlobal() throws Exception {
+    eval("a = 1",
+        "def func(c):",
+        "  if c:",
+        "    a = 2",
+        "  return a",
+        "x = func(True)",
+        "y = func(False)\n");
+    assertEquals(2, lookup("x"));
+    assertEquals(1, lookup("y"));
+  }
+
+  @Test
+  public void testCalleeDoesNotClobberCallerLocals() throws Exception {
+    eval("def inner(n):",
+        "  r = n * 10",
+        "  return r",
+        "def outer(n):",
+        "  r = n",
+        "  s = inner(n + 1)",
+        "  return r + s",
+        "x = outer(1)\n");
+    assertEquals(21, lookup("x"));
+  }
+
+  @Test
+  public void testLocalHoldingFunction() throws Exception {
+    eval("def twice(x): return 2 * x",
+        "def func(f, g):",
+        "  h = g",
+        "  total = 0",
+        "  for i in range(3):",
+        "    total += f(h(i))",
+        "  return total",
+        "x = func(twice, twice)\n");
+    assertEquals(12, lookup("x"));
+  }
 }
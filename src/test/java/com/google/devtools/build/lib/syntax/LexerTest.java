@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.devtools.build.lib.events.Event;
@@ -158,6 +159,29 @@ public class LexerTest {
     assertEquals("INT COMMENT NEWLINE INT NEWLINE EOF", names(tokens("123#456\n789 ")));
   }
 
+  @Test
+  public void testIdentifiersAreShared() throws Exception {
+    Token[] tokens = tokens("foo(foo, bar)\nfoo = bar");
+    assertEquals("foo", tokens[0].value);
+    assertSame(tokens[0].value, tokens[2].value);
+    assertSame(tokens[0].value, tokens[7].value);
+    assertSame(tokens[4].value, tokens[9].value);
+  }
+
+  @Test
+  public void testKeywordsAmongManyIdentifiers() throws Exception {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      input.append("x").append(i).append(" if ");
+    }
+    Token[] tokens = tokens(input.toString());
+    for (int i = 0; i < 200; i++) {
+      assertEquals(TokenKind.IDENTIFIER, tokens[2 * i].kind);
+      assertEquals("x" + i, tokens[2 * i].value);
+      assertEquals(TokenKind.IF, tokens[2 * i + 1].kind);
+    }
+  }
+
   @Test
   public void testBasics4() throws Exception {
     assertEquals("NEWLINE EOF", names(tokens("")));
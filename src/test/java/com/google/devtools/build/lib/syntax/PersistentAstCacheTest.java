@@ -0,0 +1,176 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.util.StringUtilities.joinLines;
+
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.profiler.MetricsRegistry;
+import com.google.devtools.build.lib.syntax.Parser.ParseResult;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PersistentAstCache}.
+ */
+@RunWith(JUnit4.class)
+public class PersistentAstCacheTest {
+
+  private static final String SKYLARK_FILE = joinLines(
+      "load('/pkg/defs', 'a', b = 'c')",
+      "# a comment",
+      "def f(x, y = [1, -2], *args, z, **kwargs):",
+      "  s = {k: v for k, v in kwargs.items() if k}",
+      "  for i in [j * 2 for j in args if not j]:",
+      "    if i > 0 and x:",
+      "      continue",
+      "    elif i in (y, z):",
+      "      break",
+      "    else:",
+      "      pass",
+      "  s[x] += 'a' if y else \"b\"",
+      "  return str(x).upper(*args, **kwargs)",
+      "");
+
+  private final Scratch scratch = new Scratch();
+  private PersistentAstCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    cache = new PersistentAstCache(scratch.dir("/cache"), 1 << 20);
+  }
+
+  private ParseResult parseSkylark(String content) {
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    ParseResult result = Parser.parseFileForSkylark(
+        ParserInputSource.create(content, new PathFragment("/pkg/f.bzl")), eventHandler, null,
+        cache);
+    assertThat(eventHandler.isEmpty()).isTrue();
+    return result;
+  }
+
+  private static void assertSameTree(ParseResult expected, ParseResult actual) {
+    assertThat(actual.statements.toString()).isEqualTo(expected.statements.toString());
+    assertThat(actual.comments.toString()).isEqualTo(expected.comments.toString());
+    assertThat(actual.location).isEqualTo(expected.location);
+    for (int i = 0; i < expected.statements.size(); i++) {
+      assertThat(actual.statements.get(i).getLocation())
+          .isEqualTo(expected.statements.get(i).getLocation());
+    }
+  }
+
+  @Test
+  public void testSecondParseIsReadFromCache() throws Exception {
+    ParseResult parsed = parseSkylark(SKYLARK_FILE);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+    assertThat(cache.getHitCount()).isEqualTo(0);
+
+    ParseResult cached = parseSkylark(SKYLARK_FILE);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cached.statements).isNotSameAs(parsed.statements);
+    assertSameTree(parsed, cached);
+  }
+
+  @Test
+  public void testLookupsAreCountedInMetrics() throws Exception {
+    MetricsRegistry.Snapshot before = MetricsRegistry.instance().snapshot();
+    parseSkylark(SKYLARK_FILE);
+    parseSkylark(SKYLARK_FILE);
+    parseSkylark(SKYLARK_FILE);
+    MetricsRegistry.Snapshot delta = MetricsRegistry.instance().snapshot().minus(before);
+    assertThat(delta.getCounters().get("persistent_ast_cache.hits")).isEqualTo(2L);
+    assertThat(delta.getCounters().get("persistent_ast_cache.misses")).isEqualTo(1L);
+  }
+
+  @Test
+  public void testCachedTreeEvaluates() throws Exception {
+    String content = joinLines(
+        "def f(n, step = 1):",
+        "  return [i * i for i in range(0, n, step) if i % 2 == 0]",
+        "x = f(7)",
+        "x += [len({'a': 1})]",
+        "");
+    parseSkylark(content);
+    ParseResult cached = parseSkylark(content);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+
+    try (Mutability mutability = Mutability.create("test")) {
+      Environment env = Environment.builder(mutability)
+          .setSkylark()
+          .setGlobals(Environment.SKYLARK)
+          .setEventHandler(new StoredEventHandler())
+          .build();
+      for (Statement statement : cached.statements) {
+        statement.exec(env);
+      }
+      assertThat(env.lookup("x").toString()).isEqualTo("[0, 4, 16, 36, 1]");
+    }
+  }
+
+  @Test
+  public void testFilesWithErrorsAreNotCached() throws Exception {
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    ParserInputSource input =
+        ParserInputSource.create("x = (", new PathFragment("/pkg/BUILD"));
+    Parser.parseFile(input, eventHandler, /*parsePython=*/false, cache);
+    Parser.parseFile(input, eventHandler, /*parsePython=*/false, cache);
+    assertThat(cache.getHitCount()).isEqualTo(0);
+    assertThat(cache.getDirectory().getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testCorruptEntryIsReparsed() throws Exception {
+    ParseResult parsed = parseSkylark(SKYLARK_FILE);
+    for (Path entry : cache.getDirectory().getDirectoryEntries()) {
+      FileSystemUtils.writeContent(entry, new byte[] {1, 2, 3});
+    }
+    assertSameTree(parsed, parseSkylark(SKYLARK_FILE));
+    assertThat(cache.getHitCount()).isEqualTo(0);
+
+    // The entry was written again after parsing.
+    assertSameTree(parsed, parseSkylark(SKYLARK_FILE));
+    assertThat(cache.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    cache = new PersistentAstCache(scratch.dir("/small_cache"), 2000);
+    for (int i = 0; i < 100; i++) {
+      parseSkylark("x = " + i + "\n");
+    }
+    long size = 0;
+    for (Path entry : cache.getDirectory().getDirectoryEntries()) {
+      size += entry.getFileSize();
+    }
+    assertThat(size).isAtMost(2000L);
+    parseSkylark("x = 99\n");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCacheIsReusedByNewInstance() throws Exception {
+    ParseResult parsed = parseSkylark(SKYLARK_FILE);
+    cache = new PersistentAstCache(cache.getDirectory(), 1 << 20);
+    assertSameTree(parsed, parseSkylark(SKYLARK_FILE));
+    assertThat(cache.getHitCount()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Joiner;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction.CompilerMode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the time it takes to load macro-heavy packages with the Skylark interpreter and with
+ * the byte code compiler in its different modes.
+ *
+ * <p>The macros are defined once in a frozen environment, like the functions of a .bzl file, and
+ * every package is evaluated in an environment of its own that calls them many times, like a
+ * BUILD file. Usage:
+ *
+ * <pre>
+ *   java ... SkylarkCompilerBenchmark [packages [macro calls per package [threshold]]]
+ * </pre>
+ */
+class SkylarkCompilerBenchmark {
+
+  private static final String MACROS = Joiner.on('\n').join(
+      "def _label(name, suffix):",
+      "  return ':%s_%s' % (name, suffix)",
+      "",
+      "def _copts(opts, defines):",
+      "  result = []",
+      "  for opt in opts:",
+      "    if opt.startswith('-W'):",
+      "      result.append(opt)",
+      "    else:",
+      "      result += ['-f' + opt]",
+      "  return result + ['-D%s=%s' % (k, defines[k]) for k in sorted(defines.keys())]",
+      "",
+      "def _srcs(name, count):",
+      "  return [name + '/src_' + str(i) + '.cc' for i in range(count) if i % 3 != 1]",
+      "",
+      "def library(name, deps = [], count = 10, **kwargs):",
+      "  defines = {'NAME': name.upper(), 'COUNT': str(count)} + kwargs",
+      "  rule = {",
+      "      'name': name,",
+      "      'srcs': _srcs(name, count),",
+      "      'copts': _copts(['Wall', '-Werror', 'pic', 'no-exceptions'], defines),",
+      "      'deps': [_label(dep, 'lib') for dep in deps],",
+      "  }",
+      "  if len(deps) > 2:",
+      "    rule['linkstatic'] = True",
+      "  return rule",
+      "",
+      "def test_suite(name, sizes):",
+      "  tests = []",
+      "  for size in sizes:",
+      "    tests.append(library(name + '_' + size, deps = [name], count = 4, SIZE = size))",
+      "  return tests");
+
+  private static String buildFile(int macroCalls) {
+    List<String> lines = new ArrayList<>();
+    lines.add("rules = []");
+    for (int i = 0; i < macroCalls; i++) {
+      lines.add(String.format(
+          "rules.append(library('lib%d', deps = ['a', 'b', 'lib%d'], VERSION = '%d'))",
+          i, i / 2, i));
+      if (i % 5 == 0) {
+        lines.add(String.format(
+            "suite%d = test_suite('lib%d', ['small', 'medium', 'large'])", i, i));
+      }
+    }
+    return Joiner.on('\n').join(lines);
+  }
+
+  private static Environment.Frame loadMacros() throws Exception {
+    try (Mutability mutability = Mutability.create("macros")) {
+      Environment env = Environment.builder(mutability)
+          .setSkylark()
+          .setGlobals(Environment.SKYLARK)
+          .setEventHandler(SkylarkShell.PRINT_HANDLER)
+          .build();
+      env.eval(MACROS);
+      return env.getGlobals();
+    }
+  }
+
+  /** Evaluates the given number of packages and returns the time it took in milliseconds. */
+  private static long loadPackages(
+      int packages, String buildFile, CompilerMode mode, int threshold) throws Exception {
+    // Every run defines the macros anew so that no run reuses code compiled by another one.
+    Environment.Frame macros = loadMacros();
+    long start = System.nanoTime();
+    for (int i = 0; i < packages; i++) {
+      try (Mutability mutability = Mutability.create("package")) {
+        Environment env = Environment.builder(mutability)
+            .setSkylark()
+            .setGlobals(Environment.SKYLARK)
+            .setEventHandler(SkylarkShell.PRINT_HANDLER)
+            .build()
+            .setCompilerMode(mode, threshold);
+        for (String name : new String[] {"library", "test_suite"}) {
+          env.update(name, macros.get(name));
+        }
+        env.eval(buildFile);
+      }
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int packages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    int macroCalls = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int threshold = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    String buildFile = buildFile(macroCalls);
+    // Warm up the JVM, in particular the interpreter itself.
+    loadPackages(packages / 4 + 1, buildFile, CompilerMode.OFF, threshold);
+
+    for (CompilerMode mode : CompilerMode.values()) {
+      System.out.printf("%-6s %6d ms for %d packages with %d macro calls each%n",
+          mode, loadPackages(packages, buildFile, mode, threshold), packages, macroCalls);
+    }
+  }
+}
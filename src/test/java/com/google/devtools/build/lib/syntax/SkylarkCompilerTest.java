@@ -0,0 +1,106 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.syntax.UserDefinedFunction.CompilerMode;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Runs the Skylark evaluation tests with functions compiled to byte code, which must behave
+ * exactly like interpreted ones.
+ */
+@RunWith(JUnit4.class)
+public class SkylarkCompilerTest extends SkylarkEvaluationTest {
+
+  private CompilerMode compilerMode = CompilerMode.EAGER;
+  private int compileThreshold = 0;
+
+  @Override
+  public Environment newEnvironment() throws Exception {
+    return super.newEnvironment().setCompilerMode(compilerMode, compileThreshold);
+  }
+
+  private void setCompilerMode(CompilerMode mode, int threshold) throws Exception {
+    compilerMode = mode;
+    compileThreshold = threshold;
+    env = newEnvironment();
+  }
+
+  @Test
+  public void testEagerCompilationOnFirstCall() throws Exception {
+    eval("def f(x):",
+        "  return x + 1",
+        "y = f(1)");
+    assertThat(lookup("y")).isEqualTo(2);
+    assertThat(((UserDefinedFunction) lookup("f")).isCompiled()).isTrue();
+  }
+
+  @Test
+  public void testTieredCompilationAfterThreshold() throws Exception {
+    setCompilerMode(CompilerMode.TIERED, 2);
+    eval("def f(x):",
+        "  return x * 2",
+        "a = f(1)",
+        "b = f(2)");
+    UserDefinedFunction f = (UserDefinedFunction) lookup("f");
+    assertThat(f.isCompiled()).isFalse();
+
+    eval("c = f(3)");
+    assertThat(f.isCompiled()).isTrue();
+    assertThat(lookup("a")).isEqualTo(2);
+    assertThat(lookup("b")).isEqualTo(4);
+    assertThat(lookup("c")).isEqualTo(6);
+  }
+
+  @Test
+  public void testNoCompilationWhenOff() throws Exception {
+    setCompilerMode(CompilerMode.OFF, 0);
+    eval("def f():",
+        "  return 1",
+        "x = f()");
+    assertThat(((UserDefinedFunction) lookup("f")).isCompiled()).isFalse();
+  }
+
+  @Test
+  public void testCompilerModeOfCallingEnvironment() throws Exception {
+    eval("def f():",
+        "  return 1");
+    UserDefinedFunction f = (UserDefinedFunction) lookup("f");
+    Environment interpreting = super.newEnvironment();
+    interpreting.update("f", f);
+    interpreting.eval("x = f()");
+    assertThat(f.isCompiled()).isFalse();
+
+    eval("y = f()");
+    assertThat(f.isCompiled()).isTrue();
+  }
+
+  @Test
+  public void testErrorInLoopBodyDoesNotFallBackToInterpreter() throws Exception {
+    // The side effect of the first iteration must happen exactly once.
+    checkEvalErrorContains("unsupported operand type(s) for +: 'string' and 'int'",
+        "l = []",
+        "def f():",
+        "  for x in [1, 'a']:",
+        "    l.append(x)",
+        "    x + 1",
+        "f()");
+    assertThat((Iterable<?>) lookup("l")).containsExactly(1, "a").inOrder();
+  }
+}
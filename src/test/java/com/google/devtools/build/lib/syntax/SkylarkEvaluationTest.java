@@ -16,7 +16,9 @@ package com.google.devtools.build.lib.syntax;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -110,6 +112,14 @@ public class SkylarkEvaluationTest extends EvaluationTest {
     }
   }
 
+  @SkylarkModule(name = "MockFailing", doc = "")
+  static class MockFailing {
+    @SkylarkCallable(doc = "")
+    public void fail() {
+      throw new AssertionError("not wrapped");
+    }
+  }
+
   @SkylarkModule(name = "MockInterface", doc = "")
   static interface MockInterface {
     @SkylarkCallable(doc = "")
@@ -554,6 +564,55 @@ public class SkylarkEvaluationTest extends EvaluationTest {
             "mock.string(key=True)");
   }
 
+  @Test
+  public void testJavaCallSiteWithSeveralReceiverClasses() throws Exception {
+    new SkylarkTest()
+        .update("mock", new Mock())
+        .update("sub", new MockSubClass())
+        .setUp("def f(m, s):",
+            "  return m.is_empty(s), m.struct_field",
+            "a = [f(m, s) for m in [mock, sub, mock] for s in ['', 'a']]")
+        .testEval("a", "[(True, 'a'), (False, 'a'), (True, 'a'), (False, 'a'), (True, 'a'),"
+            + " (False, 'a')]");
+  }
+
+  @Test
+  public void testCachedJavaCallSiteWithOtherArgumentTypes() throws Exception {
+    new SkylarkTest()
+        .update("mock", new Mock())
+        .setUp("def f(m, s):",
+            "  return m.is_empty(s)",
+            "a = f(mock, 'a')")
+        .testIfErrorContains("Type Mock has no function is_empty(int)", "f(mock, 1)");
+  }
+
+  @Test
+  public void testCachedJavaCallSiteWithKwargs() throws Exception {
+    new SkylarkTest()
+        .update("mock", new Mock())
+        .setUp("def f(m, **kwargs):",
+            "  return m.string(**kwargs)",
+            "a = f(mock)")
+        .testIfErrorContains("Keyword arguments are not allowed when calling a java method",
+            "f(mock, key=True)");
+  }
+
+  @Test
+  public void testMegamorphicCallSite() throws Exception {
+    // Every anonymous subclass is a receiver class of its own.
+    new SkylarkTest()
+        .update("m1", new Mock() {})
+        .update("m2", new Mock() {})
+        .update("m3", new Mock() {})
+        .update("m4", new Mock() {})
+        .update("m5", new Mock() {})
+        .update("m6", new Mock() {})
+        .setUp("def f(m):",
+            "  return m.is_empty(''), m.struct_field",
+            "a = [f(m) for m in [m1, m2, m3, m4, m5, m6, m1, m6]]")
+        .testEval("a", "[(True, 'a') for i in range(8)]");
+  }
+
   @Test
   public void testNoJavaCallsWithoutSkylark() throws Exception {
     new SkylarkTest().testIfExactError("Type int has no function to_string()", "s = 3.to_string()");
@@ -686,6 +745,28 @@ public class SkylarkEvaluationTest extends EvaluationTest {
         .testLookup("val", 8);
   }
 
+  @Test
+  public void testJavaCallExceptionIsWrapped() throws Exception {
+    update("Mock", Mock.class);
+    try {
+      eval("Mock.value_of('abc')");
+      fail();
+    } catch (EvalException e) {
+      assertThat(Throwables.getRootCause(e)).isInstanceOf(NumberFormatException.class);
+    }
+  }
+
+  @Test
+  public void testJavaCallErrorIsNotWrapped() throws Exception {
+    update("mock", new MockFailing());
+    try {
+      eval("mock.fail()");
+      fail();
+    } catch (AssertionError e) {
+      assertThat(e).hasMessage("not wrapped");
+    }
+  }
+
   @Test
   public void testStaticDirectJavaCallMethodIsNonStatic() throws Exception {
     new SkylarkTest().update("Mock", Mock.class).testIfExactError("Method 'is_empty' is not static",
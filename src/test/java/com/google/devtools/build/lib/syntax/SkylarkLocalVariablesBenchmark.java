@@ -0,0 +1,95 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * Measures how long the Skylark interpreter takes to run functions whose time is spent reading
+ * and writing local variables, in loops and in list comprehensions.
+ *
+ * <p>Every function is run in a fresh environment many times and the best of several rounds is
+ * reported, so that runs of different versions of the interpreter can be compared. Usage:
+ *
+ * <pre>
+ *   java ... SkylarkLocalVariablesBenchmark [calls per round [rounds]]
+ * </pre>
+ */
+class SkylarkLocalVariablesBenchmark {
+
+  private static final String FUNCTIONS = Joiner.on('\n').join(
+      "def loop(n):",
+      "  total = 0",
+      "  prev = 0",
+      "  for i in range(n):",
+      "    step = i - prev",
+      "    if step > 0:",
+      "      total += i * step",
+      "    else:",
+      "      total = total - 1",
+      "    prev = i",
+      "  return total",
+      "",
+      "def comprehension(n):",
+      "  values = range(n)",
+      "  offset = 3",
+      "  squares = [x * x + offset for x in values if x % 2 == 0]",
+      "  pairs = [a + b for a in squares for b in [offset, offset + 1]]",
+      "  return len(pairs)",
+      "",
+      "def nested(n):",
+      "  rows = []",
+      "  for i in range(n / 10):",
+      "    row = [i * j for j in range(10)]",
+      "    rows.append(row)",
+      "  return len(rows)");
+
+  private static final Map<String, String> CALLS = ImmutableMap.of(
+      "loop", "loop(1000)",
+      "comprehension", "comprehension(1000)",
+      "nested", "nested(1000)");
+
+  /** Runs the given call in a loop and returns the time it took in milliseconds. */
+  private static long time(String call, int calls) throws Exception {
+    try (Mutability mutability = Mutability.create("benchmark")) {
+      Environment env = Environment.builder(mutability)
+          .setSkylark()
+          .setGlobals(Environment.SKYLARK)
+          .setEventHandler(SkylarkShell.PRINT_HANDLER)
+          .build();
+      env.eval(FUNCTIONS);
+      String program =
+          String.format("def run():\n  for _ in range(%d):\n    %s\nrun()", calls, call);
+      long start = System.nanoTime();
+      env.eval(program);
+      return (System.nanoTime() - start) / 1000000;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    for (Map.Entry<String, String> entry : CALLS.entrySet()) {
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < rounds; i++) {
+        best = Math.min(best, time(entry.getValue(), calls));
+      }
+      System.out.printf("%-14s %6d ms for %d calls (best of %d rounds)%n",
+          entry.getKey(), best, calls, rounds);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
+import com.google.devtools.build.lib.syntax.ClassObject.SkylarkClassObject;
+
+import java.util.Map;
+
+/**
+ * Measures the time the Skylark interpreter spends dispatching calls to Java: struct fields and
+ * methods of a rule context like {@code ctx.attr.srcs}, and the builtin methods of strings.
+ *
+ * <p>Every workload runs in a loop of a Skylark function and the best of several rounds is
+ * reported, so that runs of different versions of the interpreter can be compared. Usage:
+ *
+ * <pre>
+ *   java ... SkylarkMethodCallBenchmark [iterations per round [rounds]]
+ * </pre>
+ */
+class SkylarkMethodCallBenchmark {
+
+  /** Stands in for the rule context of a Skylark rule implementation. */
+  @SkylarkModule(name = "ctx", doc = "")
+  static final class FakeRuleContext {
+    private final SkylarkClassObject attr = new SkylarkClassObject(
+        ImmutableMap.<String, Object>of("name", "lib", "srcs", "a.cc b.cc", "linkstatic", true),
+        "no attribute '%s'");
+
+    @SkylarkCallable(name = "attr", doc = "", structField = true)
+    public SkylarkClassObject getAttr() {
+      return attr;
+    }
+
+    @SkylarkCallable(name = "label", doc = "", structField = true)
+    public String getLabel() {
+      return "//pkg:lib";
+    }
+
+    @SkylarkCallable(name = "expand", doc = "")
+    public String expand(String value) {
+      return value;
+    }
+  }
+
+  private static final String FUNCTIONS = Joiner.on('\n').join(
+      "def attrs(ctx, n):",
+      "  count = 0",
+      "  for i in range(n):",
+      "    if ctx.attr.linkstatic and ctx.attr.name:",
+      "      count += len(ctx.attr.srcs) + len(ctx.label)",
+      "  return count",
+      "",
+      "def methods(ctx, n):",
+      "  count = 0",
+      "  for i in range(n):",
+      "    count += len(ctx.expand(ctx.attr.name))",
+      "  return count",
+      "",
+      "def strings(s, n):",
+      "  count = 0",
+      "  for i in range(n):",
+      "    if s.startswith('lib') and not s.endswith('.h'):",
+      "      count += len(s.replace('.', '_').upper())",
+      "  return count");
+
+  private static final Map<String, String> CALLS = ImmutableMap.of(
+      "ctx.attr", "attrs(ctx, %d)",
+      "ctx methods", "methods(ctx, %d)",
+      "strings", "strings('libfoo.cc', %d)");
+
+  /** Runs the given call and returns the time it took in milliseconds. */
+  private static long time(String call) throws Exception {
+    try (Mutability mutability = Mutability.create("benchmark")) {
+      Environment env = Environment.builder(mutability)
+          .setSkylark()
+          .setGlobals(Environment.SKYLARK)
+          .setEventHandler(SkylarkShell.PRINT_HANDLER)
+          .build();
+      env.update("ctx", new FakeRuleContext());
+      env.eval(FUNCTIONS);
+      long start = System.nanoTime();
+      env.eval(call);
+      return (System.nanoTime() - start) / 1000000;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    for (Map.Entry<String, String> entry : CALLS.entrySet()) {
+      String call = String.format(entry.getValue(), iterations);
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < rounds; i++) {
+        best = Math.min(best, time(call));
+      }
+      System.out.printf("%-12s %6d ms for %d iterations (best of %d rounds)%n",
+          entry.getKey(), best, iterations, rounds);
+    }
+  }
+}
@@ -81,11 +81,12 @@ class SkylarkShell {
   }
 
   public static void main(String[] args) {
+    SkylarkShell shell = new SkylarkShell();
     if (args.length > 0 && args[0].equals("--compiler-debug")) {
-      UserDefinedFunction.enableCompiler = true;
+      shell.env.setCompilerMode(UserDefinedFunction.CompilerMode.EAGER, 0);
       UserDefinedFunction.debugCompiler = true;
       UserDefinedFunction.debugCompilerPrintByteCode = true;
     }
-    new SkylarkShell().readEvalPrintLoop();
+    shell.readEvalPrintLoop();
   }
 }
@@ -0,0 +1,110 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.shell.Command;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares how many subprocesses per second {@link SpawnHelper} and {@link Command} (which forks
+ * the JVM through {@link ProcessBuilder}) can start at high parallelism. The JVM first allocates
+ * and touches a ballast of the given size, because the cost of forking grows with the heap of the
+ * forking process. Usage:
+ *
+ * <pre>
+ *   java -Xmx... ... SpawnHelperBenchmark spawn-helper [spawns [threads [ballast MB]]]
+ * </pre>
+ */
+class SpawnHelperBenchmark {
+
+  private static final ImmutableList<String> ARGV = ImmutableList.of("/bin/true");
+
+  /** Runs {@code spawns} subprocesses on {@code threads} threads and returns the elapsed millis. */
+  private static long run(int spawns, int threads, final Callable<Void> spawn) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    List<Future<Void>> results = new ArrayList<>();
+    for (int i = 0; i < spawns; i++) {
+      results.add(executor.submit(spawn));
+    }
+    for (Future<Void> result : results) {
+      result.get();
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1000000;
+    executor.shutdown();
+    return elapsedMillis;
+  }
+
+  private static void report(String name, int spawns, int threads, long elapsedMillis) {
+    System.out.printf("%-12s %d spawns on %d threads: %d ms (%.0f spawns/s)%n",
+        name, spawns, threads, elapsedMillis, spawns * 1000.0 / Math.max(1, elapsedMillis));
+  }
+
+  public static void main(String[] args) throws Exception {
+    final File helperBinary = new File(args[0]);
+    int spawns = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    int ballastMb = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+    List<byte[]> ballast = new ArrayList<>();
+    for (int i = 0; i < ballastMb; i++) {
+      byte[] chunk = new byte[1 << 20];
+      for (int j = 0; j < chunk.length; j += 4096) {
+        chunk[j] = 1;
+      }
+      ballast.add(chunk);
+    }
+
+    final File workingDir = Files.createTempDirectory("spawn-helper-benchmark").toFile();
+    final File output = new File(workingDir, "output");
+    try (final SpawnHelper spawnHelper =
+        SpawnHelper.start(helperBinary, new File(workingDir, "spawn-helper.socket"))) {
+      Callable<Void> viaHelper = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          spawnHelper.execute(ARGV, ImmutableMap.<String, String>of(), workingDir, "/dev/null",
+              output.getPath(), output.getPath(), Command.NO_OBSERVER);
+          return null;
+        }
+      };
+      Callable<Void> viaCommand = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          new Command(ARGV.toArray(new String[0]), ImmutableMap.<String, String>of(), workingDir)
+              .execute(new byte[0], Command.NO_OBSERVER, ByteStreams.nullOutputStream(),
+                  ByteStreams.nullOutputStream(), /*killSubprocessOnInterrupt=*/true);
+          return null;
+        }
+      };
+
+      // Warm up both paths before measuring.
+      run(Math.min(spawns, 200), threads, viaHelper);
+      run(Math.min(spawns, 200), threads, viaCommand);
+      System.out.printf("ballast: %d MB%n", ballast.size());
+      report("spawn-helper", spawns, threads, run(spawns, threads, viaHelper));
+      report("Command", spawns, threads, run(spawns, threads, viaCommand));
+    }
+  }
+}
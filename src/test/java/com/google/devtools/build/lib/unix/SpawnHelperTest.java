@@ -0,0 +1,180 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.devtools.build.lib.shell.Command;
+import com.google.devtools.build.lib.shell.Killable;
+import com.google.devtools.build.lib.shell.KillableObserver;
+import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.testutil.BlazeTestUtils;
+import com.google.devtools.build.lib.testutil.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link SpawnHelper}.
+ */
+@RunWith(JUnit4.class)
+public class SpawnHelperTest {
+  private File workingDir;
+  private File stdout;
+  private File stderr;
+  private File socketFile;
+  private SpawnHelper spawnHelper;
+
+  @Before
+  public final void startSpawnHelper() throws Exception {
+    workingDir = TestUtils.makeTempDir();
+    stdout = new File(workingDir, "stdout");
+    stderr = new File(workingDir, "stderr");
+    File helperBinary = new File(BlazeTestUtils.runfilesDir(), "src/main/tools/spawn-helper");
+    socketFile = new File(workingDir, "spawn-helper.socket");
+    spawnHelper = SpawnHelper.start(helperBinary, socketFile);
+  }
+
+  @After
+  public final void stopSpawnHelper() throws Exception {
+    spawnHelper.close();
+  }
+
+  private TerminationStatus run(String script, KillableObserver observer) throws IOException {
+    return spawnHelper.execute(
+        ImmutableList.of("/bin/sh", "-c", script),
+        ImmutableMap.of("GREETING", "hello"),
+        workingDir,
+        "/dev/null",
+        stdout.getPath(),
+        stderr.getPath(),
+        observer);
+  }
+
+  private static String read(File file) throws IOException {
+    return Files.toString(file, StandardCharsets.ISO_8859_1);
+  }
+
+  @Test
+  public void testRedirectsOutputAndPassesEnvironmentAndCwd() throws Exception {
+    TerminationStatus status = run("echo $GREETING; pwd; echo oops >&2", Command.NO_OBSERVER);
+    assertThat(status.success()).isTrue();
+    assertThat(read(stdout)).isEqualTo("hello\n" + workingDir.getCanonicalPath() + "\n");
+    assertThat(read(stderr)).isEqualTo("oops\n");
+  }
+
+  @Test
+  public void testAppendsToExistingOutput() throws Exception {
+    Files.write("before\n", stdout, StandardCharsets.ISO_8859_1);
+    run("echo after", Command.NO_OBSERVER);
+    assertThat(read(stdout)).isEqualTo("before\nafter\n");
+  }
+
+  @Test
+  public void testReportsExitCode() throws Exception {
+    TerminationStatus status = run("exit 42", Command.NO_OBSERVER);
+    assertThat(status.exited()).isTrue();
+    assertThat(status.getExitCode()).isEqualTo(42);
+  }
+
+  @Test
+  public void testObserverCanKillProcess() throws Exception {
+    KillableObserver killImmediately = new KillableObserver() {
+      @Override
+      public void startObserving(Killable killable) {
+        killable.kill();
+      }
+
+      @Override
+      public void stopObserving(Killable killable) {}
+    };
+    TerminationStatus status = run("sleep 60", killImmediately);
+    assertThat(status.exited()).isFalse();
+    assertThat(status.getTerminatingSignal()).isEqualTo(15 /* SIGTERM */);
+  }
+
+  @Test
+  public void testInterruptKillsProcess() throws Exception {
+    Thread.currentThread().interrupt();
+    TerminationStatus status = run("sleep 60", Command.NO_OBSERVER);
+    assertThat(Thread.interrupted()).isTrue();
+    assertThat(status.exited()).isFalse();
+  }
+
+  @Test
+  public void testMissingBinary() throws Exception {
+    try {
+      spawnHelper.execute(
+          ImmutableList.of("/does/not/exist"),
+          ImmutableMap.<String, String>of(),
+          workingDir,
+          "/dev/null",
+          stdout.getPath(),
+          stderr.getPath(),
+          Command.NO_OBSERVER);
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("/does/not/exist");
+    }
+  }
+
+  // Without the timeout, this would only fail after the helper gives up on the stalled client.
+  @Test(timeout = 10000)
+  public void testStalledClientDoesNotBlockOtherSpawns() throws Exception {
+    try (LocalClientSocket stalled = new LocalClientSocket(new LocalSocketAddress(socketFile))) {
+      // Send only half of the length header and never the rest.
+      stalled.getOutputStream().write(new byte[] {0, 0});
+      stalled.getOutputStream().flush();
+      TerminationStatus status = run("echo still spawning", Command.NO_OBSERVER);
+      assertThat(status.success()).isTrue();
+      assertThat(read(stdout)).isEqualTo("still spawning\n");
+    }
+  }
+
+  @Test
+  public void testConcurrentSpawns() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<TerminationStatus>> results = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      final int exitCode = i;
+      results.add(executor.submit(new Callable<TerminationStatus>() {
+        @Override
+        public TerminationStatus call() throws IOException {
+          return run("exit " + exitCode, Command.NO_OBSERVER);
+        }
+      }));
+    }
+    for (int i = 0; i < results.size(); i++) {
+      assertThat(results.get(i).get().getExitCode()).isEqualTo(i);
+    }
+    executor.shutdown();
+  }
+}
@@ -40,6 +40,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -269,6 +270,78 @@ public class GlobTest {
         .containsExactlyElementsIn(ImmutableList.of(tmpPath.getRelative("foo/bar/wiz/file")));
   }
 
+  @Test
+  public void testRecursiveGlobReadsEachDirectoryOnce() throws Exception {
+    final List<Path> readdirs = Collections.synchronizedList(new ArrayList<Path>());
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statNullable(Path path, Symlinks symlinks) {
+        return UnixGlob.DEFAULT_SYSCALLS.statNullable(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        readdirs.add(path);
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+
+    new UnixGlob.Builder(tmpPath)
+        .addPatterns("**/*", "**/*")
+        .setFilesystemCalls(new AtomicReference<>(syscalls))
+        .glob();
+    assertThat(readdirs).containsNoDuplicates();
+    assertThat(readdirs).contains(tmpPath.getRelative("foo/bar/wiz"));
+  }
+
+  @Test
+  public void testSmallGlobIsNotDelayedByLargeGlob() throws Exception {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        1, 1, 0L, TimeUnit.SECONDS, UnixGlob.newGlobWorkQueue());
+    final Path small = tmpPath.getRelative("foo/bar/wiz");
+    final CountDownLatch largeGlobStarted = new CountDownLatch(1);
+    final CountDownLatch smallGlobQueued = new CountDownLatch(1);
+    final List<Path> readdirs = Collections.synchronizedList(new ArrayList<Path>());
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statNullable(Path path, Symlinks symlinks) {
+        return UnixGlob.DEFAULT_SYSCALLS.statNullable(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        readdirs.add(path);
+        if (path.equals(tmpPath)) {
+          // Hold the only thread until the small glob is queued behind the large one.
+          largeGlobStarted.countDown();
+          Uninterruptibles.awaitUninterruptibly(smallGlobQueued);
+        }
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+    AtomicReference<UnixGlob.FilesystemCalls> syscallsRef = new AtomicReference<>(syscalls);
+
+    Future<List<Path>> large = new UnixGlob.Builder(tmpPath)
+        .addPattern("**/*")
+        .setFilesystemCalls(syscallsRef)
+        .setThreadPool(executor)
+        .globAsync(false);
+    largeGlobStarted.await();
+    Future<List<Path>> smallGlob = new UnixGlob.Builder(small)
+        .addPattern("*")
+        .setFilesystemCalls(syscallsRef)
+        .setThreadPool(executor)
+        .globAsync(false);
+    smallGlobQueued.countDown();
+    large.get();
+    assertThat(smallGlob.get()).containsExactly(small.getRelative("file"));
+
+    // The small glob ran right after the task of the large one that was running.
+    assertThat(readdirs.get(0)).isEqualTo(tmpPath);
+    assertThat(readdirs.get(1)).isEqualTo(small);
+    executor.shutdown();
+  }
+
   @Test
   public void testIllegalPatterns() throws Exception {
     assertIllegalPattern("(illegal) pattern");